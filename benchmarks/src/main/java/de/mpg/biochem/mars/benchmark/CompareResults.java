@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Compares two JMH result files written with -rf json. For every benchmark and
+ * parameter combination present in both files the scores and the ratio of the
+ * new score to the baseline score are printed. Ratios outside the combined
+ * score errors are flagged. Run with the baseline file followed by the new
+ * file.
+ *
+ * @author Karl Duderstadt
+ */
+public class CompareResults {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println(
+				"Usage: CompareResults <baseline.json> <results.json>");
+			System.exit(1);
+		}
+
+		Map<String, Result> baseline = read(new File(args[0]));
+		Map<String, Result> results = read(new File(args[1]));
+
+		System.out.println(String.format("%-80s %14s %14s %8s", "Benchmark",
+			"Baseline", "Result", "Ratio"));
+		for (String key : results.keySet()) {
+			Result before = baseline.get(key);
+			Result after = results.get(key);
+			if (before == null) {
+				System.out.println(String.format("%-80s %14s %14.3f %8s", key, "-",
+					after.score, "new"));
+				continue;
+			}
+			double ratio = after.score / before.score;
+			boolean significant = Math.abs(after.score - before.score) > before.error +
+				after.error;
+			System.out.println(String.format("%-80s %14.3f %14.3f %8.3f%s", key,
+				before.score, after.score, ratio, significant ? " *" : ""));
+		}
+		System.out.println("Scores are in the units of each benchmark. " +
+			"* marks differences larger than the combined score errors.");
+	}
+
+	/**
+	 * Reads a JMH json result file.
+	 *
+	 * @param file The result file.
+	 * @return Map from benchmark name with parameters to the result.
+	 * @throws IOException Thrown if unable to read the file.
+	 */
+	public static Map<String, Result> read(File file) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<>();
+		try (JsonParser jParser = new JsonFactory().createParser(file)) {
+			if (jParser.nextToken() != JsonToken.START_ARRAY) throw new IOException(
+				file.getName() + " is not a JMH json result file.");
+
+			while (jParser.nextToken() == JsonToken.START_OBJECT) {
+				String benchmark = null;
+				Map<String, String> params = new TreeMap<>();
+				Result result = new Result();
+
+				while (jParser.nextToken() != JsonToken.END_OBJECT) {
+					String fieldName = jParser.getCurrentName();
+					jParser.nextToken();
+					if ("benchmark".equals(fieldName)) benchmark = jParser.getText();
+					else if ("params".equals(fieldName)) {
+						while (jParser.nextToken() != JsonToken.END_OBJECT)
+							params.put(jParser.getCurrentName(), jParser.nextTextValue());
+					}
+					else if ("primaryMetric".equals(fieldName)) {
+						while (jParser.nextToken() != JsonToken.END_OBJECT) {
+							String metricField = jParser.getCurrentName();
+							jParser.nextToken();
+							if ("score".equals(metricField)) result.score = jParser
+								.getValueAsDouble();
+							else if ("scoreError".equals(metricField)) result.error =
+								jParser.getValueAsDouble();
+							else jParser.skipChildren();
+						}
+					}
+					else jParser.skipChildren();
+				}
+
+				results.put(benchmark + (params.isEmpty() ? "" : params.toString()),
+					result);
+			}
+		}
+		return results;
+	}
+
+	public static class Result {
+
+		double score;
+		double error;
+	}
+}
@@ -0,0 +1,144 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mpg.biochem.mars.image.MarsImageUtils;
+import de.mpg.biochem.mars.image.Peak;
+
+/**
+ * Benchmarks for the peak finding, fitting and integration steps performed on
+ * every frame by the peak tracker. The threshold is chosen so that all
+ * synthetic peaks are found on the raw image without prior filtering.
+ *
+ * @author Karl Duderstadt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmark {
+
+	@Param({ "256", "1024" })
+	public int size;
+
+	/**
+	 * Number of peaks per 10,000 pixels.
+	 */
+	@Param({ "2", "20" })
+	public double peakDensity;
+
+	private static final double THRESHOLD = 1000;
+	private static final int MINIMUM_DISTANCE = 4;
+	private static final int FIT_RADIUS = 4;
+	private static final double INITIAL_SIZE = 2;
+	private static final int INNER_RADIUS = 2;
+	private static final int OUTER_RADIUS = 4;
+
+	private Img<UnsignedShortType> img;
+	private Interval interval;
+	private List<Peak> foundPeaks;
+	private List<Peak> fittedPeaks;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		img = SyntheticData.image(size, peakDensity);
+		interval = img;
+		foundPeaks = MarsImageUtils.findPeaks(img, interval, 0, THRESHOLD,
+			MINIMUM_DISTANCE, false);
+		fittedPeaks = MarsImageUtils.fitPeaks(img, interval, copy(foundPeaks),
+			FIT_RADIUS, INITIAL_SIZE, false, 0);
+	}
+
+	@Benchmark
+	public List<Peak> findPeaks() {
+		return MarsImageUtils.findPeaks(img, interval, 0, THRESHOLD,
+			MINIMUM_DISTANCE, false);
+	}
+
+	@Benchmark
+	public List<Peak> fitPeaks(FreshPeaks fresh) {
+		return MarsImageUtils.fitPeaks(img, interval, fresh.peaks, FIT_RADIUS,
+			INITIAL_SIZE, false, 0);
+	}
+
+	@Benchmark
+	public List<Peak> integratePeaks() {
+		MarsImageUtils.integratePeaks(img, interval, fittedPeaks, INNER_RADIUS,
+			OUTER_RADIUS);
+		return fittedPeaks;
+	}
+
+	/**
+	 * Fitting moves the peaks it is given, so every invocation starts from fresh
+	 * copies of the peaks found. The copy is not included in the measured time.
+	 * Integration only overwrites the intensity values and can reuse the same
+	 * fitted peaks.
+	 */
+	@State(Scope.Thread)
+	public static class FreshPeaks {
+
+		List<Peak> peaks;
+
+		@Setup(Level.Invocation)
+		public void copyPeaks(ImageBenchmark benchmark) {
+			peaks = copy(benchmark.foundPeaks);
+		}
+	}
+
+	private static List<Peak> copy(List<Peak> source) {
+		List<Peak> copies = new ArrayList<>(source.size());
+		for (Peak peak : source)
+			copies.add(new Peak(peak));
+		return copies;
+	}
+}
@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import de.mpg.biochem.mars.table.MarsTable;
+
+/**
+ * Benchmarks for sorting MarsTables and for their smile serialization, which
+ * is the format used for molecule records in archives.
+ *
+ * @author Karl Duderstadt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarsTableBenchmark {
+
+	@Param({ "1000", "100000" })
+	public int rows;
+
+	private final SmileFactory smileFactory = new SmileFactory();
+
+	private MarsTable source;
+	@Setup(Level.Trial)
+	public void generate() throws IOException {
+		source = SyntheticData.table(rows, new Random(SyntheticData.SEED));
+		smileBytes = toSmile(source);
+	}
+
+	@Benchmark
+	public MarsTable sortByDoubleColumn(UnsortedTable unsorted) {
+		return unsorted.table.sort("x");
+	}
+
+	@Benchmark
+	public MarsTable sortByStringAndDoubleColumns(UnsortedTable unsorted) {
+		return unsorted.table.sort(true, "group", "intensity");
+	}
+
+	@Benchmark
+	public byte[] toJSON() throws IOException {
+		return toSmile(source);
+	}
+
+	@Benchmark
+	public MarsTable fromJSON() throws IOException {
+		MarsTable loaded = new MarsTable();
+		try (JsonParser jParser = smileFactory.createParser(smileBytes)) {
+			loaded.fromJSON(jParser);
+		}
+		// Double columns can be decoded on first access, so touch all of them to
+		// include the decoding in the measurement.
+		for (String column : new String[] { "T", "x", "y", "intensity" })
+			loaded.getValue(column, loaded.getRowCount() - 1);
+		return loaded;
+	}
+
+	/**
+	 * Sorting happens in place, so every invocation gets a fresh unsorted copy.
+	 * The copy is not included in the measured time.
+	 */
+	@State(Scope.Thread)
+	public static class UnsortedTable {
+
+		MarsTable table;
+
+		@Setup(Level.Invocation)
+		public void copy(MarsTableBenchmark benchmark) {
+			table = benchmark.source.clone();
+		}
+	}
+
+	private byte[] toSmile(MarsTable marsTable) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		try (JsonGenerator jGenerator = smileFactory.createGenerator(stream)) {
+			marsTable.toJSON(jGenerator);
+		}
+		return stream.toByteArray();
+	}
+}
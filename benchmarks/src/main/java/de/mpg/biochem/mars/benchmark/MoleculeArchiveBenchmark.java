@@ -0,0 +1,154 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mpg.biochem.mars.molecule.SingleMolecule;
+import de.mpg.biochem.mars.molecule.SingleMoleculeArchive;
+
+/**
+ * Benchmarks for writing archives as virtual stores and for retrieving
+ * molecule records from a virtual store.
+ *
+ * @author Karl Duderstadt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MoleculeArchiveBenchmark {
+
+	@Param({ "100", "2000" })
+	public int molecules;
+
+	@Param({ "100", "5000" })
+	public int rows;
+
+	private File directory;
+	private SingleMoleculeArchive archive;
+	private SingleMoleculeArchive virtualArchive;
+	private List<String> UIDs;
+
+	@Setup(Level.Trial)
+	public void generate() throws IOException {
+		directory = Files.createTempDirectory("marsBenchmark").toFile();
+		archive = SyntheticData.archive(molecules, rows);
+
+		File store = new File(directory, "get.yama.store");
+		archive.saveAsVirtualStore(store);
+		virtualArchive = new SingleMoleculeArchive(store);
+		UIDs = virtualArchive.getMoleculeUIDs();
+	}
+
+	@TearDown(Level.Trial)
+	public void cleanUp() throws IOException {
+		virtualArchive.close();
+		deleteRecursively(directory);
+	}
+
+	@Benchmark
+	public File saveAsVirtualStore(SaveState state) throws IOException {
+		return archive.saveAsVirtualStore(state.store, state.threads);
+	}
+
+	/**
+	 * Retrieves a random molecule from the virtual store, which includes reading
+	 * and deserializing the record from disk. Use the JMH -t option to measure
+	 * concurrent retrieval.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public SingleMolecule get(GetState state) {
+		return virtualArchive.get(UIDs.get(state.random.nextInt(UIDs.size())));
+	}
+
+	/**
+	 * Every invocation saves to a new location that is removed again in the
+	 * teardown, so the cleanup is not included in the measured time.
+	 */
+	@State(Scope.Thread)
+	public static class SaveState {
+
+		@Param({ "1", "4" })
+		public int threads;
+
+		File saveDirectory;
+		File store;
+
+		@Setup(Level.Invocation)
+		public void createLocation(MoleculeArchiveBenchmark benchmark)
+			throws IOException
+		{
+			saveDirectory = Files.createTempDirectory(benchmark.directory.toPath(),
+				"save").toFile();
+			store = new File(saveDirectory, "save.yama.store");
+		}
+
+		@TearDown(Level.Invocation)
+		public void cleanUp() {
+			deleteRecursively(saveDirectory);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class GetState {
+
+		final Random random = new Random(SyntheticData.SEED);
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) for (File child : children)
+			deleteRecursively(child);
+		file.delete();
+	}
+}
@@ -0,0 +1,180 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.benchmark;
+
+import java.util.Random;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import org.scijava.table.DoubleColumn;
+import org.scijava.table.GenericColumn;
+
+import de.mpg.biochem.mars.molecule.SingleMolecule;
+import de.mpg.biochem.mars.molecule.SingleMoleculeArchive;
+import de.mpg.biochem.mars.table.MarsTable;
+import de.mpg.biochem.mars.util.Gaussian2D;
+import de.mpg.biochem.mars.util.MarsMath;
+
+/**
+ * Generates the synthetic tables, archives, images and traces used by the
+ * benchmarks. Everything is derived from a fixed seed so that results from
+ * different runs are measured on identical inputs.
+ *
+ * @author Karl Duderstadt
+ */
+public class SyntheticData {
+
+	public static final long SEED = 42;
+
+	private SyntheticData() {}
+
+	/**
+	 * Creates a table with a T column followed by x, y and intensity columns
+	 * containing noisy trajectories and a string column with a small number of
+	 * distinct values.
+	 *
+	 * @param rows Number of rows.
+	 * @param random Source of noise.
+	 * @return The table.
+	 */
+	public static MarsTable table(int rows, Random random) {
+		MarsTable table = new MarsTable("benchmark");
+		DoubleColumn tCol = new DoubleColumn("T");
+		DoubleColumn xCol = new DoubleColumn("x");
+		DoubleColumn yCol = new DoubleColumn("y");
+		DoubleColumn intensityCol = new DoubleColumn("intensity");
+		GenericColumn groupCol = new GenericColumn("group");
+
+		for (int t = 0; t < rows; t++) {
+			tCol.add((double) t);
+			xCol.add(t * 0.01 + random.nextGaussian());
+			yCol.add(t * 0.02 + random.nextGaussian());
+			intensityCol.add(1000 + 100 * random.nextGaussian());
+			groupCol.add("group" + random.nextInt(16));
+		}
+
+		table.add(tCol);
+		table.add(xCol);
+		table.add(yCol);
+		table.add(intensityCol);
+		table.add(groupCol);
+		return table;
+	}
+
+	/**
+	 * Creates an archive of SingleMolecules that each contain a table generated
+	 * by {@link #table(int, Random)}.
+	 *
+	 * @param molecules Number of molecules.
+	 * @param rows Number of rows in each molecule table.
+	 * @return The archive.
+	 */
+	public static SingleMoleculeArchive archive(int molecules, int rows) {
+		Random random = new Random(SEED);
+		SingleMoleculeArchive archive = new SingleMoleculeArchive("benchmark");
+		for (int i = 0; i < molecules; i++) {
+			SingleMolecule molecule = new SingleMolecule(MarsMath.getUUID58());
+			molecule.setTable(table(rows, random));
+			molecule.setImage(0);
+			molecule.setChannel(0);
+			molecule.setParameter("index", i);
+			if (random.nextDouble() < 0.3) molecule.addTag("tagged");
+			archive.put(molecule);
+		}
+		return archive;
+	}
+
+	/**
+	 * Creates a square image with Gaussian peaks at random positions on a
+	 * noisy background.
+	 *
+	 * @param size Width and height of the image in pixels.
+	 * @param peakDensity Number of peaks per 10,000 pixels.
+	 * @return The image.
+	 */
+	public static Img<UnsignedShortType> image(int size, double peakDensity) {
+		Random random = new Random(SEED);
+		Img<UnsignedShortType> img = ArrayImgs.unsignedShorts(size, size);
+
+		double[] pixels = new double[size * size];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = 500 + 20 * random.nextGaussian();
+
+		int peakCount = (int) Math.round(peakDensity * size * size / 10000d);
+		int reach = 6;
+		for (int p = 0; p < peakCount; p++) {
+			double x0 = reach + random.nextDouble() * (size - 2 * reach);
+			double y0 = reach + random.nextDouble() * (size - 2 * reach);
+			Gaussian2D peak = new Gaussian2D(0, 2000 + 1000 * random.nextDouble(),
+				x0, y0, 1.2);
+			int xStart = (int) x0 - reach;
+			int yStart = (int) y0 - reach;
+			for (int x = xStart; x <= xStart + 2 * reach; x++)
+				for (int y = yStart; y <= yStart + 2 * reach; y++)
+					pixels[y * size + x] += peak.getValue(x, y);
+		}
+
+		int i = 0;
+		for (UnsignedShortType pixel : img)
+			pixel.setReal(Math.max(0, Math.min(65535, pixels[i++])));
+
+		return img;
+	}
+
+	/**
+	 * Creates a trace of noisy steps with random positions and heights.
+	 *
+	 * @param length Number of points.
+	 * @param steps Number of steps.
+	 * @param sigma Standard deviation of the noise.
+	 * @return Array containing the x values followed by the y values.
+	 */
+	public static double[][] steppedTrace(int length, int steps, double sigma) {
+		Random random = new Random(SEED);
+		double[] x = new double[length];
+		double[] y = new double[length];
+
+		int[] stepPositions = random.ints(steps, 1, length).sorted().toArray();
+		double level = 0;
+		int nextStep = 0;
+		for (int i = 0; i < length; i++) {
+			while (nextStep < steps && stepPositions[nextStep] == i) {
+				level += (random.nextBoolean() ? 1 : -1) * (5 + 5 * random
+					.nextDouble()) * sigma;
+				nextStep++;
+			}
+			x[i] = i;
+			y[i] = level + sigma * random.nextGaussian();
+		}
+		return new double[][] { x, y };
+	}
+}
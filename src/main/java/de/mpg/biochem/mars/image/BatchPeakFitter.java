@@ -0,0 +1,574 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.image;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Fits all peaks of a frame with symmetric 2D gaussians using flat workspaces
+ * that are reused from one frame to the next. The pixel windows of all peaks
+ * are first copied into structure-of-arrays buffers, and each window is then
+ * fit with Levenberg-Marquardt using fixed size arrays for the 5x5 normal
+ * equations. Apart from growing the buffers when a frame has more peaks than
+ * any frame before, no objects are allocated during fitting.
+ * <p>
+ * The fitting performs the same floating point operations in the same order
+ * as {@link PeakFitter} and {@link de.mpg.biochem.mars.util.LevenbergMarquardt}
+ * so parameters, errors and R-squared values are identical. Parameters and
+ * errors have the same order as in PeakFitter: p[0] = Baseline p[1] = Height
+ * p[2] = X p[3] = Y p[4] = Sigma.
+ * <p>
+ * Instances are not thread safe. Use one instance per thread, for example
+ * through {@link #forCurrentThread()}.
+ * 
+ * @author Karl Duderstadt
+ */
+public class BatchPeakFitter {
+
+	private static final int NP = 5;
+
+	private static final ThreadLocal<BatchPeakFitter> fitters = ThreadLocal
+		.withInitial(BatchPeakFitter::new);
+
+	private final boolean[] vary;
+	private final double precision;
+	private final int maxIterations = 50;
+	private final double factor = 10;
+	private final double initialLambda = 0.001;
+
+	// Pixel windows of all peaks in structure-of-arrays layout. The pixels of
+	// window w are at indexes windowStart[w] to windowStart[w + 1] - 1.
+	private int[] windowStart = new int[17];
+	private int[] windowMin = new int[16];
+	private int[] windowMax = new int[16];
+	private double[] pixelX = new double[1024];
+	private double[] pixelY = new double[1024];
+	private double[] pixelValue = new double[1024];
+
+	// Fit results for each window.
+	private double[] parameters = new double[16 * NP];
+	private double[] errors = new double[16 * NP];
+	private double[] rSquared = new double[16];
+	private int windowCount;
+
+	// Levenberg-Marquardt workspace.
+	private final double[] p = new double[NP];
+	private final double[] e = new double[NP];
+	private final double[] dyda = new double[NP];
+	private final double[] alpha = new double[NP * NP];
+	private final double[] beta = new double[NP];
+	private final double[] covar = new double[NP * NP];
+	private final int[] rows = new int[NP];
+
+	public BatchPeakFitter() {
+		vary = new boolean[NP];
+		Arrays.fill(vary, true);
+		precision = 1e-6;
+	}
+
+	public BatchPeakFitter(boolean[] vary, double precision) {
+		this.vary = vary.clone();
+		this.precision = precision;
+	}
+
+	/**
+	 * Returns a BatchPeakFitter with default settings that belongs to the
+	 * calling thread.
+	 * 
+	 * @return The fitter for the current thread.
+	 */
+	public static BatchPeakFitter forCurrentThread() {
+		return fitters.get();
+	}
+
+	/**
+	 * Fits the peaks provided and returns those with valid fits. This matches
+	 * {@link MarsImageUtils#fitPeaks(RandomAccessible, net.imglib2.Interval, List, int, double, boolean, double)}:
+	 * peaks are marked as invalid if any parameter is NaN, the position or
+	 * sigma is negative, or the R-squared is not above RsquaredMin. Valid peaks
+	 * are updated with the fitted parameters and R-squared.
+	 * 
+	 * @param <T> Image type.
+	 * @param img Image containing the peaks, extended beyond the region of
+	 *          interest.
+	 * @param peaks The peaks to fit. Peak positions are used as the starting
+	 *          position.
+	 * @param radius The radius of the square region of pixels used for fitting.
+	 * @param initialSize A starting guess for the peak size.
+	 * @param findNegativePeaks Whether negative peaks are being fit.
+	 * @param RsquaredMin Fits with R-squared at or below this value are
+	 *          rejected.
+	 * @return The list of peaks with valid fits.
+	 */
+	public <T extends RealType<T>> List<Peak> fitPeaks(RandomAccessible<T> img,
+		List<Peak> peaks, int radius, double initialSize, boolean findNegativePeaks,
+		double RsquaredMin)
+	{
+		RandomAccess<T> ra = img.randomAccess();
+		loadWindows(ra, peaks, radius, Double.NaN, findNegativePeaks);
+
+		List<Peak> newList = new ArrayList<>();
+		for (int w = 0; w < windowCount; w++) {
+			if (Thread.currentThread().isInterrupted()) break;
+
+			Peak peak = peaks.get(w);
+			fitWindow(ra, w, peak.getX(), peak.getY(), initialSize);
+
+			boolean valid = isValid(w);
+			double Rsquared = 0;
+			if (valid) {
+				Rsquared = calcR2(ra, radius, w);
+				if (Rsquared <= RsquaredMin) valid = false;
+			}
+			rSquared[w] = Rsquared;
+
+			peak.setValid(valid);
+			if (valid) {
+				peak.setValues(p);
+				peak.setRsquared(Rsquared);
+				newList.add(peak);
+			}
+		}
+		return newList;
+	}
+
+	/**
+	 * Fits the peaks provided using only pixels beyond the threshold given and
+	 * returns those with valid fits. This matches
+	 * {@link MarsImageUtils#fitPeaks(RandomAccessible, net.imglib2.Interval, List, int, double, double, boolean)}.
+	 * No R-squared is calculated.
+	 * 
+	 * @param <T> Image type.
+	 * @param img Image containing the peaks, extended beyond the region of
+	 *          interest.
+	 * @param peaks The peaks to fit. Peak positions are used as the starting
+	 *          position.
+	 * @param radius The radius of the square region of pixels used for fitting.
+	 * @param initialSize A starting guess for the peak size.
+	 * @param fitRegionThreshold Only pixels above this value, or below for
+	 *          negative peaks, are included in the fit.
+	 * @param findNegativePeaks Whether negative peaks are being fit.
+	 * @return The list of peaks with valid fits.
+	 */
+	public <T extends RealType<T>> List<Peak> fitPeaks(RandomAccessible<T> img,
+		List<Peak> peaks, int radius, double initialSize,
+		double fitRegionThreshold, boolean findNegativePeaks)
+	{
+		RandomAccess<T> ra = img.randomAccess();
+		loadWindows(ra, peaks, radius, fitRegionThreshold, findNegativePeaks);
+
+		List<Peak> newList = new ArrayList<>();
+		for (int w = 0; w < windowCount; w++) {
+			if (Thread.currentThread().isInterrupted()) break;
+
+			Peak peak = peaks.get(w);
+			fitWindow(ra, w, peak.getX(), peak.getY(), initialSize);
+			rSquared[w] = Double.NaN;
+
+			boolean valid = isValid(w);
+			peak.setValid(valid);
+			if (valid) {
+				peak.setValues(p);
+				newList.add(peak);
+			}
+		}
+		return newList;
+	}
+
+	/**
+	 * @return The number of peaks in the last batch.
+	 */
+	public int getPeakCount() {
+		return windowCount;
+	}
+
+	/**
+	 * Returns a fitted parameter from the last batch.
+	 * 
+	 * @param peakIndex Index of the peak in the list that was fit.
+	 * @param parameter Index of the parameter from 0 to 4.
+	 * @return The parameter value.
+	 */
+	public double getParameter(int peakIndex, int parameter) {
+		return parameters[peakIndex * NP + parameter];
+	}
+
+	/**
+	 * Returns the error of a fitted parameter from the last batch.
+	 * 
+	 * @param peakIndex Index of the peak in the list that was fit.
+	 * @param parameter Index of the parameter from 0 to 4.
+	 * @return The parameter error.
+	 */
+	public double getError(int peakIndex, int parameter) {
+		return errors[peakIndex * NP + parameter];
+	}
+
+	/**
+	 * Returns the R-squared from the last batch. This is 0 for rejected fits
+	 * and NaN if no R-squared was calculated.
+	 * 
+	 * @param peakIndex Index of the peak in the list that was fit.
+	 * @return The R-squared value.
+	 */
+	public double getRSquared(int peakIndex) {
+		return rSquared[peakIndex];
+	}
+
+	/**
+	 * Copies the pixel windows around all peaks into the pixel buffers. If the
+	 * threshold is not NaN only pixels above it, or below it for negative peaks,
+	 * are included.
+	 */
+	private <T extends RealType<T>> void loadWindows(RandomAccess<T> ra,
+		List<Peak> peaks, int radius, double threshold, boolean findNegativePeaks)
+	{
+		int fitDiameter = radius * 2 + 1;
+		int windowSize = fitDiameter * fitDiameter;
+		ensureCapacity(peaks.size(), peaks.size() * windowSize);
+
+		boolean thresholded = !Double.isNaN(threshold);
+		int n = 0;
+		windowCount = peaks.size();
+		for (int w = 0; w < windowCount; w++) {
+			Peak peak = peaks.get(w);
+			int x0 = (int) (peak.getX() - radius);
+			int y0 = (int) (peak.getY() - radius);
+
+			int start = n;
+			int max = start;
+			int min = start;
+			windowStart[w] = start;
+			for (int y = y0; y < y0 + fitDiameter; y++) {
+				for (int x = x0; x < x0 + fitDiameter; x++) {
+					double value = ra.setPositionAndGet(x, y).getRealDouble();
+					if (thresholded) {
+						if (findNegativePeaks && value >= threshold) continue;
+						else if (!findNegativePeaks && value <= threshold) continue;
+					}
+					pixelX[n] = x;
+					pixelY[n] = y;
+					pixelValue[n] = value;
+
+					if (value > pixelValue[max]) max = n;
+					if (value < pixelValue[min]) min = n;
+					n++;
+				}
+			}
+
+			// For fitting negative peaks we need to flip the min and max
+			windowMax[w] = findNegativePeaks ? min : max;
+			windowMin[w] = findNegativePeaks ? max : min;
+		}
+		windowStart[windowCount] = n;
+	}
+
+	private void ensureCapacity(int windows, int pixels) {
+		if (windowMin.length < windows) {
+			int capacity = Math.max(windows, windowMin.length * 2);
+			windowStart = new int[capacity + 1];
+			windowMin = new int[capacity];
+			windowMax = new int[capacity];
+			parameters = new double[capacity * NP];
+			errors = new double[capacity * NP];
+			rSquared = new double[capacity];
+		}
+		if (pixelX.length < pixels) {
+			int capacity = Math.max(pixels, pixelX.length * 2);
+			pixelX = new double[capacity];
+			pixelY = new double[capacity];
+			pixelValue = new double[capacity];
+		}
+	}
+
+	/**
+	 * Fits window w starting from the position given and stores the parameters
+	 * and errors. Windows without pixels are left with NaN baseline and height.
+	 */
+	private <T extends RealType<T>> void fitWindow(RandomAccess<T> ra, int w,
+		double x, double y, double initialSize)
+	{
+		int start = windowStart[w];
+		int n = windowStart[w + 1] - start;
+
+		p[0] = Double.NaN;
+		p[1] = Double.NaN;
+		p[2] = x;
+		p[3] = y;
+		p[4] = initialSize / 2;
+		Arrays.fill(e, 0);
+
+		if (n > 0) {
+			int max = windowMax[w];
+			int min = windowMin[w];
+
+			if (!Double.isNaN(p[2]) && !Double.isNaN(p[3])) {
+				p[0] = pixelValue[min];
+				p[1] = ra.setPositionAndGet((int) p[2], (int) p[3]).getRealDouble() -
+					p[0];
+			}
+
+			// Use the pixel window to guess parameters that are still unknown.
+			if (Double.isNaN(p[0])) p[0] = pixelValue[min];
+			if (Double.isNaN(p[1])) p[1] = pixelValue[max] - pixelValue[min];
+			if (Double.isNaN(p[2])) p[2] = pixelX[max];
+			if (Double.isNaN(p[3])) p[3] = pixelY[max];
+			if (Double.isNaN(p[4])) p[4] = 1;
+
+			solve(start, n);
+		}
+
+		System.arraycopy(p, 0, parameters, w * NP, NP);
+		System.arraycopy(e, 0, errors, w * NP, NP);
+	}
+
+	private boolean isValid(int w) {
+		int offset = w * NP;
+		for (int i = 0; i < NP; i++)
+			if (Double.isNaN(parameters[offset + i])) return false;
+
+		return !(parameters[offset + 2] < 0 || parameters[offset + 3] < 0 ||
+			parameters[offset + 4] < 0);
+	}
+
+	/**
+	 * Levenberg-Marquardt fit of the symmetric gaussian to the n pixels starting
+	 * at index start. Same algorithm as LevenbergMarquardt.solve without
+	 * weights.
+	 */
+	private void solve(int start, int n) {
+		int np = 0;
+		for (int i = 0; i < NP; i++)
+			if (vary[i]) np++;
+
+		double lambda = initialLambda;
+		double error = Double.POSITIVE_INFINITY;
+		int iteration = 0;
+
+		while (true) {
+			Arrays.fill(alpha, 0, np * np, 0);
+			Arrays.fill(beta, 0, np, 0);
+
+			double before = error;
+			error = 0;
+
+			for (int i = start; i < start + n; i++) {
+				double residual = pixelValue[i] - getValue(pixelX[i], pixelY[i]);
+
+				for (int j = 0, k = 0; j < NP; j++)
+					if (vary[j]) dyda[k++] = dyda[j];
+
+				error += residual * residual;
+
+				for (int j = 0; j < np; j++) {
+					for (int k = 0; k <= j; k++)
+						alpha[j * np + k] += dyda[j] * dyda[k];
+
+					beta[j] += dyda[j] * residual;
+				}
+			}
+
+			// fill in symmetric side
+			for (int i = 0; i < np; i++)
+				for (int j = i + 1; j < np; j++)
+					alpha[i * np + j] = alpha[j * np + i];
+
+			iteration++;
+
+			if (Math.abs(before - error) < precision || iteration >= maxIterations)
+				break;
+
+			// include damping factor
+			for (int i = 0; i < np; i++)
+				alpha[i * np + i] *= 1 + lambda;
+
+			gaussJordan(alpha, beta, np, 1);
+
+			if (error < before) {
+				for (int i = 0, j = 0; i < NP; i++)
+					if (vary[i]) p[i] += beta[rows[j++]];
+
+				lambda /= factor;
+			}
+			else lambda *= factor;
+		}
+
+		Arrays.fill(covar, 0, np * np, 0);
+		for (int i = 0; i < np; i++)
+			covar[i * np + i] = 1;
+
+		gaussJordan(alpha, covar, np, np);
+
+		for (int i = 0, j = 0; i < NP; i++) {
+			if (vary[i]) {
+				e[i] = Math.sqrt(covar[rows[j] * np + j] * error / (n - np));
+				j++;
+			}
+		}
+	}
+
+	/**
+	 * Symmetric gaussian with derivatives. Same expressions as PeakFitter.
+	 */
+	private double getValue(double x, double y) {
+		double dx = x - p[2];
+		double dy = y - p[3];
+
+		double sigmaSq = p[4] * p[4];
+
+		dyda[0] = 1;
+		dyda[1] = Math.exp(-((dx * dx) / (2 * sigmaSq) + (dy * dy) / (2 *
+			sigmaSq)));
+
+		double d3 = p[1] * dyda[1];
+
+		dyda[2] = (d3 * dx) / sigmaSq;
+		dyda[3] = (d3 * dy) / sigmaSq;
+		dyda[4] = (d3 * (dx * dx + dy * dy)) / (sigmaSq * p[4]);
+
+		return p[0] + d3;
+	}
+
+	/**
+	 * Gauss-Jordan elimination with partial pivoting on flat row major n x n and
+	 * n x rCols matrices. Rows are swapped through the rows index array instead
+	 * of being copied, so logical row i of either matrix is stored in physical
+	 * row rows[i]. The arithmetic is the same as
+	 * LevenbergMarquardt.gaussJordan.
+	 */
+	private void gaussJordan(double[] left, double[] right, int n, int rCols) {
+		for (int i = 0; i < n; i++)
+			rows[i] = i;
+
+		for (int i = 0; i < n; i++) {
+
+			// find pivot
+			int max = i;
+			for (int j = i + 1; j < n; j++)
+				if (Math.abs(left[rows[j] * n + i]) > Math.abs(left[rows[max] * n +
+					i])) max = j;
+
+			// swap rows
+			int t = rows[i];
+			rows[i] = rows[max];
+			rows[max] = t;
+
+			int pivotRow = rows[i] * n;
+			int pivotRightRow = rows[i] * rCols;
+
+			// reduce
+			for (int j = 0; j < n; j++) {
+				if (j != i) {
+					int row = rows[j] * n;
+					int rightRow = rows[j] * rCols;
+					double d = left[row + i] / left[pivotRow + i];
+
+					left[row + i] = 0;
+
+					for (int k = i + 1; k < n; k++)
+						left[row + k] -= d * left[pivotRow + k];
+
+					for (int k = 0; k < rCols; k++)
+						right[rightRow + k] -= d * right[pivotRightRow + k];
+				}
+			}
+		}
+
+		for (int i = 0; i < n; i++) {
+			int row = rows[i] * n;
+			int rightRow = rows[i] * rCols;
+			double d = left[row + i];
+
+			for (int k = 0; k < rCols; k++)
+				right[rightRow + k] /= d;
+
+			left[row + i] = 1;
+		}
+	}
+
+	/**
+	 * R-squared of the fit for window w within the radius given around the
+	 * fitted position. Same calculation as MarsImageUtils.calcR2.
+	 */
+	private <T extends RealType<T>> double calcR2(RandomAccess<T> ra,
+		int radius, int w)
+	{
+		int offset = w * NP;
+		double baseline = parameters[offset];
+		double height = parameters[offset + 1];
+		double gx = parameters[offset + 2];
+		double gy = parameters[offset + 3];
+		double sigma = parameters[offset + 4];
+
+		double ssr = 0;
+		double sst = 0;
+		double mean = 0;
+		double count = 0;
+
+		int x1 = (int) (gx - radius);
+		int x2 = (int) (gx + radius);
+		int y1 = (int) (gy - radius);
+		int y2 = (int) (gy + radius);
+
+		// Very, very bad fits can go to the max integer value in which case we
+		// return 0.
+		if (x1 == Integer.MAX_VALUE || x2 == Integer.MAX_VALUE ||
+			y1 == Integer.MAX_VALUE || y2 == Integer.MAX_VALUE) return 0;
+
+		for (int y = y1; y <= y2; y++) {
+			for (int x = x1; x <= x2; x++) {
+				mean += ra.setPositionAndGet(x, y).getRealDouble();
+				count++;
+			}
+		}
+
+		mean = mean / count;
+
+		for (int y = y1; y <= y2; y++) {
+			for (int x = x1; x <= x2; x++) {
+				double value = ra.setPositionAndGet(x, y).getRealDouble();
+				sst += (value - mean) * (value - mean);
+
+				double prediction = height * Math.exp(-((x - gx) * (x - gx)) / (2 *
+					sigma * sigma) - ((y - gy) * (y - gy)) / (2 * sigma * sigma)) +
+					baseline;
+				ssr += (value - prediction) * (value - prediction);
+			}
+		}
+
+		return 1 - ssr / sst;
+	}
+}
@@ -0,0 +1,391 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.image;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Links peaks by solving an assignment problem for each pair of consecutive
+ * frames instead of taking the shortest links one at a time. The possible
+ * links from one frame to the next form a sparse bipartite graph. Each
+ * connected component of this graph is solved independently for the largest
+ * number of links with the smallest total squared distance using successive
+ * shortest augmenting paths (the sparse form of the Hungarian algorithm).
+ * <p>
+ * Since every peak is the start of links to only one following frame and the
+ * end of links from only one preceding frame, different frame pairs share no
+ * decisions and can be solved in parallel. Gaps of more than one frame are
+ * closed afterwards by {@link #closeGaps}, which only connects track ends to
+ * track starts and must be called for one T at a time in tracking order.
+ * 
+ * @author Karl Duderstadt
+ */
+final class GlobalPeakLinker {
+
+	private GlobalPeakLinker() {}
+
+	/**
+	 * Links peaks using the optimal assignment of the possible links with a T
+	 * difference of one. All links must start in the same frame. Other links
+	 * are ignored.
+	 * 
+	 * @param tPossibleLinks The possible links from one T.
+	 * @param fromPeaks The peaks of the T the links start in.
+	 * @param toPeaks The peaks of the next T.
+	 */
+	static void linkFramePair(PeakLinks tPossibleLinks, PeakStore fromPeaks,
+		PeakStore toPeaks)
+	{
+		// Local index of each from and to peak with a link, -1 otherwise.
+		final int[] fromIndex = new int[fromPeaks.size()];
+		final int[] toIndex = new int[toPeaks.size()];
+		Arrays.fill(fromIndex, -1);
+		Arrays.fill(toIndex, -1);
+		final int[] fromPeakIndex = new int[fromPeaks.size()];
+		final int[] toPeakIndex = new int[toPeaks.size()];
+		int n = 0;
+		int m = 0;
+		int edgeCount = 0;
+		for (int link = 0; link < tPossibleLinks.size(); link++) {
+			if (tPossibleLinks.getTDifference(link) != 1) continue;
+			int from = tPossibleLinks.getFrom(link);
+			int to = tPossibleLinks.getTo(link);
+			if (fromIndex[from] == -1) {
+				fromPeakIndex[n] = from;
+				fromIndex[from] = n++;
+			}
+			if (toIndex[to] == -1) {
+				toPeakIndex[m] = to;
+				toIndex[to] = m++;
+			}
+			edgeCount++;
+		}
+		if (edgeCount == 0) return;
+
+		final int[] edgeFrom = new int[edgeCount];
+		final int[] edgeTo = new int[edgeCount];
+		final double[] edgeCost = new double[edgeCount];
+		for (int link = 0, e = 0; link < tPossibleLinks.size(); link++) {
+			if (tPossibleLinks.getTDifference(link) != 1) continue;
+			edgeFrom[e] = fromIndex[tPossibleLinks.getFrom(link)];
+			edgeTo[e] = toIndex[tPossibleLinks.getTo(link)];
+			edgeCost[e] = tPossibleLinks.getSquaredDistance(link);
+			e++;
+		}
+
+		// Nodes 0 to n - 1 are from peaks and n to n + m - 1 are to peaks.
+		final int[] component = new int[n + m];
+		for (int v = 0; v < n + m; v++)
+			component[v] = v;
+		for (int e = 0; e < edgeCount; e++) {
+			int a = find(component, edgeFrom[e]);
+			int b = find(component, n + edgeTo[e]);
+			if (a != b) component[Math.max(a, b)] = Math.min(a, b);
+		}
+
+		// Group the edges by component, keeping their order within each.
+		final int[] componentEdgeCount = new int[n + m + 1];
+		for (int e = 0; e < edgeCount; e++)
+			componentEdgeCount[find(component, edgeFrom[e]) + 1]++;
+		for (int c = 0; c < n + m; c++)
+			componentEdgeCount[c + 1] += componentEdgeCount[c];
+		final int[] componentEdges = new int[edgeCount];
+		final int[] fill = Arrays.copyOf(componentEdgeCount, n + m);
+		for (int e = 0; e < edgeCount; e++)
+			componentEdges[fill[find(component, edgeFrom[e])]++] = e;
+
+		final Assignment assignment = new Assignment(n, m);
+		for (int c = 0; c < n + m; c++) {
+			int start = componentEdgeCount[c];
+			int end = componentEdgeCount[c + 1];
+			if (start == end) continue;
+
+			int[] matches = assignment.solve(componentEdges, start, end, edgeFrom,
+				edgeTo, edgeCost);
+			for (int e : matches) {
+				int from = fromPeakIndex[edgeFrom[e]];
+				int to = toPeakIndex[edgeTo[e]];
+				fromPeaks.setForwardLink(from, 1, to);
+				toPeaks.setBackwardLink(to, 1, from);
+			}
+		}
+	}
+
+	/**
+	 * Closes gaps between track ends in the T of the links and track starts in
+	 * later slices. Links with a T difference of more than one are taken from
+	 * most to least likely if neither peak is already linked in that
+	 * direction.
+	 * 
+	 * @param tPossibleLinks The possible links from one T sorted from most to
+	 *          least likely.
+	 * @param indexT The index of the T the links start in.
+	 * @param frames The frame of each T index.
+	 */
+	static void closeGaps(PeakLinks tPossibleLinks, int indexT,
+		IntFunction<TrackingFrame> frames)
+	{
+		PeakStore fromPeaks = frames.apply(indexT).peaks();
+		for (int link = 0; link < tPossibleLinks.size(); link++) {
+			int tDifference = tPossibleLinks.getTDifference(link);
+			if (tDifference < 2) continue;
+			int from = tPossibleLinks.getFrom(link);
+			int to = tPossibleLinks.getTo(link);
+			PeakStore toPeaks = frames.apply(indexT + tDifference).peaks();
+			if (fromPeaks.getForwardLink(from) != -1 || toPeaks.getBackwardLink(
+				to) != -1) continue;
+			fromPeaks.setForwardLink(from, tDifference, to);
+			toPeaks.setBackwardLink(to, tDifference, from);
+		}
+	}
+
+	private static int find(int[] parent, int v) {
+		while (parent[v] != v) {
+			parent[v] = parent[parent[v]];
+			v = parent[v];
+		}
+		return v;
+	}
+
+	/**
+	 * Minimum cost maximum matching of one connected component using Dijkstra
+	 * with node potentials to find each augmenting path.
+	 */
+	private static class Assignment {
+
+		// Local index of each from and to peak in the component being solved,
+		// -1 outside of it.
+		private final int[] leftLocal;
+		private final int[] rightLocal;
+
+		Assignment(int n, int m) {
+			leftLocal = new int[n];
+			rightLocal = new int[m];
+			Arrays.fill(leftLocal, -1);
+			Arrays.fill(rightLocal, -1);
+		}
+
+		/**
+		 * Solves the component with the edges at indexes start to end - 1 in
+		 * edges and returns the edges of the matching.
+		 */
+		int[] solve(int[] edges, int start, int end, int[] edgeFrom, int[] edgeTo,
+			double[] edgeCost)
+		{
+			int left = 0;
+			int right = 0;
+			for (int k = start; k < end; k++) {
+				int e = edges[k];
+				if (leftLocal[edgeFrom[e]] == -1) leftLocal[edgeFrom[e]] = left++;
+				if (rightLocal[edgeTo[e]] == -1) rightLocal[edgeTo[e]] = right++;
+			}
+
+			// Adjacency of the left nodes in compressed form.
+			final int edgeCount = end - start;
+			final int[] adjacencyStart = new int[left + 1];
+			final int[] edgeLeft = new int[edgeCount];
+			final int[] edgeRight = new int[edgeCount];
+			for (int k = 0; k < edgeCount; k++) {
+				edgeLeft[k] = leftLocal[edgeFrom[edges[start + k]]];
+				edgeRight[k] = rightLocal[edgeTo[edges[start + k]]];
+				adjacencyStart[edgeLeft[k] + 1]++;
+			}
+			for (int i = 0; i < left; i++)
+				adjacencyStart[i + 1] += adjacencyStart[i];
+			final int[] adjacency = new int[edgeCount];
+			final int[] fill = Arrays.copyOf(adjacencyStart, left);
+			for (int k = 0; k < edgeCount; k++)
+				adjacency[fill[edgeLeft[k]]++] = k;
+
+			final int nodes = left + right;
+			final double[] potential = new double[nodes];
+			final double[] dist = new double[nodes];
+			final boolean[] done = new boolean[nodes];
+			final int[] previous = new int[nodes];
+			final int[] matchLeft = new int[left];
+			final int[] matchEdge = new int[left];
+			final int[] matchRight = new int[right];
+			Arrays.fill(matchLeft, -1);
+			Arrays.fill(matchRight, -1);
+			final NodeHeap heap = new NodeHeap(nodes);
+
+			int matched = 0;
+			while (matched < Math.min(left, right)) {
+				Arrays.fill(dist, Double.POSITIVE_INFINITY);
+				Arrays.fill(done, false);
+				heap.clear();
+				for (int i = 0; i < left; i++)
+					if (matchLeft[i] == -1) {
+						dist[i] = 0;
+						previous[i] = -1;
+						heap.push(0, i);
+					}
+
+				// previous holds the edge used to reach a right node and the right
+				// node a left node was reached from.
+				int target = -1;
+				while (!heap.isEmpty()) {
+					int v = heap.pop();
+					if (done[v]) continue;
+					done[v] = true;
+
+					if (v < left) {
+						for (int a = adjacencyStart[v]; a < adjacencyStart[v + 1]; a++) {
+							int k = adjacency[a];
+							int w = left + edgeRight[k];
+							if (matchLeft[v] == edgeRight[k] || done[w]) continue;
+							double d = dist[v] + edgeCost[edges[start + k]] + potential[v] -
+								potential[w];
+							if (d < dist[w]) {
+								dist[w] = d;
+								previous[w] = k;
+								heap.push(d, w);
+							}
+						}
+					}
+					else {
+						int j = v - left;
+						if (matchRight[j] == -1) {
+							target = v;
+							break;
+						}
+						int i = matchRight[j];
+						if (done[i]) continue;
+						// Reverse edge of the current match.
+						double d = dist[v] - edgeCost[edges[start + matchEdge[i]]] +
+							potential[v] - potential[i];
+						if (d < dist[i]) {
+							dist[i] = d;
+							previous[i] = j;
+							heap.push(d, i);
+						}
+					}
+				}
+				if (target == -1) break;
+
+				final double shortest = dist[target];
+				for (int v = 0; v < nodes; v++)
+					potential[v] += Math.min(dist[v], shortest);
+
+				int j = target - left;
+				while (true) {
+					int k = previous[left + j];
+					int i = edgeLeft[k];
+					int previousRight = previous[i];
+					matchLeft[i] = j;
+					matchEdge[i] = k;
+					matchRight[j] = i;
+					if (previousRight == -1) break;
+					j = previousRight;
+				}
+				matched++;
+			}
+
+			int[] matches = new int[matched];
+			int count = 0;
+			for (int i = 0; i < left; i++)
+				if (matchLeft[i] != -1) matches[count++] = edges[start + matchEdge[i]];
+
+			for (int k = start; k < end; k++) {
+				leftLocal[edgeFrom[edges[k]]] = -1;
+				rightLocal[edgeTo[edges[k]]] = -1;
+			}
+			return matches;
+		}
+	}
+
+	/**
+	 * Binary min heap of nodes keyed by distance with lazy deletion. Ties are
+	 * broken by node index so the results do not depend on insertion order.
+	 */
+	private static class NodeHeap {
+
+		private double[] keys;
+		private int[] nodes;
+		private int size;
+
+		NodeHeap(int capacity) {
+			keys = new double[Math.max(capacity, 4)];
+			nodes = new int[Math.max(capacity, 4)];
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void push(double key, int node) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				nodes = Arrays.copyOf(nodes, size * 2);
+			}
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (!less(key, node, keys[parent], nodes[parent])) break;
+				keys[i] = keys[parent];
+				nodes[i] = nodes[parent];
+				i = parent;
+			}
+			keys[i] = key;
+			nodes[i] = node;
+		}
+
+		int pop() {
+			int top = nodes[0];
+			double key = keys[--size];
+			int node = nodes[size];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size) break;
+				if (child + 1 < size && less(keys[child + 1], nodes[child + 1],
+					keys[child], nodes[child])) child++;
+				if (!less(keys[child], nodes[child], key, node)) break;
+				keys[i] = keys[child];
+				nodes[i] = nodes[child];
+				i = child;
+			}
+			keys[i] = key;
+			nodes[i] = node;
+			return top;
+		}
+
+		private static boolean less(double keyA, int nodeA, double keyB,
+			int nodeB)
+		{
+			return keyA < keyB || (keyA == keyB && nodeA < nodeB);
+		}
+	}
+}
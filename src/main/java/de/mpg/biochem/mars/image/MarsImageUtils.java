@@ -29,10 +29,8 @@
 
 package de.mpg.biochem.mars.image;
 
-import java.awt.Rectangle;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -81,7 +79,7 @@ public class MarsImageUtils {
 	 * Global outerOffset integration position cache. Maps innerRadius,
 	 * outerRadius to list of x, y offsets.
 	 */
-	private static Map<Integer[], List<int[]>> outerOffsetCache;
+	private static Map<List<Integer>, List<int[]>> outerOffsetCache;
 
 	/**
 	 * This method creates a list of integer x, y offsets from a central point
@@ -133,9 +131,7 @@ public class MarsImageUtils {
 		if (outerOffsetCache == null) outerOffsetCache =
 				new HashMap<>();
 
-		Integer[] radii = new Integer[2];
-		radii[0] = innerRadius;
-		radii[1] = outerRadius;
+		List<Integer> radii = Arrays.asList(innerRadius, outerRadius);
 
 		if (!outerOffsetCache.containsKey(radii)) {
 			ArrayList<int[]> outerOffsets = new ArrayList<>();
@@ -263,83 +259,37 @@ public class MarsImageUtils {
 		Cursor<T> cursor, int t, double threshold,
 		int minimumDistance, boolean findNegativePeaks)
 	{
-		List<PeakPixel> possiblePeaks = new ArrayList<>();
+		// Pixels above the threshold are collected in primitive arrays and
+		// all pixels within minimumDistance of a brighter pixel are removed.
+		// This removes pixels near the center peak pixel that are also above
+		// the detection threshold but all part of the same peak...
+		PeakCandidateSuppressor candidates = PeakCandidateSuppressor
+			.forCurrentThread();
 
 		if (!findNegativePeaks) {
 			while (cursor.hasNext() && !Thread.currentThread().isInterrupted()) {
 				double pixel = cursor.next().getRealDouble();
 
 				if (pixel > threshold) {
-					possiblePeaks.add(new PeakPixel(cursor.getIntPosition(0), cursor
-						.getIntPosition(1), pixel));
+					candidates.add(cursor.getIntPosition(0), cursor.getIntPosition(1),
+						pixel);
 				}
 			}
-
-			if (possiblePeaks.isEmpty()) return new ArrayList<>();
-
-			// Sort the list from lowest to highest pixel value...
-			possiblePeaks.sort(Comparator.comparingDouble(o -> o.pixelValue));
 		}
 		else {
 			while (cursor.hasNext() && !Thread.currentThread().isInterrupted()) {
 				double pixel = cursor.next().getRealDouble();
 
 				if (pixel < threshold * (-1)) {
-					possiblePeaks.add(new PeakPixel(cursor.getIntPosition(0), cursor
-						.getIntPosition(1), pixel));
-				}
-			}
-
-			if (possiblePeaks.isEmpty()) return new ArrayList<>();
-
-			// Sort the list from highest to lowest pixel value...
-			possiblePeaks.sort((o1, o2) -> Double.compare(o2.pixelValue, o1.pixelValue));
-		}
-
-		// We have to make a copy to pass to the KDTREE because it will change the
-		// order, and we have already sorted from lowest to highest to pick center of
-		// peaks in the loop below.
-		// This is a shallow copy, which means it contains exactly the same elements
-		// as the first list, but the order can be completely different...
-		List<PeakPixel> KDTreePossiblePeaks = new ArrayList<>(possiblePeaks);
-
-		// Allows for fast searching of the nearest peaks.
-		KDTree<PeakPixel> possiblePeakTree = new KDTree<>(
-				KDTreePossiblePeaks, KDTreePossiblePeaks);
-
-		RadiusNeighborSearchOnKDTree<PeakPixel> radiusSearch =
-				new RadiusNeighborSearchOnKDTree<>(possiblePeakTree);
-
-		// As we loop through all possible peaks and remove those that are too close
-		// we will add all the selected peaks to a new array
-		// that will serve as the finalList of actual peaks
-		// This whole process is to remove pixels near the center peak pixel that
-		// are also above the detection threshold but all part of the same peak...
-		List<Peak> finalPeaks = new ArrayList<>();
-
-		// It is really important to remember here that possiblePeaks and
-		// KDTreePossiblePeaks are different lists but point to the same elements
-		// That means if we setNotValid in one it is changing the same object in
-		// another that is required for the stuff below to work.
-		for (int i = possiblePeaks.size() - 1; i >= 0; i--) {
-			if (Thread.currentThread().isInterrupted()) break;
-
-			PeakPixel peakPixel = possiblePeaks.get(i);
-			if (peakPixel.valid) {
-				finalPeaks.add(new Peak(peakPixel.x, peakPixel.y, t));
-
-				// Then we remove all possible peaks within the minimumDistance...
-				// This will include the peak we just added to the peaks list...
-				radiusSearch.search(peakPixel, minimumDistance, false);
-
-				for (int j = 0; j < radiusSearch.numNeighbors(); j++) {
-					radiusSearch.getSampler(j).get().valid = false;
+					candidates.add(cursor.getIntPosition(0), cursor.getIntPosition(1),
+						pixel);
 				}
 			}
 		}
 
-		possiblePeaks.clear();
-		KDTreePossiblePeaks.clear();
+		List<Peak> finalPeaks = candidates.suppress(t, minimumDistance,
+			findNegativePeaks);
+		candidates.clear();
 
 		return finalPeaks;
 	}
@@ -441,58 +391,11 @@ public class MarsImageUtils {
 		RandomAccessible<T> img, Interval interval, List<Peak> peaks, int radius,
 		double initialSize, boolean findNegativePeaks, double RsquaredMin)
 	{
-
-		List<Peak> newList = new ArrayList<>();
-
-		int fitDiameter = radius * 2 + 1;
-
-		PeakFitter<T> fitter = new PeakFitter<>();
-
 		RandomAccessible<T> rae = Views.extendMirrorSingle(Views.interval(img,
 			interval));
-		RandomAccess<T> ra = rae.randomAccess();
-
-		for (Peak peak : peaks) {
-
-			if (Thread.currentThread().isInterrupted()) break;
-
-			Rectangle subregion = new Rectangle((int) (peak.getX() - radius),
-				(int) (peak.getY() - radius), fitDiameter, fitDiameter);
-
-			double[] p = new double[5];
-			p[0] = Double.NaN;
-			p[1] = Double.NaN;
-			p[2] = peak.getX();
-			p[3] = peak.getY();
-			p[4] = initialSize / 2;
-			double[] e = new double[5];
-
-			fitter.fitPeak(rae, p, e, subregion, findNegativePeaks);
 
-			peak.setValid(true);
-
-			for (int i = 0; i < p.length && peak.isValid(); i++) {
-				if (Double.isNaN(p[i])) peak.setValid(false);
-			}
-
-			if (p[2] < 0 || p[3] < 0 || p[4] < 0) {
-				peak.setValid(false);
-			}
-
-			double Rsquared = 0;
-			if (peak.isValid()) {
-				Gaussian2D gauss = new Gaussian2D(p);
-				Rsquared = calcR2(ra, radius, gauss);
-				if (Rsquared <= RsquaredMin) peak.setValid(false);
-			}
-
-			if (peak.isValid()) {
-				peak.setValues(p);
-				peak.setRsquared(Rsquared);
-				newList.add(peak);
-			}
-		}
-		return newList;
+		return BatchPeakFitter.forCurrentThread().fitPeaks(rae, peaks, radius,
+			initialSize, findNegativePeaks, RsquaredMin);
 	}
 
 	/**
@@ -518,50 +421,11 @@ public class MarsImageUtils {
 		RandomAccessible<T> img, Interval interval, List<Peak> peaks, int radius,
 		double initialSize, double fitRegionThreshold, boolean findNegativePeaks)
 	{
-
-		List<Peak> newList = new ArrayList<>();
-
-		int fitDiameter = radius * 2 + 1;
-
-		PeakFitter<T> fitter = new PeakFitter<>();
-
 		RandomAccessible<T> rae = Views.extendMirrorSingle(Views.interval(img,
 			interval));
 
-		for (Peak peak : peaks) {
-
-			if (Thread.currentThread().isInterrupted()) break;
-
-			Rectangle subregion = new Rectangle((int) (peak.getX() - radius),
-				(int) (peak.getY() - radius), fitDiameter, fitDiameter);
-
-			double[] p = new double[5];
-			p[0] = Double.NaN;
-			p[1] = Double.NaN;
-			p[2] = peak.getX();
-			p[3] = peak.getY();
-			p[4] = initialSize / 2;
-			double[] e = new double[5];
-
-			fitter.fitPeak(rae, p, e, subregion, fitRegionThreshold,
-				findNegativePeaks);
-
-			peak.setValid(true);
-
-			for (int i = 0; i < p.length && peak.isValid(); i++) {
-				if (Double.isNaN(p[i])) peak.setValid(false);
-			}
-
-			if (p[2] < 0 || p[3] < 0 || p[4] < 0) {
-				peak.setValid(false);
-			}
-
-			if (peak.isValid()) {
-				peak.setValues(p);
-				newList.add(peak);
-			}
-		}
-		return newList;
+		return BatchPeakFitter.forCurrentThread().fitPeaks(rae, peaks, radius,
+			initialSize, fitRegionThreshold, findNegativePeaks);
 	}
 
 	/**
@@ -725,61 +589,8 @@ public class MarsImageUtils {
 		RandomAccessible<T> img, Interval interval, List<Peak> peaks,
 		int innerRadius, int outerRadius, boolean verbose)
 	{
-		RandomAccessibleInterval<T> view = Views.interval(img, interval);
-		RandomAccess<T> ra = Views.extendMirrorSingle(view).randomAccess();
-
-		List<int[]> innerOffsets = innerOffsets(innerRadius);
-		List<int[]> outerOffsets = outerOffsets(innerRadius, outerRadius);
-
-		for (Peak peak : peaks) {
-			if (Thread.currentThread().isInterrupted()) break;
-
-			// Type casting from double to int rounds down always, so we have to add
-			// 0.5 offset to be correct.
-			int x = (int) (peak.getX() + 0.5);
-			int y = (int) (peak.getY() + 0.5);
-
-			if (Double.isNaN(peak.getX()) || Double.isNaN(peak.getY())) {
-				peak.setIntensity(Double.NaN);
-				peak.setMedianBackground(Double.NaN);
-			}
-			else {
-				double intensity = 0;
-				List<Double> outerPixelValues = new ArrayList<>();
-
-				for (int[] circleOffset : innerOffsets) {
-					intensity += ra.setPositionAndGet(x + circleOffset[0], y +
-							circleOffset[1]).getRealDouble();
-				}
-
-				for (int[] circleOffset : outerOffsets) {
-					outerPixelValues.add(ra.setPositionAndGet(x + circleOffset[0], y +
-							circleOffset[1]).getRealDouble());
-				}
-
-				Collections.sort(outerPixelValues);
-				double outerMedian;
-				if (outerPixelValues.size() % 2 == 0) outerMedian =
-					(outerPixelValues.get(outerPixelValues.size() / 2) +
-							outerPixelValues.get(outerPixelValues.size() / 2 - 1)) / 2;
-				else outerMedian = outerPixelValues.get(outerPixelValues
-					.size() / 2);
-
-				if (verbose) {
-					peak.setProperty(Peak.UNCORRECTED_INTENSITY, intensity);
-					peak.setProperty(Peak.MEAN_BACKGROUND, outerPixelValues.stream()
-						.mapToDouble(Double::doubleValue).average().orElse(Double.NaN) *
-						innerOffsets.size());
-				}
-
-				double medianBackground = outerMedian * innerOffsets.size();
-
-				intensity -= medianBackground;
-
-				peak.setIntensity(intensity);
-				peak.setMedianBackground(medianBackground);
-			}
-		}
+		PeakIntegrator.forCurrentThread(innerRadius, outerRadius).integrate(img,
+			interval, peaks, verbose);
 	}
 
 	/**
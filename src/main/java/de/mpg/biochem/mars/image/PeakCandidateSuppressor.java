@@ -0,0 +1,267 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.image;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Non-maximum suppression of above threshold pixels using primitive arrays.
+ * Candidate pixels are added in cursor order and each is assigned a packed
+ * long key with the sortable bits of the pixel value in the upper 32 bits and
+ * the candidate index in the lower 32 bits, so a single primitive sort
+ * produces the processing order including ties. Suppression uses a bitmap
+ * over the bounding box of all candidates instead of a KDTree: a set bit marks
+ * a candidate that is still valid and each accepted peak clears the bits
+ * within the minimum distance.
+ * <p>
+ * The peaks returned and their order are identical to sorting
+ * {@link PeakPixel}s with a stable sort and suppressing neighbors with a
+ * KDTree radius search. Positive peaks are processed from the highest to the
+ * lowest pixel value and negative peaks from the lowest to the highest. Among
+ * pixels with the same value, the one added last comes first. Pixels closer
+ * than the minimum distance to an accepted peak are suppressed.
+ * <p>
+ * Pixel values that cannot be represented exactly as floats are replaced by
+ * their rank among all distinct candidate values before packing, which
+ * requires an additional sort.
+ * <p>
+ * Instances are not thread safe. Use one instance per thread, for example
+ * through {@link #forCurrentThread()}.
+ * 
+ * @author Karl Duderstadt
+ */
+public class PeakCandidateSuppressor {
+
+	private static final ThreadLocal<PeakCandidateSuppressor> suppressors =
+		ThreadLocal.withInitial(PeakCandidateSuppressor::new);
+
+	private int[] xs = new int[1024];
+	private int[] ys = new int[1024];
+	private double[] values = new double[1024];
+	private int size;
+
+	// True as long as all values added are exactly representable as floats.
+	private boolean floatValues = true;
+
+	private long[] keys = new long[1024];
+	private long[] occupancy = new long[1024];
+
+	/**
+	 * Returns the instance for the current thread. The candidates of the
+	 * previous call are cleared.
+	 * 
+	 * @return The PeakCandidateSuppressor of the current thread.
+	 */
+	public static PeakCandidateSuppressor forCurrentThread() {
+		PeakCandidateSuppressor suppressor = suppressors.get();
+		suppressor.clear();
+		return suppressor;
+	}
+
+	public void clear() {
+		size = 0;
+		floatValues = true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds a candidate pixel. Pixels must be added in the order used to break
+	 * ties between equal values, normally cursor order, and each position
+	 * should only be added once.
+	 * 
+	 * @param x The x position of the pixel.
+	 * @param y The y position of the pixel.
+	 * @param value The pixel value.
+	 */
+	public void add(int x, int y, double value) {
+		if (size == xs.length) {
+			int capacity = xs.length * 2;
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		xs[size] = x;
+		ys[size] = y;
+		values[size] = value;
+		if (floatValues && (double) (float) value != value) floatValues = false;
+		size++;
+	}
+
+	/**
+	 * Selects peaks from the candidates added. Starting from the brightest
+	 * candidate (or the darkest for negative peaks), each candidate that has
+	 * not been suppressed becomes a peak and suppresses all candidates closer
+	 * than minimumDistance. Stops early and returns the peaks found so far if
+	 * the current thread is interrupted.
+	 * 
+	 * @param t The T position of the peaks.
+	 * @param minimumDistance The minimum allowed distance between peaks.
+	 * @param findNegativePeaks Whether the candidates are negative peaks.
+	 * @return The list of peaks found.
+	 */
+	public List<Peak> suppress(int t, int minimumDistance,
+		boolean findNegativePeaks)
+	{
+		List<Peak> peaks = new ArrayList<>();
+		if (size == 0) return peaks;
+
+		sortKeys(findNegativePeaks);
+
+		int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+		int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+		for (int i = 0; i < size; i++) {
+			minX = Math.min(minX, xs[i]);
+			maxX = Math.max(maxX, xs[i]);
+			minY = Math.min(minY, ys[i]);
+			maxY = Math.max(maxY, ys[i]);
+		}
+		final int width = maxX - minX + 1;
+		final int height = maxY - minY + 1;
+		final int words = (int) (((long) width * height + 63) >>> 6);
+		if (occupancy.length < words) occupancy = new long[Math.max(words,
+			occupancy.length * 2)];
+		else Arrays.fill(occupancy, 0, words, 0L);
+
+		for (int i = 0; i < size; i++) {
+			long bit = (long) (ys[i] - minY) * width + (xs[i] - minX);
+			occupancy[(int) (bit >>> 6)] |= 1L << bit;
+		}
+
+		// Half widths of the rows of the suppression disc. A pixel is
+		// suppressed when dx * dx + dy * dy < r * r.
+		final long r2 = (long) minimumDistance * minimumDistance;
+		final int r = (int) Math.min(Math.abs((long) minimumDistance), Math.max(
+			width, height));
+		final int[] halfWidth = new int[r];
+		for (int dy = 0; dy < r; dy++) {
+			long remaining = r2 - (long) dy * dy - 1;
+			int dx = (int) Math.sqrt(remaining);
+			while ((long) dx * dx > remaining)
+				dx--;
+			while ((long) (dx + 1) * (dx + 1) <= remaining)
+				dx++;
+			halfWidth[dy] = dx;
+		}
+
+		for (int k = size - 1; k >= 0; k--) {
+			if (Thread.currentThread().isInterrupted()) break;
+
+			int i = (int) keys[k];
+			int x = xs[i] - minX;
+			int y = ys[i] - minY;
+			long bit = (long) y * width + x;
+			if ((occupancy[(int) (bit >>> 6)] & (1L << bit)) == 0) continue;
+
+			peaks.add(new Peak(xs[i], ys[i], t));
+
+			for (int dy = -r + 1; dy < r; dy++) {
+				int row = y + dy;
+				if (row < 0 || row >= height) continue;
+				int dx = halfWidth[Math.abs(dy)];
+				int from = Math.max(x - dx, 0);
+				int to = Math.min(x + dx, width - 1);
+				clearBits((long) row * width + from, (long) row * width + to);
+			}
+		}
+
+		return peaks;
+	}
+
+	/**
+	 * Fills keys with the candidate indexes in ascending processing order
+	 * reversed, so the last key is the first candidate to process.
+	 */
+	private void sortKeys(boolean findNegativePeaks) {
+		if (keys.length < size) keys = new long[Math.max(size, keys.length * 2)];
+
+		if (floatValues) {
+			for (int i = 0; i < size; i++) {
+				int key = sortableFloatBits((float) values[i]);
+				if (findNegativePeaks) key = ~key;
+				keys[i] = ((long) key << 32) | i;
+			}
+		}
+		else {
+			// Rank the values among the distinct values.
+			long[] sorted = new long[size];
+			for (int i = 0; i < size; i++)
+				sorted[i] = sortableDoubleBits(values[i]);
+			Arrays.sort(sorted);
+			int distinct = 0;
+			for (int i = 0; i < size; i++)
+				if (i == 0 || sorted[i] != sorted[distinct - 1]) sorted[distinct++] =
+					sorted[i];
+
+			for (int i = 0; i < size; i++) {
+				int rank = Arrays.binarySearch(sorted, 0, distinct,
+					sortableDoubleBits(values[i]));
+				if (findNegativePeaks) rank = distinct - 1 - rank;
+				keys[i] = ((long) rank << 32) | i;
+			}
+		}
+		Arrays.sort(keys, 0, size);
+	}
+
+	private void clearBits(long from, long to) {
+		int fromWord = (int) (from >>> 6);
+		int toWord = (int) (to >>> 6);
+		long fromMask = -1L << from;
+		long toMask = -1L >>> (63 - (int) (to & 63));
+		if (fromWord == toWord) {
+			occupancy[fromWord] &= ~(fromMask & toMask);
+			return;
+		}
+		occupancy[fromWord] &= ~fromMask;
+		for (int w = fromWord + 1; w < toWord; w++)
+			occupancy[w] = 0L;
+		occupancy[toWord] &= ~toMask;
+	}
+
+	/**
+	 * Maps a float to an int with the same order as Float.compare.
+	 */
+	static int sortableFloatBits(float value) {
+		int bits = Float.floatToIntBits(value);
+		return bits ^ ((bits >> 31) & Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Maps a double to a long with the same order as Double.compare.
+	 */
+	static long sortableDoubleBits(double value) {
+		long bits = Double.doubleToLongBits(value);
+		return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+	}
+}
@@ -0,0 +1,567 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.image;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Integrates peaks in 2D images using primitive arrays. The pixels required
+ * are copied once into a reusable buffer and the inner and outer integration
+ * regions are stored as flattened index offsets into that buffer, so peaks
+ * that lie fully within their interval are integrated without any
+ * RandomAccess. Peaks close to the edges fall back to mirroring each offset
+ * individually. The median of the background ring is found by quickselect in
+ * a reusable scratch array instead of sorting a list of boxed values.
+ * <p>
+ * Several intervals and peak lists can be integrated in one call, for example
+ * all integration maps of a plane in {@link
+ * de.mpg.biochem.mars.image.commands.MoleculeIntegratorCommand}. In that case
+ * the plane is read only once into the buffer. Peaks can be provided as
+ * {@link Peak} lists or as {@link PeakStore}s.
+ * <p>
+ * The results are identical to
+ * {@link MarsImageUtils#integratePeaks(RandomAccessible, Interval, List, int, int, boolean)}
+ * which delegates to this class. Instances are not thread safe. Use one
+ * instance per thread, for example through {@link #forCurrentThread(int, int)}.
+ * 
+ * @author Karl Duderstadt
+ */
+public class PeakIntegrator {
+
+	private static final ThreadLocal<PeakIntegrator> integrators =
+		new ThreadLocal<>();
+
+	private final int innerRadius;
+	private final int outerRadius;
+
+	// Offsets in the same order as MarsImageUtils.innerOffsets and outerOffsets
+	// so intensities are summed in the same order.
+	private final int[] innerX, innerY;
+	private final int[] outerX, outerY;
+
+	// Largest absolute x or y offset of either region.
+	private final int reach;
+
+	private int[] innerIndexOffsets = new int[0];
+	private int[] outerIndexOffsets = new int[0];
+	private int indexOffsetWidth = -1;
+
+	private double[] buffer = new double[0];
+	private long bufferMinX, bufferMinY;
+	private int bufferWidth;
+
+	private double[] scratch;
+
+	public PeakIntegrator(int innerRadius, int outerRadius) {
+		this.innerRadius = innerRadius;
+		this.outerRadius = outerRadius;
+
+		List<int[]> innerOffsets = MarsImageUtils.innerOffsets(innerRadius);
+		innerX = new int[innerOffsets.size()];
+		innerY = new int[innerOffsets.size()];
+		for (int i = 0; i < innerOffsets.size(); i++) {
+			innerX[i] = innerOffsets.get(i)[0];
+			innerY[i] = innerOffsets.get(i)[1];
+		}
+
+		List<int[]> outerOffsets = MarsImageUtils.outerOffsets(innerRadius,
+			outerRadius);
+		outerX = new int[outerOffsets.size()];
+		outerY = new int[outerOffsets.size()];
+		for (int i = 0; i < outerOffsets.size(); i++) {
+			outerX[i] = outerOffsets.get(i)[0];
+			outerY[i] = outerOffsets.get(i)[1];
+		}
+
+		int r = 0;
+		for (int i = 0; i < innerX.length; i++)
+			r = Math.max(r, Math.max(Math.abs(innerX[i]), Math.abs(innerY[i])));
+		for (int i = 0; i < outerX.length; i++)
+			r = Math.max(r, Math.max(Math.abs(outerX[i]), Math.abs(outerY[i])));
+		reach = r;
+
+		scratch = new double[outerX.length];
+	}
+
+	/**
+	 * Returns the PeakIntegrator of the current thread for the radii given. A
+	 * new instance is created when the radii differ from the last call on this
+	 * thread.
+	 * 
+	 * @param innerRadius The region to integrate.
+	 * @param outerRadius The outer radius of the region used to calculate the
+	 *          background.
+	 * @return The PeakIntegrator for the current thread.
+	 */
+	public static PeakIntegrator forCurrentThread(int innerRadius,
+		int outerRadius)
+	{
+		PeakIntegrator integrator = integrators.get();
+		if (integrator == null || integrator.innerRadius != innerRadius ||
+			integrator.outerRadius != outerRadius)
+		{
+			integrator = new PeakIntegrator(innerRadius, outerRadius);
+			integrators.set(integrator);
+		}
+		return integrator;
+	}
+
+	public int getInnerRadius() {
+		return innerRadius;
+	}
+
+	public int getOuterRadius() {
+		return outerRadius;
+	}
+
+	/**
+	 * Integrates the peaks given within the interval provided. See
+	 * {@link MarsImageUtils#integratePeaks(RandomAccessible, Interval, List, int, int, boolean)}.
+	 * 
+	 * @param <T> Image type.
+	 * @param img 2D image containing peaks.
+	 * @param interval The interval to mirror at the edges during integration.
+	 * @param peaks The Peaks to integrate.
+	 * @param verbose Whether to include all values.
+	 */
+	public <T extends RealType<T>> void integrate(RandomAccessible<T> img,
+		Interval interval, List<Peak> peaks, boolean verbose)
+	{
+		integrate(img, Collections.singletonList(interval), Collections
+			.singletonList(peaks), verbose);
+	}
+
+	/**
+	 * Integrates several lists of peaks in the same 2D image. The peaks in each
+	 * list are mirrored at the edges of the interval with the same index. All
+	 * pixels required are read from the image once.
+	 * 
+	 * @param <T> Image type.
+	 * @param img 2D image containing peaks.
+	 * @param intervals The intervals to mirror at the edges during integration.
+	 * @param peakLists The Peaks to integrate for each interval.
+	 * @param verbose Whether to include all values.
+	 */
+	public <T extends RealType<T>> void integrate(RandomAccessible<T> img,
+		List<? extends Interval> intervals, List<List<Peak>> peakLists,
+		boolean verbose)
+	{
+		List<PeakAccess> peaks = new ArrayList<>(peakLists.size());
+		for (List<Peak> peakList : peakLists)
+			peaks.add(new PeakListAccess(peakList));
+		integrateAll(img, intervals, peaks, verbose);
+	}
+
+	/**
+	 * Integrates the peaks in several PeakStores in the same 2D image. The
+	 * intensity and median background of all peaks are set in the store. In
+	 * verbose mode, the uncorrected intensity and mean background are also set.
+	 * Otherwise, this is the same as
+	 * {@link #integrate(RandomAccessible, List, List, boolean)}.
+	 * 
+	 * @param <T> Image type.
+	 * @param img 2D image containing peaks.
+	 * @param intervals The intervals to mirror at the edges during integration.
+	 * @param peakStores The PeakStores to integrate for each interval.
+	 * @param verbose Whether to include all values.
+	 */
+	public <T extends RealType<T>> void integrateStores(RandomAccessible<T> img,
+		List<? extends Interval> intervals, List<PeakStore> peakStores,
+		boolean verbose)
+	{
+		List<PeakAccess> peaks = new ArrayList<>(peakStores.size());
+		for (PeakStore peakStore : peakStores)
+			peaks.add(new PeakStoreAccess(peakStore));
+		integrateAll(img, intervals, peaks, verbose);
+	}
+
+	private <T extends RealType<T>> void integrateAll(RandomAccessible<T> img,
+		List<? extends Interval> intervals, List<PeakAccess> peakLists,
+		boolean verbose)
+	{
+		if (intervals.size() != peakLists.size())
+			throw new IllegalArgumentException("The number of intervals (" +
+				intervals.size() + ") and peak lists (" + peakLists.size() +
+				") must be the same.");
+
+		loadBuffer(img, intervals, peakLists);
+
+		for (int i = 0; i < intervals.size(); i++) {
+			Interval interval = intervals.get(i);
+			long minX = interval.min(0);
+			long maxX = interval.max(0);
+			long minY = interval.min(1);
+			long maxY = interval.max(1);
+
+			PeakAccess peaks = peakLists.get(i);
+			for (int index = 0; index < peaks.size(); index++) {
+				if (Thread.currentThread().isInterrupted()) return;
+
+				double peakX = peaks.getX(index);
+				double peakY = peaks.getY(index);
+				if (Double.isNaN(peakX) || Double.isNaN(peakY)) {
+					peaks.setIntegration(index, Double.NaN, Double.NaN);
+					continue;
+				}
+
+				// Type casting from double to int rounds down always, so we have to
+				// add 0.5 offset to be correct.
+				int x = (int) (peakX + 0.5);
+				int y = (int) (peakY + 0.5);
+
+				double intensity = 0;
+				if (x - reach >= minX && x + reach <= maxX && y - reach >= minY &&
+					y + reach <= maxY)
+				{
+					int center = (int) ((y - bufferMinY) * bufferWidth + x -
+						bufferMinX);
+					for (int j = 0; j < innerIndexOffsets.length; j++)
+						intensity += buffer[center + innerIndexOffsets[j]];
+					for (int j = 0; j < outerIndexOffsets.length; j++)
+						scratch[j] = buffer[center + outerIndexOffsets[j]];
+				}
+				else {
+					for (int j = 0; j < innerX.length; j++)
+						intensity += buffer[mirroredIndex(x + innerX[j], y + innerY[j],
+							minX, maxX, minY, maxY)];
+					for (int j = 0; j < outerX.length; j++)
+						scratch[j] = buffer[mirroredIndex(x + outerX[j], y + outerY[j],
+							minX, maxX, minY, maxY)];
+				}
+
+				if (verbose) {
+					// The mean is taken over the sorted values to sum them in the same
+					// order as MarsImageUtils did before.
+					Arrays.sort(scratch, 0, outerX.length);
+					peaks.setVerbose(index, intensity, Arrays.stream(scratch, 0,
+						outerX.length).average().orElse(Double.NaN) * innerX.length);
+				}
+
+				double medianBackground = median(scratch, outerX.length) *
+					innerX.length;
+
+				intensity -= medianBackground;
+
+				peaks.setIntegration(index, intensity, medianBackground);
+			}
+		}
+	}
+
+	/**
+	 * Copies the bounding box of all pixels visited by the peaks given into the
+	 * buffer.
+	 */
+	private <T extends RealType<T>> void loadBuffer(RandomAccessible<T> img,
+		List<? extends Interval> intervals, List<PeakAccess> peakLists)
+	{
+		long boxMinX = Long.MAX_VALUE;
+		long boxMaxX = Long.MIN_VALUE;
+		long boxMinY = Long.MAX_VALUE;
+		long boxMaxY = Long.MIN_VALUE;
+
+		for (int i = 0; i < intervals.size(); i++) {
+			Interval interval = intervals.get(i);
+			long minX = interval.min(0);
+			long maxX = interval.max(0);
+			long minY = interval.min(1);
+			long maxY = interval.max(1);
+
+			PeakAccess peaks = peakLists.get(i);
+			for (int index = 0; index < peaks.size(); index++) {
+				double peakX = peaks.getX(index);
+				double peakY = peaks.getY(index);
+				if (Double.isNaN(peakX) || Double.isNaN(peakY)) continue;
+
+				int x = (int) (peakX + 0.5);
+				int y = (int) (peakY + 0.5);
+
+				if (x - reach >= minX && x + reach <= maxX) {
+					boxMinX = Math.min(boxMinX, x - reach);
+					boxMaxX = Math.max(boxMaxX, x + reach);
+				}
+				else {
+					for (int dx = -reach; dx <= reach; dx++) {
+						long mx = mirror(x + dx, minX, maxX);
+						boxMinX = Math.min(boxMinX, mx);
+						boxMaxX = Math.max(boxMaxX, mx);
+					}
+				}
+
+				if (y - reach >= minY && y + reach <= maxY) {
+					boxMinY = Math.min(boxMinY, y - reach);
+					boxMaxY = Math.max(boxMaxY, y + reach);
+				}
+				else {
+					for (int dy = -reach; dy <= reach; dy++) {
+						long my = mirror(y + dy, minY, maxY);
+						boxMinY = Math.min(boxMinY, my);
+						boxMaxY = Math.max(boxMaxY, my);
+					}
+				}
+			}
+		}
+
+		// Only peaks without positions
+		if (boxMinX > boxMaxX || boxMinY > boxMaxY) return;
+
+		bufferMinX = boxMinX;
+		bufferMinY = boxMinY;
+		bufferWidth = (int) (boxMaxX - boxMinX + 1);
+		int size = Math.multiplyExact(bufferWidth, (int) (boxMaxY - boxMinY + 1));
+		if (buffer.length < size) buffer = new double[size];
+
+		Cursor<T> cursor = Views.flatIterable(Views.interval(img,
+			new FinalInterval(new long[] { boxMinX, boxMinY }, new long[] { boxMaxX,
+				boxMaxY }))).cursor();
+		int index = 0;
+		while (cursor.hasNext())
+			buffer[index++] = cursor.next().getRealDouble();
+
+		if (indexOffsetWidth != bufferWidth) {
+			innerIndexOffsets = new int[innerX.length];
+			for (int j = 0; j < innerX.length; j++)
+				innerIndexOffsets[j] = innerY[j] * bufferWidth + innerX[j];
+			outerIndexOffsets = new int[outerX.length];
+			for (int j = 0; j < outerX.length; j++)
+				outerIndexOffsets[j] = outerY[j] * bufferWidth + outerX[j];
+			indexOffsetWidth = bufferWidth;
+		}
+	}
+
+	private int mirroredIndex(long x, long y, long minX, long maxX, long minY,
+		long maxY)
+	{
+		return (int) ((mirror(y, minY, maxY) - bufferMinY) * bufferWidth + mirror(
+			x, minX, maxX) - bufferMinX);
+	}
+
+	/**
+	 * Mirrors the position given into min to max without repeating the
+	 * boundary pixel, like {@link Views#extendMirrorSingle}.
+	 */
+	static long mirror(long position, long min, long max) {
+		if (position >= min && position <= max) return position;
+		long size = max - min + 1;
+		if (size == 1) return min;
+		long period = 2 * size - 2;
+		long p = (position - min) % period;
+		if (p < 0) p += period;
+		if (p >= size) p = period - p;
+		return min + p;
+	}
+
+	/**
+	 * Median of the first length values with the same result as sorting the
+	 * values with {@link Double#compare} and averaging the two central values
+	 * for even lengths. NaN values sort last. The order of the values is
+	 * destroyed.
+	 */
+	static double median(double[] values, int length) {
+		if (length == 0) return Double.NaN;
+
+		// Move NaN values to the end so the selection only sees numbers.
+		int numbers = 0;
+		for (int i = 0; i < length; i++) {
+			if (!Double.isNaN(values[i])) {
+				double value = values[i];
+				values[i] = values[numbers];
+				values[numbers++] = value;
+			}
+		}
+
+		int upper = length / 2;
+		if (upper >= numbers) return Double.NaN;
+
+		double high = select(values, numbers, upper);
+		if (length % 2 == 1) return high;
+
+		// After selection, the lower central value is the largest value to the
+		// left of the upper central value.
+		double low = values[0];
+		for (int i = 1; i < upper; i++)
+			if (Double.compare(values[i], low) > 0) low = values[i];
+		return (high + low) / 2;
+	}
+
+	/**
+	 * Returns the k-th smallest of the first numbers values, or NaN if k is not
+	 * less than numbers. Afterwards all values left of k are not larger and all
+	 * values right of k are not smaller.
+	 */
+	private static double select(double[] values, int numbers, int k) {
+		if (k >= numbers) return Double.NaN;
+
+		int left = 0;
+		int right = numbers - 1;
+		while (right > left) {
+			// Median of three pivot
+			int middle = (left + right) >>> 1;
+			if (Double.compare(values[middle], values[left]) < 0) swap(values, left,
+				middle);
+			if (Double.compare(values[right], values[left]) < 0) swap(values, left,
+				right);
+			if (Double.compare(values[right], values[middle]) < 0) swap(values,
+				middle, right);
+			double pivot = values[middle];
+
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (Double.compare(values[i], pivot) < 0)
+					i++;
+				while (Double.compare(values[j], pivot) > 0)
+					j--;
+				if (i <= j) swap(values, i++, j--);
+			}
+			if (k <= j) right = j;
+			else if (k >= i) left = i;
+			else return values[k];
+		}
+		return values[k];
+	}
+
+	private static void swap(double[] values, int i, int j) {
+		double value = values[i];
+		values[i] = values[j];
+		values[j] = value;
+	}
+
+	/**
+	 * Access to the positions of the peaks to integrate and the destination of
+	 * the results.
+	 */
+	private interface PeakAccess {
+
+		int size();
+
+		double getX(int index);
+
+		double getY(int index);
+
+		void setIntegration(int index, double intensity, double medianBackground);
+
+		void setVerbose(int index, double uncorrectedIntensity,
+			double meanBackground);
+	}
+
+	private static class PeakListAccess implements PeakAccess {
+
+		private final List<Peak> peaks;
+
+		PeakListAccess(List<Peak> peaks) {
+			this.peaks = (peaks instanceof RandomAccess) ? peaks : new ArrayList<>(
+				peaks);
+		}
+
+		@Override
+		public int size() {
+			return peaks.size();
+		}
+
+		@Override
+		public double getX(int index) {
+			return peaks.get(index).getX();
+		}
+
+		@Override
+		public double getY(int index) {
+			return peaks.get(index).getY();
+		}
+
+		@Override
+		public void setIntegration(int index, double intensity,
+			double medianBackground)
+		{
+			Peak peak = peaks.get(index);
+			peak.setIntensity(intensity);
+			peak.setMedianBackground(medianBackground);
+		}
+
+		@Override
+		public void setVerbose(int index, double uncorrectedIntensity,
+			double meanBackground)
+		{
+			Peak peak = peaks.get(index);
+			peak.setProperty(Peak.UNCORRECTED_INTENSITY, uncorrectedIntensity);
+			peak.setProperty(Peak.MEAN_BACKGROUND, meanBackground);
+		}
+	}
+
+	private static class PeakStoreAccess implements PeakAccess {
+
+		private final PeakStore store;
+
+		PeakStoreAccess(PeakStore store) {
+			this.store = store;
+		}
+
+		@Override
+		public int size() {
+			return store.size();
+		}
+
+		@Override
+		public double getX(int index) {
+			return store.getX(index);
+		}
+
+		@Override
+		public double getY(int index) {
+			return store.getY(index);
+		}
+
+		@Override
+		public void setIntegration(int index, double intensity,
+			double medianBackground)
+		{
+			store.setIntensity(index, intensity);
+			store.setMedianBackground(index, medianBackground);
+		}
+
+		@Override
+		public void setVerbose(int index, double uncorrectedIntensity,
+			double meanBackground)
+		{
+			store.setUncorrectedIntensity(index, uncorrectedIntensity);
+			store.setMeanBackground(index, meanBackground);
+		}
+	}
+}
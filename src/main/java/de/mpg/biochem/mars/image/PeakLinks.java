@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.image;
+
+import java.util.Arrays;
+
+/**
+ * Possible links from the peaks of one tracking slice to the peaks of later
+ * slices. Links are stored in columns with the index of each peak in the
+ * {@link PeakStore} of its slice instead of as {@link PeakLink} objects.
+ * 
+ * @author Karl Duderstadt
+ */
+final class PeakLinks {
+
+	private int[] from;
+	private int[] to;
+	private int[] tDifference;
+	private double[] squaredDistance;
+	private int size;
+
+	PeakLinks() {
+		from = new int[16];
+		to = new int[16];
+		tDifference = new int[16];
+		squaredDistance = new double[16];
+	}
+
+	void add(int from, int to, double squaredDistance, int tDifference) {
+		if (size == this.from.length) {
+			int capacity = size + (size >> 1);
+			this.from = Arrays.copyOf(this.from, capacity);
+			this.to = Arrays.copyOf(this.to, capacity);
+			this.tDifference = Arrays.copyOf(this.tDifference, capacity);
+			this.squaredDistance = Arrays.copyOf(this.squaredDistance, capacity);
+		}
+		this.from[size] = from;
+		this.to[size] = to;
+		this.tDifference[size] = tDifference;
+		this.squaredDistance[size] = squaredDistance;
+		size++;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int getFrom(int link) {
+		return from[link];
+	}
+
+	int getTo(int link) {
+		return to[link];
+	}
+
+	int getTDifference(int link) {
+		return tDifference[link];
+	}
+
+	double getSquaredDistance(int link) {
+		return squaredDistance[link];
+	}
+
+	/**
+	 * Sorts the links from most to least likely, first by T difference and then
+	 * by distance. Links that are equally likely keep their order.
+	 */
+	void sort() {
+		int[] order = new int[size];
+		for (int link = 0; link < size; link++)
+			order[link] = link;
+		mergeSort(order, new int[size], 0, size);
+
+		int[] sortedFrom = new int[size];
+		int[] sortedTo = new int[size];
+		int[] sortedTDifference = new int[size];
+		double[] sortedSquaredDistance = new double[size];
+		for (int link = 0; link < size; link++) {
+			sortedFrom[link] = from[order[link]];
+			sortedTo[link] = to[order[link]];
+			sortedTDifference[link] = tDifference[order[link]];
+			sortedSquaredDistance[link] = squaredDistance[order[link]];
+		}
+		from = sortedFrom;
+		to = sortedTo;
+		tDifference = sortedTDifference;
+		squaredDistance = sortedSquaredDistance;
+	}
+
+	private void mergeSort(int[] order, int[] buffer, int start, int end) {
+		if (end - start < 2) return;
+		int middle = (start + end) >>> 1;
+		mergeSort(order, buffer, start, middle);
+		mergeSort(order, buffer, middle, end);
+
+		System.arraycopy(order, start, buffer, start, end - start);
+		int left = start;
+		int right = middle;
+		for (int k = start; k < end; k++) {
+			if (right == end || (left < middle && compare(buffer[left],
+				buffer[right]) <= 0)) order[k] = buffer[left++];
+			else order[k] = buffer[right++];
+		}
+	}
+
+	private int compare(int a, int b) {
+		if (tDifference[a] != tDifference[b]) return Integer.compare(
+			tDifference[a], tDifference[b]);
+		return Double.compare(squaredDistance[a], squaredDistance[b]);
+	}
+}
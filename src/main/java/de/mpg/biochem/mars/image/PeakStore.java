@@ -0,0 +1,485 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.image;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar storage for large numbers of peaks. Each property is kept in a
+ * primitive array indexed by the peak index instead of in a {@link Peak}
+ * object with its own property map, so a peak costs only a few bytes per
+ * property used. Columns are allocated the first time a value is set, so
+ * unused properties take no space. Unset double values are NaN and unset int
+ * values are -1.
+ * <p>
+ * PeakStores hold the peaks of each T during tracking and the positions
+ * integrated in every frame by the molecule integrator commands, which are too
+ * many to keep as individual {@link Peak} objects. Links between peaks are
+ * stored as the index of the linked peak in the store of the linked T and the
+ * number of tracking slices between the two, so tracks are followed without
+ * object references. Instances are not thread safe, but different indices may
+ * be set from different threads once all peaks have been added and the
+ * columns in use have been allocated.
+ * 
+ * @author Karl Duderstadt
+ */
+public class PeakStore {
+
+	private static final int X = 0;
+	private static final int Y = 1;
+	private static final int HEIGHT = 2;
+	private static final int BASELINE = 3;
+	private static final int SIGMA = 4;
+	private static final int R2 = 5;
+	private static final int INTENSITY = 6;
+	private static final int MEDIAN_BACKGROUND = 7;
+	private static final int UNCORRECTED_INTENSITY = 8;
+	private static final int MEAN_BACKGROUND = 9;
+	private static final int DOUBLE_COLUMNS = 10;
+
+	// Peak property names of the double columns from HEIGHT on.
+	private static final String[] PROPERTY_NAMES = { Peak.HEIGHT, Peak.BASELINE,
+		Peak.SIGMA, Peak.R2, Peak.INTENSITY, Peak.MEDIAN_BACKGROUND,
+		Peak.UNCORRECTED_INTENSITY, Peak.MEAN_BACKGROUND };
+
+	private static final int T = 0;
+	private static final int C = 1;
+	private static final int TRACK = 2;
+	private static final int FORWARD_LINK = 3;
+	private static final int FORWARD_LINK_T_DIFFERENCE = 4;
+	private static final int BACKWARD_LINK = 5;
+	private static final int BACKWARD_LINK_T_DIFFERENCE = 6;
+	private static final int INT_COLUMNS = 7;
+
+	private final double[][] doubleColumns = new double[DOUBLE_COLUMNS][];
+	private final int[][] intColumns = new int[INT_COLUMNS][];
+
+	// Columns for all other properties, such as the area of objects.
+	private final Map<String, double[]> propertyColumns = new LinkedHashMap<>();
+
+	private PeakShape[] shapes;
+
+	private int size;
+	private int capacity;
+
+	public PeakStore() {
+		this(16);
+	}
+
+	public PeakStore(int capacity) {
+		this.capacity = Math.max(capacity, 1);
+		doubleColumns[X] = new double[this.capacity];
+		doubleColumns[Y] = new double[this.capacity];
+	}
+
+	/**
+	 * Creates a PeakStore with a copy of the peaks given in the same order.
+	 * 
+	 * @param peaks The peaks to add.
+	 */
+	public PeakStore(List<Peak> peaks) {
+		this(peaks.size());
+		for (Peak peak : peaks)
+			add(peak);
+	}
+
+	/**
+	 * Adds a peak at the position given.
+	 * 
+	 * @param x The x position.
+	 * @param y The y position.
+	 * @return The index of the new peak.
+	 */
+	public int add(double x, double y) {
+		if (size == capacity) grow();
+		doubleColumns[X][size] = x;
+		doubleColumns[Y][size] = y;
+		return size++;
+	}
+
+	/**
+	 * Adds a copy of the peak given. The position, T, C, all properties and the
+	 * shape are copied. Links and the track UID are not.
+	 * 
+	 * @param peak The peak to add.
+	 * @return The index of the new peak.
+	 */
+	public int add(Peak peak) {
+		int index = add(peak.getX(), peak.getY());
+		if (peak.getT() != -1) setT(index, peak.getT());
+		if (peak.getC() != -1) setC(index, peak.getC());
+		for (Map.Entry<String, Double> property : peak.getProperties().entrySet())
+			if (property.getValue() != null) setProperty(index, property.getKey(),
+				property.getValue());
+		if (peak.getShape() != null) setShape(index, peak.getShape());
+		return index;
+	}
+
+	/**
+	 * Adds a copy of a peak in another store. The position, T, C, all
+	 * properties and the shape are copied. Links and the track index are not.
+	 * 
+	 * @param store The store containing the peak.
+	 * @param index The index of the peak in that store.
+	 * @return The index of the new peak.
+	 */
+	public int add(PeakStore store, int index) {
+		int newIndex = add(store.getX(index), store.getY(index));
+		if (store.getT(index) != -1) setT(newIndex, store.getT(index));
+		if (store.getC(index) != -1) setC(newIndex, store.getC(index));
+		for (String name : store.getPropertyNames())
+			setProperty(newIndex, name, store.getProperty(index, name));
+		if (store.getShape(index) != null) setShape(newIndex, store.getShape(
+			index));
+		return newIndex;
+	}
+
+	/**
+	 * Creates a new Peak with the values stored for the index given. Only
+	 * values that have been set are added as properties.
+	 * 
+	 * @param index The index of the peak.
+	 * @return A new Peak.
+	 */
+	public Peak toPeak(int index) {
+		checkIndex(index);
+		Peak peak = new Peak(getX(index), getY(index), getT(index));
+		peak.setC(getC(index));
+		for (String name : getPropertyNames()) {
+			double value = getProperty(index, name);
+			if (!Double.isNaN(value)) peak.setProperty(name, value);
+		}
+		peak.setShape(getShape(index));
+		return peak;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public double getX(int index) {
+		return get(X, index);
+	}
+
+	public double getY(int index) {
+		return get(Y, index);
+	}
+
+	public int getT(int index) {
+		return getInt(T, index);
+	}
+
+	public void setT(int index, int t) {
+		setInt(T, index, t);
+	}
+
+	public int getC(int index) {
+		return getInt(C, index);
+	}
+
+	public void setC(int index, int c) {
+		setInt(C, index, c);
+	}
+
+	public double getHeight(int index) {
+		return get(HEIGHT, index);
+	}
+
+	public double getBaseline(int index) {
+		return get(BASELINE, index);
+	}
+
+	public double getSigma(int index) {
+		return get(SIGMA, index);
+	}
+
+	public double getRSquared(int index) {
+		return get(R2, index);
+	}
+
+	public double getIntensity(int index) {
+		return get(INTENSITY, index);
+	}
+
+	public void setIntensity(int index, double intensity) {
+		set(INTENSITY, index, intensity);
+	}
+
+	public double getMedianBackground(int index) {
+		return get(MEDIAN_BACKGROUND, index);
+	}
+
+	public void setMedianBackground(int index, double medianBackground) {
+		set(MEDIAN_BACKGROUND, index, medianBackground);
+	}
+
+	public double getUncorrectedIntensity(int index) {
+		return get(UNCORRECTED_INTENSITY, index);
+	}
+
+	public void setUncorrectedIntensity(int index, double uncorrectedIntensity) {
+		set(UNCORRECTED_INTENSITY, index, uncorrectedIntensity);
+	}
+
+	public double getMeanBackground(int index) {
+		return get(MEAN_BACKGROUND, index);
+	}
+
+	public void setMeanBackground(int index, double meanBackground) {
+		set(MEAN_BACKGROUND, index, meanBackground);
+	}
+
+	/**
+	 * Gets a property by the name used in {@link Peak#getProperties()}.
+	 * 
+	 * @param index The index of the peak.
+	 * @param name The name of the property.
+	 * @return The value or NaN if it was not set.
+	 */
+	public double getProperty(int index, String name) {
+		int column = propertyColumn(name);
+		if (column != -1) return get(column, index);
+		checkIndex(index);
+		double[] values = propertyColumns.get(name);
+		return (values == null) ? Double.NaN : values[index];
+	}
+
+	/**
+	 * Sets a property by the name used in {@link Peak#getProperties()}.
+	 * 
+	 * @param index The index of the peak.
+	 * @param name The name of the property.
+	 * @param value The value to set.
+	 */
+	public void setProperty(int index, String name, double value) {
+		int column = propertyColumn(name);
+		if (column != -1) {
+			set(column, index, value);
+			return;
+		}
+		checkIndex(index);
+		double[] values = propertyColumns.get(name);
+		if (values == null) {
+			values = new double[capacity];
+			Arrays.fill(values, Double.NaN);
+			propertyColumns.put(name, values);
+		}
+		values[index] = value;
+	}
+
+	/**
+	 * @return The names of all properties that have been set for any peak.
+	 */
+	public List<String> getPropertyNames() {
+		List<String> names = new ArrayList<>();
+		for (int column = HEIGHT; column < DOUBLE_COLUMNS; column++)
+			if (doubleColumns[column] != null) names.add(PROPERTY_NAMES[column -
+				HEIGHT]);
+		names.addAll(propertyColumns.keySet());
+		return names;
+	}
+
+	public PeakShape getShape(int index) {
+		checkIndex(index);
+		return (shapes == null) ? null : shapes[index];
+	}
+
+	public void setShape(int index, PeakShape shape) {
+		checkIndex(index);
+		if (shapes == null) shapes = new PeakShape[capacity];
+		shapes[index] = shape;
+	}
+
+	/**
+	 * The track index can be used to group peaks, for example all peaks with the
+	 * same UID.
+	 * 
+	 * @param index The index of the peak.
+	 * @return The track index or -1 if none was set.
+	 */
+	public int getTrackIndex(int index) {
+		return getInt(TRACK, index);
+	}
+
+	public void setTrackIndex(int index, int trackIndex) {
+		setInt(TRACK, index, trackIndex);
+	}
+
+	/**
+	 * Links a peak to the next peak in its track.
+	 * 
+	 * @param index The index of the peak.
+	 * @param tDifference The number of tracking slices to the linked peak.
+	 * @param linkIndex The index of the linked peak in the store of its slice.
+	 */
+	public void setForwardLink(int index, int tDifference, int linkIndex) {
+		setInt(FORWARD_LINK_T_DIFFERENCE, index, tDifference);
+		setInt(FORWARD_LINK, index, linkIndex);
+	}
+
+	/**
+	 * @param index The index of the peak.
+	 * @return The index of the next peak in the track in the store of its slice
+	 *         or -1 if there is no forward link.
+	 */
+	public int getForwardLink(int index) {
+		return getInt(FORWARD_LINK, index);
+	}
+
+	/**
+	 * @param index The index of the peak.
+	 * @return The number of tracking slices to the next peak in the track.
+	 */
+	public int getForwardLinkTDifference(int index) {
+		return getInt(FORWARD_LINK_T_DIFFERENCE, index);
+	}
+
+	/**
+	 * Links a peak to the previous peak in its track.
+	 * 
+	 * @param index The index of the peak.
+	 * @param tDifference The number of tracking slices back to the linked peak.
+	 * @param linkIndex The index of the linked peak in the store of its slice.
+	 */
+	public void setBackwardLink(int index, int tDifference, int linkIndex) {
+		setInt(BACKWARD_LINK_T_DIFFERENCE, index, tDifference);
+		setInt(BACKWARD_LINK, index, linkIndex);
+	}
+
+	/**
+	 * @param index The index of the peak.
+	 * @return The index of the previous peak in the track in the store of its
+	 *         slice or -1 if there is no backward link.
+	 */
+	public int getBackwardLink(int index) {
+		return getInt(BACKWARD_LINK, index);
+	}
+
+	/**
+	 * @param index The index of the peak.
+	 * @return The number of tracking slices back to the previous peak in the
+	 *         track.
+	 */
+	public int getBackwardLinkTDifference(int index) {
+		return getInt(BACKWARD_LINK_T_DIFFERENCE, index);
+	}
+
+	/**
+	 * Returns the index of the first peak with the track index given. The track
+	 * indices must be sorted in ascending order.
+	 * 
+	 * @param trackIndex The track index to search for.
+	 * @return The index of the peak or -1 if there is none.
+	 */
+	public int findTrackIndex(int trackIndex) {
+		int[] tracks = intColumns[TRACK];
+		if (tracks == null || trackIndex < 0) return -1;
+
+		// Stores with one peak for every track index from 0 to size - 1
+		if (trackIndex < size && tracks[trackIndex] == trackIndex &&
+			(trackIndex == 0 || tracks[trackIndex - 1] < trackIndex))
+			return trackIndex;
+
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (tracks[middle] < trackIndex) low = middle + 1;
+			else high = middle - 1;
+		}
+		return (low < size && tracks[low] == trackIndex) ? low : -1;
+	}
+
+	private static int propertyColumn(String name) {
+		for (int i = 0; i < PROPERTY_NAMES.length; i++)
+			if (PROPERTY_NAMES[i].equals(name)) return HEIGHT + i;
+		return -1;
+	}
+
+	private double get(int column, int index) {
+		checkIndex(index);
+		return (doubleColumns[column] == null) ? Double.NaN
+			: doubleColumns[column][index];
+	}
+
+	private void set(int column, int index, double value) {
+		checkIndex(index);
+		if (doubleColumns[column] == null) {
+			doubleColumns[column] = new double[capacity];
+			Arrays.fill(doubleColumns[column], Double.NaN);
+		}
+		doubleColumns[column][index] = value;
+	}
+
+	private int getInt(int column, int index) {
+		checkIndex(index);
+		return (intColumns[column] == null) ? -1 : intColumns[column][index];
+	}
+
+	private void setInt(int column, int index, int value) {
+		checkIndex(index);
+		if (intColumns[column] == null) {
+			intColumns[column] = new int[capacity];
+			Arrays.fill(intColumns[column], -1);
+		}
+		intColumns[column][index] = value;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException(
+			"Index " + index + " is out of bounds for PeakStore of size " + size);
+	}
+
+	private void grow() {
+		int newCapacity = Math.max(capacity + 1, capacity + (capacity >> 1));
+		for (int column = 0; column < DOUBLE_COLUMNS; column++) {
+			if (doubleColumns[column] == null) continue;
+			doubleColumns[column] = grow(doubleColumns[column], newCapacity);
+		}
+		for (int column = 0; column < INT_COLUMNS; column++) {
+			if (intColumns[column] == null) continue;
+			intColumns[column] = Arrays.copyOf(intColumns[column], newCapacity);
+			Arrays.fill(intColumns[column], capacity, newCapacity, -1);
+		}
+		propertyColumns.replaceAll((name, values) -> grow(values, newCapacity));
+		if (shapes != null) shapes = Arrays.copyOf(shapes, newCapacity);
+		capacity = newCapacity;
+	}
+
+	private double[] grow(double[] values, int newCapacity) {
+		double[] grown = Arrays.copyOf(values, newCapacity);
+		Arrays.fill(grown, capacity, newCapacity, Double.NaN);
+		return grown;
+	}
+}
@@ -36,16 +36,18 @@ import de.mpg.biochem.mars.object.MartianObject;
 import de.mpg.biochem.mars.object.ObjectArchive;
 import de.mpg.biochem.mars.table.MarsTable;
 import de.mpg.biochem.mars.util.MarsMath;
-import net.imglib2.KDTree;
+import net.imglib2.RealPoint;
 import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
+import net.imglib2.type.numeric.integer.IntType;
 import org.decimal4j.util.DoubleRounder;
 import org.scijava.log.LogService;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 
 import static java.util.stream.Collectors.toList;
 
@@ -69,14 +71,16 @@ public class  PeakTracker {
 	private final int minimumDistance;
 	private final double pixelSize;
 
+	// Whether to link frame pairs by optimal assignment instead of greedily.
+	private boolean globalLinking = false;
+
 	//private String metaDataUID;
 
-	// Stores the KDTree list for Peaks for each T.
-	private ConcurrentMap<Integer, KDTree<Peak>> KDTreeStack;
+	// Stores the peaks and KDTree of each T index. Null if there are no peaks.
+	private TrackingFrame[] frames;
 
-	// Stores the list of possible links from each T as a list with the key of
-	// that T.
-	private ConcurrentMap<Integer, List<PeakLink>> possibleLinks;
+	// Stores the possible links from each T index.
+	private PeakLinks[] possibleLinks;
 
 	private final LogService logService;
 
@@ -120,6 +124,39 @@ public class  PeakTracker {
 		searchRadius = Math.max(maxDifference[2], maxDifference[3]);
 	}
 
+	/**
+	 * @return The maximum number of slices a peak can be linked across.
+	 */
+	public int getMaxDifferenceT() {
+		return (int) maxDifference[5];
+	}
+
+	/**
+	 * Sets the linking strategy. By default, links are taken greedily from the
+	 * shortest to the longest, one T at a time, skipping peaks near other
+	 * tracks. With global linking, the links between each pair of consecutive
+	 * slices are chosen together to give the most links with the smallest total
+	 * squared distance. Frame pairs are solved in parallel and gaps of more
+	 * than one slice are closed afterwards. See {@link GlobalPeakLinker}.
+	 * 
+	 * @param globalLinking Whether to use global linking.
+	 */
+	public void setGlobalLinking(boolean globalLinking) {
+		this.globalLinking = globalLinking;
+	}
+
+	public boolean isGlobalLinking() {
+		return globalLinking;
+	}
+
+	/**
+	 * @return The minimum number of peaks in a track for it to be added to the
+	 *         archive.
+	 */
+	public int getMinTrajectoryLength() {
+		return minTrajectoryLength;
+	}
+
 	public void track(ConcurrentMap<Integer, List<Peak>> peakStack,
 		MoleculeArchive<?, ?, ?, ?> archive, final int channel, final int nThreads)
 	{
@@ -132,9 +169,43 @@ public class  PeakTracker {
 		MoleculeArchive<?, ?, ?, ?> archive, String metaDataUID, int channel,
 		List<Integer> trackingTimePoints, final int nThreads)
 	{
+		Map<Integer, PeakStore> peakStores = new HashMap<>();
+		for (Map.Entry<Integer, List<Peak>> entry : peakStack.entrySet())
+			peakStores.put(entry.getKey(), new PeakStore(entry.getValue()));
+		trackPeakStores(peakStores, archive, metaDataUID, channel,
+			trackingTimePoints, nThreads);
+	}
 
-		KDTreeStack = new ConcurrentHashMap<>();
-		possibleLinks = new ConcurrentHashMap<>();
+	/**
+	 * Tracks the peaks of each T given in PeakStores. Links and track indices
+	 * are set in the stores, so the peaks of the whole movie are kept in a few
+	 * primitive arrays per T instead of as Peak objects.
+	 * 
+	 * @param peakStack The peaks of each T. Can be missing for T without peaks.
+	 * @param archive The archive that will contain the molecule records.
+	 * @param metaDataUID The UID of the metadata record of the image.
+	 * @param channel The channel to set in the molecule records.
+	 * @param trackingTimePoints The T to track in tracking order.
+	 * @param nThreads The number of threads to use.
+	 */
+	public void trackPeakStores(Map<Integer, PeakStore> peakStack,
+		MoleculeArchive<?, ?, ?, ?> archive, String metaDataUID, int channel,
+		List<Integer> trackingTimePoints, final int nThreads)
+	{
+		// Each T index is processed by one task that only writes its own slot,
+		// so the results do not depend on the order the tasks run in.
+		final int[] timePoints = trackingTimePoints.stream().mapToInt(
+			Integer::intValue).toArray();
+		frames = new TrackingFrame[timePoints.length];
+		possibleLinks = new PeakLinks[timePoints.length];
+
+		// If you have a very small ROI and there are frames with no actual
+		// peaks in them you need to skip that T.
+		for (int indexT = 0; indexT < timePoints.length; indexT++) {
+			PeakStore peaks = peakStack.get(timePoints[indexT]);
+			if (peaks != null && peaks.size() > 0) frames[indexT] =
+				new TrackingFrame(peaks);
+		}
 
 		ForkJoinPool forkJoinPool = new ForkJoinPool(nThreads);
 
@@ -144,25 +215,13 @@ public class  PeakTracker {
 
 		try {
 
-			forkJoinPool.submit(() -> trackingTimePoints.parallelStream().forEach(
-				t -> {
-					// Remember this operation will change the order of the peaks in the
-					// Arraylists but that should not be a problem here.
-
-					// If you have a very small ROI and there are frames with no actual
-					// peaks in them.
-					// you need to skip that T.
-					if (peakStack.containsKey(t))
-					{
-						KDTree<Peak> tree = new KDTree<>(peakStack.get(t), peakStack
-								.get(t));
-						KDTreeStack.put(trackingTimePoints.indexOf(t), tree);
-					}
+			forkJoinPool.submit(() -> IntStream.range(0, timePoints.length)
+				.parallel().forEach(indexT -> {
+					if (frames[indexT] != null) frames[indexT].tree();
 				})).get();
 
-			forkJoinPool.submit(() -> trackingTimePoints.parallelStream().forEach(
-				t -> findPossibleLinks(peakStack, trackingTimePoints.indexOf(t),
-					trackingTimePoints))).get();
+			forkJoinPool.submit(() -> IntStream.range(0, timePoints.length)
+				.parallel().forEach(this::findPossibleLinks)).get();
 		}
 		catch (InterruptedException | ExecutionException e) {
 			// handle exceptions
@@ -176,66 +235,17 @@ public class  PeakTracker {
 		logService.info("Time: " + DoubleRounder.round((System.currentTimeMillis() -
 			startTime) / 60000, 2) + " minutes.");
 
-		HashMap<String, Integer> trackLengths = new HashMap<>();
-
-		List<Peak> trackFirstT = new ArrayList<>();
+		Tracks tracks = new Tracks();
 
 		logService.info("Connecting most likely links...");
 
 		startTime = System.currentTimeMillis();
 
-		for (int indexT = 0; indexT < possibleLinks.size(); indexT++) {
-			List<PeakLink> tPossibleLinks = possibleLinks.get(indexT);
-			if (tPossibleLinks != null) {
-				for (PeakLink tPossibleLink : tPossibleLinks) {
-					Peak from = tPossibleLink.getFrom();
-					Peak to = tPossibleLink.getTo();
-
-					if (from.getForwardLink() != null || to.getBackwardLink() != null) {
-						// already linked
-						continue;
-					}
-
-					// We need to check if the to peak has any nearest neighbors that have
-					// already been linked...
-					boolean regionAlreadyLinked = false;
-
-					for (int q = indexT + 1; q <= indexT + maxDifference[5]; q++) {
-						if (!KDTreeStack.containsKey(q)) continue;
-
-						RadiusNeighborSearchOnKDTree<Peak> radiusSearch =
-								new RadiusNeighborSearchOnKDTree<>(KDTreeStack.get(q));
-						radiusSearch.search(to, minimumDistance, false);
-
-						for (int w = 0; w < radiusSearch.numNeighbors(); w++) {
-							if (radiusSearch.getSampler(w).get().getTrackUID() != null)
-								regionAlreadyLinked = true;
-						}
-					}
-
-					if (from.getTrackUID() != null && !regionAlreadyLinked) {
-						to.setTrackUID(from.getTrackUID());
-						trackLengths.put(from.getTrackUID(), trackLengths.get(from
-								.getTrackUID()) + 1);
-
-						// Add references in each peak for forward and backward links...
-						from.setForwardLink(to);
-						to.setBackwardLink(from);
-
-					} else if (!regionAlreadyLinked) {
-						// Generate a new UID
-						String UID = MarsMath.getUUID58();
-						from.setTrackUID(UID);
-						to.setTrackUID(UID);
-						trackLengths.put(UID, 2);
-						trackFirstT.add(from);
-
-						// Add references in each peak for forward and backward links...
-						from.setForwardLink(to);
-						to.setBackwardLink(from);
-					}
-				}
-			}
+		if (globalLinking) linkGlobally(tracks, nThreads);
+		else for (int indexT = 0; indexT < timePoints.length; indexT++) {
+			if (possibleLinks[indexT] != null) connectLinks(possibleLinks[indexT],
+				indexT, this::getFrame, tracks);
+			possibleLinks[indexT] = null;
 		}
 
 		logService.info("Time: " + DoubleRounder.round((System.currentTimeMillis() -
@@ -253,11 +263,12 @@ public class  PeakTracker {
 
 		// Now we build a MoleculeArchive in a multithreaded manner in which
 		// each molecule is build by a different thread just following the
-		// links until it hits a molecule with no UID, which signifies the end of
-		// the track.
+		// links from the first peak of the track until a peak without a
+		// forward link.
 		try {
-			forkJoinPool.submit(() -> trackFirstT.parallelStream().forEach(
-				startingPeak -> buildMolecule(startingPeak, trackLengths, archive,
+			forkJoinPool.submit(() -> IntStream.range(0, tracks.size()).parallel()
+				.filter(track -> tracks.length(track) >= minTrajectoryLength).forEach(
+					track -> buildMolecule(buildTrack(tracks, track), archive,
 						metaDataUID, channel, channelToTtoDtMap))).get();
 		}
 		catch (InterruptedException | ExecutionException e) {
@@ -270,82 +281,245 @@ public class  PeakTracker {
 			forkJoinPool.shutdown();
 		}
 
+		frames = null;
+		possibleLinks = null;
+
 		logService.info("Time: " + DoubleRounder.round((System.currentTimeMillis() -
 			startTime) / 60000, 2) + " minutes.");
 	}
 
-	private void findPossibleLinks(ConcurrentMap<Integer, List<Peak>> peakStack,
-		int indexT, List<Integer> trackingTimePoints)
-	{
-		if (!peakStack.containsKey(trackingTimePoints.get(indexT))) return;
-
-		List<PeakLink> tPossibleLinks = new ArrayList<>();
+	private void findPossibleLinks(int indexT) {
+		if (frames[indexT] == null) return;
 
 		int endT = indexT + (int) maxDifference[5];
 
 		// Don't search past the last slice...
-		if (endT >= trackingTimePoints.size()) endT = trackingTimePoints.size() - 1;
+		if (endT >= frames.length) endT = frames.length - 1;
+
+		possibleLinks[indexT] = findPossibleLinks(frames[indexT].peaks(), indexT,
+			endT, this::getFrame);
+	}
+
+	private void linkGlobally(Tracks tracks, int nThreads) {
+		ForkJoinPool forkJoinPool = new ForkJoinPool(nThreads);
+		try {
+			forkJoinPool.submit(() -> IntStream.range(0, frames.length - 1)
+				.parallel().forEach(indexT -> {
+					if (possibleLinks[indexT] != null && frames[indexT + 1] != null)
+						GlobalPeakLinker.linkFramePair(possibleLinks[indexT],
+							frames[indexT].peaks(), frames[indexT + 1].peaks());
+				})).get();
+		}
+		catch (InterruptedException | ExecutionException e) {
+			// handle exceptions
+			logService.error("Failed to link frame pairs.. " + e.getMessage());
+			e.printStackTrace();
+		}
+		finally {
+			forkJoinPool.shutdown();
+		}
+
+		for (int indexT = 0; indexT < frames.length; indexT++) {
+			if (possibleLinks[indexT] != null) GlobalPeakLinker.closeGaps(
+				possibleLinks[indexT], indexT, this::getFrame);
+			possibleLinks[indexT] = null;
+		}
+
+		for (int indexT = 0; indexT < frames.length; indexT++)
+			if (frames[indexT] != null) assignTracks(frames[indexT].peaks(), indexT,
+				this::getFrame, tracks);
+	}
+
+	/**
+	 * Assigns tracks to the peaks linked from one T after linking. Peaks
+	 * without a track that have a forward link start a new track and the
+	 * linked peak continues the track of the peak it is linked from. The T
+	 * must be assigned in tracking order.
+	 */
+	void assignTracks(PeakStore peaks, int indexT,
+		IntFunction<TrackingFrame> frames, Tracks tracks)
+	{
+		for (int index = 0; index < peaks.size(); index++) {
+			int next = peaks.getForwardLink(index);
+			if (next == -1) continue;
+
+			int track = peaks.getTrackIndex(index);
+			if (track == -1) {
+				track = tracks.start(indexT, index, 1);
+				peaks.setTrackIndex(index, track);
+			}
+			frames.apply(indexT + peaks.getForwardLinkTDifference(index)).peaks()
+				.setTrackIndex(next, track);
+			tracks.extend(track);
+		}
+	}
+
+	private TrackingFrame getFrame(int indexT) {
+		return (indexT < frames.length) ? frames[indexT] : null;
+	}
+
+	/**
+	 * Finds all possible links from the peaks given to the peaks in the slices
+	 * indexT + 1 to endT and sorts them from most to least likely. Slices
+	 * without peaks should have a null frame.
+	 */
+	PeakLinks findPossibleLinks(PeakStore fromPeaks, int indexT, int endT,
+		IntFunction<TrackingFrame> frames)
+	{
+		PeakLinks tPossibleLinks = new PeakLinks();
+		RealPoint linkFrom = new RealPoint(2);
 
 		// Here we only need to loop until maxDifference[5] slices into the
 		// future.
 		for (int j = indexT + 1; j <= endT; j++) {
 			// can't search if there are no peaks in the given slice.
-			if (!KDTreeStack.containsKey(j)) continue;
-
-			RadiusNeighborSearchOnKDTree<Peak> radiusSearch =
-					new RadiusNeighborSearchOnKDTree<>(KDTreeStack.get(j));
-			for (Peak linkFrom : peakStack.get(trackingTimePoints.get(indexT))) {
+			TrackingFrame frame = frames.apply(j);
+			if (frame == null) continue;
+
+			PeakStore toPeaks = frame.peaks();
+			RadiusNeighborSearchOnKDTree<IntType> radiusSearch = frame.search();
+			for (int from = 0; from < fromPeaks.size(); from++) {
+				linkFrom.setPosition(fromPeaks.getX(from), 0);
+				linkFrom.setPosition(fromPeaks.getY(from), 1);
 				radiusSearch.search(linkFrom, searchRadius, false);
 
 				for (int q = 0; q < radiusSearch.numNeighbors(); q++) {
 					// Let's check that everything is below the max distance
-					Peak linkTo = radiusSearch.getSampler(q).get();
+					int to = radiusSearch.getSampler(q).get().get();
 					boolean valid = true;
 
 					// We check distance again here because the KDTree search can only do
 					// radius, and perhaps we want to look at dy bigger than dx.
 					// This is why we take the larger difference above.
-					if (ckMaxDifference[0] && Math.abs(linkFrom.getBaseline() - linkTo
-						.getBaseline()) > maxDifference[0]) valid = false;
-					else if (ckMaxDifference[1] && Math.abs(linkFrom.getHeight() - linkTo
-						.getHeight()) > maxDifference[1]) valid = false;
-					else if (Math.abs(linkFrom.getX() - linkTo.getX()) > maxDifference[2])
-						valid = false;
-					else if (Math.abs(linkFrom.getY() - linkTo.getY()) > maxDifference[3])
-						valid = false;
-					else if (ckMaxDifference[2] && Math.abs(linkFrom.getSigma() - linkTo
-						.getSigma()) > maxDifference[4]) valid = false;
-
-					if (valid) {
-						PeakLink link = new PeakLink(linkFrom, linkTo, radiusSearch
-							.getSquareDistance(q), indexT, j - indexT);
-						tPossibleLinks.add(link);
+					if (ckMaxDifference[0] && Math.abs(fromPeaks.getBaseline(from) -
+						toPeaks.getBaseline(to)) > maxDifference[0]) valid = false;
+					else if (ckMaxDifference[1] && Math.abs(fromPeaks.getHeight(from) -
+						toPeaks.getHeight(to)) > maxDifference[1]) valid = false;
+					else if (Math.abs(fromPeaks.getX(from) - toPeaks.getX(
+						to)) > maxDifference[2]) valid = false;
+					else if (Math.abs(fromPeaks.getY(from) - toPeaks.getY(
+						to)) > maxDifference[3]) valid = false;
+					else if (ckMaxDifference[2] && Math.abs(fromPeaks.getSigma(from) -
+						toPeaks.getSigma(to)) > maxDifference[4]) valid = false;
+
+					if (valid) tPossibleLinks.add(from, to, radiusSearch
+						.getSquareDistance(q), j - indexT);
+				}
+			}
+		}
+		// Now we sort all the possible links for this T by T difference and
+		// then by distance - the shorter linking distance wins...
+		tPossibleLinks.sort();
+		return tPossibleLinks;
+	}
+
+	/**
+	 * Connects the possible links from one T, which must be sorted from most to
+	 * least likely. Links are skipped if either peak is already linked or if a
+	 * peak within minimumDistance of the to peak has already been assigned to a
+	 * track in any of the next maxDifferenceT slices.
+	 */
+	@SuppressWarnings("unchecked")
+	void connectLinks(PeakLinks tPossibleLinks, int indexT,
+		IntFunction<TrackingFrame> frames, Tracks tracks)
+	{
+		// One search per slice in the window, created the first time it is needed
+		// and reused for all links from this T.
+		final int window = Math.max((int) maxDifference[5], 0);
+		final RadiusNeighborSearchOnKDTree<IntType>[] searches =
+			new RadiusNeighborSearchOnKDTree[window];
+		final PeakStore fromPeaks = frames.apply(indexT).peaks();
+		final RealPoint position = new RealPoint(2);
+
+		for (int link = 0; link < tPossibleLinks.size(); link++) {
+			int from = tPossibleLinks.getFrom(link);
+			int to = tPossibleLinks.getTo(link);
+			int tDifference = tPossibleLinks.getTDifference(link);
+			PeakStore toPeaks = frames.apply(indexT + tDifference).peaks();
+
+			if (fromPeaks.getForwardLink(from) != -1 || toPeaks.getBackwardLink(
+				to) != -1)
+			{
+				// already linked
+				continue;
+			}
+
+			// We need to check if the to peak has any nearest neighbors that have
+			// already been linked...
+			boolean regionAlreadyLinked = false;
+			position.setPosition(toPeaks.getX(to), 0);
+			position.setPosition(toPeaks.getY(to), 1);
+
+			for (int q = indexT + 1; q <= indexT + window &&
+				!regionAlreadyLinked; q++)
+			{
+				TrackingFrame frame = frames.apply(q);
+				if (frame == null) continue;
+				RadiusNeighborSearchOnKDTree<IntType> radiusSearch =
+					searches[q - indexT - 1];
+				if (radiusSearch == null) {
+					radiusSearch = frame.search();
+					searches[q - indexT - 1] = radiusSearch;
+				}
+				radiusSearch.search(position, minimumDistance, false);
+
+				for (int w = 0; w < radiusSearch.numNeighbors(); w++) {
+					if (frame.peaks().getTrackIndex(radiusSearch.getSampler(w).get()
+						.get()) != -1)
+					{
+						regionAlreadyLinked = true;
+						break;
 					}
 				}
 			}
+
+			if (regionAlreadyLinked) continue;
+
+			int track = fromPeaks.getTrackIndex(from);
+			if (track != -1) tracks.extend(track);
+			else {
+				track = tracks.start(indexT, from, 2);
+				fromPeaks.setTrackIndex(from, track);
+			}
+			toPeaks.setTrackIndex(to, track);
+
+			// Add the index of each peak in the other for forward and backward
+			// links...
+			fromPeaks.setForwardLink(from, tDifference, to);
+			toPeaks.setBackwardLink(to, tDifference, from);
+		}
+	}
+
+	/**
+	 * Copies the peaks of a track into a new PeakStore by following the forward
+	 * links from its first peak.
+	 */
+	private PeakStore buildTrack(Tracks tracks, int track) {
+		PeakStore rows = new PeakStore(tracks.length(track));
+		int indexT = tracks.firstT(track);
+		int index = tracks.firstIndex(track);
+		while (index != -1) {
+			PeakStore peaks = frames[indexT].peaks();
+			rows.add(peaks, index);
+			indexT += peaks.getForwardLinkTDifference(index);
+			index = peaks.getForwardLink(index);
 		}
-		// Now we sort all the possible links for this T...
-		tPossibleLinks.sort((o1, o2) -> {
-			// Sort by T difference
-			if (o1.getTDifference() != o2.getTDifference()) return Double.compare(o1
-					.getTDifference(), o2.getTDifference());
-
-			// next sort by distance - the shorter linking distance wins...
-			return Double.compare(o1.getSquaredDistance(), o2.getSquaredDistance());
-		});
-		possibleLinks.put(indexT, tPossibleLinks);
+		return rows;
 	}
 
-	private <M extends Molecule> void buildMolecule(Peak startingPeak,
-		HashMap<String, Integer> trajectoryLengths,
+	/**
+	 * Builds a molecule from the peaks of one track in tracking order and puts
+	 * it into the archive. Tracks shorter than minTrajectoryLength are skipped.
+	 */
+	<M extends Molecule> void buildMolecule(PeakStore track,
 		MoleculeArchive<M, ?, ?, ?> archive, String metaDataUID, int channel,
 		Map<Integer, Map<Integer, Double>> channelToTtoDtMap)
 	{
 		// don't add the molecule if the trajectory length is below
 		// minTrajectoryLength
-		if (trajectoryLengths.get(startingPeak.getTrackUID()) < minTrajectoryLength) return;
+		if (track.size() < minTrajectoryLength) return;
 
-		M mol = archive.createMolecule(startingPeak.getTrackUID());
+		M mol = archive.createMolecule(MarsMath.getUUID58());
 		mol.setMetadataUID(metaDataUID);
 		mol.setChannel(channel);
 		if (archive.metadata().findFirst().isPresent() && archive.metadata().findFirst().get().images().findFirst().isPresent())
@@ -354,43 +528,39 @@ public class  PeakTracker {
 
 		MarsTable table = new MarsTable();
 
-		// Now loop through all peaks connected to this starting peak and
-		// add them to a DataTable as we go
-		Peak peak = startingPeak;
+		List<String> propertyNames = track.getPropertyNames();
 
 		// fail-safe in case there are more peak links than sizeT
-		int row = 0;
 		int sizeT = archive.metadata().findFirst().get().getImage(0).getSizeT();
-		do {
+		for (int row = 0; row < track.size() && row < sizeT; row++) {
+			int t = track.getT(row);
 			table.appendRow();
-			table.setValue(Peak.T, row, peak.getT());
-			if (channelToTtoDtMap.get(channel).get(peak.getT()) != -1) table.setValue(
-				"Time_(s)", row, channelToTtoDtMap.get(channel).get(peak.getT()));
-			table.setValue(Peak.X, row, peak.getX());
-			table.setValue(Peak.Y, row, peak.getY());
+			table.setValue(Peak.T, row, t);
+			if (channelToTtoDtMap.get(channel).get(t) != -1) table.setValue(
+				"Time_(s)", row, channelToTtoDtMap.get(channel).get(t));
+			table.setValue(Peak.X, row, track.getX(row));
+			table.setValue(Peak.Y, row, track.getY(row));
 			if (verbose) {
-				for (String name : peak.getProperties().keySet())
-					table.setValue(name, row, peak.getProperties().get(name));
+				for (String name : propertyNames) {
+					double value = track.getProperty(row, name);
+					if (!Double.isNaN(value)) table.setValue(name, row, value);
+				}
 			}
 			else {
-				if (peak.getProperties().containsKey(Peak.INTENSITY)) table.setValue(
-					Peak.INTENSITY, row, peak.getProperties().get(Peak.INTENSITY));
+				if (!Double.isNaN(track.getIntensity(row))) table.setValue(
+					Peak.INTENSITY, row, track.getIntensity(row));
 				if (archive instanceof ObjectArchive) {
-					table.setValue(Peak.AREA, row, peak.getProperties().get(Peak.AREA));
-					table.setValue(Peak.PERIMETER, row, peak.getProperties().get(
+					table.setValue(Peak.AREA, row, track.getProperty(row, Peak.AREA));
+					table.setValue(Peak.PERIMETER, row, track.getProperty(row,
 						Peak.PERIMETER));
-					table.setValue(Peak.CIRCULARITY, row, peak.getProperties().get(
+					table.setValue(Peak.CIRCULARITY, row, track.getProperty(row,
 						Peak.CIRCULARITY));
 				}
 			}
 
-			if (archive instanceof ObjectArchive) ((MartianObject) mol).putShape(peak
-				.getT(), peak.getShape());
-
-			row++;
-			peak = peak.getForwardLink();
+			if (archive instanceof ObjectArchive) ((MartianObject) mol).putShape(t,
+				track.getShape(row));
 		}
-		while (peak != null && row < sizeT);
 
 		// Convert units
 		if (pixelSize != 1) {
@@ -405,4 +575,58 @@ public class  PeakTracker {
 		mol.setTable(table);
 		archive.put(mol);
 	}
+
+	/**
+	 * The first peak and the length of each track. Tracks are numbered in the
+	 * order they are started and the number is set as the track index of their
+	 * peaks.
+	 */
+	static final class Tracks {
+
+		private int[] firstT = new int[16];
+		private int[] firstIndex = new int[16];
+		private int[] lengths = new int[16];
+		private int size;
+
+		/**
+		 * Starts a new track.
+		 * 
+		 * @param indexT The T index of the first peak.
+		 * @param index The index of the first peak in the store of its T.
+		 * @param length The number of peaks already in the track.
+		 * @return The number of the new track.
+		 */
+		int start(int indexT, int index, int length) {
+			if (size == lengths.length) {
+				int capacity = size + (size >> 1);
+				firstT = Arrays.copyOf(firstT, capacity);
+				firstIndex = Arrays.copyOf(firstIndex, capacity);
+				lengths = Arrays.copyOf(lengths, capacity);
+			}
+			firstT[size] = indexT;
+			firstIndex[size] = index;
+			lengths[size] = length;
+			return size++;
+		}
+
+		void extend(int track) {
+			lengths[track]++;
+		}
+
+		int length(int track) {
+			return lengths[track];
+		}
+
+		int firstT(int track) {
+			return firstT[track];
+		}
+
+		int firstIndex(int track) {
+			return firstIndex[track];
+		}
+
+		int size() {
+			return size;
+		}
+	}
 }
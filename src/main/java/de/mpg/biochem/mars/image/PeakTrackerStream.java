@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.image;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+import de.mpg.biochem.mars.metadata.MarsOMEUtils;
+import de.mpg.biochem.mars.molecule.MoleculeArchive;
+
+/**
+ * Tracks peaks frame by frame using the settings and linking rules of a
+ * {@link PeakTracker}. Frames are added in tracking order and only the last
+ * maxDifferenceT + 1 frames are kept. Once all frames that a frame can link to
+ * have been added, the links from that frame are connected and every track
+ * ending in that frame is complete. Complete tracks are built into molecules
+ * and put into the archive right away, so the peaks of a movie never need to
+ * be held in memory all at once. Peaks are kept in {@link PeakStore}s and the
+ * peaks of open tracks are copied to one PeakStore per track as their frame
+ * leaves the window. When the archive is virtual, the molecules are written
+ * directly to the store.
+ * <p>
+ * With global linking, each frame pair is solved when its second frame is
+ * added and gaps are closed when the first frame leaves the window.
+ * <p>
+ * The molecules produced are the same as those produced by
+ * {@link PeakTracker#track} for the same frames. Instances are not thread
+ * safe. Frames must be added from one thread, but separate instances can be
+ * used for separate regions.
+ * 
+ * @author Karl Duderstadt
+ */
+public class PeakTrackerStream {
+
+	private final PeakTracker tracker;
+	private final MoleculeArchive<?, ?, ?, ?> archive;
+	private final String metaDataUID;
+	private final int channel;
+	private final int maxDifferenceT;
+	private final Map<Integer, Map<Integer, Double>> channelToTtoDtMap;
+
+	// Frames that have been added but not yet linked, from oldest to newest.
+	private final ArrayDeque<TrackingFrame> window = new ArrayDeque<>();
+
+	// Index of the oldest frame in the window.
+	private int firstIndexT = 0;
+
+	private final PeakTracker.Tracks tracks = new PeakTracker.Tracks();
+
+	// Peaks of the tracks that are not yet complete from frames that have left
+	// the window, by track number.
+	private final Map<Integer, PeakStore> openTracks = new HashMap<>();
+
+	private int moleculeCount = 0;
+
+	/**
+	 * Starts a stream that adds molecules to the archive provided. The archive
+	 * must already contain the metadata record with metaDataUID.
+	 * 
+	 * @param tracker The PeakTracker providing the tracking settings.
+	 * @param archive The archive that will contain the molecule records.
+	 * @param metaDataUID The UID of the metadata record of the image.
+	 * @param channel The channel to set in the molecule records.
+	 */
+	public PeakTrackerStream(PeakTracker tracker,
+		MoleculeArchive<?, ?, ?, ?> archive, String metaDataUID, int channel)
+	{
+		this.tracker = tracker;
+		this.archive = archive;
+		this.metaDataUID = metaDataUID;
+		this.channel = channel;
+		this.maxDifferenceT = Math.max(tracker.getMaxDifferenceT(), 0);
+		this.channelToTtoDtMap = MarsOMEUtils.buildChannelToTtoDtMap(archive
+			.getMetadata(metaDataUID));
+	}
+
+	/**
+	 * Adds the peaks of the next frame. Frames must be added in tracking order,
+	 * including frames without peaks, since links are limited to maxDifferenceT
+	 * frames in that order.
+	 * 
+	 * @param peaks The peaks found in the frame. Can be null or empty.
+	 */
+	public void addFrame(List<Peak> peaks) {
+		addFrame((peaks == null) ? null : new PeakStore(peaks));
+	}
+
+	/**
+	 * Adds the peaks of the next frame. Frames must be added in tracking order,
+	 * including frames without peaks, since links are limited to maxDifferenceT
+	 * frames in that order. Links and track indices are set in the store given.
+	 * 
+	 * @param peaks The peaks found in the frame. Can be null or empty.
+	 */
+	public void addFrame(PeakStore peaks) {
+		TrackingFrame frame = new TrackingFrame((peaks == null) ? new PeakStore()
+			: peaks);
+		if (tracker.isGlobalLinking() && maxDifferenceT > 0 && !window.isEmpty() &&
+			window.getLast().peaks().size() > 0)
+		{
+			int indexT = firstIndexT + window.size() - 1;
+			PeakStore fromPeaks = window.getLast().peaks();
+			GlobalPeakLinker.linkFramePair(tracker.findPossibleLinks(fromPeaks,
+				indexT, indexT + 1, j -> frame(frame)), fromPeaks, frame.peaks());
+		}
+		window.addLast(frame);
+		if (window.size() > maxDifferenceT) linkFirstFrame();
+	}
+
+	/**
+	 * Links the frames remaining in the window and adds the last tracks to the
+	 * archive.
+	 */
+	public void finish() {
+		while (!window.isEmpty())
+			linkFirstFrame();
+	}
+
+	/**
+	 * @return The number of molecules added to the archive so far.
+	 */
+	public int getMoleculeCount() {
+		return moleculeCount;
+	}
+
+	/**
+	 * @return The number of tracks that have been started but are not yet
+	 *         complete.
+	 */
+	public int getOpenTrackCount() {
+		return openTracks.size();
+	}
+
+	private void linkFirstFrame() {
+		final int indexT = firstIndexT;
+		final TrackingFrame first = window.removeFirst();
+		final List<TrackingFrame> next = new ArrayList<>(window);
+		final PeakStore peaks = first.peaks();
+
+		if (peaks.size() > 0) {
+			// The window now holds the frames indexT + 1 to indexT + next.size().
+			final IntFunction<TrackingFrame> frames = j -> (j == indexT) ? first
+				: (j > indexT && j - indexT <= next.size()) ? frame(next.get(j -
+					indexT - 1)) : null;
+			if (tracker.isGlobalLinking()) {
+				// Links to the next frame were already assigned, so only gaps are
+				// searched.
+				GlobalPeakLinker.closeGaps(tracker.findPossibleLinks(peaks, indexT,
+					indexT + next.size(), j -> (j == indexT + 1) ? null : frames.apply(
+						j)), indexT, frames);
+				tracker.assignTracks(peaks, indexT, frames, tracks);
+			}
+			else {
+				PeakLinks links = tracker.findPossibleLinks(peaks, indexT, indexT +
+					next.size(), frames);
+
+				tracker.connectLinks(links, indexT, frames, tracks);
+			}
+
+			// Links only point forward, so tracks that were not extended from this
+			// frame are complete.
+			for (int index = 0; index < peaks.size(); index++) {
+				int track = peaks.getTrackIndex(index);
+				if (track == -1) continue;
+				openTracks.computeIfAbsent(track, key -> new PeakStore(tracks.length(
+					track))).add(peaks, index);
+				if (peaks.getForwardLink(index) == -1) closeTrack(track);
+			}
+		}
+
+		firstIndexT++;
+	}
+
+	private static TrackingFrame frame(TrackingFrame frame) {
+		return (frame.peaks().size() > 0) ? frame : null;
+	}
+
+	private void closeTrack(int track) {
+		PeakStore rows = openTracks.remove(track);
+		tracker.buildMolecule(rows, archive, metaDataUID, channel,
+			channelToTtoDtMap);
+		if (rows.size() >= tracker.getMinTrajectoryLength()) moleculeCount++;
+	}
+}
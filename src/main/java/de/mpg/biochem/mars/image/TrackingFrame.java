@@ -0,0 +1,114 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.image;
+
+import java.util.Iterator;
+
+import net.imglib2.KDTree;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPoint;
+import net.imglib2.kdtree.KDTreeData;
+import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
+import net.imglib2.type.numeric.integer.IntType;
+
+/**
+ * The peaks of one tracking slice together with a KDTree of their positions.
+ * The KDTree holds the index of each peak in the {@link PeakStore} as a
+ * native int value, so no object is kept per peak. The tree is built the first
+ * time it is needed, so it must be built with {@link #tree()} before the frame
+ * is searched from several threads.
+ * 
+ * @author Karl Duderstadt
+ */
+final class TrackingFrame {
+
+	private final PeakStore peaks;
+	private KDTree<IntType> tree;
+
+	TrackingFrame(PeakStore peaks) {
+		this.peaks = peaks;
+	}
+
+	PeakStore peaks() {
+		return peaks;
+	}
+
+	KDTree<IntType> tree() {
+		if (tree == null) {
+			final int size = peaks.size();
+			final IntType value = new IntType();
+			final RealPoint position = new RealPoint(2);
+
+			// Values and positions are copied into the tree, so both iterables
+			// return the same instance for every peak.
+			Iterable<IntType> values = () -> new Iterator<IntType>() {
+
+				private int index = 0;
+
+				@Override
+				public boolean hasNext() {
+					return index < size;
+				}
+
+				@Override
+				public IntType next() {
+					value.set(index++);
+					return value;
+				}
+			};
+			Iterable<RealLocalizable> positions = () -> new Iterator<RealLocalizable>() {
+
+				private int index = 0;
+
+				@Override
+				public boolean hasNext() {
+					return index < size;
+				}
+
+				@Override
+				public RealLocalizable next() {
+					position.setPosition(peaks.getX(index), 0);
+					position.setPosition(peaks.getY(index++), 1);
+					return position;
+				}
+			};
+			tree = new KDTree<>(KDTreeData.create(size, values, positions, true));
+		}
+		return tree;
+	}
+
+	/**
+	 * @return A new radius search on the KDTree of this frame. Searches can
+	 *         only be used by one thread.
+	 */
+	RadiusNeighborSearchOnKDTree<IntType> search() {
+		return new RadiusNeighborSearchOnKDTree<>(tree());
+	}
+}
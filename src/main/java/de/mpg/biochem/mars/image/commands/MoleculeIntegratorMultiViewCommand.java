@@ -42,7 +42,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -72,13 +71,12 @@ import org.scijava.platform.PlatformService;
 import org.scijava.plugin.Menu;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
-import org.scijava.table.DoubleColumn;
 import org.scijava.widget.Button;
 import org.scijava.widget.ChoiceWidget;
 
 import de.mpg.biochem.mars.image.MarsImageUtils;
 import de.mpg.biochem.mars.image.Peak;
-import de.mpg.biochem.mars.metadata.MarsOMEChannel;
+import de.mpg.biochem.mars.image.PeakIntegrator;
 import de.mpg.biochem.mars.metadata.MarsOMEMetadata;
 import de.mpg.biochem.mars.metadata.MarsOMEUtils;
 import de.mpg.biochem.mars.molecule.MoleculeArchiveService;
@@ -239,9 +237,10 @@ public class MoleculeIntegratorMultiViewCommand extends DynamicCommand
 	private SingleMoleculeArchive archive;
 
 	/**
-	 * List of IntegrationMaps containing T -> UID peak maps, name and channel.
+	 * IntegrationMaps containing T -> UID peak stores, name and channel.
 	 */
-	private List<IntegrationMap> peakIntegrationMaps = new ArrayList<>();
+	private final PeakIntegrationMaps peakIntegrationMaps =
+		new PeakIntegrationMaps();
 
 	private Dataset dataset;
 	private ImagePlus image;
@@ -458,6 +457,8 @@ public class MoleculeIntegratorMultiViewCommand extends DynamicCommand
 			buildIntegrationLists();
 		}
 
+		peakIntegrationMaps.buildPeakStores();
+
 		double startTime = System.currentTimeMillis();
 		logService.info("Integrating Peaks...");
 
@@ -485,22 +486,21 @@ public class MoleculeIntegratorMultiViewCommand extends DynamicCommand
 
 		final int imageIndex = marsOMEMetadata.getImage(0).getImageID();
 
-		Set<String> UIDs = new HashSet<>();
-		for (IntegrationMap integrationMap : peakIntegrationMaps)
-			for (int t : integrationMap.getMap().keySet())
-				UIDs.addAll(integrationMap.getMap().get(t).keySet());
-
 		tasks.clear();
 		
 		boolean containsDt = MarsOMEUtils.checkOMEMetadataForDt(marsOMEMetadata);
 		
-		for (String uid : UIDs) {
-			tasks.add(() -> buildMolecule(uid, imageIndex, channelToTtoDtMap, containsDt));
+		for (int uidIndex = 0; uidIndex < peakIntegrationMaps
+			.getNumberOfUIDs(); uidIndex++)
+		{
+			final int index = uidIndex;
+			tasks.add(() -> buildMolecule(index, imageIndex, channelToTtoDtMap,
+				containsDt));
 		}
 
 		progressInteger.set(0);
 		MarsUtil.threadPoolBuilder(statusService, logService, () -> statusService
-			.showStatus(progressInteger.get(), UIDs.size(),
+			.showStatus(progressInteger.get(), peakIntegrationMaps.getNumberOfUIDs(),
 				"Adding molecules to archive..."), tasks, nThreads);
 
 		// FINISH UP
@@ -574,14 +574,15 @@ public class MoleculeIntegratorMultiViewCommand extends DynamicCommand
 
 			if (regionOption.equals("All")) {
 				for (String region : regionIntervals.keySet())
-					addIntegrationMap(channel.getName() + "_" + region, i, regionIntervals
-						.get(region), createColorIntegrationList(channel.getName(),
-							integrationListsMap.get(region)));
+					peakIntegrationMaps.addColorIntegrationStores(channel.getName() +
+						"_" + region, channel.getName(), i, regionIntervals.get(region),
+						integrationListsMap.get(region), marsOMEMetadata);
 			}
 			else if (regionIntervals.containsKey(regionOption)) {
-				addIntegrationMap(channel.getName() + "_" + regionOption, i,
-					regionIntervals.get(regionOption), createColorIntegrationList(channel
-						.getName(), integrationListsMap.get(regionOption)));
+				peakIntegrationMaps.addColorIntegrationStores(channel.getName() +
+					"_" + regionOption, channel.getName(), i, regionIntervals.get(
+						regionOption), integrationListsMap.get(regionOption),
+					marsOMEMetadata);
 			}
 		}
 	}
@@ -593,92 +594,16 @@ public class MoleculeIntegratorMultiViewCommand extends DynamicCommand
 		RandomAccessibleInterval<T> img = MarsImageUtils.get2DHyperSlice(
 			(ImgPlus<T>) dataset.getImgPlus(), 0, c, t);
 
-		for (IntegrationMap integrationMap : peakIntegrationMaps)
-			if (integrationMap.getC() == c) MarsImageUtils.integratePeaks(img,
-				integrationMap.getInterval(), new ArrayList<>(integrationMap
-							.getMap().get(t).values()), innerRadius, outerRadius, verbose);
-	}
-
-	private Map<Integer, Map<String, Peak>> createColorIntegrationList(
-		String name, Map<String, Peak> peakMap)
-	{
-		Map<Integer, Map<String, Peak>> tToPeakList = new HashMap<>();
-
-		for (MarsOMEChannel channel : marsOMEMetadata.getImage(0).getChannels()
-			.values())
-			if (channel.getName().startsWith(name)) {
-				int channelIndex = channel.getChannelIndex();
-				marsOMEMetadata.getImage(0).planes().filter(plane -> plane
-					.getC() == channelIndex).forEach(plane -> tToPeakList.put(plane.getT(), duplicateMap(peakMap)));
-			}
-
-		return tToPeakList;
-	}
-
-	private Map<String, Peak> duplicateMap(Map<String, Peak> peakList) {
-		Map<String, Peak> newList = new HashMap<>();
-		for (String UID : peakList.keySet())
-			newList.put(UID, new Peak(peakList.get(UID)));
-		return newList;
+		peakIntegrationMaps.integrate(img, c, t, PeakIntegrator.forCurrentThread(
+			innerRadius, outerRadius), verbose);
 	}
 
-	private void buildMolecule(String UID, int imageIndex,
+	private void buildMolecule(int uidIndex, int imageIndex,
 		Map<Integer, Map<Integer, Double>> channelToTtoDtMap, boolean containsDt)
 	{
-		MarsTable table = new MarsTable();
-
-		table.add(new DoubleColumn("T"));
-		for (IntegrationMap integrationMap : peakIntegrationMaps) {
-			String name = integrationMap.getName();
-			if (containsDt) table.add(new DoubleColumn(name + "_Time_(s)"));
-			table.add(new DoubleColumn(name + "_X"));
-			table.add(new DoubleColumn(name + "_Y"));
-			table.add(new DoubleColumn(name));
-			table.add(new DoubleColumn(name + "_Median_Background"));
-			if (verbose) {
-				table.add(new DoubleColumn(name + "_Uncorrected"));
-				table.add(new DoubleColumn(name + "_Mean_Background"));
-			}
-		}
-
-		for (int t = 0; t < marsOMEMetadata.getImage(0).getSizeT(); t++) {
-			table.appendRow();
-			int row = table.getRowCount() - 1;
-			table.set("T", row, (double) t);
-
-			for (IntegrationMap integrationMap : peakIntegrationMaps) {
-				String name = integrationMap.getName();
-				if (integrationMap.getMap().containsKey(t) && integrationMap.getMap()
-					.get(t).containsKey(UID))
-				{
-					Peak peak = integrationMap.getMap().get(t).get(UID);
-					if (containsDt) table.setValue(name + "_Time_(s)", row, channelToTtoDtMap.get(
-						integrationMap.getC()).get(t));
-					table.setValue(name + "_X", row, peak.getX());
-					table.setValue(name + "_Y", row, peak.getY());
-					table.setValue(name, row, peak.getIntensity());
-					table.setValue(name + "_Median_Background", row, peak
-						.getMedianBackground());
-					if (verbose) {
-						table.setValue(name + "_Uncorrected", row, peak.getProperties().get(
-							Peak.UNCORRECTED_INTENSITY));
-						table.setValue(name + "_Mean_Background", row, peak
-							.getMeanBackground());
-					}
-				}
-				else {
-					if (containsDt) table.setValue(name + "_Time_(s)", row, Double.NaN);
-					table.setValue(name + "_X", row, Double.NaN);
-					table.setValue(name + "_Y", row, Double.NaN);
-					table.setValue(name, row, Double.NaN);
-					table.setValue(name + "_Median_Background", row, Double.NaN);
-					if (verbose) {
-						table.setValue(name + "_Uncorrected", row, Double.NaN);
-						table.setValue(name + "_Mean_Background", row, Double.NaN);
-					}
-				}
-			}
-		}
+		String UID = peakIntegrationMaps.getUID(uidIndex);
+		MarsTable table = peakIntegrationMaps.buildTable(uidIndex, marsOMEMetadata
+			.getImage(0).getSizeT(), channelToTtoDtMap, containsDt, verbose);
 
 		SingleMolecule molecule = new SingleMolecule(UID, table);
 
@@ -689,39 +614,6 @@ public class MoleculeIntegratorMultiViewCommand extends DynamicCommand
 		progressInteger.incrementAndGet();
 	}
 
-	private static class IntegrationMap {
-
-		private final String name;
-		private final int c;
-		private final Interval interval;
-		private final Map<Integer, Map<String, Peak>> peakMap;
-
-		IntegrationMap(final String name, final int c, final Interval interval,
-			final Map<Integer, Map<String, Peak>> peakMap)
-		{
-			this.name = name;
-			this.c = c;
-			this.interval = interval;
-			this.peakMap = peakMap;
-		}
-
-		String getName() {
-			return name;
-		}
-
-		int getC() {
-			return c;
-		}
-
-		Interval getInterval() {
-			return interval;
-		}
-
-		Map<Integer, Map<String, Peak>> getMap() {
-			return peakMap;
-		}
-	}
-
 	/**
 	 * This method accepts maps the specify peak locations that should be
 	 * integrated in the form of a map first to T and then a Map From UID to Peak.
@@ -735,18 +627,7 @@ public class MoleculeIntegratorMultiViewCommand extends DynamicCommand
 		final Interval interval,
 		final Map<Integer, Map<String, Peak>> integrationMap)
 	{
-		// Make sure all entries have a unique name and channel
-		// by replacing existing entries with new ones.
-		for (int index = 0; index < peakIntegrationMaps.size(); index++) {
-			IntegrationMap m = peakIntegrationMaps.get(index);
-			if (m.getName().equals(name) && m.getC() == c) {
-				peakIntegrationMaps.remove(index);
-				index--;
-			}
-		}
-
-		peakIntegrationMaps.add(new IntegrationMap(name, c, interval,
-				integrationMap));
+		peakIntegrationMaps.addIntegrationMap(name, c, interval, integrationMap);
 	}
 
 	@SuppressWarnings("unused")
@@ -768,9 +649,7 @@ public class MoleculeIntegratorMultiViewCommand extends DynamicCommand
 
 	@SuppressWarnings("unused")
 	public Map<Integer, Map<String, Peak>> getIntegrationMap(String name, int c) {
-		Optional<IntegrationMap> peakMap = peakIntegrationMaps.stream().filter(
-			m -> m.getName().equals(name) && m.getC() == c).findFirst();
-		return peakMap.map(IntegrationMap::getMap).orElse(null);
+		return peakIntegrationMaps.getIntegrationMap(name, c);
 	}
 
 	private void addInputParameterLog(LogBuilder builder) {
@@ -0,0 +1,413 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.image.commands;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.type.numeric.RealType;
+
+import org.scijava.table.DoubleColumn;
+
+import de.mpg.biochem.mars.image.Peak;
+import de.mpg.biochem.mars.image.PeakIntegrator;
+import de.mpg.biochem.mars.image.PeakStore;
+import de.mpg.biochem.mars.metadata.MarsOMEChannel;
+import de.mpg.biochem.mars.metadata.MarsOMEMetadata;
+import de.mpg.biochem.mars.table.MarsTable;
+
+/**
+ * The integration maps of the molecule integrator commands. Each map has a
+ * name, a channel, an interval and one {@link PeakStore} per T with the
+ * positions to integrate. Peaks are grouped by UID using the track index of
+ * the stores, which is the index of the UID in the order the UIDs were first
+ * added.
+ * <p>
+ * Maps and stores are built before integration from a single thread. The
+ * stores of different planes can then be integrated in parallel.
+ * 
+ * @author Karl Duderstadt
+ */
+class PeakIntegrationMaps {
+
+	private final List<IntegrationMap> integrationMaps = new ArrayList<>();
+
+	/**
+	 * UIDs of all positions integrated. The PeakStores refer to UIDs by their
+	 * index in this list.
+	 */
+	private final List<String> UIDs = new ArrayList<>();
+	private final Map<String, Integer> UIDIndices = new HashMap<>();
+
+	/**
+	 * Adds peak locations that should be integrated in the form of a map first
+	 * to T and then from UID to Peak. The map is converted to PeakStores by
+	 * {@link #buildPeakStores()} and the integration results are copied back
+	 * into the Peaks given.
+	 * 
+	 * @param name Name of the peaks, usually the color.
+	 * @param c The channel index to integrate.
+	 * @param interval The interval used for integration.
+	 * @param integrationMap Map from T to Map from UID to Peak.
+	 */
+	void addIntegrationMap(final String name, final int c,
+		final Interval interval,
+		final Map<Integer, Map<String, Peak>> integrationMap)
+	{
+		putIntegrationMap(new IntegrationMap(name, c, interval, integrationMap,
+			null));
+	}
+
+	/**
+	 * Adds the same positions for all T of the channels whose name starts with
+	 * the channel name given. Only one PeakStore with the positions is kept for
+	 * each T instead of one Peak per position.
+	 * 
+	 * @param name Name of the peaks.
+	 * @param channelName Prefix of the names of the channels to integrate.
+	 * @param c The channel index to integrate.
+	 * @param interval The interval used for integration.
+	 * @param peakMap Map from UID to Peak with the positions.
+	 * @param marsOMEMetadata The metadata with the planes of the image.
+	 */
+	void addColorIntegrationStores(final String name, final String channelName,
+		final int c, final Interval interval, final Map<String, Peak> peakMap,
+		final MarsOMEMetadata marsOMEMetadata)
+	{
+		List<String> sortedUIDs = sortByUIDIndex(peakMap.keySet());
+		Map<Integer, PeakStore> tToPeakStore = new HashMap<>();
+
+		for (MarsOMEChannel channel : marsOMEMetadata.getImage(0).getChannels()
+			.values())
+			if (channel.getName().startsWith(channelName)) {
+				int channelIndex = channel.getChannelIndex();
+				marsOMEMetadata.getImage(0).planes().filter(plane -> plane
+					.getC() == channelIndex).forEach(plane -> tToPeakStore.put(plane
+						.getT(), createPeakStore(sortedUIDs, peakMap)));
+			}
+
+		putIntegrationMap(new IntegrationMap(name, c, interval, null,
+			tToPeakStore));
+	}
+
+	private void putIntegrationMap(IntegrationMap integrationMap) {
+		// Make sure all entries have a unique name and channel
+		// by replacing existing entries with new ones.
+		for (int index = 0; index < integrationMaps.size(); index++) {
+			IntegrationMap m = integrationMaps.get(index);
+			if (m.getName().equals(integrationMap.getName()) && m
+				.getC() == integrationMap.getC())
+			{
+				integrationMaps.remove(index);
+				index--;
+			}
+		}
+
+		integrationMaps.add(integrationMap);
+	}
+
+	int size() {
+		return integrationMaps.size();
+	}
+
+	/**
+	 * Returns the peak map provided through addIntegrationMap or creates a new
+	 * one from the PeakStores for maps built from positions.
+	 * 
+	 * @param name Name of the peaks.
+	 * @param c The channel index.
+	 * @return Map from T to Map from UID to Peak or null if there is no map with
+	 *         the name and channel given.
+	 */
+	Map<Integer, Map<String, Peak>> getIntegrationMap(String name, int c) {
+		Optional<IntegrationMap> peakMap = integrationMaps.stream().filter(
+			m -> m.getName().equals(name) && m.getC() == c).findFirst();
+		return peakMap.map(this::toPeakMap).orElse(null);
+	}
+
+	private Map<Integer, Map<String, Peak>> toPeakMap(
+		IntegrationMap integrationMap)
+	{
+		if (integrationMap.getMap() != null) return integrationMap.getMap();
+
+		Map<Integer, Map<String, Peak>> tToPeakMap = new HashMap<>();
+		for (int t : integrationMap.getPeakStores().keySet()) {
+			PeakStore peakStore = integrationMap.getPeakStores().get(t);
+			Map<String, Peak> peaks = new HashMap<>();
+			for (int index = 0; index < peakStore.size(); index++)
+				peaks.put(UIDs.get(peakStore.getTrackIndex(index)), peakStore.toPeak(
+					index));
+			tToPeakMap.put(t, peaks);
+		}
+		return tToPeakMap;
+	}
+
+	/**
+	 * Converts the peak maps provided through addIntegrationMap into PeakStores.
+	 * Must be called before integration.
+	 */
+	void buildPeakStores() {
+		for (IntegrationMap integrationMap : integrationMaps) {
+			if (integrationMap.getPeakStores() != null) continue;
+
+			Map<Integer, PeakStore> tToPeakStore = new HashMap<>();
+			for (int t : integrationMap.getMap().keySet()) {
+				Map<String, Peak> peaks = integrationMap.getMap().get(t);
+				tToPeakStore.put(t, createPeakStore(sortByUIDIndex(peaks.keySet()),
+					peaks));
+			}
+			integrationMap.setPeakStores(tToPeakStore);
+		}
+	}
+
+	/**
+	 * Integrates the peaks of all maps for the channel and T given. All maps of
+	 * the plane are integrated together so the plane is only read once.
+	 * 
+	 * @param img The plane for channel c and T.
+	 * @param c The channel index.
+	 * @param t The T index.
+	 * @param integrator The integrator to use.
+	 * @param verbose Whether to also record uncorrected intensities and mean
+	 *          backgrounds.
+	 * @param <T> The pixel type.
+	 */
+	<T extends RealType<T>> void integrate(RandomAccessible<T> img, int c, int t,
+		PeakIntegrator integrator, boolean verbose)
+	{
+		List<Interval> intervals = new ArrayList<>();
+		List<PeakStore> peakStores = new ArrayList<>();
+		List<IntegrationMap> planeMaps = new ArrayList<>();
+		for (IntegrationMap integrationMap : integrationMaps)
+			if (integrationMap.getC() == c && integrationMap.getPeakStores()
+				.containsKey(t))
+			{
+				intervals.add(integrationMap.getInterval());
+				peakStores.add(integrationMap.getPeakStores().get(t));
+				planeMaps.add(integrationMap);
+			}
+
+		integrator.integrateStores(img, intervals, peakStores, verbose);
+
+		for (IntegrationMap integrationMap : planeMaps)
+			updatePeaks(integrationMap, t, verbose);
+	}
+
+	/**
+	 * Copies the integration results for T back into the peak maps provided
+	 * through addIntegrationMap.
+	 */
+	private void updatePeaks(IntegrationMap integrationMap, int t,
+		boolean verbose)
+	{
+		if (integrationMap.getMap() == null) return;
+
+		PeakStore peakStore = integrationMap.getPeakStores().get(t);
+		Map<String, Peak> peaks = integrationMap.getMap().get(t);
+		for (int index = 0; index < peakStore.size(); index++) {
+			Peak peak = peaks.get(UIDs.get(peakStore.getTrackIndex(index)));
+			peak.setIntensity(peakStore.getIntensity(index));
+			peak.setMedianBackground(peakStore.getMedianBackground(index));
+			if (verbose && !Double.isNaN(peak.getX()) && !Double.isNaN(peak
+				.getY()))
+			{
+				peak.setProperty(Peak.UNCORRECTED_INTENSITY, peakStore
+					.getUncorrectedIntensity(index));
+				peak.setProperty(Peak.MEAN_BACKGROUND, peakStore.getMeanBackground(
+					index));
+			}
+		}
+	}
+
+	int getNumberOfUIDs() {
+		return UIDs.size();
+	}
+
+	String getUID(int uidIndex) {
+		return UIDs.get(uidIndex);
+	}
+
+	/**
+	 * Builds the molecule table for the UID index given with a row for every T
+	 * and columns for the positions and integration values of all maps.
+	 * 
+	 * @param uidIndex The index of the UID.
+	 * @param sizeT The number of T in the image.
+	 * @param channelToTtoDtMap Map from channel to T to time in seconds.
+	 * @param containsDt Whether to add time columns.
+	 * @param verbose Whether to add uncorrected intensity and mean background
+	 *          columns.
+	 * @return The table.
+	 */
+	MarsTable buildTable(int uidIndex, int sizeT,
+		Map<Integer, Map<Integer, Double>> channelToTtoDtMap, boolean containsDt,
+		boolean verbose)
+	{
+		MarsTable table = new MarsTable();
+
+		table.add(new DoubleColumn(Peak.T));
+		for (IntegrationMap integrationMap : integrationMaps) {
+			String name = integrationMap.getName();
+			if (containsDt) table.add(new DoubleColumn(name + "_Time_(s)"));
+			table.add(new DoubleColumn(name + "_X"));
+			table.add(new DoubleColumn(name + "_Y"));
+			table.add(new DoubleColumn(name));
+			table.add(new DoubleColumn(name + "_Median_Background"));
+			if (verbose) {
+				table.add(new DoubleColumn(name + "_Uncorrected"));
+				table.add(new DoubleColumn(name + "_Mean_Background"));
+			}
+		}
+
+		for (int t = 0; t < sizeT; t++) {
+			table.appendRow();
+			int row = table.getRowCount() - 1;
+			table.set(Peak.T, row, (double) t);
+
+			for (IntegrationMap integrationMap : integrationMaps) {
+				String name = integrationMap.getName();
+				PeakStore peakStore = integrationMap.getPeakStores().get(t);
+				int index = (peakStore == null) ? -1 : peakStore.findTrackIndex(
+					uidIndex);
+				if (index != -1) {
+					if (containsDt) table.setValue(name + "_Time_(s)", row,
+						channelToTtoDtMap.get(integrationMap.getC()).get(t));
+					table.setValue(name + "_X", row, peakStore.getX(index));
+					table.setValue(name + "_Y", row, peakStore.getY(index));
+					table.setValue(name, row, peakStore.getIntensity(index));
+					table.setValue(name + "_Median_Background", row, peakStore
+						.getMedianBackground(index));
+					if (verbose) {
+						table.setValue(name + "_Uncorrected", row, peakStore
+							.getUncorrectedIntensity(index));
+						table.setValue(name + "_Mean_Background", row, peakStore
+							.getMeanBackground(index));
+					}
+				}
+				else {
+					if (containsDt) table.setValue(name + "_Time_(s)", row, Double.NaN);
+					table.setValue(name + "_X", row, Double.NaN);
+					table.setValue(name + "_Y", row, Double.NaN);
+					table.setValue(name, row, Double.NaN);
+					table.setValue(name + "_Median_Background", row, Double.NaN);
+					if (verbose) {
+						table.setValue(name + "_Uncorrected", row, Double.NaN);
+						table.setValue(name + "_Mean_Background", row, Double.NaN);
+					}
+				}
+			}
+		}
+		return table;
+	}
+
+	private int getUIDIndex(String UID) {
+		return UIDIndices.computeIfAbsent(UID, key -> {
+			UIDs.add(key);
+			return UIDs.size() - 1;
+		});
+	}
+
+	/**
+	 * Creates a PeakStore with the positions of the peaks given. The peaks are
+	 * added in the order of the UIDs given, which must be sorted by UID index.
+	 */
+	private PeakStore createPeakStore(List<String> sortedUIDs,
+		Map<String, Peak> peaks)
+	{
+		PeakStore peakStore = new PeakStore(sortedUIDs.size());
+		for (String UID : sortedUIDs) {
+			Peak peak = peaks.get(UID);
+			int index = peakStore.add(peak.getX(), peak.getY());
+			peakStore.setTrackIndex(index, getUIDIndex(UID));
+		}
+		return peakStore;
+	}
+
+	private List<String> sortByUIDIndex(Collection<String> UIDSet) {
+		List<String> sortedUIDs = new ArrayList<>(UIDSet);
+		sortedUIDs.forEach(this::getUIDIndex);
+		sortedUIDs.sort(Comparator.comparingInt(this::getUIDIndex));
+		return sortedUIDs;
+	}
+
+	private static class IntegrationMap {
+
+		private final String name;
+		private final int c;
+		private final Interval interval;
+
+		// Only set for maps provided through addIntegrationMap.
+		private final Map<Integer, Map<String, Peak>> peakMap;
+
+		private Map<Integer, PeakStore> peakStores;
+
+		IntegrationMap(final String name, final int c, final Interval interval,
+			final Map<Integer, Map<String, Peak>> peakMap,
+			final Map<Integer, PeakStore> peakStores)
+		{
+			this.name = name;
+			this.c = c;
+			this.interval = interval;
+			this.peakMap = peakMap;
+			this.peakStores = peakStores;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		int getC() {
+			return c;
+		}
+
+		Interval getInterval() {
+			return interval;
+		}
+
+		Map<Integer, Map<String, Peak>> getMap() {
+			return peakMap;
+		}
+
+		Map<Integer, PeakStore> getPeakStores() {
+			return peakStores;
+		}
+
+		void setPeakStores(Map<Integer, PeakStore> peakStores) {
+			this.peakStores = peakStores;
+		}
+	}
+}
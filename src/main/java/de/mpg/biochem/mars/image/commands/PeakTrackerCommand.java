@@ -41,6 +41,7 @@ import java.awt.Window;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
@@ -48,6 +49,7 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -94,7 +96,9 @@ import org.scijava.widget.NumberWidget;
 
 import de.mpg.biochem.mars.image.MarsImageUtils;
 import de.mpg.biochem.mars.image.Peak;
+import de.mpg.biochem.mars.image.PeakStore;
 import de.mpg.biochem.mars.image.PeakTracker;
+import de.mpg.biochem.mars.image.PeakTrackerStream;
 import de.mpg.biochem.mars.metadata.MarsOMEMetadata;
 import de.mpg.biochem.mars.metadata.MarsOMEUtils;
 import de.mpg.biochem.mars.molecule.MoleculeArchiveService;
@@ -258,6 +262,10 @@ public class PeakTrackerCommand extends DynamicCommand implements Command,
 	@Parameter(label = "Minimum length", style = "group:Track")
 	private int minTrajectoryLength = 100;
 
+	@Parameter(label = "Linking", choices = { "greedy", "global" },
+		style = "group:Track")
+	private String linking = "greedy";
+
 	/**
 	 * INTEGRATION SETTINGS
 	 */
@@ -288,6 +296,9 @@ public class PeakTrackerCommand extends DynamicCommand implements Command,
 	@Parameter(label = "Vertical grid regions", style = "group:Process")
 	private int verticalGridRegions = 5;
 
+	@Parameter(label = "Stream frames", style = "group:Process")
+	private boolean streamFrames = false;
+
 	@Parameter(label = "New virtual archive name", style = "group:Process")
 	private String archiveName = "archive.yama.store";
 
@@ -512,6 +523,26 @@ public class PeakTrackerCommand extends DynamicCommand implements Command,
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
+		} else if (streamFrames) {
+			// Tracks are written to the virtual archive as they are completed.
+			logService.info("Finding, Fitting and Tracking Peaks...");
+			try {
+				File virtualArchiveDirectory = new File(virtualArchiveLocation.getAbsolutePath() + "/" + archiveName);
+				new SingleMoleculeArchive("archive.yama").saveAsVirtualStore(virtualArchiveDirectory);
+				archive = new SingleMoleculeArchive(virtualArchiveDirectory);
+				if (!process(excludeTimePoints, rois)) {
+					// Saving would make the partial store look complete.
+					logService.error("The virtual store " + virtualArchiveDirectory
+						.getAbsolutePath() + " is incomplete and was not saved.");
+					archive = null;
+					if (image != null && imageRoi != null) image.setRoi(imageRoi);
+					logService.info(LogBuilder.endBlock(false));
+					return;
+				}
+				archive.save();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
 		} else {
 			logService.info("Finding and Fitting Peaks...");
 			archive = new SingleMoleculeArchive("archive.yama");
@@ -578,9 +609,13 @@ public class PeakTrackerCommand extends DynamicCommand implements Command,
 		return excludeTimePoints;
 	}
 
-	private void process(List<int[]> excludeTimePoints, Roi[] rois) {
-		//Map from T to label peak lists
-		List<ConcurrentMap<Integer, List<Peak>>> peakLabelsStack = new ArrayList<>();
+	/**
+	 * Finds, fits and tracks peaks in all frames that are not excluded and adds
+	 * the tracks to the archive.
+	 *
+	 * @return false if streaming failed before all frames were tracked.
+	 */
+	private boolean process(List<int[]> excludeTimePoints, Roi[] rois) {
 		metaDataStack = new ConcurrentHashMap<>();
 
 		int zDim = dataset.getImgPlus().dimensionIndex(Axes.Z);
@@ -591,11 +626,7 @@ public class PeakTrackerCommand extends DynamicCommand implements Command,
 
 		final int frameCount = (swapZandT) ? zSize : tSize;
 
-		for (int i = 0; i < rois.length; i++)
-			peakLabelsStack.add(new ConcurrentHashMap<>());
-
 		List<Integer> processTimePoints = new ArrayList<>();
-		List<Runnable> tasks = new ArrayList<>();
 		for (int t = 0; t < frameCount; t++) {
 			boolean processedTimePoint = true;
 			for (int[] excludeTimePoint : excludeTimePoints)
@@ -604,17 +635,26 @@ public class PeakTrackerCommand extends DynamicCommand implements Command,
 					break;
 				}
 
-			if (processedTimePoint) {
-				processTimePoints.add(t);
-				final int theT = t;
-				tasks.add(() -> {
-					List<List<Peak>> labelPeaks = findPeaksInT(Integer.parseInt(channel),
-							theT, useDogFilter, integrate, rois);
-					for (int i = 0; i < rois.length; i++)
-						if (labelPeaks.get(i).size() > 0) peakLabelsStack.get(i).put(theT,
-								labelPeaks.get(i));
-				});
-			}
+			if (processedTimePoint) processTimePoints.add(t);
+		}
+
+		if (streamFrames) return streamProcess(processTimePoints, frameCount,
+			rois);
+
+		//Map from T to label peak stores
+		List<ConcurrentMap<Integer, PeakStore>> peakLabelsStack = new ArrayList<>();
+		for (int i = 0; i < rois.length; i++)
+			peakLabelsStack.add(new ConcurrentHashMap<>());
+
+		List<Runnable> tasks = new ArrayList<>();
+		for (int theT : processTimePoints) {
+			tasks.add(() -> {
+				List<List<Peak>> labelPeaks = findPeaksInT(Integer.parseInt(channel),
+						theT, useDogFilter, integrate, rois);
+				for (int i = 0; i < rois.length; i++)
+					if (labelPeaks.get(i).size() > 0) peakLabelsStack.get(i).put(theT,
+							new PeakStore(labelPeaks.get(i)));
+			});
 		}
 
 		MarsUtil.threadPoolBuilder(statusService, logService, () -> statusService
@@ -623,7 +663,95 @@ public class PeakTrackerCommand extends DynamicCommand implements Command,
 
 		PeakTracker tracker = new PeakTracker(maxDifferenceX, maxDifferenceY, maxDifferenceT,
 				minimumDistance, minTrajectoryLength, verbose, logService, pixelLength);
+		tracker.setGlobalLinking(linking.equals("global"));
+
+		putMetadataIfMissing();
+
+		for (int i = 0; i < rois.length; i++)
+			tracker.trackPeakStores(peakLabelsStack.get(i), archive, archive.getMetadataUIDs().get(0), Integer.parseInt(channel),
+					processTimePoints, nThreads);
+		return true;
+	}
+
+	/**
+	 * Finds, fits and tracks peaks as a pipeline. Frames are processed in
+	 * parallel but handed to the trackers in order, with at most two frames per
+	 * thread in flight. Tracks are added to the archive as soon as they are
+	 * complete, so memory use does not grow with the number of frames.
+	 *
+	 * @return false if finding peaks or tracking failed.
+	 */
+	private boolean streamProcess(List<Integer> processTimePoints, int frameCount,
+		Roi[] rois)
+	{
+		// The metadata must be complete before the first molecule is added.
+		// Norpix files store the time of each frame in the slice labels, so
+		// these are read up front.
+		if (image != null && !processTimePoints.isEmpty()) {
+			readSliceLabel(Integer.parseInt(channel), processTimePoints.get(0));
+			String firstLabel = metaDataStack.get(processTimePoints.get(0));
+			if (firstLabel != null && firstLabel.contains("DateTime: "))
+				for (int t : processTimePoints)
+					readSliceLabel(Integer.parseInt(channel), t);
+		}
+
+		putMetadataIfMissing();
 
+		PeakTracker tracker = new PeakTracker(maxDifferenceX, maxDifferenceY, maxDifferenceT,
+				minimumDistance, minTrajectoryLength, verbose, logService, pixelLength);
+		tracker.setGlobalLinking(linking.equals("global"));
+
+		List<PeakTrackerStream> streams = new ArrayList<>();
+		for (int i = 0; i < rois.length; i++)
+			streams.add(new PeakTrackerStream(tracker, archive, archive
+				.getMetadataUIDs().get(0), Integer.parseInt(channel)));
+
+		ExecutorService threadPool = Executors.newFixedThreadPool(nThreads);
+		ArrayDeque<Future<List<List<Peak>>>> pending = new ArrayDeque<>();
+		int trackedFrames = 0;
+		double lastStatusTime = 0;
+		try {
+			for (int i = 0; i < processTimePoints.size() || !pending.isEmpty(); i++) {
+				if (i < processTimePoints.size()) {
+					final int theT = processTimePoints.get(i);
+					pending.addLast(threadPool.submit(() -> findPeaksInT(Integer
+						.parseInt(channel), theT, useDogFilter, integrate, rois, 1, false)));
+					if (pending.size() < 2 * nThreads) continue;
+				}
+
+				List<List<Peak>> labelPeaks = pending.removeFirst().get();
+				for (int r = 0; r < rois.length; r++)
+					streams.get(r).addFrame(labelPeaks.get(r));
+				trackedFrames++;
+
+				if (System.currentTimeMillis() - lastStatusTime > 300) {
+					lastStatusTime = System.currentTimeMillis();
+					statusService.showStatus(trackedFrames, frameCount,
+						"Tracking Peaks for " + dataset.getName());
+				}
+			}
+
+			for (PeakTrackerStream stream : streams)
+				stream.finish();
+			return true;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logService.error("Tracking was interrupted.", e);
+			return false;
+		}
+		catch (ExecutionException e) {
+			logService.error("Failed to finish tracking.", e.getCause());
+			return false;
+		}
+		finally {
+			threadPool.shutdownNow();
+			statusService.showProgress(100, 100);
+			statusService.showStatus("Done!");
+		}
+	}
+
+	private void putMetadataIfMissing() {
 		if (archive.getNumberOfMetadatas() == 0) {
 			MarsOMEMetadata marsOMEMetadata = buildOMEMetadata();
 
@@ -640,40 +768,39 @@ public class PeakTrackerCommand extends DynamicCommand implements Command,
 
 			archive.putMetadata(marsOMEMetadata);
 		}
+	}
 
-		for (int i = 0; i < rois.length; i++)
-			tracker.track(peakLabelsStack.get(i), archive, archive.getMetadataUIDs().get(0), Integer.parseInt(channel),
-					processTimePoints, nThreads);
+	// Workaround for IJ1 metadata in slices - Norpix format.
+	private void readSliceLabel(int channel, int t) {
+		ImageStack stack = image.getImageStack();
+		int index = t + 1;
+		if (!swapZandT) index = image.getStackIndex(channel + 1, 1, t + 1);
+
+		// Have to retrieve the image processor to make sure the label has been
+		// loaded.
+		stack.getProcessor(index);
+		String label = stack.getSliceLabel(index);
+		if (label != null) metaDataStack.put(t, label);
 	}
 
 	private List<List<Peak>> findPeaksInT(
 		int channel, int t, boolean useDogFilter, boolean integrate, Roi[] processingRois)
 	{
-		return findPeaksInT(channel, t, useDogFilter, integrate, processingRois, 1);
+		return findPeaksInT(channel, t, useDogFilter, integrate, processingRois, 1,
+			!preview && image != null);
 	}
 
 	@SuppressWarnings("unchecked")
 	private <T extends RealType<T> & NativeType<T>> List<List<Peak>> findPeaksInT(
 		int channel, int t, boolean useDogFilter, boolean integrate, Roi[] processingRois, 
-		int numThreads)
+		int numThreads, boolean readSliceLabel)
 	{
 		RandomAccessibleInterval<T> img = (swapZandT) ? MarsImageUtils
 			.get2DHyperSlice((ImgPlus<T>) dataset.getImgPlus(), t, -1, -1)
 			: MarsImageUtils.get2DHyperSlice((ImgPlus<T>) dataset.getImgPlus(), 0,
 				channel, t);
 
-		// Workaround for IJ1 metadata in slices - Norpix format.
-		if (!preview && image != null) {
-			ImageStack stack = image.getImageStack();
-			int index = t + 1;
-			if (!swapZandT) index = image.getStackIndex(channel + 1, 1, t + 1);
-
-			// Have to retrieve the image processor to make sure the label has been
-			// loaded.
-			stack.getProcessor(index);
-			String label = stack.getSliceLabel(index);
-			metaDataStack.put(t, label);
-		}
+		if (readSliceLabel) readSliceLabel(channel, t);
 
 		RandomAccessibleInterval<FloatType> filteredImg = null;
 		//To improve performance when processing using grid, only calculate
@@ -858,7 +985,8 @@ public class PeakTrackerCommand extends DynamicCommand implements Command,
 					}
 
 					List<List<Peak>> labelPeakLists = findPeaksInT(Integer.parseInt(
-						channel), previewT, useDogFilter, false, rois, Runtime.getRuntime().availableProcessors());
+						channel), previewT, useDogFilter, false, rois, Runtime.getRuntime().availableProcessors(),
+						false);
 
 					if (Thread.currentThread().isInterrupted()) return;
 
@@ -986,12 +1114,14 @@ public class PeakTrackerCommand extends DynamicCommand implements Command,
 		builder.addParameter("Max difference T", String.valueOf(maxDifferenceT));
 		builder.addParameter("Minimum track length", String.valueOf(
 			minTrajectoryLength));
+		builder.addParameter("Linking", linking);
 		builder.addParameter("Integrate", String.valueOf(integrate));
 		builder.addParameter("Integration inner radius", String.valueOf(
 			integrationInnerRadius));
 		builder.addParameter("Integration outer radius", String.valueOf(
 			integrationOuterRadius));
 		builder.addParameter("Use grid", String.valueOf(gridProcess));
+		builder.addParameter("Stream frames", String.valueOf(streamFrames));
 		builder.addParameter("Horizontal grid regions", String.valueOf(
 				horizontalGridRegions));
 		builder.addParameter("Vertical grid regions", String.valueOf(
@@ -1125,6 +1255,14 @@ public class PeakTrackerCommand extends DynamicCommand implements Command,
 		return maxDifferenceY;
 	}
 
+	public void setLinking(String linking) {
+		this.linking = linking;
+	}
+
+	public String getLinking() {
+		return linking;
+	}
+
 	public void setMaxDifferenceT(int maxDifferenceT) {
 		this.maxDifferenceT = maxDifferenceT;
 	}
@@ -1173,6 +1311,14 @@ public class PeakTrackerCommand extends DynamicCommand implements Command,
 		return gridProcess;
 	}
 
+	public void setStreamFrames(boolean streamFrames) {
+		this.streamFrames = streamFrames;
+	}
+
+	public boolean getStreamFrames() {
+		return streamFrames;
+	}
+
 	public void setVirtualArchiveDirectory(String path) {
 		this.virtualArchiveLocation = new File(path);
 	}
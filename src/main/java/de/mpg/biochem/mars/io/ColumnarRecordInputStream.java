@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+/**
+ * Input stream for reading records in the columnar record format written by
+ * {@link ColumnarRecordOutputStream}. The stream provides the smile encoded
+ * record. Column blocks are read on demand with
+ * {@link #readColumn(int, int)} directly from the buffer, so only the columns
+ * that are used are ever decoded. Large records are usually read from a memory
+ * mapped file, see {@link #isMapped()}.
+ * Tables find the stream through the input source of the parser reading the
+ * record.
+ *
+ * @author Karl Duderstadt
+ */
+public class ColumnarRecordInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer record;
+
+    private final int[] blockColumns;
+    private final int[] blockRows;
+    private final long[] blockOffsets;
+
+    /**
+     * Reads the header of the record in the buffer given.
+     *
+     * @param buffer The buffer containing the complete record.
+     * @throws IOException if the buffer does not contain a columnar record.
+     */
+    public ColumnarRecordInputStream(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (!isColumnarRecord(this.buffer))
+            throw new IOException("Not a columnar record.");
+
+        int version = this.buffer.getInt(8);
+        if (version > ColumnarRecordOutputStream.VERSION)
+            throw new IOException("Unsupported columnar record version " + version + ".");
+
+        int blocks = this.buffer.getInt(12);
+        long smileOffset = this.buffer.getLong(16);
+        long smileLength = this.buffer.getLong(24);
+
+        blockColumns = new int[blocks];
+        blockRows = new int[blocks];
+        blockOffsets = new long[blocks];
+        for (int block = 0; block < blocks; block++) {
+            int entry = ColumnarRecordOutputStream.HEADER_BYTES + block * ColumnarRecordOutputStream.BLOCK_ENTRY_BYTES;
+            blockColumns[block] = this.buffer.getInt(entry);
+            blockRows[block] = this.buffer.getInt(entry + 4);
+            blockOffsets[block] = this.buffer.getLong(entry + 8);
+            if (blockOffsets[block] + 8L * blockRows[block] * blockColumns[block] > this.buffer.limit())
+                throw new IOException("Columnar record is truncated.");
+        }
+
+        ByteBuffer recordBuffer = this.buffer.duplicate();
+        recordBuffer.position((int) smileOffset);
+        recordBuffer.limit((int) (smileOffset + smileLength));
+        record = recordBuffer.slice();
+    }
+
+    /**
+     * Checks for the columnar record magic bytes at the start of the buffer.
+     *
+     * @param buffer The buffer to check.
+     * @return True if the buffer starts with a columnar record header.
+     */
+    public static boolean isColumnarRecord(ByteBuffer buffer) {
+        if (buffer.limit() < ColumnarRecordOutputStream.HEADER_BYTES) return false;
+        for (int i = 0; i < ColumnarRecordOutputStream.MAGIC.length; i++)
+            if (buffer.get(i) != ColumnarRecordOutputStream.MAGIC[i]) return false;
+        return true;
+    }
+
+    /**
+     * Checks whether the record is read from a buffer outside of the heap, which
+     * is the case for memory mapped files. Columns of such records should be
+     * decoded right away, since keeping the buffer alive also keeps the file
+     * mapped, which prevents it from being replaced or deleted on Windows.
+     *
+     * @return True if the record buffer is a direct buffer.
+     */
+    public boolean isMapped() {
+        return buffer.isDirect();
+    }
+
+    public int getBlockCount() {
+        return blockRows.length;
+    }
+
+    public int getColumnCount(int block) {
+        return blockColumns[block];
+    }
+
+    public int getRowCount(int block) {
+        return blockRows[block];
+    }
+
+    /**
+     * Get a read-only view of a column without copying.
+     *
+     * @param block The block index.
+     * @param column The column index within the block.
+     * @return A buffer with the column values.
+     */
+    public DoubleBuffer getColumn(int block, int column) {
+        if (column < 0 || column >= blockColumns[block])
+            throw new IndexOutOfBoundsException("Column " + column + " is not in block " + block + ".");
+        ByteBuffer columnBuffer = buffer.duplicate();
+        int start = (int) (blockOffsets[block] + 8L * blockRows[block] * column);
+        columnBuffer.position(start);
+        columnBuffer.limit(start + 8 * blockRows[block]);
+        return columnBuffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies a column into a new array.
+     *
+     * @param block The block index.
+     * @param column The column index within the block.
+     * @return The column values.
+     */
+    public double[] readColumn(int block, int column) {
+        double[] values = new double[blockRows[block]];
+        getColumn(block, column).get(values);
+        return values;
+    }
+
+    @Override
+    public int read() {
+        return record.hasRemaining() ? (record.get() & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) return 0;
+        if (!record.hasRemaining()) return -1;
+        len = Math.min(len, record.remaining());
+        record.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, record.remaining()));
+        record.position(record.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return record.remaining();
+    }
+}
@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output stream for writing records in the columnar record format. Bytes
+ * written to the stream are the smile encoded record. Tables in the record
+ * add their double columns with {@link #addBlock(List, int)} instead of
+ * writing compressed data blocks into the record. When the stream is closed,
+ * a header with the block offsets, the smile record and the raw column blocks
+ * are written to the underlying stream.
+ * <p>
+ * Layout of the record, with all numbers little-endian:
+ * <pre>
+ * magic     8 bytes "MARSCOL1"
+ * version   int
+ * blocks    int
+ * smile     long offset, long length
+ * for each block:
+ *           int columns, int rows, long offset
+ * smile record
+ * padding to a multiple of 8 bytes
+ * for each block, for each column: rows doubles
+ * </pre>
+ * Column data is 8 byte aligned so it can be read directly from a memory
+ * mapped file using {@link ColumnarRecordInputStream}.
+ *
+ * @author Karl Duderstadt
+ */
+public class ColumnarRecordOutputStream extends OutputStream {
+
+    public static final byte[] MAGIC = { 'M', 'A', 'R', 'S', 'C', 'O', 'L', '1' };
+    public static final int VERSION = 1;
+
+    static final int HEADER_BYTES = 32;
+    static final int BLOCK_ENTRY_BYTES = 16;
+
+    private final OutputStream out;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final List<double[][]> blocks = new ArrayList<>();
+    private final List<Integer> blockRows = new ArrayList<>();
+
+    private boolean closed = false;
+
+    public ColumnarRecordOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Adds a block of double columns to the record.
+     *
+     * @param columns The column arrays. Each must have at least rows values.
+     *                The arrays are written when the stream is closed and
+     *                should not be modified before then.
+     * @param rows The number of rows to write from each column.
+     * @return The index of the block, which should be stored in the record so
+     *         the columns can be found when reading.
+     */
+    public int addBlock(List<double[]> columns, int rows) {
+        double[][] block = new double[columns.size()][];
+        for (int col = 0; col < block.length; col++) {
+            if (columns.get(col).length < rows)
+                throw new IllegalArgumentException("Column " + col + " has fewer than " + rows + " rows.");
+            block[col] = columns.get(col);
+        }
+        blocks.add(block);
+        blockRows.add(rows);
+        return blocks.size() - 1;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        record.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        record.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            long smileOffset = HEADER_BYTES + (long) BLOCK_ENTRY_BYTES * blocks.size();
+            long dataOffset = align(smileOffset + record.size());
+
+            ByteBuffer header = ByteBuffer.allocate((int) (dataOffset - record.size()))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(blocks.size());
+            header.putLong(smileOffset);
+            header.putLong(record.size());
+
+            long offset = dataOffset;
+            for (int block = 0; block < blocks.size(); block++) {
+                int rows = blockRows.get(block);
+                header.putInt(blocks.get(block).length);
+                header.putInt(rows);
+                header.putLong(offset);
+                offset += 8L * rows * blocks.get(block).length;
+            }
+
+            out.write(header.array(), 0, (int) smileOffset);
+            record.writeTo(out);
+            // Padding so the column data starts on an 8 byte boundary.
+            out.write(header.array(), (int) smileOffset, (int) (dataOffset - smileOffset - record.size()));
+
+            for (int block = 0; block < blocks.size(); block++) {
+                int rows = blockRows.get(block);
+                ByteBuffer column = ByteBuffer.allocate(8 * rows).order(ByteOrder.LITTLE_ENDIAN);
+                for (double[] values : blocks.get(block)) {
+                    column.clear();
+                    column.asDoubleBuffer().put(values, 0, rows);
+                    out.write(column.array(), 0, 8 * rows);
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+}
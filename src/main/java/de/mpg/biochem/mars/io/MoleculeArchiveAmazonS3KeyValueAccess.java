@@ -32,35 +32,81 @@ package de.mpg.biochem.mars.io;
 import com.amazonaws.services.s3.AmazonS3;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.nio.channels.NonReadableChannelException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ListObjectsV2Request;
 import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 
 public class MoleculeArchiveAmazonS3KeyValueAccess {
+
+    /**
+     * Smallest part size accepted by S3 for all but the last part of a multipart upload.
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    public static final int DEFAULT_PART_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_CONCURRENT_PARTS = 4;
+    public static final int DEFAULT_READ_CHUNK_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_PARALLEL_READS = 4;
+
+    /**
+     * Threads for part uploads and ranged reads. The number of transfers running at once is limited by
+     * each stream, so the pool itself does not need a bound. Idle threads are released after a minute.
+     */
+    private static final ExecutorService transferExecutor = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "mars-s3-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final AmazonS3 s3;
     private final String bucketName;
 
+    private volatile int partSize = DEFAULT_PART_SIZE;
+    private volatile int concurrentParts = DEFAULT_CONCURRENT_PARTS;
+    private volatile int readChunkSize = DEFAULT_READ_CHUNK_SIZE;
+    private volatile int parallelReads = DEFAULT_PARALLEL_READS;
+
     /**
      * Opens an {@link AmazonS3} client and a given bucket name.
      *
@@ -76,6 +122,65 @@ public class MoleculeArchiveAmazonS3KeyValueAccess {
         if (!s3.doesBucketExistV2(bucketName)) throw new IOException("Bucket " + bucketName + " does not exist.");
     }
 
+    /**
+     * Sets how objects are written. Objects up to partSize bytes are uploaded with a single request
+     * when the stream is closed. Larger objects are uploaded while they are written using a multipart
+     * upload with parts of partSize bytes, of which up to concurrentParts are uploaded at the same
+     * time. Memory use per stream is therefore bounded by (concurrentParts + 1) * partSize.
+     *
+     * @param partSize the part size in bytes, at least {@link #MIN_PART_SIZE}
+     * @param concurrentParts the maximum number of parts uploaded at the same time
+     */
+    public void setMultipartUpload(final int partSize, final int concurrentParts) {
+
+        if (partSize < MIN_PART_SIZE)
+            throw new IllegalArgumentException("The part size must be at least " + MIN_PART_SIZE + " bytes.");
+        if (concurrentParts < 1)
+            throw new IllegalArgumentException("At least one part must be uploaded at a time.");
+
+        this.partSize = partSize;
+        this.concurrentParts = concurrentParts;
+    }
+
+    public int getPartSize() {
+
+        return partSize;
+    }
+
+    public int getConcurrentParts() {
+
+        return concurrentParts;
+    }
+
+    /**
+     * Sets how objects are read. Objects are retrieved with ranged GET requests of chunkSize bytes.
+     * While one chunk is being read, up to parallelReads - 1 following chunks are retrieved in the
+     * background. Memory use per stream is therefore bounded by parallelReads * chunkSize.
+     *
+     * @param chunkSize the number of bytes retrieved per request
+     * @param parallelReads the maximum number of chunks held or being retrieved at the same time
+     */
+    public void setRangedReads(final int chunkSize, final int parallelReads) {
+
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("The chunk size must be positive.");
+        if (parallelReads < 1)
+            throw new IllegalArgumentException("At least one chunk must be read at a time.");
+
+        this.readChunkSize = chunkSize;
+        this.parallelReads = parallelReads;
+    }
+
+    public int getReadChunkSize() {
+
+        return readChunkSize;
+    }
+
+    public int getParallelReads() {
+
+        return parallelReads;
+    }
+
     public String[] components(final String path) {
 
         return Arrays.stream(path.split("/"))
@@ -326,6 +431,33 @@ public class MoleculeArchiveAmazonS3KeyValueAccess {
         return keys;
     }
 
+    /**
+     * Lists the objects directly below {@code normalPath} together with their
+     * ETags. The ETag changes whenever an object is rewritten, so it can be
+     * used to tell which objects changed without downloading them.
+     *
+     * @param normalPath is expected to be in normalized form, no further
+     * 		efforts are made to normalize it.
+     * @return map from object name, relative to {@code normalPath}, to ETag
+     */
+    public Map<String, String> listObjectETags(final String normalPath) {
+        final Map<String, String> eTags = new HashMap<>();
+        final String prefix = removeLeadingSlash(addTrailingSlash(normalPath));
+        final ListObjectsV2Request listObjectsRequest = new ListObjectsV2Request()
+                .withBucketName(bucketName)
+                .withPrefix(prefix)
+                .withDelimiter("/");
+        ListObjectsV2Result objectsListing;
+        do {
+            objectsListing = s3.listObjectsV2(listObjectsRequest);
+            for (final S3ObjectSummary objectSummary : objectsListing.getObjectSummaries()) {
+                eTags.put(objectSummary.getKey().substring(prefix.length()), objectSummary.getETag());
+            }
+            listObjectsRequest.setContinuationToken(objectsListing.getNextContinuationToken());
+        } while (objectsListing.isTruncated());
+        return eTags;
+    }
+
     public String[] listDirectories(final String normalPath) {
         return list(normalPath, true);
     }
@@ -434,180 +566,411 @@ public class MoleculeArchiveAmazonS3KeyValueAccess {
         } while (objectsListing.isTruncated());
     }
 
-    /**
-     * Helper class that drains the rest of the {@link S3ObjectInputStream} on {@link #close()}.
-     *
-     * Without draining the stream AWS S3 SDK sometimes outputs the following warning message:
-     * "... Not all bytes were read from the S3ObjectInputStream, aborting HTTP connection ...".
-     *
-     * Draining the stream helps to avoid this warning and possibly reuse HTTP connections.
-     *
-     * Calling {@link S3ObjectInputStream#abort()} does not prevent this warning as discussed here:
-     * https://github.com/aws/aws-sdk-java/issues/1211
-     */
-    private static class S3ObjectInputStreamDrain extends InputStream {
+    private class S3ObjectChannel implements LockedChannel {
 
-        private final S3ObjectInputStream in;
-        private boolean closed;
+        protected final String path;
+        final boolean readOnly;
+        private final ArrayList<Closeable> resources = new ArrayList<>();
 
-        public S3ObjectInputStreamDrain(final S3ObjectInputStream in) {
+        protected S3ObjectChannel(final String path, final boolean readOnly) throws IOException {
 
-            this.in = in;
+            this.path = path;
+            this.readOnly = readOnly;
         }
 
-        @Override
-        public int read() throws IOException {
+        private void checkWritable() {
 
-            return in.read();
+            if (readOnly) {
+                throw new NonReadableChannelException();
+            }
         }
 
         @Override
-        public int read(final byte[] b, final int off, final int len) throws IOException {
-
-            return in.read(b, off, len);
+        public InputStream newInputStream() throws IOException {
+            final S3RangedInputStream s3in = new S3RangedInputStream(path, readChunkSize, parallelReads);
+            synchronized (resources) {
+                resources.add(s3in);
+            }
+            return s3in;
         }
 
         @Override
-        public boolean markSupported() {
+        public Reader newReader() throws IOException {
 
-            return in.markSupported();
+            final InputStreamReader reader = new InputStreamReader(newInputStream(), StandardCharsets.UTF_8);
+            synchronized (resources) {
+                resources.add(reader);
+            }
+            return reader;
         }
 
         @Override
-        public void mark(final int readlimit) {
+        public OutputStream newOutputStream() throws IOException {
 
-            in.mark(readlimit);
+            checkWritable();
+            return new S3MultipartOutputStream(path, partSize, concurrentParts);
         }
 
         @Override
-        public void reset() throws IOException {
+        public Writer newWriter() throws IOException {
 
-            in.reset();
+            checkWritable();
+            final OutputStreamWriter writer = new OutputStreamWriter(newOutputStream(), StandardCharsets.UTF_8);
+            synchronized (resources) {
+                resources.add(writer);
+            }
+            return writer;
         }
 
         @Override
-        public int available() throws IOException {
+        public void close() throws IOException {
+
+            synchronized (resources) {
+                for (final Closeable resource : resources)
+                    resource.close();
+                resources.clear();
+            }
+        }
+    }
+
+    /**
+     * Output stream that uploads an object while it is being written. Data is collected in a buffer
+     * that grows up to the part size. Objects that fit in a single part are uploaded with one request
+     * on {@link #close()}. Larger objects are uploaded with a multipart upload that is started when
+     * the first part is full. Each full part is then uploaded in the background and writing blocks
+     * while the maximum number of part uploads is running. Part buffers are reused once uploaded. If
+     * any request fails the multipart upload is aborted so no orphaned parts are left in the bucket.
+     */
+    private class S3MultipartOutputStream extends OutputStream {
 
-            return in.available();
+        private final String path;
+        private final int partSize;
+        private final Semaphore uploadPermits;
+        private final BlockingQueue<byte[]> freeBuffers;
+        private final List<Future<PartETag>> partUploads = new ArrayList<>();
+
+        private byte[] buffer = new byte[8192];
+        private int count;
+        private String uploadId;
+        private boolean closed;
+
+        S3MultipartOutputStream(final String path, final int partSize, final int concurrentParts) {
+
+            this.path = path;
+            this.partSize = partSize;
+            this.uploadPermits = new Semaphore(concurrentParts);
+            this.freeBuffers = new ArrayBlockingQueue<>(concurrentParts);
         }
 
         @Override
-        public long skip(final long n) throws IOException {
+        public synchronized void write(final int b) throws IOException {
 
-            return in.skip(n);
+            ensureOpen();
+            if (count == buffer.length) makeRoom();
+            buffer[count++] = (byte) b;
         }
 
         @Override
-        public void close() throws IOException {
+        public synchronized void write(final byte[] b, int off, int len) throws IOException {
+
+            ensureOpen();
+            while (len > 0) {
+                if (count == buffer.length) makeRoom();
+                final int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
 
-            if (!closed) {
-                do {
-                    in.skip(in.available());
-                } while (read() != -1);
-                in.close();
-                closed = true;
+        private void ensureOpen() throws IOException {
+
+            if (closed) throw new IOException("Stream closed");
+        }
+
+        /**
+         * Grows the buffer until it reaches the part size. After that, full buffers are uploaded as
+         * parts and writing continues in a free buffer.
+         */
+        private void makeRoom() throws IOException {
+
+            if (buffer.length < partSize) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(partSize, 2L * buffer.length));
+                return;
             }
+
+            uploadPart(buffer, count);
+            final byte[] free = freeBuffers.poll();
+            buffer = (free != null) ? free : new byte[partSize];
+            count = 0;
         }
-    }
 
-    private class S3ObjectChannel implements LockedChannel {
+        private void uploadPart(final byte[] bytes, final int length) throws IOException {
 
-        protected final String path;
-        final boolean readOnly;
-        private final ArrayList<Closeable> resources = new ArrayList<>();
+            try {
+                if (uploadId == null)
+                    uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, path))
+                            .getUploadId();
 
-        protected S3ObjectChannel(final String path, final boolean readOnly) throws IOException {
+                // Report failures of earlier parts before queueing more work.
+                for (final Future<PartETag> partUpload : partUploads)
+                    if (partUpload.isDone()) waitFor(partUpload);
 
-            this.path = path;
-            this.readOnly = readOnly;
+                uploadPermits.acquire();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw abort(new InterruptedIOException("Interrupted while uploading " + path));
+            } catch (final IOException | RuntimeException e) {
+                throw abort(e);
+            }
+
+            final String id = uploadId;
+            final int partNumber = partUploads.size() + 1;
+            partUploads.add(transferExecutor.submit(() -> {
+                try {
+                    return s3.uploadPart(new UploadPartRequest()
+                            .withBucketName(bucketName)
+                            .withKey(path)
+                            .withUploadId(id)
+                            .withPartNumber(partNumber)
+                            .withInputStream(new ByteArrayInputStream(bytes, 0, length))
+                            .withPartSize(length))
+                            .getPartETag();
+                } finally {
+                    freeBuffers.offer(bytes);
+                    uploadPermits.release();
+                }
+            }));
         }
 
-        private void checkWritable() {
+        private PartETag waitFor(final Future<PartETag> partUpload) throws IOException {
 
-            if (readOnly) {
-                throw new NonReadableChannelException();
+            try {
+                return partUpload.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while uploading " + path);
+            } catch (final ExecutionException | CancellationException e) {
+                throw new IOException("Failed to upload part of " + path, e.getCause() != null ? e.getCause() : e);
             }
         }
 
-        @Override
-        public InputStream newInputStream() throws IOException {
-            final S3ObjectInputStream in = s3.getObject(bucketName, path).getObjectContent();
-            final S3ObjectInputStreamDrain s3in = new S3ObjectInputStreamDrain(in);
-            synchronized (resources) {
-                resources.add(s3in);
+        /**
+         * Cancels outstanding part uploads and aborts the multipart upload.
+         *
+         * @param cause the failure that ended the upload
+         * @return the cause as an IOException to throw
+         */
+        private IOException abort(final Exception cause) {
+
+            closed = true;
+            final IOException exception = (cause instanceof IOException) ? (IOException) cause
+                    : new IOException("Failed to upload " + path, cause);
+            for (final Future<PartETag> partUpload : partUploads)
+                partUpload.cancel(true);
+            if (uploadId != null) {
+                try {
+                    s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, path, uploadId));
+                } catch (final RuntimeException e) {
+                    exception.addSuppressed(e);
+                }
             }
-            return s3in;
+            return exception;
         }
 
         @Override
-        public Reader newReader() throws IOException {
+        public synchronized void close() throws IOException {
 
-            final InputStreamReader reader = new InputStreamReader(newInputStream(), StandardCharsets.UTF_8);
-            synchronized (resources) {
-                resources.add(reader);
+            if (closed) return;
+
+            if (uploadId == null) {
+                closed = true;
+                final ObjectMetadata objectMetadata = new ObjectMetadata();
+                objectMetadata.setContentLength(count);
+                try (final InputStream data = new ByteArrayInputStream(buffer, 0, count)) {
+                    s3.putObject(bucketName, path, data, objectMetadata);
+                }
+            } else {
+                if (count > 0) uploadPart(buffer, count);
+                closed = true;
+                try {
+                    final List<PartETag> partETags = new ArrayList<>(partUploads.size());
+                    for (final Future<PartETag> partUpload : partUploads)
+                        partETags.add(waitFor(partUpload));
+                    s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, path, uploadId,
+                            partETags));
+                } catch (final IOException | RuntimeException e) {
+                    throw abort(e);
+                }
             }
-            return reader;
+            buffer = null;
+            freeBuffers.clear();
+        }
+    }
+
+    /**
+     * Input stream that reads an object with ranged GET requests of a fixed chunk size. The first
+     * request also provides the length of the object, so small objects are read with a single
+     * request. For larger objects the following chunks are retrieved in the background while the
+     * current chunk is consumed, keeping at most the configured number of chunks in memory or in
+     * flight. The following requests only match the ETag returned with the first chunk, so reading
+     * fails rather than mixing bytes from two versions if the object is overwritten meanwhile.
+     */
+    private class S3RangedInputStream extends InputStream {
+
+        private final String path;
+        private final int chunkSize;
+        private final int parallelReads;
+        private final ArrayDeque<Future<byte[]>> pendingChunks = new ArrayDeque<>();
+
+        private long length = -1;
+        private String eTag;
+        private long nextChunkStart;
+        private byte[] chunk;
+        private int position;
+        private boolean closed;
+
+        S3RangedInputStream(final String path, final int chunkSize, final int parallelReads) {
+
+            this.path = path;
+            this.chunkSize = chunkSize;
+            this.parallelReads = parallelReads;
         }
 
         @Override
-        public OutputStream newOutputStream() throws IOException {
+        public int read() throws IOException {
 
-            checkWritable();
-            return new S3OutputStream();
+            if (!fill()) return -1;
+            return chunk[position++] & 0xFF;
         }
 
         @Override
-        public Writer newWriter() throws IOException {
+        public int read(final byte[] b, final int off, final int len) throws IOException {
 
-            checkWritable();
-            final OutputStreamWriter writer = new OutputStreamWriter(newOutputStream(), StandardCharsets.UTF_8);
-            synchronized (resources) {
-                resources.add(writer);
-            }
-            return writer;
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            final int n = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
         }
 
         @Override
-        public void close() throws IOException {
+        public int available() throws IOException {
 
-            synchronized (resources) {
-                for (final Closeable resource : resources)
-                    resource.close();
-                resources.clear();
-            }
+            return (chunk == null) ? 0 : chunk.length - position;
         }
 
-        final class S3OutputStream extends OutputStream {
-            private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        /**
+         * Makes sure unread bytes are available in the current chunk.
+         *
+         * @return {@code false} if the end of the object has been reached
+         */
+        private boolean fill() throws IOException {
+
+            if (closed) throw new IOException("Stream closed");
+
+            while (chunk == null || position == chunk.length) {
+                if (length < 0) {
+                    chunk = readFirstChunk();
+                } else if (!pendingChunks.isEmpty()) {
+                    chunk = waitFor(pendingChunks.poll());
+                } else if (nextChunkStart < length) {
+                    final long start = nextChunkStart;
+                    nextChunkStart = Math.min(length, start + chunkSize);
+                    chunk = readChunk(start, nextChunkStart);
+                } else {
+                    return false;
+                }
+                position = 0;
 
-            private boolean closed = false;
+                while (nextChunkStart < length && pendingChunks.size() < parallelReads - 1) {
+                    final long start = nextChunkStart;
+                    final long end = Math.min(length, start + chunkSize);
+                    nextChunkStart = end;
+                    pendingChunks.add(transferExecutor.submit(() -> readChunk(start, end)));
+                }
+            }
+            return true;
+        }
 
-            @Override
-            public void write(final byte[] b, final int off, final int len) throws IOException {
+        private byte[] readFirstChunk() throws IOException {
 
-                buf.write(b, off, len);
+            final S3Object object;
+            try {
+                object = s3.getObject(new GetObjectRequest(bucketName, path).withRange(0, chunkSize - 1));
+            } catch (final AmazonS3Exception e) {
+                // A range can not be satisfied for an empty object.
+                if (e.getStatusCode() != 416) throw e;
+                length = 0;
+                return new byte[0];
             }
+            length = object.getObjectMetadata().getInstanceLength();
+            eTag = object.getObjectMetadata().getETag();
+            final byte[] bytes = readContent(object);
+            nextChunkStart = bytes.length;
+            return bytes;
+        }
+
+        private byte[] readChunk(final long start, final long end) throws IOException {
 
-            @Override
-            public void write(final int b) throws IOException {
+            final GetObjectRequest request = new GetObjectRequest(bucketName, path).withRange(start, end - 1);
+            if (eTag != null) request.withMatchingETagConstraint(eTag);
 
-                buf.write(b);
+            final S3Object object;
+            try {
+                object = s3.getObject(request);
+            } catch (final AmazonS3Exception e) {
+                if (e.getStatusCode() != 412) throw e;
+                throw new IOException(path + " was modified while it was being read.", e);
             }
+            // The client returns null when the ETag constraint is not met.
+            if (object == null) throw new IOException(path + " was modified while it was being read.");
+            return readContent(object);
+        }
 
-            @Override
-            public synchronized void close() throws IOException {
+        private byte[] readContent(final S3Object object) throws IOException {
 
-                if (!closed) {
-                    closed = true;
-                    final byte[] bytes = buf.toByteArray();
-                    final ObjectMetadata objectMetadata = new ObjectMetadata();
-                    objectMetadata.setContentLength(bytes.length);
-                    try (final InputStream data = new ByteArrayInputStream(bytes)) {
-                        s3.putObject(bucketName, path, data, objectMetadata);
-                    }
-                    buf.close();
+            final long size = object.getObjectMetadata().getContentLength();
+            if (size > Integer.MAX_VALUE - 8)
+                throw new IOException("Range request for " + path + " returned " + size + " bytes.");
+
+            // Reading the whole response allows the connection to be reused.
+            try (final S3ObjectInputStream in = object.getObjectContent()) {
+                final byte[] bytes = new byte[(int) size];
+                int offset = 0;
+                while (offset < bytes.length) {
+                    final int n = in.read(bytes, offset, bytes.length - offset);
+                    if (n < 0) throw new EOFException("Unexpected end of " + path);
+                    offset += n;
                 }
+                return bytes;
+            }
+        }
+
+        private byte[] waitFor(final Future<byte[]> pendingChunk) throws IOException {
+
+            try {
+                return pendingChunk.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading " + path);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException("Failed to read " + path, e.getCause());
             }
         }
+
+        @Override
+        public void close() {
+
+            if (closed) return;
+            closed = true;
+            for (final Future<byte[]> pendingChunk : pendingChunks)
+                pendingChunk.cancel(true);
+            pendingChunks.clear();
+            chunk = null;
+        }
     }
 }
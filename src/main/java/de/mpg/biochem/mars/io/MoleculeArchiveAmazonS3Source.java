@@ -42,7 +42,9 @@ import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MoleculeArchiveAmazonS3Source implements MoleculeArchiveSource {
     protected final AmazonS3 s3;
@@ -321,6 +323,25 @@ public class MoleculeArchiveAmazonS3Source implements MoleculeArchiveSource {
         return this.keyValueAccess.listObjectKeys(containerPath + "/" + METADATA_SUBDIRECTORY_NAME);
     }
 
+    @Override
+    public Map<String, String> getMoleculeFingerprints() {
+        return getFingerprints(containerPath + "/" + MOLECULES_SUBDIRECTORY_NAME);
+    }
+
+    @Override
+    public Map<String, String> getMetadataFingerprints() {
+        return getFingerprints(containerPath + "/" + METADATA_SUBDIRECTORY_NAME);
+    }
+
+    private Map<String, String> getFingerprints(String path) {
+        Map<String, String> fingerprints = new HashMap<>();
+        keyValueAccess.listObjectETags(path).forEach((name, eTag) -> {
+            if (name.endsWith(fileExtension))
+                fingerprints.put(name.substring(0, name.length() - fileExtension.length()), eTag);
+        });
+        return fingerprints;
+    }
+
     @Override
     public void removeMetadata(String metaUID) throws IOException {
         keyValueAccess.delete(containerPath + "/" + METADATA_SUBDIRECTORY_NAME + "/" + metaUID + fileExtension);
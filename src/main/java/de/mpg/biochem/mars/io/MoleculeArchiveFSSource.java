@@ -37,9 +37,19 @@ import com.fasterxml.jackson.core.format.DataFormatMatcher;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class MoleculeArchiveFSSource implements MoleculeArchiveSource {
 
@@ -51,6 +61,25 @@ public class MoleculeArchiveFSSource implements MoleculeArchiveSource {
 
     private String storeFileExtension = ".sml";
 
+    /**
+     * Name of the marker file present in virtual stores with molecule records
+     * in the columnar record format.
+     */
+    public static final String COLUMNAR_RECORDS_FILE_NAME = ".columnar";
+
+    /**
+     * Whether molecule records are written in the columnar record format, with
+     * columns read directly from the record buffer.
+     */
+    private boolean columnarRecords;
+
+    /**
+     * Columnar records smaller than this are read into the heap instead of being
+     * mapped. A mapped file cannot be replaced or deleted on Windows while the
+     * mapping is alive, which is until the buffer is garbage collected.
+     */
+    static final long MAPPED_RECORD_THRESHOLD = 16L * 1024 * 1024;
+
     /**
      * Use to read from an archive or create one.
      *
@@ -58,6 +87,7 @@ public class MoleculeArchiveFSSource implements MoleculeArchiveSource {
      */
     public MoleculeArchiveFSSource(File file) {
         this.file = file;
+        this.columnarRecords = new File(file, COLUMNAR_RECORDS_FILE_NAME).exists();
     }
 
     /**
@@ -66,10 +96,28 @@ public class MoleculeArchiveFSSource implements MoleculeArchiveSource {
      * @param path the full file path.
      */
     public MoleculeArchiveFSSource(String path) {
-        this.file = new File(path);
+        this(new File(path));
+    }
+
+    /**
+     * Sets whether molecule records are written in the columnar record format.
+     * Columnar records keep the smile encoded record, but table double columns
+     * are stored uncompressed after the record. Columns are then read from a
+     * memory mapped file only when they are accessed. This should be set before
+     * {@link #initializeLocation()} when creating a new virtual store. Existing
+     * stores are detected automatically.
+     *
+     * @param columnarRecords Whether to use the columnar record format.
+     */
+    public void setColumnarRecords(boolean columnarRecords) {
+        this.columnarRecords = columnarRecords;
+    }
+
+    public boolean isColumnarRecords() {
+        return columnarRecords;
     }
     @Override
-    public void initializeLocation() {
+    public void initializeLocation() throws IOException {
         //Create directories if they do not exist.
         if (!file.exists()) file.mkdirs();
 
@@ -88,6 +136,10 @@ public class MoleculeArchiveFSSource implements MoleculeArchiveSource {
                 "/" + PROPERTIES_FILE_NAME + ".json").exists()) {
             storeFileExtension = ".json";
         } else storeFileExtension = ".sml";
+
+        File columnarMarker = new File(file, COLUMNAR_RECORDS_FILE_NAME);
+        if (columnarRecords && !columnarMarker.exists()) columnarMarker.createNewFile();
+        else if (columnarMarker.exists()) columnarRecords = true;
     }
 
     @Override
@@ -218,19 +270,47 @@ public class MoleculeArchiveFSSource implements MoleculeArchiveSource {
         return getOutputStream("/" + INDEXES_FILE_NAME + storeFileExtension);
     }
 
+    @Override
+    public InputStream getIndexJournalInputStream() throws IOException {
+        File journal = new File(file.getAbsolutePath() + "/" + INDEX_JOURNAL_FILE_NAME);
+        return (journal.exists()) ? Files.newInputStream(journal.toPath()) : null;
+    }
+
+    @Override
+    public OutputStream getIndexJournalOutputStream() throws IOException {
+        File journal = new File(file.getAbsolutePath() + "/" + INDEX_JOURNAL_FILE_NAME);
+        return Files.newOutputStream(journal.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void removeIndexJournal() throws IOException {
+        Files.deleteIfExists(new File(file.getAbsolutePath() + "/" + INDEX_JOURNAL_FILE_NAME).toPath());
+    }
+
     public InputStream getMoleculeInputStream(String UID) throws IOException {
-        return getInputStream("/" + MOLECULES_SUBDIRECTORY_NAME + "/" + UID + storeFileExtension);
+        String subPath = "/" + MOLECULES_SUBDIRECTORY_NAME + "/" + UID + storeFileExtension;
+        if (columnarRecords) return getColumnarInputStream(subPath);
+        return getInputStream(subPath);
     }
 
     public OutputStream getMoleculeOutputStream(String UID) throws IOException {
-        return getOutputStream("/" + MOLECULES_SUBDIRECTORY_NAME + "/" + UID + storeFileExtension);
+        String subPath = "/" + MOLECULES_SUBDIRECTORY_NAME + "/" + UID + storeFileExtension;
+        if (columnarRecords) {
+            // Records that were read may still have columns mapped from the old
+            // file, so the new record is written to a temporary file that
+            // replaces the old one when closed rather than truncating it.
+            Path target = new File(file.getAbsolutePath() + subPath).toPath();
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            return new ColumnarRecordOutputStream(new ReplacingOutputStream(temp, target));
+        }
+        return getOutputStream(subPath);
     }
 
     @Override
-    public void removeMolecule(String UID) {
-        File moleculeFile = new File(file.getAbsolutePath() + "/" + MOLECULES_SUBDIRECTORY_NAME + "/" +
-                UID + storeFileExtension);
-        if (moleculeFile.exists()) moleculeFile.delete();
+    public void removeMolecule(String UID) throws IOException {
+        Files.deleteIfExists(new File(file.getAbsolutePath() + "/" + MOLECULES_SUBDIRECTORY_NAME + "/" +
+                UID + storeFileExtension).toPath());
     }
 
     public InputStream getMetadataInputStream(String metaUID) throws IOException {
@@ -241,10 +321,9 @@ public class MoleculeArchiveFSSource implements MoleculeArchiveSource {
         return getOutputStream("/" + METADATA_SUBDIRECTORY_NAME + "/" + metaUID + storeFileExtension);
     }
 
-    public void removeMetadata(String metaUID) {
-        File metadataFile = new File(file.getAbsolutePath() + "/" + METADATA_SUBDIRECTORY_NAME + "/" +
-                metaUID + storeFileExtension);
-        if (metadataFile.exists()) metadataFile.delete();
+    public void removeMetadata(String metaUID) throws IOException {
+        Files.deleteIfExists(new File(file.getAbsolutePath() + "/" + METADATA_SUBDIRECTORY_NAME + "/" +
+                metaUID + storeFileExtension).toPath());
     }
 
     public List<String> getMoleculeUIDs() {
@@ -277,16 +356,105 @@ public class MoleculeArchiveFSSource implements MoleculeArchiveSource {
         } else return new ArrayList<>();
     }
 
+    @Override
+    public Map<String, String> getMoleculeFingerprints() throws IOException {
+        return getFingerprints(MOLECULES_SUBDIRECTORY_NAME);
+    }
+
+    @Override
+    public Map<String, String> getMetadataFingerprints() throws IOException {
+        return getFingerprints(METADATA_SUBDIRECTORY_NAME);
+    }
+
+    /**
+     * Fingerprints each record in the subdirectory by its modification time and
+     * size. Both are read from the directory listing, so no record is opened.
+     */
+    private Map<String, String> getFingerprints(String subdirectory) throws IOException {
+        Map<String, String> fingerprints = new HashMap<>();
+        Path directory = new File(file.getAbsolutePath() + "/" + subdirectory).toPath();
+        if (!Files.isDirectory(directory)) return fingerprints;
+
+        try (DirectoryStream<Path> records = Files.newDirectoryStream(directory,
+                path -> path.getFileName().toString().endsWith(storeFileExtension))) {
+            for (Path record : records) {
+                String fileName = record.getFileName().toString();
+                BasicFileAttributes attributes = Files.readAttributes(record, BasicFileAttributes.class);
+                fingerprints.put(fileName.substring(0, fileName.length() - storeFileExtension.length()),
+                        attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) + "-" + attributes.size());
+            }
+        }
+        return fingerprints;
+    }
+
     private InputStream getInputStream(String subPath) throws IOException {
         File newfile = new File(file.getAbsolutePath() + subPath);
         return Files.newInputStream(newfile.toPath());
     }
 
+    /**
+     * Reads the file into a heap buffer, or maps it into memory if it is larger
+     * than {@link #MAPPED_RECORD_THRESHOLD}, and returns a
+     * {@link ColumnarRecordInputStream} if it is a columnar record. Falls back to
+     * a normal input stream otherwise.
+     */
+    private InputStream getColumnarInputStream(String subPath) throws IOException {
+        Path path = new File(file.getAbsolutePath() + subPath).toPath();
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MAPPED_RECORD_THRESHOLD) {
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+                buffer.flip();
+            } else buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        if (ColumnarRecordInputStream.isColumnarRecord(buffer))
+            return new ColumnarRecordInputStream(buffer);
+        if (buffer.hasArray()) return new ByteArrayInputStream(buffer.array(), 0, buffer.limit());
+        return Files.newInputStream(path);
+    }
+
     private OutputStream getOutputStream(String subPath) throws IOException {
         File newfile = new File(file.getAbsolutePath() + subPath);
         return Files.newOutputStream(newfile.toPath());
     }
 
+    private static class ReplacingOutputStream extends FilterOutputStream {
+
+        private final Path temp;
+        private final Path target;
+
+        ReplacingOutputStream(Path temp, Path target) throws IOException {
+            super(Files.newOutputStream(temp));
+            this.temp = temp;
+            this.target = target;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // Atomic moves are not supported everywhere and can fail on Windows
+                // while the target is still open, so a plain replace is tried.
+                try {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException replaceException) {
+                    replaceException.addSuppressed(e);
+                    Files.deleteIfExists(temp);
+                    throw replaceException;
+                }
+            }
+        }
+    }
+
     public String getFileExtension() {
         return storeFileExtension;
     }
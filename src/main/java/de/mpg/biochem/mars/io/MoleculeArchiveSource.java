@@ -33,6 +33,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Basic interface for
@@ -42,6 +43,7 @@ import java.util.List;
 public interface MoleculeArchiveSource extends MoleculeArchiveStorage {
     public static final String PROPERTIES_FILE_NAME = "MoleculeArchiveProperties";
     public static final String INDEXES_FILE_NAME = "indexes";
+    public static final String INDEX_JOURNAL_FILE_NAME = "indexes.journal";
     public static final String MOLECULES_SUBDIRECTORY_NAME = "Molecules";
     public static final String METADATA_SUBDIRECTORY_NAME = "Metadata";
 
@@ -76,6 +78,35 @@ public interface MoleculeArchiveSource extends MoleculeArchiveStorage {
 
     OutputStream getIndexesOutputStream() throws IOException;
 
+    /**
+     * Opens the index journal for reading. Sources without journal support
+     * return null.
+     *
+     * @return The journal input stream or null if there is no journal.
+     * @throws IOException if the journal could not be opened.
+     */
+    default InputStream getIndexJournalInputStream() throws IOException {
+        return null;
+    }
+
+    /**
+     * Opens the index journal for appending, creating it if needed. Sources
+     * without journal support return null.
+     *
+     * @return The journal output stream or null if journals are not supported.
+     * @throws IOException if the journal could not be opened.
+     */
+    default OutputStream getIndexJournalOutputStream() throws IOException {
+        return null;
+    }
+
+    /**
+     * Removes the index journal if there is one.
+     *
+     * @throws IOException if the journal could not be removed.
+     */
+    default void removeIndexJournal() throws IOException {}
+
     InputStream getMoleculeInputStream(String UID) throws IOException;
 
     OutputStream getMoleculeOutputStream(String UID) throws IOException;
@@ -90,5 +121,29 @@ public interface MoleculeArchiveSource extends MoleculeArchiveStorage {
 
     public List<String> getMetadataUIDs();
 
+    /**
+     * Lists the molecule records in the store together with a fingerprint that
+     * changes whenever a record is rewritten, such as the modification time and
+     * size of a file or the ETag of an object. Used to rebuild only the index
+     * entries of records that changed. Sources without fingerprints return null.
+     *
+     * @return Map from molecule UID to fingerprint or null if not supported.
+     * @throws IOException if the records could not be listed.
+     */
+    default Map<String, String> getMoleculeFingerprints() throws IOException {
+        return null;
+    }
+
+    /**
+     * Lists the metadata records in the store together with their fingerprints.
+     * Sources without fingerprints return null.
+     *
+     * @return Map from metadata UID to fingerprint or null if not supported.
+     * @throws IOException if the records could not be listed.
+     */
+    default Map<String, String> getMetadataFingerprints() throws IOException {
+        return null;
+    }
+
     void removeMetadata(String metaUID) throws IOException;
 }
@@ -41,12 +41,16 @@ public class KCP {
 	private boolean step_analysis = false;
 	private final double[] xData;
 	private final double[] yData;
+	private final int length;
+	private final KCPCumulativeSums sums;
 
 	@SuppressWarnings("unused")
 	public KCP(double[] xData,
 			   double[] yData) {
 		this.xData = xData;
 		this.yData = yData;
+		this.length = yData.length;
+		this.sums = new KCPCumulativeSums(xData, yData);
 	}
 
 	public KCP(double sigma, double confidenceLevel, double[] xData,
@@ -56,7 +60,35 @@ public class KCP {
 		this.confidenceLevel = confidenceLevel;
 		this.xData = xData;
 		this.yData = yData;
+		this.length = yData.length;
 		this.step_analysis = step_analysis;
+		this.sums = new KCPCumulativeSums(xData, yData);
+	}
+
+	/**
+	 * Constructor for reusing buffers when analyzing many traces. Only the first
+	 * length points of xData and yData are considered and the cumulative sums
+	 * provided are recalculated for them.
+	 *
+	 * @param sigma The noise level.
+	 * @param confidenceLevel The confidence level used to accept change points.
+	 * @param xData Buffer containing the x values.
+	 * @param yData Buffer containing the y values.
+	 * @param length The number of points in the buffers to analyze.
+	 * @param step_analysis Whether to fit steps (zero slope) instead of lines.
+	 * @param sums Cumulative sums instance to reuse.
+	 */
+	public KCP(double sigma, double confidenceLevel, double[] xData,
+		double[] yData, int length, boolean step_analysis, KCPCumulativeSums sums)
+	{
+		this.sigma = sigma;
+		this.confidenceLevel = confidenceLevel;
+		this.xData = xData;
+		this.yData = yData;
+		this.length = length;
+		this.step_analysis = step_analysis;
+		this.sums = sums;
+		sums.update(xData, yData, length);
 	}
 
 	private ArrayList<Integer> binary_search() {
@@ -65,7 +97,7 @@ public class KCP {
 		// We consider the start and end points of the molecule as change points for
 		// convenience.
 		CP_positions.add(0);
-		CP_positions.add(yData.length - 1);
+		CP_positions.add(length - 1);
 		for (int q = 0; q < CP_positions.size() - 1; q++) {
 			int cp = changePoint(xData, yData, CP_positions.get(q), CP_positions.get(
 				q + 1) - CP_positions.get(q));
@@ -157,15 +189,14 @@ public class KCP {
 		return output;
 	}
 
-	private double log_likelihood(double[] xData, double[] yData, int offset,
-		int length, double A, double B)
-	{
-		// B is the slope and A is the intercept of the line.
-		double lineSum = 0;
-		for (int i = offset; i < offset + length; i++) {
-			lineSum += (yData[i] - B * xData[i] - A) * (yData[i] - B * xData[i] - A);
-		}
+	// Log-likelihood of the least squares fit to the range in constant time
+	// using the cumulative sums.
+	private double log_likelihood(int offset, int length) {
+		return log_likelihood(length, sums.residualSumOfSquares(offset, length,
+			step_analysis));
+	}
 
+	private double log_likelihood(int length, double lineSum) {
 		return length * Math.log(1 / sigma * Math.sqrt(2 * Math.PI)) - lineSum /
 			(2 * sigma * sigma);
 	}
@@ -175,28 +206,18 @@ public class KCP {
 		int length)
 	{
 		// First we determine the fit for the null hypothesis.
-		double[] null_line = linearRegression(xData, yData, offset, length,
-			step_analysis);
-		double null_ll = log_likelihood(xData, yData, offset, length, null_line[0],
-			null_line[2]);
+		double null_ll = log_likelihood(offset, length);
 
 		// current max log-likelihood ratio value and position.
 		double llr_max = 0;
 		int llr_max_position = -1;
 
 		// Next we determine the fit for each pair of lines and store the
-		// log-likelihood
+		// log-likelihood. The fits are retrieved from the cumulative sums so
+		// each split is evaluated in constant time.
 		for (int w = 2; w < length - 2; w++) {
-			// linear fit for first half
-			double[] segA_line = linearRegression(xData, yData, offset, w,
-				step_analysis);
-			// linear fit for second half
-			double[] segB_line = linearRegression(xData, yData, offset + w, length -
-				w, step_analysis);
-
-			double ll_ratio = log_likelihood(xData, yData, offset, w, segA_line[0],
-				segA_line[2]) + log_likelihood(xData, yData, offset + w, length - w,
-					segB_line[0], segB_line[2]) - null_ll;
+			double ll_ratio = log_likelihood(offset, w) + log_likelihood(offset + w,
+				length - w) - null_ll;
 
 			if (ll_ratio > llr_max) {
 				llr_max = ll_ratio;
@@ -321,7 +342,7 @@ public class KCP {
 		return std_sum / (sigXEnd - sigXStart - N);
 	}
 
-	private final double[] interval99_values = { 3.0, 3.864787, 3.781763,
+	private static final double[] interval99_values = { 3.0, 3.864787, 3.781763,
 		3.7598488, 3.7595725, 3.767483, 3.7782528, 3.790945, 3.8023634, 3.8132246,
 		3.8234086, 3.8329017, 3.8417354, 3.8499587, 3.857625, 3.864787, 3.8714936,
 		3.8777885, 3.8837116, 3.8892975, 3.8945773, 3.8995786, 3.9043252, 3.9088395,
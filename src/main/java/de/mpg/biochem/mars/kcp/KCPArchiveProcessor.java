@@ -0,0 +1,418 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.kcp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.app.StatusService;
+import org.scijava.table.Column;
+import org.scijava.table.DoubleColumn;
+
+import de.mpg.biochem.mars.molecule.MarsRecord;
+import de.mpg.biochem.mars.molecule.Molecule;
+import de.mpg.biochem.mars.molecule.MoleculeArchive;
+import de.mpg.biochem.mars.table.MarsTable;
+import de.mpg.biochem.mars.util.MarsRegion;
+
+/**
+ * KCPArchiveProcessor runs the kinetic change point algorithm ({@link KCP}) on
+ * the x and y columns of all molecules in a MoleculeArchive. Molecules are
+ * distributed over a work-stealing {@link ForkJoinPool}. Each worker thread
+ * keeps its own primitive x and y buffers and {@link KCPCumulativeSums}, which
+ * are reused from one molecule to the next. Molecules with new segment tables
+ * are collected by each worker and written back to the archive in batches
+ * using {@link MoleculeArchive#putAll}.
+ * <p>
+ * The options and sigma priority are the same as for the KCPCommand: a sigma
+ * stored as the molecule parameter yColumn_sigma is used first, then sigma is
+ * calculated from the background region if requested, and otherwise the global
+ * sigma is used.
+ * 
+ * @author Karl Duderstadt
+ */
+public class KCPArchiveProcessor {
+
+	private final String xColumn;
+	private final String yColumn;
+	private final double confidenceLevel;
+	private final double globalSigma;
+	private final boolean step_analysis;
+
+	private boolean region = false;
+	private String regionName;
+	private boolean regionFromMetadata = false;
+	private String backgroundRegion;
+	private boolean calcBackgroundSigma = false;
+
+	private int batchSize = 64;
+
+	private StatusService statusService;
+
+	public KCPArchiveProcessor(String xColumn, String yColumn,
+		double confidenceLevel, double globalSigma, boolean step_analysis)
+	{
+		this.xColumn = xColumn;
+		this.yColumn = yColumn;
+		this.confidenceLevel = confidenceLevel;
+		this.globalSigma = globalSigma;
+		this.step_analysis = step_analysis;
+	}
+
+	/**
+	 * Restrict the analysis to a region. Molecules without the region are
+	 * skipped.
+	 * 
+	 * @param regionName The name of the region.
+	 */
+	public void setRegion(String regionName) {
+		this.region = true;
+		this.regionName = regionName;
+	}
+
+	/**
+	 * Set whether the region and background region are retrieved from the
+	 * metadata record of each molecule instead of the molecule record itself.
+	 * 
+	 * @param regionFromMetadata True to use metadata regions.
+	 */
+	public void setRegionFromMetadata(boolean regionFromMetadata) {
+		this.regionFromMetadata = regionFromMetadata;
+	}
+
+	/**
+	 * Calculate sigma from a background region for molecules without a
+	 * yColumn_sigma parameter.
+	 * 
+	 * @param backgroundRegion The name of the background region.
+	 * @param calcBackgroundSigma Whether to calculate sigma from the background
+	 *          region.
+	 */
+	public void setBackgroundRegion(String backgroundRegion,
+		boolean calcBackgroundSigma)
+	{
+		this.backgroundRegion = backgroundRegion;
+		this.calcBackgroundSigma = calcBackgroundSigma;
+	}
+
+	/**
+	 * Set the number of molecules each worker collects before writing them back
+	 * to the archive.
+	 * 
+	 * @param batchSize The batch size.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Set the StatusService used to report progress as batches are written.
+	 * 
+	 * @param statusService The StatusService or null for no progress updates.
+	 */
+	public void setStatusService(StatusService statusService) {
+		this.statusService = statusService;
+	}
+
+	/**
+	 * Find change points for all molecules in the archive.
+	 * 
+	 * @param archive The MoleculeArchive to process.
+	 * @param nThreads The thread count.
+	 * @return The number of molecules that received a segment table.
+	 * @throws InterruptedException if processing was interrupted.
+	 * @throws ExecutionException if a worker failed.
+	 */
+	public <M extends Molecule> int process(
+		MoleculeArchive<M, ?, ?, ?> archive, final int nThreads)
+		throws InterruptedException, ExecutionException
+	{
+		return process(archive, archive.getMoleculeUIDs(), nThreads);
+	}
+
+	/**
+	 * Find change points for the molecules with the UIDs provided.
+	 * 
+	 * @param archive The MoleculeArchive to process.
+	 * @param UIDs The UIDs of the molecules to analyze.
+	 * @param nThreads The thread count.
+	 * @return The number of molecules that received a segment table.
+	 * @throws InterruptedException if processing was interrupted.
+	 * @throws ExecutionException if a worker failed.
+	 */
+	public <M extends Molecule> int process(
+		MoleculeArchive<M, ?, ?, ?> archive, List<String> UIDs,
+		final int nThreads) throws InterruptedException, ExecutionException
+	{
+		final AtomicInteger numFinished = new AtomicInteger(0);
+		final AtomicInteger numUpdated = new AtomicInteger(0);
+
+		// All workspaces are registered so the last partial batches can be
+		// written back after the stream completes.
+		final Queue<Workspace<M>> workspaces = new ConcurrentLinkedQueue<>();
+		final ThreadLocal<Workspace<M>> localWorkspace = ThreadLocal.withInitial(
+			() -> {
+				Workspace<M> workspace = new Workspace<>();
+				workspaces.add(workspace);
+				return workspace;
+			});
+
+		ForkJoinPool forkJoinPool = new ForkJoinPool(nThreads);
+		try {
+			forkJoinPool.submit(() -> UIDs.parallelStream().forEach(UID -> {
+				Workspace<M> workspace = localWorkspace.get();
+				M molecule = archive.get(UID);
+				if (molecule != null && findChangePoints(archive, molecule,
+					workspace))
+				{
+					workspace.batch.add(molecule);
+					if (workspace.batch.size() >= batchSize) flush(archive, workspace,
+						numUpdated);
+				}
+				int finished = numFinished.incrementAndGet();
+				if (statusService != null && finished % batchSize == 0) statusService
+					.showStatus(finished, UIDs.size(), "Finding Change Points for " +
+						archive.getName());
+			})).get();
+		}
+		finally {
+			forkJoinPool.shutdown();
+		}
+
+		for (Workspace<M> workspace : workspaces)
+			flush(archive, workspace, numUpdated);
+
+		return numUpdated.get();
+	}
+
+	private <M extends Molecule> void flush(MoleculeArchive<M, ?, ?, ?> archive,
+		Workspace<M> workspace, AtomicInteger numUpdated)
+	{
+		if (workspace.batch.isEmpty()) return;
+		archive.putAll(workspace.batch);
+		numUpdated.addAndGet(workspace.batch.size());
+		workspace.batch.clear();
+	}
+
+	/**
+	 * Finds the change points for a single molecule and adds the segment table to
+	 * it. The workspace buffers are used for the trace data.
+	 * 
+	 * @return True if a segment table was added to the molecule.
+	 */
+	private boolean findChangePoints(MoleculeArchive<?, ?, ?, ?> archive,
+		Molecule molecule, Workspace<?> workspace)
+	{
+		MarsTable table = molecule.getTable();
+		if (!table.hasColumn(xColumn) || !table.hasColumn(yColumn)) return false;
+
+		MarsRecord regionRecord = (regionFromMetadata) ? archive.getMetadata(
+			molecule.getMetadataUID()) : molecule;
+
+		if (region && !regionRecord.hasRegion(regionName)) return false;
+
+		// Copy rows without NaN values into the workspace buffers.
+		int rowCount = workspace.load(table, xColumn, yColumn);
+		double[] xData = workspace.x;
+		double[] yData = workspace.y;
+
+		int offset = 0;
+		int length = rowCount;
+
+		int sigXStart = 0;
+		int sigXEnd = rowCount;
+
+		MarsRegion analysisRegion = (region) ? regionRecord.getRegion(regionName)
+			: null;
+		MarsRegion sigmaRegion = (calcBackgroundSigma && regionRecord.hasRegion(
+			backgroundRegion)) ? regionRecord.getRegion(backgroundRegion) : null;
+
+		boolean offsetSet = false;
+		boolean sigmaOffsetSet = false;
+		for (int j = 0; j < rowCount; j++) {
+			if (region) {
+				if (xData[j] >= analysisRegion.getStart() && !offsetSet) {
+					offset = j;
+					offsetSet = true;
+				}
+				else if (xData[j] <= analysisRegion.getEnd()) {
+					length = j - offset + 1;
+				}
+			}
+
+			if (sigmaRegion != null) {
+				if (xData[j] >= sigmaRegion.getStart() && !sigmaOffsetSet) {
+					sigXStart = j;
+					sigmaOffsetSet = true;
+				}
+				else if (xData[j] <= sigmaRegion.getEnd()) {
+					sigXEnd = j;
+				}
+			}
+		}
+
+		if (length == 0) {
+			// When length is zero we add a single dummy row with all NaN values.
+			List<KCPSegment> segments = new ArrayList<>();
+			segments.add(new KCPSegment(Double.NaN, Double.NaN, Double.NaN,
+				Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN));
+			molecule.putSegmentsTable(xColumn, yColumn, buildSegmentTable(
+				segments));
+			return true;
+		}
+
+		// Use global sigma or use local sigma or calculate sigma (in this order of
+		// priority)
+		double sigma = globalSigma;
+		if (molecule.hasParameter(yColumn + "_sigma")) {
+			sigma = molecule.getParameter(yColumn + "_sigma");
+		}
+		else if (molecule.hasRegion(backgroundRegion)) {
+			if (calcBackgroundSigma) sigma = KCP.calc_sigma(yData, sigXStart,
+				sigXEnd);
+		}
+
+		// Move the region to the start of the buffers. Both buffers were filled
+		// by the workspace, so this never overlaps unsafely.
+		if (offset > 0) {
+			System.arraycopy(xData, offset, xData, 0, length);
+			System.arraycopy(yData, offset, yData, 0, length);
+		}
+
+		KCP change = new KCP(sigma, confidenceLevel, xData, yData, length,
+			step_analysis, workspace.sums);
+		try {
+			MarsTable segmentsTable = buildSegmentTable(change.generate_segments());
+			if (region) molecule.putSegmentsTable(xColumn, yColumn, regionName,
+				segmentsTable);
+			else molecule.putSegmentsTable(xColumn, yColumn, segmentsTable);
+		}
+		catch (ArrayIndexOutOfBoundsException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Builds a segment table in the format used for molecule records.
+	 * 
+	 * @param segments The list of segments.
+	 * @return A MarsTable with one row for each segment.
+	 */
+	public static MarsTable buildSegmentTable(List<KCPSegment> segments) {
+		MarsTable output = new MarsTable();
+		DoubleColumn x1 = new DoubleColumn(KCPSegment.X1);
+		DoubleColumn y1 = new DoubleColumn(KCPSegment.Y1);
+		DoubleColumn x2 = new DoubleColumn(KCPSegment.X2);
+		DoubleColumn y2 = new DoubleColumn(KCPSegment.Y2);
+		DoubleColumn a = new DoubleColumn(KCPSegment.A);
+		DoubleColumn sigma_a = new DoubleColumn(KCPSegment.SIGMA_A);
+		DoubleColumn b = new DoubleColumn(KCPSegment.B);
+		DoubleColumn sigma_b = new DoubleColumn(KCPSegment.SIGMA_B);
+
+		for (KCPSegment seg : segments) {
+			x1.addValue(seg.x1);
+			y1.addValue(seg.y1);
+			x2.addValue(seg.x2);
+			y2.addValue(seg.y2);
+			a.addValue(seg.a);
+			sigma_a.addValue(seg.sigma_a);
+			b.addValue(seg.b);
+			sigma_b.addValue(seg.sigma_b);
+		}
+
+		output.add(x1);
+		output.add(y1);
+		output.add(x2);
+		output.add(y2);
+		output.add(a);
+		output.add(sigma_a);
+		output.add(b);
+		output.add(sigma_b);
+		return output;
+	}
+
+	/**
+	 * Per thread buffers reused for every molecule processed by that thread.
+	 */
+	private static class Workspace<M extends Molecule> {
+
+		private double[] x = new double[0];
+		private double[] y = new double[0];
+		private final KCPCumulativeSums sums = new KCPCumulativeSums();
+		private final List<M> batch = new ArrayList<>();
+
+		/**
+		 * Copies all rows of the x and y columns without NaN values into the
+		 * buffers, growing them if needed.
+		 * 
+		 * @return The number of rows copied.
+		 */
+		private int load(MarsTable table, String xColumn, String yColumn) {
+			int rows = table.getRowCount();
+			if (x.length < rows) {
+				x = new double[rows];
+				y = new double[rows];
+			}
+
+			Column<?> xCol = table.get(xColumn);
+			Column<?> yCol = table.get(yColumn);
+			int count = 0;
+			if (xCol instanceof DoubleColumn && yCol instanceof DoubleColumn) {
+				double[] xValues = ((DoubleColumn) xCol).getArray();
+				double[] yValues = ((DoubleColumn) yCol).getArray();
+				for (int row = 0; row < rows; row++) {
+					if (Double.isNaN(xValues[row]) || Double.isNaN(yValues[row]))
+						continue;
+					x[count] = xValues[row];
+					y[count] = yValues[row];
+					count++;
+				}
+			}
+			else {
+				for (int row = 0; row < rows; row++) {
+					double xValue = table.getValue(xColumn, row);
+					double yValue = table.getValue(yColumn, row);
+					if (Double.isNaN(xValue) || Double.isNaN(yValue)) continue;
+					x[count] = xValue;
+					y[count] = yValue;
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+}
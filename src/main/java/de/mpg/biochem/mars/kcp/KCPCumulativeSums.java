@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.kcp;
+
+/**
+ * Cumulative sums of x, y, xy, x^2 and y^2 over a trace. Once built, the
+ * residual sum of squares of any contiguous range can be retrieved in constant
+ * time, which turns each change-point scan in
+ * {@link KCP} from O(n^2) into O(n).
+ * <p>
+ * Differences of large cumulative sums lose precision for short ranges far
+ * from the start of the trace. To avoid this, the data is shifted by its first
+ * point and each sum is accumulated with a compensation term that carries the
+ * rounding error of every addition (Knuth's TwoSum). Range sums are then about
+ * as accurate as summing the range directly.
+ * <p>
+ * The internal arrays are only reallocated when a longer trace is loaded, so
+ * a single instance can be reused across many traces.
+ */
+public class KCPCumulativeSums {
+
+	// Cumulative sums (hi) and their accumulated rounding errors (lo) for
+	// x, y, xy, x^2 and y^2 in that order.
+	private final double[][] hi = new double[5][1];
+	private final double[][] lo = new double[5][1];
+
+	private int size;
+
+	private static final int X = 0;
+	private static final int Y = 1;
+	private static final int XY = 2;
+	private static final int XX = 3;
+	private static final int YY = 4;
+
+	public KCPCumulativeSums() {}
+
+	public KCPCumulativeSums(double[] xData, double[] yData) {
+		update(xData, yData, yData.length);
+	}
+
+	/**
+	 * Recalculates the cumulative sums for the first length points of the data
+	 * provided.
+	 *
+	 * @param xData The x values.
+	 * @param yData The y values.
+	 * @param length The number of points to consider.
+	 */
+	public void update(double[] xData, double[] yData, int length) {
+		if (hi[X].length < length + 1) {
+			int capacity = Math.max(length + 1, hi[X].length * 2);
+			for (int s = 0; s < 5; s++) {
+				hi[s] = new double[capacity];
+				lo[s] = new double[capacity];
+			}
+		}
+		size = length;
+		double xShift = (length > 0) ? xData[0] : 0;
+		double yShift = (length > 0) ? yData[0] : 0;
+
+		for (int i = 0; i < length; i++) {
+			double x = xData[i] - xShift;
+			double y = yData[i] - yShift;
+			accumulate(X, i, x);
+			accumulate(Y, i, y);
+			accumulate(XY, i, x * y);
+			accumulate(XX, i, x * x);
+			accumulate(YY, i, y * y);
+		}
+	}
+
+	private void accumulate(int s, int i, double value) {
+		double sum = hi[s][i] + value;
+		double bp = sum - hi[s][i];
+		double error = (hi[s][i] - (sum - bp)) + (value - bp);
+		hi[s][i + 1] = sum;
+		lo[s][i + 1] = lo[s][i] + error;
+	}
+
+	private double sum(int s, int offset, int end) {
+		return (hi[s][end] - hi[s][offset]) + (lo[s][end] - lo[s][offset]);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Residual sum of squares for the range offset to offset + length - 1. If
+	 * step_analysis is true the residuals are relative to the mean, otherwise
+	 * they are relative to the least squares line.
+	 *
+	 * @param offset Index of the first point.
+	 * @param length Number of points.
+	 * @param step_analysis Whether to fit a flat step instead of a line.
+	 * @return The residual sum of squares.
+	 */
+	public double residualSumOfSquares(int offset, int length,
+		boolean step_analysis)
+	{
+		int end = offset + length;
+		double Sy = sum(Y, offset, end);
+		double yy = sum(YY, offset, end) - Sy * Sy / length;
+
+		if (step_analysis) return Math.max(yy, 0);
+
+		double Sx = sum(X, offset, end);
+		double xx = sum(XX, offset, end) - Sx * Sx / length;
+		double xy = sum(XY, offset, end) - Sx * Sy / length;
+
+		// Matches the division by a zero Delta in KCP.linearRegression
+		if (xx == 0) return Double.NaN;
+
+		return Math.max(yy - xy * xy / xx, 0);
+	}
+}
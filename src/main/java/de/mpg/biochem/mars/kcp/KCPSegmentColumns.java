@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.kcp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import de.mpg.biochem.mars.molecule.Molecule;
+import de.mpg.biochem.mars.molecule.MoleculeArchive;
+import de.mpg.biochem.mars.table.MarsTable;
+
+/**
+ * Columnar copy of the segments tables of a list of molecules. Segments are
+ * stored molecule by molecule in the order of the UID list, so the segments of
+ * molecule m are the indices moleculeStart[m] to moleculeStart[m + 1] - 1.
+ * Each segment also carries an integer id for its UID, which is the same for
+ * repeated UIDs, so UID comparisons become integer comparisons.
+ * <p>
+ * Extracting once allows distributions and bootstrap cycles to resample by
+ * index instead of retrieving molecule records again.
+ *
+ * @author Karl Duderstadt
+ */
+final class KCPSegmentColumns {
+
+	final int moleculeCount;
+	final int[] moleculeStart;
+	final int[] uid;
+	final double[] b;
+	final double[] sigmaB;
+	final double[] x1;
+	final double[] x2;
+
+	private KCPSegmentColumns(int moleculeCount, int[] moleculeStart, int[] uid,
+		double[] b, double[] sigmaB, double[] x1, double[] x2)
+	{
+		this.moleculeCount = moleculeCount;
+		this.moleculeStart = moleculeStart;
+		this.uid = uid;
+		this.b = b;
+		this.sigmaB = sigmaB;
+		this.x1 = x1;
+		this.x2 = x2;
+	}
+
+	int size() {
+		return b.length;
+	}
+
+	/**
+	 * Reads the segments tables for xColumn and yColumn of all molecules in
+	 * UIDs. Each molecule is retrieved once. Molecules without a segments table
+	 * contribute no segments but are still counted.
+	 *
+	 * @param archive The archive containing the molecules.
+	 * @param UIDs The molecules to include in order.
+	 * @param xColumnName The x column used for the segments table.
+	 * @param yColumnName The y column used for the segments table.
+	 * @param forkJoinPool The pool used to retrieve molecules in parallel.
+	 * @return The segment columns.
+	 * @throws InterruptedException if interrupted while waiting.
+	 * @throws ExecutionException if retrieving a molecule failed.
+	 */
+	static KCPSegmentColumns extract(
+		MoleculeArchive<? extends Molecule, ?, ?, ?> archive, List<String> UIDs,
+		String xColumnName, String yColumnName, ForkJoinPool forkJoinPool)
+		throws InterruptedException, ExecutionException
+	{
+		final int moleculeCount = UIDs.size();
+		final double[][][] perMolecule = new double[moleculeCount][][];
+
+		forkJoinPool.submit(() -> IntStream.range(0, moleculeCount).parallel()
+			.forEach(m -> {
+				Molecule molecule = archive.get(UIDs.get(m));
+				if (molecule == null) return;
+				MarsTable segments = molecule.getSegmentsTable(xColumnName,
+					yColumnName);
+				if (segments == null) return;
+				perMolecule[m] = new double[][] { column(segments, KCPSegment.B),
+					column(segments, KCPSegment.SIGMA_B), column(segments,
+						KCPSegment.X1), column(segments, KCPSegment.X2) };
+			})).get();
+
+		int[] moleculeStart = new int[moleculeCount + 1];
+		for (int m = 0; m < moleculeCount; m++)
+			moleculeStart[m + 1] = moleculeStart[m] + ((perMolecule[m] == null) ? 0
+				: perMolecule[m][0].length);
+
+		int size = moleculeStart[moleculeCount];
+		int[] uid = new int[size];
+		double[] b = new double[size];
+		double[] sigmaB = new double[size];
+		double[] x1 = new double[size];
+		double[] x2 = new double[size];
+
+		Map<String, Integer> firstIndex = new HashMap<>();
+		for (int m = 0; m < moleculeCount; m++) {
+			int uidIndex = firstIndex.computeIfAbsent(UIDs.get(m), key -> firstIndex
+				.size());
+			int offset = moleculeStart[m];
+			int length = moleculeStart[m + 1] - offset;
+			if (length == 0) continue;
+			System.arraycopy(perMolecule[m][0], 0, b, offset, length);
+			System.arraycopy(perMolecule[m][1], 0, sigmaB, offset, length);
+			System.arraycopy(perMolecule[m][2], 0, x1, offset, length);
+			System.arraycopy(perMolecule[m][3], 0, x2, offset, length);
+			for (int s = offset; s < offset + length; s++)
+				uid[s] = uidIndex;
+			perMolecule[m] = null;
+		}
+
+		return new KCPSegmentColumns(moleculeCount, moleculeStart, uid, b, sigmaB,
+			x1, x2);
+	}
+
+	private static double[] column(MarsTable segments, String header) {
+		double[] values = new double[segments.getRowCount()];
+		if (!segments.hasColumn(header)) {
+			Arrays.fill(values, Double.NaN);
+			return values;
+		}
+		for (int row = 0; row < values.length; row++)
+			values[row] = segments.getValue(header, row);
+		return values;
+	}
+}
@@ -30,16 +30,18 @@
 package de.mpg.biochem.mars.kcp;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.SplittableRandom;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.IntStream;
 
+import org.apache.commons.math3.special.Erf;
 import org.scijava.app.StatusService;
 import org.scijava.log.LogService;
 
@@ -59,7 +61,7 @@ public class SegmentDistributionBuilder {
 	// Also the advantage now is that you load the data once
 	// and can then make as many distributions as you want on it
 
-	private final Random ran;
+	private SplittableRandom ran;
 
 	private final double start;
 	private final double end;
@@ -109,7 +111,7 @@ public class SegmentDistributionBuilder {
 		this.logService = logService;
 		this.statusService = statusService;
 
-		ran = new Random();
+		ran = new SplittableRandom();
 	}
 
 	// METHODS FOR SETTING OR UNSETTING A RATE FILTER REGION
@@ -141,141 +143,28 @@ public class SegmentDistributionBuilder {
 		bootstrap_Molecules = false;
 	}
 
+	/**
+	 * Sets the seed used for bootstrapping. Distributions built after setting
+	 * the same seed resample the same segments or molecules.
+	 * 
+	 * @param seed The seed for the random number generator.
+	 */
+	public void setSeed(long seed) {
+		ran = new SplittableRandom(seed);
+	}
+
 	// METHODS FOR EACH DISTRIBUTION TYPE
 	public MarsTable buildRateGaussian(final int nThreads) {
-		MarsTable table;
-		if (bootstrap_Segments || bootstrap_Molecules) {
-			table = new MarsTable(7, bins);
-		}
-		else {
-			table = new MarsTable(3, bins);
-		}
-
-		table.setColumnHeader(0, "Rate");
-		table.setColumnHeader(1, "Probability");
-		table.setColumnHeader(2, "Probability Density");
-
-		ArrayList<Gaussian> gaussians = generateGaussians(UIDs);
-
-		double[] distribution = generate_Gaussian_Distribution(gaussians);
-
-		double binWidth = (end - start) / bins;
-
-		// Now let's determine the normalization constant...
-		double normalization = 0;
-		for (int a = 0; a < bins; a++) {
-			normalization += distribution[a];
-		}
-		double prob_den_norm = normalization * binWidth;
-
-		// Now let's normalize the distribution and go ahead and generate the
-		// table...
-		for (int a = 0; a < bins; a++) {
-			table.setValue("Rate", a, start + (a + 0.5) * binWidth);
-			table.setValue("Probability", a, distribution[a] / normalization);
-			table.setValue("Probability Density", a, distribution[a] / prob_den_norm);
-		}
-
-		// Now if we are bootstrapping we generate a series of resampled
-		// distributions and output the mean and std.
-		if (bootstrap_Segments || bootstrap_Molecules) {
-			ConcurrentMap<Integer, double[]> boot_distributions =
-				new ConcurrentHashMap<>(bootstrap_cycles);
-
-			forkJoinPool = new ForkJoinPool(nThreads);
-
-			try {
-				// Start a thread to keep track of the progress of the number of frames
-				// that have been processed.
-				// Waiting call back to update the progress bar!!
-				Thread progressThread = new Thread() {
-
-					public synchronized void run() {
-						try {
-							while (progressUpdating.get()) {
-								Thread.sleep(100);
-								statusService.showStatus(numFinished.intValue(),
-									bootstrap_cycles, "Building distribution from " + archive
-										.getName());
-							}
-						}
-						catch (Exception e) {
-							e.printStackTrace();
-						}
-					}
-				};
-
-				progressThread.start();
-
-				// This will spawn a bunch of threads that will generate distributions
-				// individually in parallel
-				// and put the results into the boot_distributions map
-				// keys will just be numbered from 1 to bootstrap_cycles ...
-				forkJoinPool.submit(() -> IntStream.range(0, bootstrap_cycles)
-					.parallel().forEach(q -> {
-						double[] bootDistribution;
-
-						if (bootstrap_Molecules) {
-							ArrayList<String> resampledUIDs = new ArrayList<>();
-							for (int i = 0; i < UIDs.size(); i++) {
-								resampledUIDs.add(UIDs.get(ran.nextInt(UIDs.size())));
-							}
-							// build distribution.
-							bootDistribution = generate_Gaussian_Distribution(
-								generateGaussians(resampledUIDs));
-						}
-						else {
-							// bootstrap_Segments must be true...
-							ArrayList<Gaussian> resampledGaussians =
-									new ArrayList<>();
-							for (int i = 0; i < gaussians.size(); i++) {
-								resampledGaussians.add(gaussians.get(ran.nextInt(gaussians
-									.size())));
-							}
-							// build distribution.
-							bootDistribution = generate_Gaussian_Distribution(
-								resampledGaussians);
-						}
-
-						// Now let's determine the normalization constant...
-						double norm = 0;
-						for (int a = 0; a < bins; a++) {
-							norm += bootDistribution[a];
-						}
-
-						double[] new_dist = new double[bins];
-						for (int a = 0; a < bins; a++) {
-							new_dist[a] = bootDistribution[a] / norm;
-						}
-						boot_distributions.put(q, new_dist);
-
-						numFinished.incrementAndGet();
-					})).get();
-
-				progressUpdating.set(false);
-
-				statusService.showStatus(1, 1, "Done building distribution from " +
-					archive.getName());
-
-			}
-			catch (InterruptedException | ExecutionException e) {
-				// handle exceptions
-				logService.error(e.getMessage());
-				e.printStackTrace();
-				logService.info(LogBuilder.endBlock(false));
-				forkJoinPool.shutdown();
-			}
-			finally {
-				forkJoinPool.shutdown();
-			}
-
-			buildBootstrapRateColumns(table, boot_distributions);
-		}
-
-		return table;
+		return buildRateDistribution(true, "distribution", nThreads);
 	}
 
 	public MarsTable buildRateHistogram(final int nThreads) {
+		return buildRateDistribution(false, "histogram", nThreads);
+	}
+
+	private MarsTable buildRateDistribution(boolean gaussian, String name,
+		final int nThreads)
+	{
 		MarsTable table;
 		if (bootstrap_Segments || bootstrap_Molecules) {
 			table = new MarsTable(7, bins);
@@ -288,9 +177,16 @@ public class SegmentDistributionBuilder {
 		table.setColumnHeader(1, "Probability");
 		table.setColumnHeader(2, "Probability Density");
 
-		ArrayList<KCPSegment> allSegments = collectSegments(UIDs);
+		KCPSegmentColumns segments = extractSegments(nThreads);
+		if (segments == null) return table;
+
+		// One row per molecule when bootstrapping molecules, otherwise one row per
+		// segment. Either way the full distribution is the sum of all rows.
+		SparseRows rows = buildRateRows(segments, gaussian, bootstrap_Molecules);
 
-		double[] distribution = generate_Histogram_Distribution(allSegments);
+		double[] distribution = new double[bins];
+		for (int row = 0; row < rows.size(); row++)
+			rows.addTo(distribution, row, 1);
 
 		// Now let's determine the normalization constant...
 		double normalization = 0;
@@ -310,97 +206,22 @@ public class SegmentDistributionBuilder {
 		// Now if we are bootstrapping we generate a series of resampled
 		// distributions and output the mean and std.
 		if (bootstrap_Segments || bootstrap_Molecules) {
-			ConcurrentMap<Integer, double[]> boot_distributions =
-				new ConcurrentHashMap<>(bootstrap_cycles);
-
-			forkJoinPool = new ForkJoinPool(nThreads);
-
-			try {
-				// Start a thread to keep track of the progress of the number of frames
-				// that have been processed.
-				// Waiting call back to update the progress bar!!
-				Thread progressThread = new Thread() {
-
-					public synchronized void run() {
-						try {
-							while (progressUpdating.get()) {
-								Thread.sleep(100);
-								statusService.showStatus(numFinished.intValue(),
-									bootstrap_cycles, "Building histogram from " + archive
-										.getName());
-							}
-						}
-						catch (Exception e) {
-							e.printStackTrace();
-						}
-					}
-				};
-
-				progressThread.start();
-
-				// This will spawn a bunch of threads that will generate distributions
-				// individually in parallel
-				// and put the results into the boot_distributions map
-				// keys will just be numbered from 1 to bootstrap_cycles ...
-				forkJoinPool.submit(() -> IntStream.range(0, bootstrap_cycles)
-					.parallel().forEach(q -> {
-						double[] bootDistribution;
-
-						if (bootstrap_Molecules) {
-							ArrayList<String> resampledUIDs = new ArrayList<>();
-							for (int i = 0; i < UIDs.size(); i++) {
-								resampledUIDs.add(UIDs.get(ran.nextInt(UIDs.size())));
-							}
-							// build distribution.
-							bootDistribution = generate_Histogram_Distribution(
-								collectSegments(resampledUIDs));
-						}
-						else {
-							// bootstrap_Segments must be true...
-							ArrayList<KCPSegment> resampledSegments =
-									new ArrayList<>();
-							for (int i = 0; i < allSegments.size(); i++) {
-								resampledSegments.add(allSegments.get(ran.nextInt(allSegments
-									.size())));
-							}
-							// build distribution.
-							bootDistribution = generate_Histogram_Distribution(
-								resampledSegments);
-						}
-
-						// Now let's determine the normalization constant...
-						double norm = 0;
-						for (int a = 0; a < bins; a++) {
-							norm += bootDistribution[a];
-						}
-
-						double[] new_dist = new double[bins];
-						for (int a = 0; a < bins; a++) {
-							new_dist[a] = bootDistribution[a] / norm;
-						}
-						boot_distributions.put(q, new_dist);
-
-						numFinished.incrementAndGet();
-					})).get();
-
-				progressUpdating.set(false);
-
-				statusService.showStatus(1, 1, "Done building histogram from " + archive
-					.getName());
-
-			}
-			catch (InterruptedException | ExecutionException e) {
-				// handle exceptions
-				logService.error(e.getMessage());
-				e.printStackTrace();
-				logService.info(LogBuilder.endBlock(false));
-				forkJoinPool.shutdown();
-			}
-			finally {
-				forkJoinPool.shutdown();
-			}
-
-			buildBootstrapRateColumns(table, boot_distributions);
+			// Resampling rows with replacement is the same as weighting each row by
+			// the number of times it was drawn.
+			ConcurrentMap<Integer, double[]> boot_distributions = bootstrap(nThreads,
+				name, random -> {
+					int[] counts = new int[rows.size()];
+					for (int i = 0; i < counts.length; i++)
+						counts[random.nextInt(counts.length)]++;
+
+					double[] bootDistribution = new double[bins];
+					for (int row = 0; row < counts.length; row++)
+						if (counts[row] > 0) rows.addTo(bootDistribution, row, counts[row]);
+					return bootDistribution;
+				});
+
+			if (boot_distributions.size() == bootstrap_cycles)
+				buildBootstrapRateColumns(table, boot_distributions);
 		}
 
 		return table;
@@ -432,10 +253,16 @@ public class SegmentDistributionBuilder {
 		table.setColumnHeader(0, "Duration");
 		table.setColumnHeader(1, "Occurrences");
 
-		ArrayList<KCPSegment> allSegments = collectSegments(UIDs);
+		KCPSegmentColumns segments = extractSegments(nThreads);
+		if (segments == null) return table;
 
-		double[] distribution = generate_Duration_Distribution(allSegments,
-			processivityPerRegion, processivityPerMolecule);
+		int[] collected = collectSegments(segments);
+
+		DurationScan scan = new DurationScan(segments, processivityPerRegion,
+			processivityPerMolecule);
+		for (int segment : collected)
+			scan.add(segment);
+		double[] distribution = scan.finish();
 
 		for (int a = 0; a < bins; a++) {
 			table.setValue("Duration", a, start + (a + 0.5) * binWidth);
@@ -445,258 +272,371 @@ public class SegmentDistributionBuilder {
 		// Now if we are bootstrapping we generate a series of resampled
 		// distributions and output the mean and std.
 		if (bootstrap_Segments || bootstrap_Molecules) {
-			ConcurrentMap<Integer, double[]> boot_distributions =
-				new ConcurrentHashMap<>(bootstrap_cycles);
-
-			forkJoinPool = new ForkJoinPool(nThreads);
-
-			try {
-				// Start a thread to keep track of the progress of the number of frames
-				// that have been processed.
-				// Waiting call back to update the progress bar!!
-				Thread progressThread = new Thread() {
-
-					public synchronized void run() {
-						try {
-							while (progressUpdating.get()) {
-								Thread.sleep(100);
-								statusService.showStatus(numFinished.intValue(),
-									bootstrap_cycles, "Building duration histogram from " +
-										archive.getName());
-							}
-						}
-						catch (Exception e) {
-							e.printStackTrace();
+			// Durations depend on the order of the segments so the resampled
+			// segments are scanned in the order they are drawn.
+			ConcurrentMap<Integer, double[]> boot_distributions = bootstrap(nThreads,
+				"duration histogram", random -> {
+					DurationScan bootScan = new DurationScan(segments,
+						processivityPerRegion, processivityPerMolecule);
+					if (bootstrap_Molecules) {
+						for (int i = 0; i < segments.moleculeCount; i++) {
+							int m = random.nextInt(segments.moleculeCount);
+							for (int s = segments.moleculeStart[m]; s < segments.moleculeStart[m +
+								1]; s++)
+								if (isCollected(segments, s)) bootScan.add(s);
 						}
 					}
-				};
-
-				progressThread.start();
-
-				// This will spawn a bunch of threads that will generate distributions
-				// individually in parallel
-				// and put the results into the boot_distributions map
-				// keys will just be numbered from 1 to bootstrap_cycles ...
-				forkJoinPool.submit(() -> IntStream.range(0, bootstrap_cycles)
-					.parallel().forEach(q -> {
-						double[] bootDistribution;
-
-						if (bootstrap_Molecules) {
-							ArrayList<String> resampledUIDs = new ArrayList<>();
-							for (int i = 0; i < UIDs.size(); i++) {
-								resampledUIDs.add(UIDs.get(ran.nextInt(UIDs.size())));
-							}
-							// build distribution.
-							bootDistribution = generate_Duration_Distribution(collectSegments(
-								resampledUIDs), processivityPerRegion, processivityPerMolecule);
-						}
-						else {
-							// bootstrap_Segments must be true...
-							ArrayList<KCPSegment> resampledSegments =
-									new ArrayList<>();
-							for (int i = 0; i < allSegments.size(); i++) {
-								resampledSegments.add(allSegments.get(ran.nextInt(allSegments
-									.size())));
-							}
-							// build distribution.
-							bootDistribution = generate_Duration_Distribution(
-								resampledSegments, processivityPerRegion,
-								processivityPerMolecule);
-						}
+					else {
+						// bootstrap_Segments must be true...
+						for (int i = 0; i < collected.length; i++)
+							bootScan.add(collected[random.nextInt(collected.length)]);
+					}
+					return bootScan.finish();
+				});
 
-						// Now let's determine the normalization constant...
-						double norm = 0;
-						for (int a = 0; a < bins; a++) {
-							norm += bootDistribution[a];
-							logService.info("norm " + norm);
-						}
+			if (boot_distributions.size() == bootstrap_cycles)
+				buildBootstrapDurationColumns(table, boot_distributions);
+		}
+
+		return table;
+	}
 
-						double[] new_dist = new double[bins];
-						for (int a = 0; a < bins; a++) {
-							new_dist[a] = bootDistribution[a] / norm;
-							logService.info("new_dist" + bootDistribution[a] / norm);
+	// INTERNAL METHODS FOR BUILDING DISTRIBUTIONS
+
+	/**
+	 * Retrieves the segments of all molecules. This is done for every
+	 * distribution built so changes to the archive between builds are
+	 * included. Filters are applied afterwards and all bootstrap cycles of a
+	 * distribution resample the same segments.
+	 */
+	private KCPSegmentColumns extractSegments(final int nThreads) {
+		forkJoinPool = new ForkJoinPool(nThreads);
+		try {
+			return KCPSegmentColumns.extract(archive, UIDs, xColumnName,
+				yColumnName, forkJoinPool);
+		}
+		catch (InterruptedException | ExecutionException e) {
+			// handle exceptions
+			logService.error(e.getMessage());
+			e.printStackTrace();
+			logService.info(LogBuilder.endBlock(false));
+			return null;
+		}
+		finally {
+			forkJoinPool.shutdown();
+		}
+	}
+
+	/**
+	 * Runs bootstrap_cycles cycles in parallel. Each cycle gets its own random
+	 * number generator split from ran, so cycles never contend for a shared
+	 * generator. The distributions returned are normalized and put into the map
+	 * with keys numbered from 0 to bootstrap_cycles - 1.
+	 */
+	private ConcurrentMap<Integer, double[]> bootstrap(final int nThreads,
+		String name, Function<SplittableRandom, double[]> cycle)
+	{
+		ConcurrentMap<Integer, double[]> boot_distributions =
+			new ConcurrentHashMap<>(bootstrap_cycles);
+
+		SplittableRandom[] randoms = new SplittableRandom[bootstrap_cycles];
+		for (int q = 0; q < bootstrap_cycles; q++)
+			randoms[q] = ran.split();
+
+		progressUpdating.set(true);
+		numFinished.set(0);
+
+		forkJoinPool = new ForkJoinPool(nThreads);
+
+		try {
+			// Start a thread to keep track of the progress of the number of cycles
+			// that have been processed.
+			Thread progressThread = new Thread() {
+
+				public synchronized void run() {
+					try {
+						while (progressUpdating.get()) {
+							Thread.sleep(100);
+							statusService.showStatus(numFinished.intValue(),
+								bootstrap_cycles, "Building " + name + " from " + archive
+									.getName());
 						}
-						boot_distributions.put(q, new_dist);
+					}
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
 
-						numFinished.incrementAndGet();
-					})).get();
+			progressThread.start();
 
-				progressUpdating.set(false);
+			forkJoinPool.submit(() -> IntStream.range(0, bootstrap_cycles)
+				.parallel().forEach(q -> {
+					double[] bootDistribution = cycle.apply(randoms[q]);
 
-				statusService.showStatus(1, 1,
-					"Done building duration histogram from " + archive.getName());
+					// Now let's determine the normalization constant...
+					double norm = 0;
+					for (int a = 0; a < bins; a++) {
+						norm += bootDistribution[a];
+					}
 
-			}
-			catch (InterruptedException | ExecutionException e) {
-				// handle exceptions
-				logService.error(e.getMessage());
-				e.printStackTrace();
-				logService.info(LogBuilder.endBlock(false));
-				forkJoinPool.shutdown();
-			}
-			finally {
-				forkJoinPool.shutdown();
-			}
-			buildBootstrapDurationColumns(table, boot_distributions);
+					for (int a = 0; a < bins; a++) {
+						bootDistribution[a] /= norm;
+					}
+					boot_distributions.put(q, bootDistribution);
+
+					numFinished.incrementAndGet();
+				})).get();
+
+			statusService.showStatus(1, 1, "Done building " + name + " from " +
+				archive.getName());
+		}
+		catch (InterruptedException | ExecutionException e) {
+			// handle exceptions
+			logService.error(e.getMessage());
+			e.printStackTrace();
+			logService.info(LogBuilder.endBlock(false));
+		}
+		finally {
+			progressUpdating.set(false);
+			forkJoinPool.shutdown();
 		}
 
-		return table;
+		return boot_distributions;
 	}
 
-	// INTERNAL METHODS FOR BUILDING DISTRIBUTIONS
-	private double[] generate_Gaussian_Distribution(
-		ArrayList<Gaussian> Gaussians)
+	private boolean passesFilter(double b) {
+		return !filter || (b > filter_region_start && b < filter_region_stop);
+	}
+
+	private boolean isCollected(KCPSegmentColumns segments, int s) {
+		return !Double.isNaN(segments.b[s]) && passesFilter(segments.b[s]);
+	}
+
+	private boolean isGaussian(KCPSegmentColumns segments, int s) {
+		return isCollected(segments, s) && !Double.isNaN(segments.sigmaB[s]) &&
+			!Double.isNaN(segments.x1[s]) && !Double.isNaN(segments.x2[s]) &&
+			segments.sigmaB[s] != 0 && segments.x1[s] != 0 && segments.x2[s] != 0;
+	}
+
+	/**
+	 * Indices of all segments with a rate that passes the filter in molecule
+	 * order.
+	 */
+	private int[] collectSegments(KCPSegmentColumns segments) {
+		return IntStream.range(0, segments.size()).filter(s -> isCollected(
+			segments, s)).toArray();
+	}
+
+	/**
+	 * Builds the bin contributions of each segment (or each molecule if
+	 * perMolecule is true) to the rate distribution. For Gaussians, each
+	 * segment contributes its duration times the integral of the normal
+	 * distribution over each bin, which is evaluated in closed form from the
+	 * error function and cut off beyond 8 sigma. For histograms, each segment
+	 * adds its duration to the bin containing its rate.
+	 */
+	private SparseRows buildRateRows(KCPSegmentColumns segments,
+		boolean gaussian, boolean perMolecule)
 	{
-		double integration_resolution = 100;
-		double[] distribution = new double[bins];
-		for (int a = 0; a < bins; a++) {
-			// Here we should integrate to get the mean value in the bin instead of
-			// just taking the value at the center
-			for (double q = start + a * binWidth; q < (start + (a + 1) *
-				binWidth); q += binWidth / integration_resolution)
-			{
-				for (Gaussian gaussian : Gaussians) {
-					distribution[a] += gaussian.getValue(q) * gaussian
-							.getDuration() * (binWidth / integration_resolution);
-				}
+		SparseRows rows = new SparseRows(bins);
+		if (perMolecule) {
+			for (int m = 0; m < segments.moleculeCount; m++) {
+				for (int s = segments.moleculeStart[m]; s < segments.moleculeStart[m +
+					1]; s++)
+					addRateSegment(rows, segments, s, gaussian);
+				rows.endRow();
 			}
 		}
-
-		return distribution;
+		else {
+			for (int s = 0; s < segments.size(); s++) {
+				if (gaussian ? !isGaussian(segments, s) : !isCollected(segments, s))
+					continue;
+				addRateSegment(rows, segments, s, gaussian);
+				rows.endRow();
+			}
+		}
+		return rows;
 	}
 
-	private double[] generate_Histogram_Distribution(
-		ArrayList<KCPSegment> allSegments)
+	private void addRateSegment(SparseRows rows, KCPSegmentColumns segments,
+		int s, boolean gaussian)
 	{
-		double[] distribution = new double[bins];
-
-		for (int a = 0; a < bins; a++) {
-			for (KCPSegment allSegment : allSegments) {
-				if (Double.isNaN(allSegment.b) || Double.isNaN(allSegment.x1) || Double.isNaN(allSegment.x2)) continue;
-				if (!filter || (allSegment.b > filter_region_start &&
-						allSegment.b < filter_region_stop)) {
-					// We test to see if the current slope is in the current bin, which is
-					// centered at the position on the x-axis.
-					if (((start + a * binWidth) < allSegment.b) && (allSegment.b <= (start + (a + 1) * binWidth))) {
-						// If it is inside we add the number of observations of that slope
-						// minus 1 since it takes at least two frames to find the slope.
-						distribution[a] += (allSegment.x2 - allSegment.x1);
-					}
-				}
+		double x0 = segments.b[s];
+		double duration = segments.x2[s] - segments.x1[s];
+		if (gaussian) {
+			if (!isGaussian(segments, s)) return;
+			double sigma = segments.sigmaB[s];
+			if (!Double.isFinite(x0) || !Double.isFinite(sigma) || !Double.isFinite(
+				duration)) return;
+
+			double reach = 8 * Math.abs(sigma);
+			int first = (int) Math.max(Math.floor((x0 - reach - start) / binWidth),
+				0);
+			int last = (int) Math.min(Math.floor((x0 + reach - start) / binWidth),
+				bins - 1);
+			double scale = 1 / (sigma * Math.sqrt(2));
+			for (int a = first; a <= last; a++) {
+				double lower = (start + a * binWidth - x0) * scale;
+				double upper = (start + (a + 1) * binWidth - x0) * scale;
+				rows.add(a, 0.5 * duration * Erf.erf(lower, upper));
 			}
 		}
-		return distribution;
+		else {
+			if (!isCollected(segments, s) || Double.isNaN(duration)) return;
+			int a = rateBin(x0);
+			// If it is inside we add the number of observations of that slope
+			// minus 1 since it takes at least two frames to find the slope.
+			if (a >= 0) rows.add(a, duration);
+		}
 	}
 
-	private double[] generate_Duration_Distribution(
-		ArrayList<KCPSegment> allSegments, boolean processivityPerRegion,
-		boolean processivityPerMolecule)
-	{
-		double[] distribution = new double[bins];
+	/**
+	 * Finds the bin a with start + a * binWidth &lt; rate &lt;= start + (a + 1) *
+	 * binWidth, or returns -1 if there is none.
+	 */
+	private int rateBin(double rate) {
+		double position = (rate - start) / binWidth;
+		if (!(position > -1 && position < bins + 1)) return -1;
+		int a = (int) Math.ceil(position) - 1;
+		// Correct for rounding so the edges are the same as bin by bin tests.
+		if (a >= 0 && rate <= start + a * binWidth) a--;
+		else if (rate > start + (a + 1) * binWidth) a++;
+		return (a >= 0 && a < bins) ? a : -1;
+	}
 
-		ArrayList<Double> durations = new ArrayList<>();
-		boolean wasInsideRegion = false;
-		double duration = 0;
-		String curUID = allSegments.get(0).getUID();
-
-		if (processivityPerMolecule) {
-			for (KCPSegment allSegment : allSegments) {
-				if (!filter || (allSegment.b > filter_region_start &&
-						allSegment.b < filter_region_stop)) {
-					if (allSegment.getUID().equals(curUID)) {
-						durations.add(duration);
-						duration = 0;
-					}
-					duration += allSegment.b * (allSegment.x2 -
-							allSegment.x1);
-					curUID = allSegment.getUID();
+	/**
+	 * Finds the bin a with start + a * binWidth &lt;= duration &lt; start + (a +
+	 * 1) * binWidth, or returns -1 if there is none.
+	 */
+	private int durationBin(double duration) {
+		double position = (duration - start) / binWidth;
+		if (!(position > -1 && position < bins + 1)) return -1;
+		int a = (int) Math.floor(position);
+		// Correct for rounding so the edges are the same as bin by bin tests.
+		if (a >= 0 && duration < start + a * binWidth) a--;
+		else if (duration >= start + (a + 1) * binWidth) a++;
+		return (a >= 0 && a < bins) ? a : -1;
+	}
+
+	/**
+	 * Sums segment durations in the order segments are added and counts the
+	 * totals in the duration histogram. Only segments that pass the filter
+	 * should be added.
+	 */
+	private final class DurationScan {
+
+		private final KCPSegmentColumns segments;
+		private final boolean processivityPerRegion;
+		private final boolean processivityPerMolecule;
+		private final double[] distribution = new double[bins];
+
+		private boolean wasInsideRegion = false;
+		private double duration = 0;
+		private int curUID = -1;
+
+		DurationScan(KCPSegmentColumns segments, boolean processivityPerRegion,
+			boolean processivityPerMolecule)
+		{
+			this.segments = segments;
+			this.processivityPerRegion = processivityPerRegion;
+			this.processivityPerMolecule = processivityPerMolecule;
+		}
+
+		void add(int s) {
+			int uid = segments.uid[s];
+			if (curUID == -1) curUID = uid;
+
+			double length = segments.x2[s] - segments.x1[s];
+			if (processivityPerMolecule) {
+				if (uid == curUID) {
+					count(duration);
+					duration = 0;
 				}
+				duration += segments.b[s] * length;
 			}
-		}
-		else {
-			for (KCPSegment allSegment : allSegments) {
-				if (!filter || (allSegment.b > filter_region_start &&
-						allSegment.b < filter_region_stop)) {
-					if (allSegment.getUID().equals(curUID)) {
-						if (wasInsideRegion) {
-							durations.add(duration);
-							duration = 0;
-						}
-					}
-					if (processivityPerRegion) duration += allSegment.b *
-							(allSegment.x2 - allSegment.x1);
-					else duration += allSegment.x2 - allSegment.x1;
-					wasInsideRegion = true;
-				} else if (wasInsideRegion) {
-					durations.add(duration);
+			else {
+				if (uid == curUID && wasInsideRegion) {
+					count(duration);
 					duration = 0;
-					wasInsideRegion = false;
 				}
-				curUID = allSegment.getUID();
+				if (processivityPerRegion) duration += segments.b[s] * length;
+				else duration += length;
+				wasInsideRegion = true;
 			}
+			curUID = uid;
 		}
-		if (duration != 0) durations.add(duration);
 
-		for (int a = 0; a < bins; a++) {
-			for (Double aDouble : durations) {
-				if ((start + a * binWidth) <= aDouble && aDouble < (start + (a + 1) * binWidth)) {
-					distribution[a]++;
-				}
-			}
+		double[] finish() {
+			if (duration != 0) count(duration);
+			return distribution;
+		}
+
+		private void count(double value) {
+			int a = durationBin(value);
+			if (a >= 0) distribution[a]++;
 		}
-		return distribution;
 	}
 
-	private ArrayList<KCPSegment> collectSegments(Collection<String> UIDSet) {
-		ArrayList<KCPSegment> allSegments = new ArrayList<>();
-
-		// Can't do this multithreaded at the moment since we are using an arraylist
-		UIDSet.forEach(UID -> {
-			if (archive.get(UID).getSegmentsTable(xColumnName, yColumnName) != null) {
-				// Get the segments table for the current molecule
-				MarsTable segments = archive.get(UID).getSegmentsTable(xColumnName,
-					yColumnName);
-
-				for (int row = 0; row < segments.getRowCount(); row++) {
-					if (Double.isNaN(segments.getValue("B", row))) continue;
-					if (!filter || segments.getValue("B", row) > filter_region_start &&
-						segments.getValue("B", row) < filter_region_stop) allSegments.add(
-							new KCPSegment(segments, row, UID));
-				}
-			}
-		});
+	/**
+	 * Bin contributions stored row by row. Row r holds the entries rowStart[r]
+	 * to rowStart[r + 1] - 1. Entries added to the same bin within a row are
+	 * merged.
+	 */
+	private static final class SparseRows {
+
+		private int[] rowStart = new int[16];
+		private int[] bin = new int[16];
+		private double[] value = new double[16];
+		private int rows = 0;
+		private int entries = 0;
+
+		// Dense accumulator for the row being built.
+		private final double[] current;
+		private final boolean[] inRow;
+		private final int[] touched;
+		private int touchedCount = 0;
+
+		SparseRows(int bins) {
+			current = new double[bins];
+			inRow = new boolean[bins];
+			touched = new int[bins];
+		}
 
-		return allSegments;
-	}
+		void add(int a, double contribution) {
+			if (!inRow[a]) {
+				inRow[a] = true;
+				touched[touchedCount++] = a;
+			}
+			current[a] += contribution;
+		}
 
-	private ArrayList<Gaussian> generateGaussians(Collection<String> UIDSet) {
-		ArrayList<Gaussian> Gaussians = new ArrayList<>();
-
-		// Can't do this multithreaded at the moment since we are using an arraylist
-		UIDSet.forEach(UID -> {
-			if (archive.get(UID).getSegmentsTable(xColumnName, yColumnName) != null) {
-				// Get the segments table for the current molecule
-				MarsTable segments = archive.get(UID).getSegmentsTable(xColumnName,
-					yColumnName);
-
-				for (int row = 0; row < segments.getRowCount(); row++) {
-					if (Double.isNaN(segments.getValue("B", row)) || Double.isNaN(segments
-						.getValue("sigma_B", row)) || Double.isNaN(segments.getValue("X2",
-							row)) || Double.isNaN(segments.getValue("X1", row))) continue;
-					if (!filter || segments.getValue("B", row) > filter_region_start &&
-						segments.getValue("B", row) < filter_region_stop)
-					{
-						if (segments.getValue("sigma_B", row) != 0 && segments.getValue(
-							"X1", row) != 0 && segments.getValue("X2", row) != 0) Gaussians
-								.add(new Gaussian(segments.getValue("B", row), segments
-									.getValue("sigma_B", row), segments.getValue("X2", row) -
-										segments.getValue("X1", row)));
-					}
-				}
+		void endRow() {
+			if (entries + touchedCount > bin.length) {
+				int capacity = Math.max(entries + touchedCount, bin.length * 2);
+				bin = Arrays.copyOf(bin, capacity);
+				value = Arrays.copyOf(value, capacity);
 			}
-		});
+			for (int i = 0; i < touchedCount; i++) {
+				bin[entries] = touched[i];
+				value[entries++] = current[touched[i]];
+				current[touched[i]] = 0;
+				inRow[touched[i]] = false;
+			}
+			touchedCount = 0;
+			if (rows + 2 > rowStart.length) rowStart = Arrays.copyOf(rowStart,
+				rowStart.length * 2);
+			rowStart[++rows] = entries;
+		}
 
-		return Gaussians;
+		int size() {
+			return rows;
+		}
+
+		void addTo(double[] distribution, int row, double weight) {
+			for (int i = rowStart[row]; i < rowStart[row + 1]; i++)
+				distribution[bin[i]] += weight * value[i];
+		}
 	}
 
 	public void buildBootstrapRateColumns(MarsTable table,
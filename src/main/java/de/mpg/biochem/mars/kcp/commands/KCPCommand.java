@@ -32,12 +32,8 @@ package de.mpg.biochem.mars.kcp.commands;
 import static java.util.stream.Collectors.toList;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.scijava.Initializable;
 
@@ -51,20 +47,16 @@ import org.scijava.module.MutableModuleItem;
 import org.scijava.plugin.Menu;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
-import org.scijava.table.DoubleColumn;
 import org.scijava.ui.UIService;
 import org.scijava.widget.ChoiceWidget;
 
-import de.mpg.biochem.mars.kcp.KCP;
-import de.mpg.biochem.mars.kcp.KCPSegment;
+import de.mpg.biochem.mars.kcp.KCPArchiveProcessor;
 import de.mpg.biochem.mars.metadata.MarsMetadata;
-import de.mpg.biochem.mars.molecule.MarsRecord;
 import de.mpg.biochem.mars.molecule.Molecule;
 import de.mpg.biochem.mars.molecule.MoleculeArchive;
 import de.mpg.biochem.mars.molecule.MoleculeArchiveIndex;
 import de.mpg.biochem.mars.molecule.MoleculeArchiveProperties;
 import de.mpg.biochem.mars.molecule.MoleculeArchiveService;
-import de.mpg.biochem.mars.table.MarsTable;
 import de.mpg.biochem.mars.util.LogBuilder;
 
 @Plugin(type = Command.class, headless = true, label = "Change Point Finder",
@@ -137,11 +129,6 @@ public class KCPCommand extends DynamicCommand implements Command,
 	@Parameter(label = "Thread count", required = false, min = "1", max = "120")
 	private int nThreads = Runtime.getRuntime().availableProcessors();
 
-	// Global variables
-	// For the progress thread
-	private final AtomicBoolean progressUpdating = new AtomicBoolean(true);
-	private final AtomicInteger numFinished = new AtomicInteger(0);
-
 	// -- Callback methods --
 	@SuppressWarnings("unused")
 	private void archiveSelectionChanged() {
@@ -215,65 +202,32 @@ public class KCPCommand extends DynamicCommand implements Command,
 			UIDs = archive.getMoleculeUIDs();
 		}
 
-		ForkJoinPool forkJoinPool = new ForkJoinPool(nThreads);
-
 		// Output first part of log message...
 		logService.info(log);
 
 		double startTime = System.currentTimeMillis();
 		logService.info("Finding Change Points...");
 		archive.getWindow().updateLockMessage("Finding Change Points...");
-		try {
-			// Start a thread to keep track of the progress of the number of frames
-			// that have been processed.
-			// Waiting call back to update the progress bar!!
-			Thread progressThread = new Thread() {
-
-				public synchronized void run() {
-					try {
-						while (progressUpdating.get()) {
-							Thread.sleep(100);
-							statusService.showStatus(numFinished.intValue(), UIDs.size(),
-								"Finding Change Points for " + archive.getName());
-						}
-					}
-					catch (Exception e) {
-						e.printStackTrace();
-					}
-				}
-			};
 
-			progressThread.start();
-
-			// This will spawn a bunch of threads that will analyze molecules
-			// individually in parallel and put the change point tables back
-			// into the same molecule record.
-
-			forkJoinPool.submit(() -> UIDs.parallelStream().forEach(i -> {
-				Molecule molecule = archive.get(i);
-
-				if (molecule.getTable().hasColumn(xColumn) && molecule.getTable()
-					.hasColumn(yColumn))
-				{
-					findChangePoints(molecule);
-					archive.put(molecule);
-				}
-			})).get();
-
-			progressUpdating.set(false);
+		// Molecules are analyzed in parallel using per thread buffers and the
+		// change point tables are written back into the archive in batches.
+		KCPArchiveProcessor processor = new KCPArchiveProcessor(xColumn, yColumn,
+			confidenceLevel, global_sigma, step_analysis);
+		processor.setRegionFromMetadata(regionSource.equals("Metadata"));
+		if (region) processor.setRegion(regionName);
+		processor.setBackgroundRegion(backgroundRegion, calcBackgroundSigma);
+		processor.setStatusService(statusService);
 
+		try {
+			processor.process(archive, UIDs, nThreads);
 		}
 		catch (InterruptedException | ExecutionException e) {
 			// handle exceptions
 			logService.error(e.getMessage());
 			e.printStackTrace();
 			logService.info(LogBuilder.endBlock(false));
-			forkJoinPool.shutdown();
 			return;
 		}
-		finally {
-			forkJoinPool.shutdown();
-		}
 
 		logService.info("Time: " + DoubleRounder.round((System.currentTimeMillis() -
 			startTime) / 60000, 2) + " minutes.");
@@ -284,136 +238,6 @@ public class KCPCommand extends DynamicCommand implements Command,
 			.getName() + " - Done!");
 	}
 
-	private void findChangePoints(Molecule molecule) {
-		MarsTable table = molecule.getTable();
-		MarsRecord regionRecord = (regionSource.equals("Molecules")) ? molecule : archive.getMetadata(molecule.getMetadataUID());
-
-		// START NaN FIX
-		ArrayList<Double> xDataSafe = new ArrayList<>();
-		ArrayList<Double> yDataSafe = new ArrayList<>();
-		for (int i = 0; i < table.getRowCount(); i++) {
-			if (!Double.isNaN(table.getValue(xColumn, i)) && !Double.isNaN(
-				table.getValue(yColumn, i)))
-			{
-				xDataSafe.add(table.getValue(xColumn, i));
-				yDataSafe.add(table.getValue(yColumn, i));
-			}
-		}
-
-		int rowCount = xDataSafe.size();
-
-		int offset = 0;
-		int length = rowCount;
-
-		int sigXStart = 0;
-		int sigXEnd = rowCount;
-
-		double[] xData = new double[rowCount];
-		double[] yData = new double[rowCount];
-		for (int i = 0; i < rowCount; i++) {
-			xData[i] = xDataSafe.get(i);
-			yData[i] = yDataSafe.get(i);
-		}
-		// END FIX
-
-		if (region && !regionRecord.hasRegion(regionName)) return;
-
-		boolean offsetSet = false;
-		boolean sigmaOffsetSet = false;
-		for (int j = 0; j < rowCount; j++) {
-			if (region) {
-				if (xData[j] >= regionRecord.getRegion(regionName).getStart() &&
-					!offsetSet)
-				{
-					offset = j;
-					offsetSet = true;
-				}
-				else if (xData[j] <= regionRecord.getRegion(regionName).getEnd()) {
-					length = j - offset + 1;
-				}
-			}
-
-			if (calcBackgroundSigma && regionRecord.hasRegion(backgroundRegion)) {
-				if (xData[j] >= regionRecord.getRegion(backgroundRegion).getStart() &&
-					!sigmaOffsetSet)
-				{
-					sigXStart = j;
-					sigmaOffsetSet = true;
-				}
-				else if (xData[j] <= regionRecord.getRegion(backgroundRegion)
-					.getEnd())
-				{
-					sigXEnd = j;
-				}
-			}
-		}
-
-		if (length == 0) {
-			// When length is zero we add a single dummy row with all NaN values.
-			ArrayList<KCPSegment> segments = new ArrayList<>();
-			KCPSegment segment = new KCPSegment(Double.NaN, Double.NaN, Double.NaN,
-				Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
-			segments.add(segment);
-			molecule.putSegmentsTable(xColumn, yColumn, buildSegmentTable(segments));
-			numFinished.incrementAndGet();
-			return;
-		}
-
-		// Use global sigma or use local sigma or calculate sigma (in this order of
-		// priority)
-		double sigma = global_sigma;
-		if (molecule.hasParameter(yColumn + "_sigma")) {
-			sigma = molecule.getParameter(yColumn + "_sigma");
-		}
-		else if (molecule.hasRegion(backgroundRegion)) {
-			if (calcBackgroundSigma) sigma = KCP.calc_sigma(yData, sigXStart,
-					sigXEnd);
-		}
-
-		double[] xRegion = Arrays.copyOfRange(xData, offset, offset + length);
-		double[] yRegion = Arrays.copyOfRange(yData, offset, offset + length);
-
-		KCP change = new KCP(sigma, confidenceLevel, xRegion, yRegion,
-			step_analysis);
-		try {
-			MarsTable segmentsTable = buildSegmentTable(change.generate_segments());
-			if (region) molecule.putSegmentsTable(xColumn, yColumn, regionName,
-				segmentsTable);
-			else molecule.putSegmentsTable(xColumn, yColumn, segmentsTable);
-		}
-		catch (ArrayIndexOutOfBoundsException e) {
-			e.printStackTrace();
-		}
-		numFinished.incrementAndGet();
-	}
-
-	private MarsTable buildSegmentTable(List<KCPSegment> segments) {
-		MarsTable output = new MarsTable();
-		output.add(new DoubleColumn(KCPSegment.X1));
-		output.add(new DoubleColumn(KCPSegment.Y1));
-		output.add(new DoubleColumn(KCPSegment.X2));
-		output.add(new DoubleColumn(KCPSegment.Y2));
-		output.add(new DoubleColumn(KCPSegment.A));
-		output.add(new DoubleColumn(KCPSegment.SIGMA_A));
-		output.add(new DoubleColumn(KCPSegment.B));
-		output.add(new DoubleColumn(KCPSegment.SIGMA_B));
-
-		int row = 0;
-		for (KCPSegment seg : segments) {
-			output.appendRow();
-			output.setValue(KCPSegment.X1, row, seg.x1);
-			output.setValue(KCPSegment.Y1, row, seg.y1);
-			output.setValue(KCPSegment.X2, row, seg.x2);
-			output.setValue(KCPSegment.Y2, row, seg.y2);
-			output.setValue(KCPSegment.A, row, seg.a);
-			output.setValue(KCPSegment.SIGMA_A, row, seg.sigma_a);
-			output.setValue(KCPSegment.B, row, seg.b);
-			output.setValue(KCPSegment.SIGMA_B, row, seg.sigma_b);
-			row++;
-		}
-		return output;
-	}
-
 	private void addInputParameterLog(LogBuilder builder) {
 		builder.addParameter("MoleculeArchive", archive.getName());
 		builder.addParameter("X Column", xColumn);
@@ -37,7 +37,6 @@ import io.scif.util.FormatTools;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -71,8 +70,7 @@ public class MarsOMEImage extends AbstractJsonConvertibleRecord implements
 	GenericModel, JsonConvertibleRecord
 {
 
-	private final Map<Integer, MarsOMEPlane> marsOMEPlanes =
-			new LinkedHashMap<>();
+	private final MarsOMEPlaneTable planeTable = new MarsOMEPlaneTable();
 
 	private String id;
 	private String pixelID;
@@ -146,10 +144,10 @@ public class MarsOMEImage extends AbstractJsonConvertibleRecord implements
 		// Build Planes
 		for (int planeIndex = 0; planeIndex < md.getPlaneCount(
 			imageIndex); planeIndex++)
-			if (md.getPlaneTheT(imageIndex, planeIndex) != null) marsOMEPlanes.put(
-				planeIndex, new MarsOMEPlane(this, md, imageIndex, planeIndex));
+			if (md.getPlaneTheT(imageIndex, planeIndex) != null) setPlane(
+				new MarsOMEPlane(this, md, imageIndex, planeIndex), planeIndex);
 
-		if (marsOMEPlanes.size() == 0) createPlanesFromDimensions();
+		if (planeTable.size() == 0) createPlanesFromDimensions();
 
 		if (md.getInstrumentCount() > 0) {
 			detectorSerialNumber = md.getDetectorSerialNumber(0, imageIndex);
@@ -178,8 +176,8 @@ public class MarsOMEImage extends AbstractJsonConvertibleRecord implements
 					for (MapPair pair : omeFieldsList)
 						fieldsMap.put(pair.getName(), pair.getValue());
 
-					if (marsOMEPlanes.containsKey(planeIndex)) marsOMEPlanes.get(
-						planeIndex).setStringFields(fieldsMap);
+					if (hasPlane(planeIndex)) getPlane(planeIndex).setStringFields(
+						fieldsMap);
 				}
 			}
 		}
@@ -200,9 +198,9 @@ public class MarsOMEImage extends AbstractJsonConvertibleRecord implements
 			for (int c = 0; c < sizeC.getValue(); c++)
 				for (int t = 0; t < sizeT.getValue(); t++) {
 					int planeIndex = (int) getPlaneIndex(z, c, t);
-					marsOMEPlanes.put(planeIndex, new MarsOMEPlane(this, imageID,
-						planeIndex, new NonNegativeInteger(z), new NonNegativeInteger(c),
-						new NonNegativeInteger(t)));
+					setPlane(new MarsOMEPlane(this, imageID, planeIndex,
+						new NonNegativeInteger(z), new NonNegativeInteger(c),
+						new NonNegativeInteger(t)), planeIndex);
 				}
 	}
 
@@ -400,46 +398,73 @@ public class MarsOMEImage extends AbstractJsonConvertibleRecord implements
 	}
 
 	public int getPlaneCount() {
-		return marsOMEPlanes.size();
+		return planeTable.size();
 	}
 
+	/**
+	 * Stores the values of the plane given at the plane index given. Afterwards
+	 * the plane refers to the values stored in this image.
+	 * 
+	 * @param plane The plane to store.
+	 * @param planeIndex The plane index.
+	 */
 	public void setPlane(MarsOMEPlane plane, int planeIndex) {
-		marsOMEPlanes.put(planeIndex, plane);
+		int row = planeTable.getRow(planeIndex);
+		if (row < 0) {
+			row = planeTable.addRow();
+			planeTable.setKey(row, planeIndex);
+		}
+		if (plane.getTable() != planeTable || plane.getRow() != row) planeTable
+			.copyRow(plane.getTable(), plane.getRow(), row);
+		plane.setRow(planeTable, row);
+		plane.setImage(this);
 	}
 
 	public void setPlane(MarsOMEPlane plane, int z, int c, int t) {
-		marsOMEPlanes.put((int) getPlaneIndex(z, c, t), plane);
+		setPlane(plane, (int) getPlaneIndex(z, c, t));
 	}
 
 	public MarsOMEPlane getPlane(int planeIndex) {
-		return marsOMEPlanes.get(planeIndex);
+		int row = planeTable.getRow(planeIndex);
+		return (row < 0) ? null : new MarsOMEPlane(this, planeTable, row);
 	}
 
 	public MarsOMEPlane getPlane(int z, int c, int t) {
 		return getPlane((int) getPlaneIndex(z, c, t));
 	}
 
+	/**
+	 * Returns the planes by plane index in the order they were added. The map
+	 * is no longer the live map of the image. It is created on each call, so
+	 * adding or removing entries does not change the image. Use
+	 * {@link #setPlane(MarsOMEPlane, int)} to add planes. The planes themselves
+	 * still refer to the values stored in the image, so setting values on them
+	 * changes the image.
+	 * 
+	 * @return Map from plane index to plane.
+	 */
 	public Map<Integer, MarsOMEPlane> getPlanes() {
-		return marsOMEPlanes;
+		Map<Integer, MarsOMEPlane> planes = new LinkedHashMap<>();
+		for (int row = 0; row < planeTable.size(); row++)
+			planes.put(planeTable.getKey(row), new MarsOMEPlane(this, planeTable,
+				row));
+		return planes;
 	}
 
 	public boolean hasPlane(int planeIndex) {
-		return marsOMEPlanes.containsKey(planeIndex);
+		return planeTable.getRow(planeIndex) >= 0;
 	}
 
 	public boolean hasPlane(int z, int c, int t) {
-		return marsOMEPlanes.containsKey((int) getPlaneIndex(z, c, t));
+		return hasPlane((int) getPlaneIndex(z, c, t));
 	}
 
+	/**
+	 * @return Stream of the planes sorted by plane index.
+	 */
 	public Stream<MarsOMEPlane> planes() {
-		ArrayList<Integer> planeIndexes = new ArrayList<>(marsOMEPlanes.keySet());
-		Collections.sort(planeIndexes);
-
-		ArrayList<MarsOMEPlane> planeList = new ArrayList<>();
-		planeIndexes.forEach(index -> planeList.add(marsOMEPlanes.get(
-			index)));
-
-		return planeList.stream();
+		return planeTable.rowsByKey().mapToObj(row -> new MarsOMEPlane(this,
+			planeTable, row));
 	}
 
 	public void setDimensionOrder(DimensionOrder dimensionOrder) {
@@ -765,18 +790,17 @@ public class MarsOMEImage extends AbstractJsonConvertibleRecord implements
 		});
 
 		setJsonField("planes", jGenerator -> {
-			if (marsOMEPlanes.size() > 0) {
+			if (planeTable.size() > 0) {
 				jGenerator.writeArrayFieldStart("planes");
-				for (MarsOMEPlane plane : marsOMEPlanes.values())
+				// A single plane is moved from row to row.
+				MarsOMEPlane plane = new MarsOMEPlane(this, planeTable, 0);
+				for (int row = 0; row < planeTable.size(); row++) {
+					plane.setRow(planeTable, row);
 					plane.toJSON(jGenerator);
+				}
 				jGenerator.writeEndArray();
 			}
-		}, jParser -> {
-			while (jParser.nextToken() != JsonToken.END_ARRAY) {
-				MarsOMEPlane plane = new MarsOMEPlane(jParser, this);
-				marsOMEPlanes.put(plane.getPlaneIndex(), plane);
-			}
-		});
+		}, this::readPlanes);
 
 		/*
 		 * 
@@ -956,15 +980,31 @@ public class MarsOMEImage extends AbstractJsonConvertibleRecord implements
 			}
 		});
 
-		setJsonField("Planes", null, jParser -> {
-			while (jParser.nextToken() != JsonToken.END_ARRAY) {
-				MarsOMEPlane plane = new MarsOMEPlane(jParser, this);
-				marsOMEPlanes.put(plane.getPlaneIndex(), plane);
-			}
-		});
+		setJsonField("Planes", null, this::readPlanes);
 
 	}
 
+	/**
+	 * Reads the planes array directly into the plane table. Each plane is
+	 * parsed into a new row which is then registered under its plane index. If
+	 * the plane index is already present its row is overwritten instead.
+	 */
+	private void readPlanes(JsonParser jParser) throws IOException {
+		MarsOMEPlane plane = new MarsOMEPlane(this, planeTable, 0);
+		while (jParser.nextToken() != JsonToken.END_ARRAY) {
+			int row = planeTable.addRow();
+			plane.setRow(planeTable, row);
+			plane.fromJSON(jParser);
+
+			int existing = planeTable.getRow(plane.getPlaneIndex());
+			if (existing >= 0) {
+				planeTable.copyRow(planeTable, row, existing);
+				planeTable.removeLastRow();
+			}
+			else planeTable.setKey(row, plane.getPlaneIndex());
+		}
+	}
+
 	@Override
 	public String toString() {
 		return "Image:" + this.imageID;
@@ -35,12 +35,10 @@ import com.fasterxml.jackson.core.JsonToken;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import de.mpg.biochem.mars.molecule.AbstractJsonConvertibleRecord;
-import ome.units.UNITS;
 import ome.units.quantity.Time;
 import ome.xml.meta.OMEXMLMetadata;
 import ome.xml.model.enums.EnumerationException;
@@ -48,236 +46,222 @@ import ome.xml.model.enums.UnitsTime;
 import ome.xml.model.enums.handlers.UnitsTimeEnumHandler;
 import ome.xml.model.primitives.NonNegativeInteger;
 
+/**
+ * Metadata for a single plane of a {@link MarsOMEImage}. The values are stored
+ * in one row of a {@link MarsOMEPlaneTable}. Planes retrieved from an image
+ * are lightweight views of the row in the image table, so changes are written
+ * directly to the image. A plane created on its own has a single row table
+ * that is copied into the image table by
+ * {@link MarsOMEImage#setPlane(MarsOMEPlane, int)}, after which the plane
+ * refers to the image table.
+ *
+ * @author Karl Duderstadt
+ */
 public class MarsOMEPlane extends AbstractJsonConvertibleRecord implements
 	GenericModel
 {
 
 	private MarsOMEImage image;
 
-	// This is the imageID from the original collection.
-	// Might not be the same as the imageIndex positions for storage.
-	private int imageID;
-	private int planeIndex;
-	private NonNegativeInteger c;
-	private NonNegativeInteger z;
-	private NonNegativeInteger t;
-	private NonNegativeInteger ifd;
-	private String filename;
-	private String uuid;
-
-	private Time dt;
-	private Time exposureTime;
-	private float posX;
-	private float posY;
-	private float posZ;
-
-	private double xDrift;
-	private double yDrift;
-	private double zDrift;
-
-	private Map<String, String> stringFields =
-			new LinkedHashMap<>();
-	private Map<String, Double> valueFields = new LinkedHashMap<>();
+	private MarsOMEPlaneTable table;
+	private int row;
 
 	public MarsOMEPlane() {
 		super();
+		table = new MarsOMEPlaneTable(1);
+		row = table.addRow();
 	}
 
 	public MarsOMEPlane(MarsOMEImage image, OMEXMLMetadata md, int imageIndex,
 		int planeIndex)
 	{
-		super();
+		this();
 
 		this.image = image;
 
-		this.planeIndex = planeIndex;
-		this.c = md.getPlaneTheC(imageIndex, planeIndex);
-		this.z = md.getPlaneTheZ(imageIndex, planeIndex);
-		this.t = md.getPlaneTheT(imageIndex, planeIndex);
-		//this.ifd = md.getTiffDataIFD(imageIndex, planeIndex);
-		//this.filename = md.getUUIDFileName(imageIndex, planeIndex);
-		//this.uuid = md.getUUIDValue(imageIndex, planeIndex);
-
-		this.dt = md.getPlaneDeltaT(imageIndex, planeIndex);
-		this.exposureTime = md.getPlaneExposureTime(imageIndex, planeIndex);
-		this.posX = -1;
-		this.posY = -1;
-		this.posZ = -1;
-
+		setPlaneIndex(planeIndex);
+		setC(md.getPlaneTheC(imageIndex, planeIndex));
+		setZ(md.getPlaneTheZ(imageIndex, planeIndex));
+		setT(md.getPlaneTheT(imageIndex, planeIndex));
+		//setIFD(md.getTiffDataIFD(imageIndex, planeIndex));
+		//setFilename(md.getUUIDFileName(imageIndex, planeIndex));
+		//setUUID(md.getUUIDValue(imageIndex, planeIndex));
+
+		setDeltaT(md.getPlaneDeltaT(imageIndex, planeIndex));
+		setExposureTime(md.getPlaneExposureTime(imageIndex, planeIndex));
+		setPosX(-1);
+		setPosY(-1);
+		setPosZ(-1);
+
+		int imageID = imageIndex;
 		if (md.getImageID(imageIndex) != null) {
 			try {
-				this.imageID = Integer.parseInt(md.getImageID(imageIndex).substring(6));
+				imageID = Integer.parseInt(md.getImageID(imageIndex).substring(6));
 			}
 			catch (NumberFormatException e) {
-				this.imageID = imageIndex;
+				imageID = imageIndex;
 			}
 		}
-		else this.imageID = imageIndex;
+		setImageID(imageID);
 	}
 
 	public MarsOMEPlane(MarsOMEImage image, int imageIndex, int planeIndex,
 		NonNegativeInteger Z, NonNegativeInteger C, NonNegativeInteger T)
 	{
-		super();
+		this();
 
 		this.image = image;
 
-		this.imageID = imageIndex;
-		this.planeIndex = planeIndex;
-		this.c = C;
-		this.z = Z;
-		this.t = T;
+		setImageID(imageIndex);
+		setPlaneIndex(planeIndex);
+		setC(C);
+		setZ(Z);
+		setT(T);
 
-		this.posX = -1;
-		this.posY = -1;
-		this.posZ = -1;
+		setPosX(-1);
+		setPosY(-1);
+		setPosZ(-1);
 	}
 
 	public MarsOMEPlane(JsonParser jParser, MarsOMEImage image)
 		throws IOException
 	{
-		super();
+		this();
 		this.image = image;
 		fromJSON(jParser);
 	}
 
+	/**
+	 * Creates a plane that reads and writes the row given.
+	 */
+	MarsOMEPlane(MarsOMEImage image, MarsOMEPlaneTable table, int row) {
+		super();
+		this.image = image;
+		this.table = table;
+		this.row = row;
+	}
+
+	MarsOMEPlaneTable getTable() {
+		return table;
+	}
+
+	int getRow() {
+		return row;
+	}
+
+	/**
+	 * Points this plane at another row. Used to reuse a single instance while
+	 * reading or writing all planes of an image.
+	 */
+	void setRow(MarsOMEPlaneTable table, int row) {
+		this.table = table;
+		this.row = row;
+	}
+
 	@Override
 	protected void createIOMaps() {
 
 		UnitsTimeEnumHandler timeHandler = new UnitsTimeEnumHandler();
 
 		setJsonField("imageID", jGenerator -> jGenerator.writeNumberField("imageID",
-			imageID), jParser -> imageID = jParser.getIntValue());
+			table.imageID[row]), jParser -> table.imageID[row] = jParser
+				.getIntValue());
 
 		setJsonField("plane", jGenerator -> jGenerator.writeNumberField("plane",
-			planeIndex), jParser -> planeIndex = jParser.getIntValue());
+			table.planeIndex[row]), jParser -> table.planeIndex[row] = jParser
+				.getIntValue());
 
 		setJsonField("c", jGenerator -> {
-			if (c != null) jGenerator.writeNumberField("c", c.getValue());
-		}, jParser -> c = new NonNegativeInteger(jParser.getIntValue()));
+			if (table.c[row] >= 0) jGenerator.writeNumberField("c", table.c[row]);
+		}, jParser -> table.c[row] = jParser.getIntValue());
 
 		setJsonField("z", jGenerator -> {
-			if (z != null) jGenerator.writeNumberField("z", z.getValue());
-		}, jParser -> z = new NonNegativeInteger(jParser.getIntValue()));
+			if (table.z[row] >= 0) jGenerator.writeNumberField("z", table.z[row]);
+		}, jParser -> table.z[row] = jParser.getIntValue());
 
 		setJsonField("t", jGenerator -> {
-			if (t != null) jGenerator.writeNumberField("t", t.getValue());
-		}, jParser -> t = new NonNegativeInteger(jParser.getIntValue()));
+			if (table.t[row] >= 0) jGenerator.writeNumberField("t", table.t[row]);
+		}, jParser -> table.t[row] = jParser.getIntValue());
 
 		setJsonField("ifd", jGenerator -> {
-			if (ifd != null) jGenerator.writeNumberField("ifd", ifd.getValue());
-		}, jParser -> ifd = new NonNegativeInteger(jParser.getIntValue()));
+			if (table.ifd[row] >= 0) jGenerator.writeNumberField("ifd",
+				table.ifd[row]);
+		}, jParser -> table.ifd[row] = jParser.getIntValue());
 
 		setJsonField("filename", jGenerator -> {
-			if (filename != null) jGenerator.writeStringField("filename", filename);
-		}, jParser -> filename = jParser.getText());
+			if (getFilename() != null) jGenerator.writeStringField("filename",
+				getFilename());
+		}, jParser -> setFilename(jParser.getText()));
 
 		setJsonField("uuid", jGenerator -> {
-			if (uuid != null) jGenerator.writeStringField("uuid", uuid);
-		}, jParser -> uuid = jParser.getText());
+			if (getUUID() != null) jGenerator.writeStringField("uuid", getUUID());
+		}, jParser -> setUUID(jParser.getText()));
 
 		setJsonField("deltaT", jGenerator -> {
-			if (dt != null) {
+			if (table.dtUnit[row] != null) {
 				jGenerator.writeObjectFieldStart("deltaT");
-				jGenerator.writeNumberField("value", dt.value().doubleValue());
-				jGenerator.writeStringField("units", dt.unit().getSymbol());
+				jGenerator.writeNumberField("value", table.dtValue[row]);
+				jGenerator.writeStringField("units", table.dtUnit[row].getSymbol());
 				jGenerator.writeEndObject();
 			}
 		}, jParser -> {
-			double value = Double.NaN;
-			String units = "";
-			while (jParser.nextToken() != JsonToken.END_OBJECT) {
-				String subFieldName = jParser.getCurrentName();
-				jParser.nextToken();
-				if (subFieldName.equals("value")) value = jParser.getDoubleValue();
-
-				if (subFieldName.equals("units")) units = jParser.getText();
-			}
-			try {
-				dt = new Time(value, UnitsTimeEnumHandler.getBaseUnit(
-					(UnitsTime) timeHandler.getEnumeration(units)));
-			}
-			catch (EnumerationException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+			Time dt = readTime(jParser, timeHandler);
+			if (dt != null) setDeltaT(dt);
 		});
 
 		setJsonField("exposureTime", jGenerator -> {
-			if (exposureTime != null) {
+			if (table.exposureUnit[row] != null) {
 				jGenerator.writeObjectFieldStart("exposureTime");
-				jGenerator.writeNumberField("value", exposureTime.value()
-					.doubleValue());
-				jGenerator.writeStringField("units", exposureTime.unit().getSymbol());
+				jGenerator.writeNumberField("value", table.exposureValue[row]);
+				jGenerator.writeStringField("units", table.exposureUnit[row]
+					.getSymbol());
 				jGenerator.writeEndObject();
 			}
 		}, jParser -> {
-			double value = Double.NaN;
-			String units = "";
-			while (jParser.nextToken() != JsonToken.END_OBJECT) {
-				String subFieldName = jParser.getCurrentName();
-				jParser.nextToken();
-				if (subFieldName.equals("value")) value = jParser.getDoubleValue();
-
-				if (subFieldName.equals("units")) units = jParser.getText();
-			}
-			try {
-				exposureTime = new Time(value, UnitsTimeEnumHandler.getBaseUnit(
-					(UnitsTime) timeHandler.getEnumeration(units)));
-			}
-			catch (EnumerationException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+			Time exposureTime = readTime(jParser, timeHandler);
+			if (exposureTime != null) setExposureTime(exposureTime);
 		});
 
 		setJsonField("posX", jGenerator -> jGenerator.writeNumberField("posX",
-			posX), jParser -> posX = jParser.getFloatValue());
+			table.posX[row]), jParser -> table.posX[row] = jParser.getFloatValue());
 
 		setJsonField("posY", jGenerator -> jGenerator.writeNumberField("posY",
-			posY), jParser -> posY = jParser.getFloatValue());
+			table.posY[row]), jParser -> table.posY[row] = jParser.getFloatValue());
 
 		setJsonField("posZ", jGenerator -> jGenerator.writeNumberField("posZ",
-			posZ), jParser -> posZ = jParser.getFloatValue());
+			table.posZ[row]), jParser -> table.posZ[row] = jParser.getFloatValue());
 
 		setJsonField("xDrift", jGenerator -> jGenerator.writeNumberField("xDrift",
-			xDrift), jParser -> xDrift = jParser.getDoubleValue());
+			table.xDrift[row]), jParser -> table.xDrift[row] = jParser
+				.getDoubleValue());
 
 		setJsonField("yDrift", jGenerator -> jGenerator.writeNumberField("yDrift",
-			yDrift), jParser -> yDrift = jParser.getDoubleValue());
+			table.yDrift[row]), jParser -> table.yDrift[row] = jParser
+				.getDoubleValue());
 
 		setJsonField("zDrift", jGenerator -> jGenerator.writeNumberField("zDrift",
-			zDrift), jParser -> zDrift = jParser.getDoubleValue());
+			table.zDrift[row]), jParser -> table.zDrift[row] = jParser
+				.getDoubleValue());
 
 		setJsonField("stringFields", jGenerator -> {
-			if (stringFields.size() > 0) {
+			Map<String, String> stringFields = table.getStringFields(row, false);
+			if (stringFields != null && stringFields.size() > 0) {
 				jGenerator.writeObjectFieldStart("stringFields");
 				for (String name : stringFields.keySet())
 					jGenerator.writeStringField(name, stringFields.get(name));
 				jGenerator.writeEndObject();
 			}
-		}, jParser -> {
-			while (jParser.nextToken() != JsonToken.END_OBJECT) {
-				String fieldName = jParser.getCurrentName();
-				jParser.nextToken();
-				stringFields.put(fieldName, jParser.getText());
-			}
-		});
+		}, this::readStringFields);
 
 		setJsonField("valueFields", jGenerator -> {
-			if (stringFields.size() > 0) {
+			Map<String, Double> valueFields = table.getValueFields(row, false);
+			if (valueFields != null && valueFields.size() > 0) {
 				jGenerator.writeObjectFieldStart("valueFields");
 				for (String name : valueFields.keySet())
 					jGenerator.writeNumberField(name, valueFields.get(name));
 				jGenerator.writeEndObject();
 			}
-		}, jParser -> {
-			while (jParser.nextToken() != JsonToken.END_OBJECT) {
-				String fieldName = jParser.getCurrentName();
-				jParser.nextToken();
-				valueFields.put(fieldName, jParser.getDoubleValue());
-			}
-		});
+		}, this::readValueFields);
 
 		/*
 		 * 
@@ -287,138 +271,178 @@ public class MarsOMEPlane extends AbstractJsonConvertibleRecord implements
 		 * 
 		 */
 
-		setJsonField("C", null, jParser -> c = new NonNegativeInteger(jParser
-			.getIntValue()));
+		setJsonField("C", null, jParser -> table.c[row] = jParser.getIntValue());
 
-		setJsonField("Z", null, jParser -> z = new NonNegativeInteger(jParser
-			.getIntValue()));
+		setJsonField("Z", null, jParser -> table.z[row] = jParser.getIntValue());
 
-		setJsonField("T", null, jParser -> t = new NonNegativeInteger(jParser
-			.getIntValue()));
+		setJsonField("T", null, jParser -> table.t[row] = jParser.getIntValue());
 
-		setJsonField("StringFields", null, jParser -> {
-			while (jParser.nextToken() != JsonToken.END_OBJECT) {
-				String fieldName = jParser.getCurrentName();
-				jParser.nextToken();
-				stringFields.put(fieldName, jParser.getText());
-			}
-		});
+		setJsonField("StringFields", null, this::readStringFields);
 
-		setJsonField("ValueFields", null, jParser -> {
-			while (jParser.nextToken() != JsonToken.END_OBJECT) {
-				String fieldName = jParser.getCurrentName();
-				jParser.nextToken();
-				valueFields.put(fieldName, jParser.getDoubleValue());
-			}
-		});
+		setJsonField("ValueFields", null, this::readValueFields);
+	}
+
+	private static Time readTime(JsonParser jParser,
+		UnitsTimeEnumHandler timeHandler) throws IOException
+	{
+		double value = Double.NaN;
+		String units = "";
+		while (jParser.nextToken() != JsonToken.END_OBJECT) {
+			String subFieldName = jParser.getCurrentName();
+			jParser.nextToken();
+			if (subFieldName.equals("value")) value = jParser.getDoubleValue();
+
+			if (subFieldName.equals("units")) units = jParser.getText();
+		}
+		try {
+			return new Time(value, UnitsTimeEnumHandler.getBaseUnit(
+				(UnitsTime) timeHandler.getEnumeration(units)));
+		}
+		catch (EnumerationException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private void readStringFields(JsonParser jParser) throws IOException {
+		Map<String, String> stringFields = table.getStringFields(row, true);
+		while (jParser.nextToken() != JsonToken.END_OBJECT) {
+			String fieldName = jParser.getCurrentName();
+			jParser.nextToken();
+			stringFields.put(fieldName, jParser.getText());
+		}
+	}
+
+	private void readValueFields(JsonParser jParser) throws IOException {
+		Map<String, Double> valueFields = table.getValueFields(row, true);
+		while (jParser.nextToken() != JsonToken.END_OBJECT) {
+			String fieldName = jParser.getCurrentName();
+			jParser.nextToken();
+			valueFields.put(fieldName, jParser.getDoubleValue());
+		}
+	}
+
+	private static String toString(int index) {
+		return (index >= 0) ? Integer.toString(index) : "null";
 	}
 
 	@Override
 	public String toString() {
-		return "C = " + c + " | Z = " + z + " | T = " + t;
+		return "C = " + toString(table.c[row]) + " | Z = " + toString(
+			table.z[row]) + " | T = " + toString(table.t[row]);
 	}
 
 	@Override
 	public Iterable<List<String>> getInformationsRow() {
 		List<List<String>> rows = new ArrayList<>();
 
-		rows.add(Arrays.asList("TiffData ID", Integer.toString(this.planeIndex)));
-		if (ifd != null) rows.add(Arrays.asList("IFD", this.ifd.toString()));
-		if (c != null) rows.add(Arrays.asList("C position", this.c.toString()));
-		if (z != null) rows.add(Arrays.asList("Z position", this.z.toString()));
-		if (t != null) rows.add(Arrays.asList("T position", this.t.toString()));
+		rows.add(Arrays.asList("TiffData ID", Integer.toString(getPlaneIndex())));
+		if (table.ifd[row] >= 0) rows.add(Arrays.asList("IFD", Integer.toString(
+			table.ifd[row])));
+		if (table.c[row] >= 0) rows.add(Arrays.asList("C position", Integer
+			.toString(table.c[row])));
+		if (table.z[row] >= 0) rows.add(Arrays.asList("Z position", Integer
+			.toString(table.z[row])));
+		if (table.t[row] >= 0) rows.add(Arrays.asList("T position", Integer
+			.toString(table.t[row])));
 
 		if (this.getDeltaTinSeconds() >= 0) {
-			rows.add(Arrays.asList("dt", this.dt.value().doubleValue() + " " + this.dt
-				.unit().getSymbol()));
+			rows.add(Arrays.asList("dt", table.dtValue[row] + " " + table.dtUnit[row]
+				.getSymbol()));
 		}
 		else {
 			rows.add(Arrays.asList("dt", ""));
 		}
 
 		if (this.getExposureTimeInSeconds() >= 0) {
-			rows.add(Arrays.asList("Exposure time", this.exposureTime.value()
-				.doubleValue() + " " + this.exposureTime.unit().getSymbol()));
+			rows.add(Arrays.asList("Exposure time", table.exposureValue[row] + " " +
+				table.exposureUnit[row].getSymbol()));
 		}
 		else {
 			rows.add(Arrays.asList("Exposure time", ""));
 		}
 
-		if (this.posX >= 0) {
-			rows.add(Arrays.asList("Position X", this.posX + " µm"));
+		if (table.posX[row] >= 0) {
+			rows.add(Arrays.asList("Position X", table.posX[row] + " µm"));
 		}
 		else {
 			rows.add(Arrays.asList("Position X", ""));
 		}
 
-		if (this.posY >= 0) {
-			rows.add(Arrays.asList("Position Y", this.posY + " µm"));
+		if (table.posY[row] >= 0) {
+			rows.add(Arrays.asList("Position Y", table.posY[row] + " µm"));
 		}
 		else {
 			rows.add(Arrays.asList("Position Y", ""));
 		}
 
-		if (this.posZ >= 0) {
-			rows.add(Arrays.asList("Position Z", this.posZ + " µm"));
+		if (table.posZ[row] >= 0) {
+			rows.add(Arrays.asList("Position Z", table.posZ[row] + " µm"));
 		}
 		else {
 			rows.add(Arrays.asList("Position Z", ""));
 		}
 
-		rows.add(Arrays.asList("Filename", this.filename));
-		rows.add(Arrays.asList("UUID", this.uuid));
+		rows.add(Arrays.asList("Filename", getFilename()));
+		rows.add(Arrays.asList("UUID", getUUID()));
 
-		rows.add(Arrays.asList("xDrift", String.valueOf(xDrift)));
-		rows.add(Arrays.asList("yDrift", String.valueOf(yDrift)));
-		rows.add(Arrays.asList("zDrift", String.valueOf(zDrift)));
+		rows.add(Arrays.asList("xDrift", String.valueOf(getXDrift())));
+		rows.add(Arrays.asList("yDrift", String.valueOf(getYDrift())));
+		rows.add(Arrays.asList("zDrift", String.valueOf(getZDrift())));
 
-		for (String field : stringFields.keySet())
+		Map<String, String> stringFields = table.getStringFields(row, false);
+		if (stringFields != null) for (String field : stringFields.keySet())
 			rows.add(Arrays.asList(field, stringFields.get(field)));
 
-		for (String field : valueFields.keySet())
+		Map<String, Double> valueFields = table.getValueFields(row, false);
+		if (valueFields != null) for (String field : valueFields.keySet())
 			rows.add(Arrays.asList(field, String.valueOf(valueFields.get(field))));
 
 		return rows;
 	}
 
 	public void setField(String field, double value) {
-		valueFields.put(field, value);
+		table.getValueFields(row, true).put(field, value);
 	}
 
 	public double getField(String field) {
-		return valueFields.get(field);
+		return table.getValueFields(row, false).get(field);
 	}
 
 	public boolean hasField(String field) {
-		return valueFields.containsKey(field);
+		Map<String, Double> valueFields = table.getValueFields(row, false);
+		return valueFields != null && valueFields.containsKey(field);
 	}
 
 	public void setFields(Map<String, Double> valueFields) {
-		this.valueFields = valueFields;
+		table.setValueFields(row, valueFields);
 	}
 
 	public Map<String, Double> getFields() {
-		return valueFields;
+		return table.getValueFields(row, true);
 	}
 
 	public void setStringField(String field, String value) {
-		stringFields.put(field, value);
+		table.getStringFields(row, true).put(field, value);
 	}
 
 	public boolean hasStringField(String field) {
-		return stringFields.containsKey(field);
+		Map<String, String> stringFields = table.getStringFields(row, false);
+		return stringFields != null && stringFields.containsKey(field);
 	}
 
 	public String getStringField(String field) {
-		return stringFields.get(field);
+		Map<String, String> stringFields = table.getStringFields(row, false);
+		return (stringFields == null) ? null : stringFields.get(field);
 	}
 
 	public Map<String, String> getStringFields() {
-		return stringFields;
+		return table.getStringFields(row, true);
 	}
 
 	public void setStringFields(Map<String, String> stringFields) {
-		this.stringFields = stringFields;
+		table.setStringFields(row, stringFields);
 	}
 
 	public MarsOMEImage getImage() {
@@ -430,133 +454,132 @@ public class MarsOMEPlane extends AbstractJsonConvertibleRecord implements
 	}
 
 	public void setDeltaT(Time dt) {
-		this.dt = dt;
+		table.setDeltaT(row, dt);
 	}
 
 	public double getDeltaTinSeconds() {
-		if (dt != null) return dt.value(UNITS.SECOND).doubleValue();
+		if (table.dtUnit[row] != null) return table.dtSeconds[row];
 		return -1;
 	}
 
 	public void setImageID(int imageID) {
-		this.imageID = imageID;
+		table.imageID[row] = imageID;
 	}
 
 	public int getImageID() {
-		return imageID;
+		return table.imageID[row];
 	}
 
 	public void setPlaneIndex(int planeIndex) {
-		this.planeIndex = planeIndex;
+		table.planeIndex[row] = planeIndex;
 	}
 
 	public int getPlaneIndex() {
-		return planeIndex;
+		return table.planeIndex[row];
 	}
 
 	public void setC(NonNegativeInteger c) {
-		this.c = c;
+		table.c[row] = (c == null) ? -1 : c.getValue();
 	}
 
 	public int getC() {
-		return c.getValue();
+		return table.c[row];
 	}
 
 	public void setZ(NonNegativeInteger z) {
-		this.z = z;
+		table.z[row] = (z == null) ? -1 : z.getValue();
 	}
 
 	public int getZ() {
-		return z.getValue();
+		return table.z[row];
 	}
 
 	public void setT(NonNegativeInteger t) {
-		this.t = t;
+		table.t[row] = (t == null) ? -1 : t.getValue();
 	}
 
 	public int getT() {
-		return t.getValue();
+		return table.t[row];
 	}
 
 	public void setIFD(NonNegativeInteger ifd) {
-		this.ifd = ifd;
+		table.ifd[row] = (ifd == null) ? -1 : ifd.getValue();
 	}
 
 	public int getIFD() {
-		return ifd.getValue();
+		return table.ifd[row];
 	}
 
 	public void setFilename(String filename) {
-		this.filename = filename;
+		table.setFilename(row, filename);
 	}
 
 	public String getFilename() {
-		return filename;
+		return table.getFilename(row);
 	}
 
 	public void setUUID(String uuid) {
-		this.uuid = uuid;
+		table.setUUID(row, uuid);
 	}
 
 	public String getUUID() {
-		return uuid;
+		return table.getUUID(row);
 	}
 
 	public void setExposureTime(Time exposureTime) {
-		this.exposureTime = exposureTime;
+		table.setExposureTime(row, exposureTime);
 	}
 
 	public double getExposureTimeInSeconds() {
-		if (exposureTime != null) return exposureTime.value(UNITS.SECOND)
-			.doubleValue();
+		if (table.exposureUnit[row] != null) return table.exposureSeconds[row];
 		return -1;
 	}
 
 	public void setPosX(float posX) {
-		this.posX = posX;
+		table.posX[row] = posX;
 	}
 
 	public double getPosX() {
-		return posX;
+		return table.posX[row];
 	}
 
 	public void setPosY(float posY) {
-		this.posY = posY;
+		table.posY[row] = posY;
 	}
 
 	public double getPosY() {
-		return posY;
+		return table.posY[row];
 	}
 
 	public void setPosZ(float posZ) {
-		this.posZ = posZ;
+		table.posZ[row] = posZ;
 	}
 
 	public double getPosZ() {
-		return posZ;
+		return table.posZ[row];
 	}
 
 	public double getXDrift() {
-		return xDrift;
+		return table.xDrift[row];
 	}
 
 	public void setXDrift(double xDrift) {
-		this.xDrift = xDrift;
+		table.xDrift[row] = xDrift;
 	}
 
 	public double getYDrift() {
-		return yDrift;
+		return table.yDrift[row];
 	}
 
 	public void setYDrift(double yDrift) {
-		this.yDrift = yDrift;
+		table.yDrift[row] = yDrift;
 	}
 
 	public double getZDrift() {
-		return zDrift;
+		return table.zDrift[row];
 	}
 
 	public void setZDrift(double zDrift) {
-		this.zDrift = zDrift;
+		table.zDrift[row] = zDrift;
 	}
 }
@@ -0,0 +1,371 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.metadata;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import ome.units.UNITS;
+import ome.units.quantity.Time;
+import ome.units.unit.Unit;
+
+/**
+ * Columnar storage for the planes of a {@link MarsOMEImage}. Each plane is a
+ * row and each plane property is a primitive array indexed by row, so even
+ * images with hundreds of thousands of planes only need a few arrays. Rows are
+ * kept in the order planes were added, which is also the order they are
+ * serialized in, and are looked up by plane index through a dense array.
+ * {@link MarsOMEPlane} instances are flyweights that read and write one row.
+ * <p>
+ * Time values are stored as value and unit so they are written back exactly
+ * as they were read. The value in seconds is stored as well so the common
+ * lookups do not convert units. Columns that are rarely used, like filenames
+ * and custom fields, are only allocated once a value is set.
+ *
+ * @author Karl Duderstadt
+ */
+class MarsOMEPlaneTable {
+
+	private int size;
+	private int capacity;
+
+	// Row of each plane index (key), or -1, and the key of each row.
+	private int[] rowOfKey = new int[0];
+	private int[] keyOfRow;
+
+	int[] imageID;
+	int[] planeIndex;
+
+	// -1 when not set
+	int[] c;
+	int[] z;
+	int[] t;
+	int[] ifd;
+
+	float[] posX;
+	float[] posY;
+	float[] posZ;
+
+	double[] xDrift;
+	double[] yDrift;
+	double[] zDrift;
+
+	// A null unit means the time is not set.
+	double[] dtValue;
+	double[] dtSeconds;
+	Unit<Time>[] dtUnit;
+	double[] exposureValue;
+	double[] exposureSeconds;
+	Unit<Time>[] exposureUnit;
+
+	// Allocated on first use
+	String[] filename;
+	String[] uuid;
+	Map<String, String>[] stringFields;
+	Map<String, Double>[] valueFields;
+
+	MarsOMEPlaneTable() {
+		this(16);
+	}
+
+	MarsOMEPlaneTable(int capacity) {
+		allocate(Math.max(capacity, 1));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void allocate(int newCapacity) {
+		keyOfRow = grow(keyOfRow, newCapacity);
+		imageID = grow(imageID, newCapacity);
+		planeIndex = grow(planeIndex, newCapacity);
+		c = grow(c, newCapacity);
+		z = grow(z, newCapacity);
+		t = grow(t, newCapacity);
+		ifd = grow(ifd, newCapacity);
+		posX = grow(posX, newCapacity);
+		posY = grow(posY, newCapacity);
+		posZ = grow(posZ, newCapacity);
+		xDrift = grow(xDrift, newCapacity);
+		yDrift = grow(yDrift, newCapacity);
+		zDrift = grow(zDrift, newCapacity);
+		dtValue = grow(dtValue, newCapacity);
+		dtSeconds = grow(dtSeconds, newCapacity);
+		exposureValue = grow(exposureValue, newCapacity);
+		exposureSeconds = grow(exposureSeconds, newCapacity);
+		dtUnit = (dtUnit == null) ? new Unit[newCapacity] : Arrays.copyOf(dtUnit,
+			newCapacity);
+		exposureUnit = (exposureUnit == null) ? new Unit[newCapacity] : Arrays
+			.copyOf(exposureUnit, newCapacity);
+		if (filename != null) filename = Arrays.copyOf(filename, newCapacity);
+		if (uuid != null) uuid = Arrays.copyOf(uuid, newCapacity);
+		if (stringFields != null) stringFields = Arrays.copyOf(stringFields,
+			newCapacity);
+		if (valueFields != null) valueFields = Arrays.copyOf(valueFields,
+			newCapacity);
+		capacity = newCapacity;
+	}
+
+	private static int[] grow(int[] array, int newCapacity) {
+		return (array == null) ? new int[newCapacity] : Arrays.copyOf(array,
+			newCapacity);
+	}
+
+	private static float[] grow(float[] array, int newCapacity) {
+		return (array == null) ? new float[newCapacity] : Arrays.copyOf(array,
+			newCapacity);
+	}
+
+	private static double[] grow(double[] array, int newCapacity) {
+		return (array == null) ? new double[newCapacity] : Arrays.copyOf(array,
+			newCapacity);
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Appends a row with the values of a new {@link MarsOMEPlane}. The row has
+	 * no plane index key until {@link #setKey(int, int)} is called.
+	 * 
+	 * @return The new row.
+	 */
+	int addRow() {
+		if (size == capacity) allocate(capacity * 2);
+		int row = size++;
+		keyOfRow[row] = -1;
+		imageID[row] = 0;
+		planeIndex[row] = 0;
+		c[row] = -1;
+		z[row] = -1;
+		t[row] = -1;
+		ifd[row] = -1;
+		posX[row] = 0;
+		posY[row] = 0;
+		posZ[row] = 0;
+		xDrift[row] = 0;
+		yDrift[row] = 0;
+		zDrift[row] = 0;
+		dtUnit[row] = null;
+		exposureUnit[row] = null;
+		if (filename != null) filename[row] = null;
+		if (uuid != null) uuid[row] = null;
+		if (stringFields != null) stringFields[row] = null;
+		if (valueFields != null) valueFields[row] = null;
+		return row;
+	}
+
+	/**
+	 * Removes the last row, which must not have a key.
+	 */
+	void removeLastRow() {
+		size--;
+	}
+
+	/**
+	 * @param key The plane index.
+	 * @return The row of the plane index or -1 if there is none.
+	 */
+	int getRow(int key) {
+		return (key >= 0 && key < rowOfKey.length) ? rowOfKey[key] : -1;
+	}
+
+	/**
+	 * Sets the plane index used to look up the row given.
+	 * 
+	 * @param row The row.
+	 * @param key The plane index.
+	 */
+	void setKey(int row, int key) {
+		if (key < 0) throw new IllegalArgumentException("Negative plane index " +
+			key);
+		if (key >= rowOfKey.length) {
+			int oldLength = rowOfKey.length;
+			rowOfKey = Arrays.copyOf(rowOfKey, Math.max(key + 1, oldLength * 2));
+			Arrays.fill(rowOfKey, oldLength, rowOfKey.length, -1);
+		}
+		if (keyOfRow[row] >= 0) rowOfKey[keyOfRow[row]] = -1;
+		rowOfKey[key] = row;
+		keyOfRow[row] = key;
+	}
+
+	int getKey(int row) {
+		return keyOfRow[row];
+	}
+
+	/**
+	 * @return The rows sorted by plane index.
+	 */
+	IntStream rowsByKey() {
+		int[] rows = rowOfKey;
+		return IntStream.range(0, rows.length).map(key -> rows[key]).filter(
+			row -> row >= 0);
+	}
+
+	/**
+	 * Copies all values of a row in another table into a row of this table.
+	 * 
+	 * @param source The table to copy from.
+	 * @param sourceRow The row to copy.
+	 * @param row The row to copy to.
+	 */
+	void copyRow(MarsOMEPlaneTable source, int sourceRow, int row) {
+		imageID[row] = source.imageID[sourceRow];
+		planeIndex[row] = source.planeIndex[sourceRow];
+		c[row] = source.c[sourceRow];
+		z[row] = source.z[sourceRow];
+		t[row] = source.t[sourceRow];
+		ifd[row] = source.ifd[sourceRow];
+		posX[row] = source.posX[sourceRow];
+		posY[row] = source.posY[sourceRow];
+		posZ[row] = source.posZ[sourceRow];
+		xDrift[row] = source.xDrift[sourceRow];
+		yDrift[row] = source.yDrift[sourceRow];
+		zDrift[row] = source.zDrift[sourceRow];
+		dtValue[row] = source.dtValue[sourceRow];
+		dtSeconds[row] = source.dtSeconds[sourceRow];
+		dtUnit[row] = source.dtUnit[sourceRow];
+		exposureValue[row] = source.exposureValue[sourceRow];
+		exposureSeconds[row] = source.exposureSeconds[sourceRow];
+		exposureUnit[row] = source.exposureUnit[sourceRow];
+		setFilename(row, source.getFilename(sourceRow));
+		setUUID(row, source.getUUID(sourceRow));
+		Map<String, String> strings = source.getStringFields(sourceRow, false);
+		setStringFields(row, (strings == null) ? null : new LinkedHashMap<>(
+			strings));
+		Map<String, Double> values = source.getValueFields(sourceRow, false);
+		setValueFields(row, (values == null) ? null : new LinkedHashMap<>(values));
+	}
+
+	Time getDeltaT(int row) {
+		return (dtUnit[row] == null) ? null : new Time(dtValue[row], dtUnit[row]);
+	}
+
+	void setDeltaT(int row, Time dt) {
+		dtUnit[row] = (dt == null) ? null : dt.unit();
+		if (dt == null) return;
+		dtValue[row] = dt.value().doubleValue();
+		dtSeconds[row] = inSeconds(dt);
+	}
+
+	Time getExposureTime(int row) {
+		return (exposureUnit[row] == null) ? null : new Time(exposureValue[row],
+			exposureUnit[row]);
+	}
+
+	void setExposureTime(int row, Time exposureTime) {
+		exposureUnit[row] = (exposureTime == null) ? null : exposureTime.unit();
+		if (exposureTime == null) return;
+		exposureValue[row] = exposureTime.value().doubleValue();
+		exposureSeconds[row] = inSeconds(exposureTime);
+	}
+
+	private static double inSeconds(Time time) {
+		Number seconds = time.value(UNITS.SECOND);
+		return (seconds == null) ? Double.NaN : seconds.doubleValue();
+	}
+
+	String getFilename(int row) {
+		return (filename == null) ? null : filename[row];
+	}
+
+	void setFilename(int row, String value) {
+		if (filename == null) {
+			if (value == null) return;
+			filename = new String[capacity];
+		}
+		filename[row] = value;
+	}
+
+	String getUUID(int row) {
+		return (uuid == null) ? null : uuid[row];
+	}
+
+	void setUUID(int row, String value) {
+		if (uuid == null) {
+			if (value == null) return;
+			uuid = new String[capacity];
+		}
+		uuid[row] = value;
+	}
+
+	/**
+	 * @param row The row.
+	 * @param create Whether to create the map if there is none.
+	 * @return The string fields of the row or null if there are none and create
+	 *         is false.
+	 */
+	@SuppressWarnings("unchecked")
+	Map<String, String> getStringFields(int row, boolean create) {
+		if (stringFields == null) {
+			if (!create) return null;
+			stringFields = new Map[capacity];
+		}
+		if (stringFields[row] == null && create) stringFields[row] =
+			new LinkedHashMap<>();
+		return stringFields[row];
+	}
+
+	@SuppressWarnings("unchecked")
+	void setStringFields(int row, Map<String, String> fields) {
+		if (stringFields == null) {
+			if (fields == null) return;
+			stringFields = new Map[capacity];
+		}
+		stringFields[row] = fields;
+	}
+
+	/**
+	 * @param row The row.
+	 * @param create Whether to create the map if there is none.
+	 * @return The value fields of the row or null if there are none and create
+	 *         is false.
+	 */
+	@SuppressWarnings("unchecked")
+	Map<String, Double> getValueFields(int row, boolean create) {
+		if (valueFields == null) {
+			if (!create) return null;
+			valueFields = new Map[capacity];
+		}
+		if (valueFields[row] == null && create) valueFields[row] =
+			new LinkedHashMap<>();
+		return valueFields[row];
+	}
+
+	@SuppressWarnings("unchecked")
+	void setValueFields(int row, Map<String, Double> fields) {
+		if (valueFields == null) {
+			if (fields == null) return;
+			valueFields = new Map[capacity];
+		}
+		valueFields[row] = fields;
+	}
+}
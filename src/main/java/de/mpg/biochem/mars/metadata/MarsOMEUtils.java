@@ -494,16 +494,14 @@ public class MarsOMEUtils {
 		// Let's build some maps from t to dt for each color...
 		for (int channelIndex = 0; channelIndex < marsOMEMetadata.getImage(0)
 			.getSizeC(); channelIndex++)
-		{
-			HashMap<Integer, Double> tToDtMap = new HashMap<>();
-
-			final int finalChannelIndex = channelIndex;
-			marsOMEMetadata.getImage(0).planes().filter(plane -> plane
-				.getC() == finalChannelIndex).forEach(plane -> tToDtMap.put(plane
-					.getT(), plane.getDeltaTinSeconds()));
-
-			channelToTtoDtMap.put(channelIndex, tToDtMap);
-		}
+			channelToTtoDtMap.put(channelIndex, new HashMap<>());
+
+		// and fill them in a single pass over the planes.
+		marsOMEMetadata.getImage(0).planes().forEach(plane -> {
+			Map<Integer, Double> tToDtMap = channelToTtoDtMap.get(plane.getC());
+			if (tToDtMap != null) tToDtMap.put(plane.getT(), plane
+				.getDeltaTinSeconds());
+		});
 
 		return channelToTtoDtMap;
 	}
@@ -61,10 +61,13 @@ public abstract class AbstractJsonConvertibleRecord implements
 	JsonConvertibleRecord
 {
 
-	private final LinkedHashMap<String, Predicate<JsonGenerator>> outputMap =
-			new LinkedHashMap<>();
-	private final HashMap<String, Predicate<JsonParser>> inputMap =
-			new HashMap<>();
+	/**
+	 * The IO maps are only allocated once the first field is set, so records
+	 * that are never serialized, like the many Peaks created during tracking,
+	 * do not carry two empty maps each.
+	 */
+	private LinkedHashMap<String, Predicate<JsonGenerator>> outputMap;
+	private HashMap<String, Predicate<JsonParser>> inputMap;
 
 	/**
 	 * IOMaps are created during the first call to toJSON or fromJSON lazily This
@@ -95,7 +98,7 @@ public abstract class AbstractJsonConvertibleRecord implements
 		}
 
 		jGenerator.writeStartObject();
-		for (String field : outputMap.keySet()) {
+		if (outputMap != null) for (String field : outputMap.keySet()) {
 			if (!outputMap.get(field).test(jGenerator)) throw new IOException(
 				"IOException: JsonGenerator encountered a problem writing to the output stream");
 		}
@@ -130,7 +133,7 @@ public abstract class AbstractJsonConvertibleRecord implements
 			if (fieldName == null) continue;
 			else fieldBlockName = fieldName;
 
-			if (inputMap.containsKey(fieldName)) {
+			if (inputMap != null && inputMap.containsKey(fieldName)) {
 				jParser.nextToken();
 				if (!inputMap.get(fieldName).test(jParser)) throw new IOException(
 					"IOException: JsonParser encountered a problem reading from the input stream");
@@ -165,6 +168,9 @@ public abstract class AbstractJsonConvertibleRecord implements
 		ThrowingConsumer<JsonGenerator, IOException> output,
 		ThrowingConsumer<JsonParser, IOException> input)
 	{
+		if (output != null && outputMap == null) outputMap = new LinkedHashMap<>();
+		if (input != null && inputMap == null) inputMap = new HashMap<>();
+
 		if (output != null) outputMap.put(field, MarsUtil.catchConsumerException(
 			output, IOException.class));
 
@@ -180,7 +186,7 @@ public abstract class AbstractJsonConvertibleRecord implements
 	 */
 	@Override
 	public Predicate<JsonGenerator> getJsonGenerator(String field) {
-		return outputMap.get(field);
+		return (outputMap == null) ? null : outputMap.get(field);
 	}
 
 	/**
@@ -191,7 +197,7 @@ public abstract class AbstractJsonConvertibleRecord implements
 	 */
 	@Override
 	public Predicate<JsonParser> getJsonParser(String field) {
-		return inputMap.get(field);
+		return (inputMap == null) ? null : inputMap.get(field);
 	}
 
 	/**
@@ -36,6 +36,7 @@ import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.format.DataFormatDetector;
 import com.fasterxml.jackson.core.format.DataFormatMatcher;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
 import com.google.common.collect.ImmutableList;
 import de.mpg.biochem.mars.image.commands.MoleculeIntegratorMultiViewCommand;
 import de.mpg.biochem.mars.image.commands.PeakTrackerCommand;
@@ -61,6 +62,8 @@ import java.io.*;
 import java.net.URI;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
 
@@ -172,10 +175,22 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	protected ConcurrentSkipListMap<String, M> moleculeMap;
 
 	/**
-	 * Map from molecule UID to ReentrantLock to ensure thread blocking when
+	 * Striped locks keyed by record UID to ensure thread blocking when
 	 * accessing molecule files in virtual mode.
 	 */
-	protected ConcurrentMap<String, ReentrantLock> recordLocks;
+	private StripedRecordLocks recordLocks;
+
+	/**
+	 * Optional cache of molecule records loaded from a virtual store. Null when
+	 * disabled.
+	 */
+	protected volatile MoleculeRecordCache<M> recordCache;
+
+	/**
+	 * Journal of index changes made since the index of a virtual store was last
+	 * written. Null if not working from a virtual store.
+	 */
+	private MoleculeArchiveIndexJournal indexJournal;
 
 	/**
 	 * Set to true if working from a virtual store.
@@ -357,7 +372,7 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		archiveProperties = createProperties();
 		archiveProperties.setParent(this);
 
-		recordLocks = new ConcurrentHashMap<>();
+		recordLocks = new StripedRecordLocks();
 	}
 
 	protected JsonParser detectEncoding(InputStream inputStream)
@@ -398,6 +413,8 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		propertiesJParser.close();
 		propertiesInputStream.close();
 
+		indexJournal = new MoleculeArchiveIndexJournal(virtualSource);
+
 		InputStream indexInputStream = virtualSource.getIndexesInputStream();
 
 		if (indexInputStream != null) {
@@ -409,12 +426,37 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 			indexJParser.close();
 			bufferedIndexInputStream.close();
 			indexInputStream.close();
+
+			// Recover changes made after the index was last written. A damaged
+			// last entry or a journal longer than the index is folded into the
+			// index right away.
+			boolean intact = indexJournal.replay(archiveIndex);
+			if (indexJournal.size() > 0) {
+				properties().setNumberOfMolecules(archiveIndex.getMoleculeUIDSet()
+					.size());
+				properties().setNumberOfMetadatas(archiveIndex.getMetadataUIDSet()
+					.size());
+			}
+			if (!intact || indexJournal.size() > archiveIndex.getMoleculeUIDSet()
+				.size()) compactIndexJournal();
 		}
 		else {
 			rebuildIndexes();
 		}
 	}
 
+	/**
+	 * Writes the index and properties of a virtual store and clears the index
+	 * journal, which is no longer needed once its changes are in the index.
+	 *
+	 * @throws IOException if the index could not be written.
+	 */
+	private void compactIndexJournal() throws IOException {
+		MarsUtil.writeJsonRecord(archiveIndex, source.getIndexesOutputStream(), jFactory);
+		MarsUtil.writeJsonRecord(properties(), source.getPropertiesOutputStream(), jFactory);
+		indexJournal.clear();
+	}
+
 	protected void load(MoleculeArchiveSource source) throws IOException {
 		InputStream inputStream = source.getInputStream();
 		JsonParser jParser = detectEncoding(inputStream);
@@ -494,13 +536,54 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	/**
 	 * Rebuild all indexes by inspecting the contents of store directories. Then
 	 * save the new indexes to the indexes.json file in the store. Use the number
-	 * of threads specified.
+	 * of threads specified. For virtual stores with record fingerprints in the
+	 * index only new, changed and removed records are inspected.
 	 * 
 	 * @param nThreads The thread count.
 	 * @throws IOException if something goes wrong saving the indexes.
 	 */
 	@Override
 	public void rebuildIndexes(final int nThreads) throws IOException {
+		rebuildIndexes(nThreads, true);
+	}
+
+	/**
+	 * Rebuild all indexes by inspecting the contents of store directories. Then
+	 * save the new indexes to the indexes.json file in the store. Use the number
+	 * of threads specified.
+	 * <p>
+	 * Each index entry of a virtual store records a fingerprint of the stored
+	 * record, such as the modification time and size of the file. If
+	 * incremental is true and the source provides fingerprints, only records
+	 * whose fingerprint changed are read again, entries of removed records are
+	 * dropped and the properties of the changed records are merged into the
+	 * existing properties. Otherwise every record is read and the properties
+	 * are built from scratch.
+	 * 
+	 * @param nThreads The thread count.
+	 * @param incremental Whether to only inspect records that changed.
+	 * @throws IOException if something goes wrong saving the indexes.
+	 */
+	@Override
+	public void rebuildIndexes(final int nThreads, final boolean incremental)
+		throws IOException
+	{
+		// Listed before any record is read so a record rewritten during the
+		// rebuild keeps an outdated fingerprint and is read again next time.
+		Map<String, String> moleculeFingerprints = (virtual) ? source
+			.getMoleculeFingerprints() : null;
+		Map<String, String> metadataFingerprints = (virtual) ? source
+			.getMetadataFingerprints() : null;
+
+		if (incremental && archiveIndex != null && moleculeFingerprints != null &&
+			metadataFingerprints != null && (!archiveIndex
+				.getMoleculeUIDtoFingerprintMap().isEmpty() || !archiveIndex
+					.getMetadataUIDtoFingerprintMap().isEmpty()))
+		{
+			updateIndexes(nThreads, moleculeFingerprints, metadataFingerprints);
+			return;
+		}
+
 		properties().clear();
 
 		ForkJoinPool forkJoinPool = new ForkJoinPool(nThreads);
@@ -508,10 +591,12 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		if (virtual) {
 			MoleculeArchiveIndex<M, I> newIndex = createIndex();
 
-			List<String> moleculeUIDs = source.getMoleculeUIDs();
+			Collection<String> moleculeUIDs = (moleculeFingerprints != null)
+				? moleculeFingerprints.keySet() : source.getMoleculeUIDs();
 			newIndex.getMoleculeUIDSet().addAll(moleculeUIDs);
 
-			List<String> metadataUIDs = source.getMetadataUIDs();
+			Collection<String> metadataUIDs = (metadataFingerprints != null)
+				? metadataFingerprints.keySet() : source.getMetadataUIDs();
 			newIndex.getMetadataUIDSet().addAll(metadataUIDs);
 
 			try {
@@ -520,6 +605,9 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 						M molecule = get(UID);
 						newIndex.addMolecule(molecule);
 						properties().addMoleculeProperties(molecule);
+						if (moleculeFingerprints != null) newIndex
+							.getMoleculeUIDtoFingerprintMap().put(UID, moleculeFingerprints
+								.get(UID));
 					})).get();
 
 				forkJoinPool.submit(() -> newIndex.getMetadataUIDSet().parallelStream()
@@ -527,6 +615,9 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 						I metadata = getMetadata(metaUID);
 						newIndex.addMetadata(metadata);
 						properties().addMetadataProperties(metadata);
+						if (metadataFingerprints != null) newIndex
+							.getMetadataUIDtoFingerprintMap().put(metaUID,
+								metadataFingerprints.get(metaUID));
 					})).get();
 			}
 			catch (InterruptedException | ExecutionException e) {
@@ -543,6 +634,7 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 
 			MarsUtil.writeJsonRecord(archiveIndex, source.getIndexesOutputStream(), jFactory);
 			MarsUtil.writeJsonRecord(properties(), source.getPropertiesOutputStream(), jFactory);
+			if (indexJournal != null) indexJournal.clear();
 		}
 		else {
 			try {
@@ -571,6 +663,88 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		}
 	}
 
+	/**
+	 * Brings the index of a virtual store up to date by comparing the record
+	 * fingerprints of the source with those in the index. Only new and changed
+	 * records are read. Properties only ever grow, so entries contributed by
+	 * removed or changed records remain until the next full rebuild.
+	 */
+	private void updateIndexes(final int nThreads,
+		final Map<String, String> moleculeFingerprints,
+		final Map<String, String> metadataFingerprints) throws IOException
+	{
+		for (String UID : archiveIndex.getMoleculeUIDSet())
+			if (!moleculeFingerprints.containsKey(UID)) {
+				archiveIndex.removeMolecule(UID);
+				invalidateCachedMolecule(UID);
+			}
+
+		for (String metaUID : archiveIndex.getMetadataUIDSet())
+			if (!metadataFingerprints.containsKey(metaUID)) {
+				archiveIndex.removeMetadata(metaUID);
+				metadataMap.remove(metaUID);
+			}
+
+		List<String> changedMoleculeUIDs = changedRecords(moleculeFingerprints,
+			archiveIndex.getMoleculeUIDtoFingerprintMap());
+		List<String> changedMetadataUIDs = changedRecords(metadataFingerprints,
+			archiveIndex.getMetadataUIDtoFingerprintMap());
+
+		ForkJoinPool forkJoinPool = new ForkJoinPool(nThreads);
+		try {
+			forkJoinPool.submit(() -> changedMoleculeUIDs.parallelStream().forEach(
+				UID -> {
+					invalidateCachedMolecule(UID);
+					M molecule = get(UID);
+					if (molecule == null) {
+						archiveIndex.removeMolecule(UID);
+						return;
+					}
+					archiveIndex.addMolecule(molecule);
+					archiveIndex.getMoleculeUIDtoFingerprintMap().put(UID,
+						moleculeFingerprints.get(UID));
+					properties().addMoleculeProperties(molecule);
+				})).get();
+
+			forkJoinPool.submit(() -> changedMetadataUIDs.parallelStream().forEach(
+				metaUID -> {
+					metadataMap.remove(metaUID);
+					I metadata = getMetadata(metaUID);
+					if (metadata == null) {
+						archiveIndex.removeMetadata(metaUID);
+						return;
+					}
+					archiveIndex.addMetadata(metadata);
+					archiveIndex.getMetadataUIDtoFingerprintMap().put(metaUID,
+						metadataFingerprints.get(metaUID));
+					properties().addMetadataProperties(metadata);
+				})).get();
+		}
+		catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+		finally {
+			forkJoinPool.shutdown();
+		}
+
+		properties().setNumberOfMolecules(archiveIndex.getMoleculeUIDSet().size());
+		properties().setNumberOfMetadatas(archiveIndex.getMetadataUIDSet().size());
+
+		MarsUtil.writeJsonRecord(archiveIndex, source.getIndexesOutputStream(), jFactory);
+		MarsUtil.writeJsonRecord(properties(), source.getPropertiesOutputStream(), jFactory);
+		if (indexJournal != null) indexJournal.clear();
+	}
+
+	private static List<String> changedRecords(Map<String, String> fingerprints,
+		Map<String, String> indexedFingerprints)
+	{
+		List<String> changed = new ArrayList<>();
+		fingerprints.forEach((UID, fingerprint) -> {
+			if (!fingerprint.equals(indexedFingerprints.get(UID))) changed.add(UID);
+		});
+		return changed;
+	}
+
 	/**
 	 * Saves the MoleculeArchive to the file from which it was opened.
 	 * 
@@ -581,6 +755,7 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		if (virtual) {
 			MarsUtil.writeJsonRecord(properties(),source.getPropertiesOutputStream(), jFactory);
 			MarsUtil.writeJsonRecord(archiveIndex, source.getIndexesOutputStream(), jFactory);
+			indexJournal.clear();
 		}
 		else if (smileEncoding) MarsUtil.writeJsonRecord(this, source.getOutputStream(), new SmileFactory());
 		else MarsUtil.writeJsonRecord(this, source.getOutputStream(), new JsonFactory());
@@ -659,43 +834,32 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 				putMetadata(createMetadata(jParser));
 		});
 
+		// Must remain the last field. Molecule records may be encoded separately
+		// and copied into the output, which is only safe for smile if no field
+		// names follow them.
 		setJsonField("molecules", jGenerator -> {
 			if (getWindow() != null) getWindow().logln("Saving " +
 				getNumberOfMolecules() + " molecule records...");
 			if (getNumberOfMolecules() > 0) {
 				jGenerator.writeArrayFieldStart("molecules");
-				Iterator<String> iterator = (virtual) ? archiveIndex.getMoleculeUIDSet()
-					.iterator() : moleculeMap.keySet().iterator();
-				double count = 0;
-				double moleculeNumber = getNumberOfMolecules();
-				while (iterator.hasNext()) {
-					Molecule molecule = get(iterator.next());
-					molecule.toJSON(jGenerator);
-					count++;
-					if (getWindow() != null) getWindow().setProgress(count /
-						moleculeNumber);
+				if (jGenerator.getOutputTarget() instanceof OutputStream && jGenerator
+					.getPrettyPrinter() == null) writeMolecules(jGenerator);
+				else {
+					Iterator<String> iterator = (virtual) ? archiveIndex
+						.getMoleculeUIDSet().iterator() : moleculeMap.keySet().iterator();
+					double count = 0;
+					double moleculeNumber = getNumberOfMolecules();
+					while (iterator.hasNext()) {
+						Molecule molecule = get(iterator.next());
+						molecule.toJSON(jGenerator);
+						count++;
+						if (getWindow() != null) getWindow().setProgress(count /
+							moleculeNumber);
+					}
 				}
 				jGenerator.writeEndArray();
 			}
-		}, jParser -> {
-			StatusService statusService = null;
-			try {
-				Context context = (Context) IJ.runPlugIn("org.scijava.Context", "");
-				statusService = context.getService(StatusService.class);
-			}
-			catch (Exception ignored) {}
-			final int numberMolecules = properties().getNumberOfMolecules();
-			int count = 0;
-			while (jParser.nextToken() != JsonToken.END_ARRAY) {
-				put(createMolecule(jParser));
-				if (statusService != null) {
-					count++;
-					statusService.showStatus(count, numberMolecules, "Loading " +
-						getName());
-				}
-			}
-			if (statusService != null) statusService.showStatus(1, 1, "Done!");
-		});
+		}, this::readMolecules);
 
 		/*
 		 * 
@@ -723,10 +887,198 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 				putMetadata(createMetadata(jParser));
 		});
 
-		setJsonField("Molecules", null, jParser -> {
-			while (jParser.nextToken() != JsonToken.END_ARRAY)
+		setJsonField("Molecules", null, this::readMolecules);
+	}
+
+	/**
+	 * Writes the molecule records into the molecules array opened by jGenerator.
+	 * Records are encoded by a pool of workers, including compression of table
+	 * data blocks, and copied into the output stream in UID order. At most a few
+	 * encoded records per worker are held in memory at any time.
+	 * <p>
+	 * Smile records are encoded without shared field name references, since
+	 * references are only valid relative to the names written before them in
+	 * the same stream. The result is a regular smile or json archive.
+	 *
+	 * @param jGenerator Generator with an open molecules array that writes to an
+	 *          OutputStream.
+	 * @throws IOException if a record could not be written.
+	 */
+	private void writeMolecules(JsonGenerator jGenerator) throws IOException {
+		final JsonFactory recordFactory;
+		final boolean smile = jGenerator instanceof SmileGenerator;
+		if (smile) recordFactory = new SmileFactory().disable(
+			SmileGenerator.Feature.WRITE_HEADER).disable(
+				SmileGenerator.Feature.CHECK_SHARED_NAMES).configure(
+					SmileGenerator.Feature.ENCODE_BINARY_AS_7BIT,
+					((SmileGenerator) jGenerator).isEnabled(
+						SmileGenerator.Feature.ENCODE_BINARY_AS_7BIT));
+		else recordFactory = new JsonFactory();
+
+		jGenerator.flush();
+		final OutputStream outputStream = (OutputStream) jGenerator
+			.getOutputTarget();
+
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		final ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+		final ArrayDeque<Future<ByteArrayOutputStream>> encoded =
+			new ArrayDeque<>();
+
+		Iterator<String> iterator = (virtual) ? archiveIndex.getMoleculeUIDSet()
+			.iterator() : moleculeMap.keySet().iterator();
+		double count = 0;
+		double moleculeNumber = getNumberOfMolecules();
+		try {
+			while (iterator.hasNext() || !encoded.isEmpty()) {
+				while (iterator.hasNext() && encoded.size() < nThreads * 4) {
+					final String UID = iterator.next();
+					encoded.add(workers.submit(() -> {
+						ByteArrayOutputStream record = new ByteArrayOutputStream();
+						try (JsonGenerator recordGenerator = recordFactory
+							.createGenerator(record))
+						{
+							get(UID).toJSON(recordGenerator);
+						}
+						return record;
+					}));
+				}
+
+				ByteArrayOutputStream record = encoded.remove().get();
+				if (!smile && count > 0) outputStream.write(',');
+				record.writeTo(outputStream);
+				count++;
+				if (getWindow() != null) getWindow().setProgress(count /
+					moleculeNumber);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while saving molecule records.", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e
+				.getCause();
+			throw new IOException("Molecule record could not be written.", e
+				.getCause());
+		}
+		finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads the molecules array. Each record is copied into a buffer on the
+	 * current thread and deserialized by a pool of workers, so parsing of the
+	 * stream and construction of molecule records overlap. At most a few records
+	 * per worker are buffered at any time. Each record keeps its position in the
+	 * array, so if a UID appears more than once the last record wins just as it
+	 * would when records are put in order. Archive properties are not updated
+	 * here because they are rebuilt once all records are loaded.
+	 * <p>
+	 * In virtual mode records are added using put instead, which also writes
+	 * them to the store.
+	 *
+	 * @param jParser Parser positioned at the start of the molecules array.
+	 * @throws IOException if a record could not be read.
+	 */
+	private void readMolecules(JsonParser jParser) throws IOException {
+		StatusService statusService = null;
+		try {
+			Context context = (Context) IJ.runPlugIn("org.scijava.Context", "");
+			statusService = context.getService(StatusService.class);
+		}
+		catch (Exception ignored) {}
+		final int numberMolecules = properties().getNumberOfMolecules();
+
+		if (virtual) {
+			int count = 0;
+			while (jParser.nextToken() != JsonToken.END_ARRAY) {
 				put(createMolecule(jParser));
-		});
+				if (statusService != null) {
+					count++;
+					statusService.showStatus(count, numberMolecules, "Loading " +
+						getName());
+				}
+			}
+			if (statusService != null) statusService.showStatus(1, 1, "Done!");
+			return;
+		}
+
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		final ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+		final Semaphore buffered = new Semaphore(nThreads * 4);
+		final AtomicInteger count = new AtomicInteger(0);
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		final ConcurrentHashMap<String, Integer> recordIndices =
+			new ConcurrentHashMap<>();
+
+		// Records are buffered in smile format independent of the input encoding
+		// since it is compact and keeps binary values as they are.
+		final SmileFactory bufferFactory = new SmileFactory();
+
+		try {
+			JsonToken token;
+			int index = 0;
+			while ((token = jParser.nextToken()) != JsonToken.END_ARRAY &&
+				failure.get() == null)
+			{
+				if (token == null) throw new IOException(
+					"JsonParser encountered an incomplete molecules array.");
+
+				ByteArrayOutputStream record = new ByteArrayOutputStream();
+				try (JsonGenerator recordGenerator = bufferFactory.createGenerator(
+					record))
+				{
+					recordGenerator.copyCurrentStructure(jParser);
+				}
+
+				final int recordIndex = index++;
+				buffered.acquire();
+				workers.execute(() -> {
+					try (JsonParser recordParser = bufferFactory.createParser(record
+						.toByteArray()))
+					{
+						recordParser.nextToken();
+						M molecule = createMolecule(recordParser);
+						molecule.setParent(this);
+						recordIndices.compute(molecule.getUID(), (UID, previous) -> {
+							if (previous != null && previous > recordIndex) return previous;
+							moleculeMap.put(UID, molecule);
+							return recordIndex;
+						});
+						count.incrementAndGet();
+					}
+					catch (Exception e) {
+						failure.compareAndSet(null, e);
+					}
+					finally {
+						buffered.release();
+					}
+				});
+
+				if (statusService != null) statusService.showStatus(count.get(),
+					numberMolecules, "Loading " + getName());
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure.compareAndSet(null, e);
+		}
+		finally {
+			workers.shutdown();
+			try {
+				workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (failure.get() != null) throw new IOException(
+			"Molecule record could not be read.", failure.get());
+
+		properties().setNumberOfMolecules(getNumberOfMolecules());
+		if (statusService != null) statusService.showStatus(1, 1, "Done!");
 	}
 
 	/**
@@ -874,6 +1226,31 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		return virtualDirectory;
 	}
 
+	/**
+	 * Creates the directory given and a virtual store inside with molecule
+	 * records in the columnar record format. Table double columns are stored
+	 * uncompressed after each smile record and are read from memory mapped files
+	 * only when they are accessed. Indexes are rebuilt while saving if the
+	 * archive was loaded from a virtual store.
+	 * 
+	 * @param virtualDirectory a directory destination for the virtual store.
+	 * @param nThreads The thread count.
+	 * @throws IOException if something goes wrong creating the virtual store.
+	 */
+	@Override
+	public File saveAsColumnarVirtualStore(File virtualDirectory,
+		final int nThreads) throws IOException
+	{
+		virtualDirectory = ArchiveUtils.storeFileExtensionFixer(virtualDirectory);
+
+		MoleculeArchiveFSSource newVirtualSource = new MoleculeArchiveIOFactory()
+			.openFSSource(virtualDirectory);
+		newVirtualSource.setColumnarRecords(true);
+		saveAsVirtualStore(newVirtualSource, new SmileFactory(), ".sml", nThreads);
+
+		return virtualDirectory;
+	}
+
 	private void saveAsVirtualStore(File virtualDirectory, JsonFactory jFactory,
 									String fileExtension, final int nThreads) throws IOException
 	{
@@ -924,6 +1301,7 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 
 		MarsUtil.writeJsonRecord(newIndex, newVirtualSource.getIndexesOutputStream(), jFactory);
 		MarsUtil.writeJsonRecord(properties(), newVirtualSource.getPropertiesOutputStream(), jFactory);
+		newVirtualSource.removeIndexJournal();
 	}
 
 	/**
@@ -935,15 +1313,40 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	 */
 	@Override
 	public void put(M molecule) {
+		putRecord(molecule);
+		properties().setNumberOfMolecules(getNumberOfMolecules());
+	}
+
+	/**
+	 * Adds a collection of molecules to the archive. Molecules with UIDs already
+	 * in the archive are updated. This is equivalent to calling put for each
+	 * molecule, but the molecule count is only updated once for the whole batch.
+	 * 
+	 * @param molecules the records to add or update.
+	 */
+	@Override
+	public void putAll(Collection<M> molecules) {
+		for (M molecule : molecules)
+			putRecord(molecule);
+		properties().setNumberOfMolecules(getNumberOfMolecules());
+	}
+
+	/**
+	 * Adds or updates a molecule record and its properties without updating
+	 * the molecule count.
+	 */
+	private void putRecord(M molecule) {
 		if (virtual) {
 			archiveIndex.addMolecule(molecule);
 
 			try {
 				saveMoleculeToSource(source, molecule, jFactory);
+				indexJournal.addMolecule(molecule);
 			}
 			catch (IOException e) {
 				e.printStackTrace();
 			}
+			invalidateCachedMolecule(molecule.getUID());
 		}
 		else {
 			molecule.setParent(this);
@@ -951,7 +1354,6 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		}
 
 		properties().addMoleculeProperties(molecule);
-		properties().setNumberOfMolecules(getNumberOfMolecules());
 	}
 
 	/**
@@ -968,6 +1370,7 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 
 			try {
 				saveMetadataToSource(source, metadata, jFactory);
+				indexJournal.addMetadata(metadata);
 			}
 			catch (IOException e) {
 				e.printStackTrace();
@@ -992,7 +1395,13 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	public void removeMetadata(String metaUID) {
 		if (virtual) {
 			archiveIndex.removeMetadata(metaUID);
-			try { source.removeMetadata(metaUID); } catch (IOException e) { e.printStackTrace(); }
+			try {
+				source.removeMetadata(metaUID);
+				indexJournal.removeMetadata(metaUID);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 
 		metadataMap.remove(metaUID);
@@ -1045,10 +1454,8 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 			else {
 				I metadata;
 
-				if (!recordLocks.containsKey(metaUID)) recordLocks.put(metaUID,
-					new ReentrantLock());
-
-				recordLocks.get(metaUID).lock();
+				ReentrantLock lock = getRecordLock(metaUID);
+				lock.lock();
 				try {
 					InputStream inputStream = source.getMetadataInputStream(metaUID);
 					JsonParser jParser = jFactory.createParser(inputStream);
@@ -1060,11 +1467,10 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 				}
 				catch (IOException e) {
 					logln("MarsMetadata record " + metaUID + " has been corrupted.");
-					recordLocks.get(metaUID).unlock();
 					return null;
 				}
 				finally {
-					recordLocks.get(metaUID).unlock();
+					lock.unlock();
 				}
 
 				if (metadata != null) {
@@ -1179,8 +1585,15 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	@Override
 	public void remove(String UID) {
 		if (virtual) {
-			try { source.removeMolecule(UID); } catch (IOException e) { e.printStackTrace(); }
+			try {
+				source.removeMolecule(UID);
+				indexJournal.removeMolecule(UID);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
 			archiveIndex.removeMolecule(UID);
+			invalidateCachedMolecule(UID);
 		}
 		else {
 			moleculeMap.remove(UID);
@@ -1315,6 +1728,18 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		return source;
 	}
 
+	/**
+	 * Returns the lock that guards reading and writing the record with the UID
+	 * given in the virtual store. Records with different UIDs can share a lock,
+	 * so the lock of one record must not be held while acquiring another.
+	 * 
+	 * @param UID The UID of the molecule or metadata record.
+	 * @return The lock for the record.
+	 */
+	protected ReentrantLock getRecordLock(String UID) {
+		return recordLocks.get(UID);
+	}
+
 	/**
 	 * Saves a molecule record as a json file.
 	 * 
@@ -1327,10 +1752,8 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	protected void saveMoleculeToSource(MoleculeArchiveSource virtualSource, M molecule,
 										JsonFactory jFactory) throws IOException
 	{
-		if (!recordLocks.containsKey(molecule.getUID())) recordLocks.put(molecule
-			.getUID(), new ReentrantLock());
-
-		recordLocks.get(molecule.getUID()).lock();
+		ReentrantLock lock = getRecordLock(molecule.getUID());
+		lock.lock();
 		try {
 			OutputStream stream = virtualSource.getMoleculeOutputStream(molecule.getUID());
 
@@ -1340,7 +1763,7 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 			jGenerator.close();
 		}
 		finally {
-			recordLocks.get(molecule.getUID()).unlock();
+			lock.unlock();
 		}
 	}
 
@@ -1356,10 +1779,8 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	protected void saveMetadataToSource(MoleculeArchiveSource virtualSource, I metadata,
 										JsonFactory jFactory) throws IOException
 	{
-		if (!recordLocks.containsKey(metadata.getUID())) recordLocks.put(metadata
-			.getUID(), new ReentrantLock());
-
-		recordLocks.get(metadata.getUID()).lock();
+		ReentrantLock lock = getRecordLock(metadata.getUID());
+		lock.lock();
 		try {
 			OutputStream stream = virtualSource.getMetadataOutputStream(metadata.getUID());
 
@@ -1369,7 +1790,7 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 			jGenerator.close();
 		}
 		finally {
-			recordLocks.get(metadata.getUID()).unlock();
+			lock.unlock();
 		}
 	}
 
@@ -1629,6 +2050,61 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		}
 	}
 
+	/**
+	 * Enables caching of molecule records loaded from the virtual store. Records
+	 * are kept after they are read so repeated calls to get for the same UID
+	 * don't reload the record. Records are removed from the cache when they are
+	 * put or removed. Cached records are shared instances, so changes must be
+	 * put back into the archive to be saved. Has no effect when the archive is
+	 * not virtual since all records are already in memory.
+	 * 
+	 * @param maxMolecules The maximum number of molecules to keep. Zero or less
+	 *          for no limit.
+	 * @param maxBytes The maximum estimated size in bytes of all molecules kept.
+	 *          Zero or less for no limit.
+	 */
+	@Override
+	public void enableRecordCache(int maxMolecules, long maxBytes) {
+		if (virtual) recordCache = new MoleculeRecordCache<>(maxMolecules,
+			maxBytes);
+	}
+
+	/**
+	 * Disables and clears the molecule record cache.
+	 */
+	@Override
+	public void disableRecordCache() {
+		MoleculeRecordCache<M> cache = recordCache;
+		recordCache = null;
+		if (cache != null) cache.clear();
+	}
+
+	/**
+	 * Releases files held open for a virtual store, such as the index journal.
+	 * The archive can still be used afterwards and opens them again as needed.
+	 * 
+	 * @throws IOException if something goes wrong closing the files.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (indexJournal != null) indexJournal.close();
+	}
+
+	/**
+	 * Get the molecule record cache, which provides hit and miss counts.
+	 * 
+	 * @return The cache or null if caching is not enabled.
+	 */
+	@Override
+	public MoleculeRecordCache<M> getRecordCache() {
+		return recordCache;
+	}
+
+	private void invalidateCachedMolecule(String UID) {
+		MoleculeRecordCache<M> cache = recordCache;
+		if (cache != null) cache.invalidate(UID);
+	}
+
 	/**
 	 * Get the molecule record with the given UID.
 	 * 
@@ -1638,12 +2114,16 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	@Override
 	public M get(String UID) {
 		if (virtual) {
-			M molecule;
+			MoleculeRecordCache<M> cache = recordCache;
+			if (cache != null) {
+				M cached = cache.get(UID);
+				if (cached != null) return cached;
+			}
 
-			if (!recordLocks.containsKey(UID)) recordLocks.put(UID,
-				new ReentrantLock());
+			M molecule;
 
-			recordLocks.get(UID).lock();
+			ReentrantLock lock = getRecordLock(UID);
+			lock.lock();
 			try {
 				InputStream inputStream = source.getMoleculeInputStream(UID);
 				JsonParser jParser = jFactory.createParser(inputStream);
@@ -1652,14 +2132,17 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 
 				jParser.close();
 				inputStream.close();
+
+				// Cached while holding the record lock so a concurrent put or
+				// remove always invalidates after this entry is added.
+				if (cache != null && molecule != null) cache.put(UID, molecule);
 			}
 			catch (IOException e) {
 				logln("Molecule record " + UID + " has been corrupted.");
-				recordLocks.get(UID).unlock();
 				return null;
 			}
 			finally {
-				recordLocks.get(UID).unlock();
+				lock.unlock();
 			}
 
 			return molecule;
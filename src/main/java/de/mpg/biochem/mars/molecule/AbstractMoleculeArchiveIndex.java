@@ -84,6 +84,16 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 	 */
 	private ConcurrentMap<String, String> moleculeUIDtoMetadataUID;
 
+	/*
+	 * Map from molecule UID to the fingerprint of the stored record.
+	 */
+	private ConcurrentMap<String, String> moleculeUIDtoFingerprint;
+
+	/*
+	 * Map from metadata UID to the fingerprint of the stored record.
+	 */
+	private ConcurrentMap<String, String> metadataUIDtoFingerprint;
+
 	public AbstractMoleculeArchiveIndex() {
 		super();
 		initializeVariables();
@@ -101,6 +111,8 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 		moleculeUIDtoImage = new ConcurrentHashMap<>();
 		metadataUIDtoTagList = new ConcurrentHashMap<>();
 		moleculeUIDtoMetadataUID = new ConcurrentHashMap<>();
+		moleculeUIDtoFingerprint = new ConcurrentHashMap<>();
+		metadataUIDtoFingerprint = new ConcurrentHashMap<>();
 
 		moleculeUIDs = new ConcurrentSkipListSet<>();// ConcurrentHashMap.newKeySet();
 		metadataUIDs = new ConcurrentSkipListSet<>();// ConcurrentHashMap.newKeySet();
@@ -124,6 +136,11 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 					jGenerator.writeEndArray();
 				}
 
+				if (metadataUIDtoFingerprint.containsKey(metaUID)) {
+					jGenerator.writeStringField("fingerprint", metadataUIDtoFingerprint
+						.get(metaUID));
+				}
+
 				jGenerator.writeEndObject();
 			}
 			jGenerator.writeEndArray();
@@ -146,6 +163,12 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 						if (!metaUID.equals("NULL")) metadataUIDtoTagList.put(metaUID,
 							tags);
 					}
+
+					if ("fingerprint".equals(jParser.getCurrentName())) {
+						jParser.nextToken();
+						if (!metaUID.equals("NULL")) metadataUIDtoFingerprint.put(metaUID,
+							jParser.getText());
+					}
 				}
 
 			}
@@ -175,6 +198,11 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 					jGenerator.writeNumberField("image", moleculeUIDtoImage.get(UID));
 				}
 
+				if (moleculeUIDtoFingerprint.containsKey(UID)) {
+					jGenerator.writeStringField("fingerprint", moleculeUIDtoFingerprint
+						.get(UID));
+				}
+
 				jGenerator.writeEndObject();
 			}
 			jGenerator.writeEndArray();
@@ -211,6 +239,11 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 						jParser.nextToken();
 						moleculeUIDtoImage.put(UID, jParser.getIntValue());
 					}
+
+					if ("fingerprint".equals(jParser.getCurrentName())) {
+						jParser.nextToken();
+						moleculeUIDtoFingerprint.put(UID, jParser.getText());
+					}
 				}
 			}
 		});
@@ -363,6 +396,9 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 		moleculeUIDtoChannel.put(molecule.getUID(), molecule.getChannel());
 		moleculeUIDtoImage.put(molecule.getUID(), molecule.getImage());
 		moleculeUIDtoMetadataUID.put(molecule.getUID(), molecule.getMetadataUID());
+
+		// The stored record no longer necessarily matches the last fingerprint.
+		moleculeUIDtoFingerprint.remove(molecule.getUID());
 	}
 
 	@Override
@@ -377,12 +413,14 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 		moleculeUIDtoChannel.remove(UID);
 		moleculeUIDtoImage.remove(UID);
 		moleculeUIDtoMetadataUID.remove(UID);
+		moleculeUIDtoFingerprint.remove(UID);
 	}
 
 	@Override
 	public void addMetadata(I metadata) {
 		metadataUIDs.add(metadata.getUID());
 		metadataUIDtoTagList.put(metadata.getUID(), metadata.getTags());
+		metadataUIDtoFingerprint.remove(metadata.getUID());
 	}
 
 	@Override
@@ -394,6 +432,7 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 	public void removeMetadata(String metadataUID) {
 		metadataUIDs.remove(metadataUID);
 		metadataUIDtoTagList.remove(metadataUID);
+		metadataUIDtoFingerprint.remove(metadataUID);
 	}
 
 	@Override
@@ -444,4 +483,14 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 	public Map<String, String> getMoleculeUIDtoMetadataUIDMap() {
 		return moleculeUIDtoMetadataUID;
 	}
+
+	@Override
+	public Map<String, String> getMoleculeUIDtoFingerprintMap() {
+		return moleculeUIDtoFingerprint;
+	}
+
+	@Override
+	public Map<String, String> getMetadataUIDtoFingerprintMap() {
+		return metadataUIDtoFingerprint;
+	}
 }
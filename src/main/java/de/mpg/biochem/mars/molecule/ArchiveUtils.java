@@ -624,8 +624,9 @@ public class ArchiveUtils {
 			archive.putMetadata(metadata);
 		});
 
+		// Full rebuild so the old column names are dropped from the properties.
 		try {
-			archive.rebuildIndexes();
+			archive.rebuildIndexes(Runtime.getRuntime().availableProcessors(), false);
 		}
 		catch (IOException e) {
 			// TODO Auto-generated catch block
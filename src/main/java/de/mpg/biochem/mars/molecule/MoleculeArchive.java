@@ -32,6 +32,7 @@ package de.mpg.biochem.mars.molecule;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -92,6 +93,23 @@ public interface MoleculeArchive<M extends Molecule, I extends MarsMetadata, P e
 	 */
 	void rebuildIndexes(final int nThreads) throws IOException;
 
+	/**
+	 * Rebuild all indexes by inspecting the contents of store directories. Then
+	 * save the new indexes to the indexes.json file in the store. Use the number
+	 * of threads specified. If incremental is true and the store keeps record
+	 * fingerprints, only records that changed since the last rebuild are read.
+	 * By default all records are read.
+	 * 
+	 * @param nThreads The thread count.
+	 * @param incremental Whether to only inspect records that changed.
+	 * @throws IOException if something goes wrong saving the indexes.
+	 */
+	default void rebuildIndexes(final int nThreads, final boolean incremental)
+		throws IOException
+	{
+		rebuildIndexes(nThreads);
+	}
+
 	/**
 	 * Saves the MoleculeArchive to the file from which it was opened.
 	 * 
@@ -186,6 +204,26 @@ public interface MoleculeArchive<M extends Molecule, I extends MarsMetadata, P e
 	File saveAsVirtualStore(File virtualDirectory, final int nThreads)
 		throws IOException;
 
+	/**
+	 * Creates the directory given and a virtual store inside with molecule
+	 * records in the columnar record format. Records are smile encoded, but
+	 * table double columns are stored uncompressed after each record and are
+	 * read from memory mapped files only when they are accessed. This is
+	 * faster when only a few columns of each table are used. Only supported
+	 * for file system stores. Implementations without the columnar format save
+	 * a regular virtual store.
+	 * 
+	 * @param virtualDirectory a directory destination for the virtual store.
+	 * @param nThreads The thread count.
+	 * @return the directory where the store was saved.
+	 * @throws IOException if something goes wrong creating the virtual store.
+	 */
+	default File saveAsColumnarVirtualStore(File virtualDirectory,
+		final int nThreads) throws IOException
+	{
+		return saveAsVirtualStore(virtualDirectory, nThreads);
+	}
+
 	/**
 	 * Creates the directory given and a virtual store inside with all files in
 	 * json format and with .json file extensions. Indexes are rebuilt while saving
@@ -242,6 +280,20 @@ public interface MoleculeArchive<M extends Molecule, I extends MarsMetadata, P e
 	 */
 	void put(M molecule);
 
+	/**
+	 * Adds a collection of molecules to the archive. Molecules with UIDs already
+	 * in the archive are updated. This is equivalent to calling put for each
+	 * molecule, but the archive properties are only updated once for the whole
+	 * batch, which is preferable when many records are written back from
+	 * multithreaded processing.
+	 * 
+	 * @param molecules the records to add or update.
+	 */
+	default void putAll(Collection<M> molecules) {
+		for (M molecule : molecules)
+			put(molecule);
+	}
+
 	/**
 	 * Adds a MarsMetadata record to the archive. If a MarsMetadata record with
 	 * the same UID is already in the archive, the record is updated. All indexes
@@ -523,6 +575,41 @@ public interface MoleculeArchive<M extends Molecule, I extends MarsMetadata, P e
 	 */
 	M get(String UID);
 
+	/**
+	 * Enables caching of molecule records loaded from a virtual store so repeated
+	 * reads of the same record are not parsed again. Cached records are shared
+	 * instances and are invalidated when put or removed. Has no effect on
+	 * archives that are not virtual or that do not support caching.
+	 * 
+	 * @param maxMolecules The maximum number of molecules to keep. Zero or less
+	 *          for no limit.
+	 * @param maxBytes The maximum estimated size in bytes of all molecules kept.
+	 *          Zero or less for no limit.
+	 */
+	default void enableRecordCache(int maxMolecules, long maxBytes) {}
+
+	/**
+	 * Disables and clears the molecule record cache.
+	 */
+	default void disableRecordCache() {}
+
+	/**
+	 * Get the molecule record cache, which provides hit and miss counts.
+	 * 
+	 * @return The cache or null if caching is not enabled.
+	 */
+	default MoleculeRecordCache<M> getRecordCache() {
+		return null;
+	}
+
+	/**
+	 * Releases files held open for a virtual store, such as the index journal.
+	 * The archive can still be used afterwards and opens them again as needed.
+	 * 
+	 * @throws IOException if something goes wrong closing the files.
+	 */
+	default void close() throws IOException {}
+
 	/**
 	 * Retrieves the molecule record at the provided index.
 	 * 
@@ -33,6 +33,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 
 import com.fasterxml.jackson.core.JsonFactory;
@@ -73,5 +74,28 @@ public interface MoleculeArchiveIndex<M extends Molecule, I extends MarsMetadata
 
 	Map<String, String> getMoleculeUIDtoMetadataUIDMap();
 
+	/**
+	 * Map from molecule UID to the fingerprint of the stored record when the
+	 * index was last rebuilt. Records without a fingerprint are re-read by the
+	 * next incremental rebuild. Indexes that do not keep fingerprints return a
+	 * new empty map every time, so every rebuild reads all records.
+	 *
+	 * @return The molecule fingerprint map.
+	 */
+	default Map<String, String> getMoleculeUIDtoFingerprintMap() {
+		return new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Map from metadata UID to the fingerprint of the stored record when the
+	 * index was last rebuilt. Indexes that do not keep fingerprints return a
+	 * new empty map every time.
+	 *
+	 * @return The metadata fingerprint map.
+	 */
+	default Map<String, String> getMetadataUIDtoFingerprintMap() {
+		return new ConcurrentHashMap<>();
+	}
+
 	String getMetadataUIDforMolecule(String UID);
 }
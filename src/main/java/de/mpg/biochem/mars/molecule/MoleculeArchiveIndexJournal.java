@@ -0,0 +1,333 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.molecule;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import de.mpg.biochem.mars.io.MoleculeArchiveSource;
+import de.mpg.biochem.mars.metadata.MarsMetadata;
+
+/**
+ * Append-only journal of changes to the index of a virtual store. Every
+ * molecule or metadata record added or removed is appended to the journal once
+ * the record has been written to or deleted from the store, so an index file
+ * that is stale after a crash can be brought up to date on open by replaying
+ * the journal instead of rebuilding the index from all records. Failed writes
+ * and deletes are not journaled. Once the index is written, the journal is
+ * cleared.
+ * <p>
+ * Each entry is written as the payload length, a CRC32 checksum of the
+ * payload and the payload itself. Replay stops at the first incomplete or
+ * damaged entry, which can only be the last entry written before a crash.
+ * Entries record the complete index state of a record, so replaying entries
+ * that are already in the index has no effect.
+ * <p>
+ * The journal is kept open for appending until it is cleared or closed. Each
+ * entry is handed to the operating system in a single write but is not forced
+ * to disk, so the journal protects against crashes of the process and not
+ * against power loss or crashes of the operating system.
+ * <p>
+ * Sources that do not support journals return null streams and the journal
+ * does nothing.
+ *
+ * @author Karl Duderstadt
+ */
+final class MoleculeArchiveIndexJournal {
+
+	private static final byte ADD_MOLECULE = 1;
+	private static final byte REMOVE_MOLECULE = 2;
+	private static final byte ADD_METADATA = 3;
+	private static final byte REMOVE_METADATA = 4;
+
+	private final MoleculeArchiveSource source;
+
+	private int entries = 0;
+
+	private OutputStream outputStream;
+
+	MoleculeArchiveIndexJournal(MoleculeArchiveSource source) {
+		this.source = source;
+	}
+
+	void addMolecule(Molecule molecule) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(payload)) {
+			out.writeByte(ADD_MOLECULE);
+			out.writeUTF(molecule.getUID());
+			writeNullable(out, molecule.getMetadataUID());
+			out.writeInt(molecule.getChannel());
+			out.writeInt(molecule.getImage());
+			writeTags(out, molecule.getTags());
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		append(payload);
+	}
+
+	void removeMolecule(String UID) {
+		append(REMOVE_MOLECULE, UID);
+	}
+
+	void addMetadata(MarsMetadata metadata) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(payload)) {
+			out.writeByte(ADD_METADATA);
+			out.writeUTF(metadata.getUID());
+			writeTags(out, metadata.getTags());
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		append(payload);
+	}
+
+	void removeMetadata(String metaUID) {
+		append(REMOVE_METADATA, metaUID);
+	}
+
+	/**
+	 * Number of entries in the journal. Includes replayed entries.
+	 *
+	 * @return The entry count.
+	 */
+	int size() {
+		return entries;
+	}
+
+	/**
+	 * Applies all complete entries in the journal to the index given.
+	 *
+	 * @param index The index to update.
+	 * @return False if replay stopped at an incomplete or damaged entry. The
+	 *         journal should then be compacted before new entries are added.
+	 * @throws IOException if the journal could not be read.
+	 */
+	synchronized boolean replay(MoleculeArchiveIndex<?, ?> index)
+		throws IOException
+	{
+		InputStream inputStream = source.getIndexJournalInputStream();
+		if (inputStream == null) return true;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+			inputStream)))
+		{
+			CRC32 crc = new CRC32();
+			byte[] payload = new byte[256];
+			while (true) {
+				int length;
+				long checksum;
+				try {
+					length = in.readInt();
+				}
+				catch (EOFException e) {
+					return true;
+				}
+				try {
+					checksum = in.readInt() & 0xFFFFFFFFL;
+					if (length <= 0) return false;
+					if (payload.length < length) payload = new byte[Math.max(length,
+						payload.length * 2)];
+					in.readFully(payload, 0, length);
+				}
+				catch (EOFException e) {
+					return false;
+				}
+
+				crc.reset();
+				crc.update(payload, 0, length);
+				if (crc.getValue() != checksum) return false;
+
+				apply(index, new DataInputStream(new ByteArrayInputStream(
+					payload, 0, length)));
+				entries++;
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries. Should be called after the index has been written.
+	 *
+	 * @throws IOException if the journal could not be removed.
+	 */
+	synchronized void clear() throws IOException {
+		close();
+		source.removeIndexJournal();
+		entries = 0;
+	}
+
+	/**
+	 * Closes the journal output stream. It is opened again when the next entry
+	 * is appended.
+	 *
+	 * @throws IOException if the journal could not be closed.
+	 */
+	synchronized void close() throws IOException {
+		if (outputStream == null) return;
+		try {
+			outputStream.close();
+		}
+		finally {
+			outputStream = null;
+		}
+	}
+
+	private static void apply(MoleculeArchiveIndex<?, ?> index,
+		DataInputStream in) throws IOException
+	{
+		byte type = in.readByte();
+		String UID = in.readUTF();
+		switch (type) {
+			case ADD_MOLECULE:
+				String metaUID = readNullable(in);
+				int channel = in.readInt();
+				int image = in.readInt();
+				Set<String> tags = readTags(in);
+				index.getMoleculeUIDSet().add(UID);
+				index.getMoleculeUIDtoTagListMap().put(UID, tags);
+				index.getMoleculeUIDtoChannelMap().put(UID, channel);
+				index.getMoleculeUIDtoImageMap().put(UID, image);
+				if (metaUID != null) index.getMoleculeUIDtoMetadataUIDMap().put(UID,
+					metaUID);
+				else index.getMoleculeUIDtoMetadataUIDMap().remove(UID);
+				index.getMoleculeUIDtoFingerprintMap().remove(UID);
+				break;
+			case REMOVE_MOLECULE:
+				index.removeMolecule(UID);
+				break;
+			case ADD_METADATA:
+				index.getMetadataUIDSet().add(UID);
+				index.getMetadataUIDtoTagListMap().put(UID, readTags(in));
+				index.getMetadataUIDtoFingerprintMap().remove(UID);
+				break;
+			case REMOVE_METADATA:
+				index.removeMetadata(UID);
+				break;
+			default:
+				throw new IOException("Unknown index journal entry type " + type);
+		}
+	}
+
+	private void append(byte type, String UID) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(payload)) {
+			out.writeByte(type);
+			out.writeUTF(UID);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		append(payload);
+	}
+
+	private synchronized void append(ByteArrayOutputStream payload) {
+		CRC32 crc = new CRC32();
+		byte[] bytes = payload.toByteArray();
+		crc.update(bytes);
+
+		// Written as a single block so an entry is never split between writes.
+		ByteArrayOutputStream entry = new ByteArrayOutputStream(bytes.length + 8);
+		try (DataOutputStream out = new DataOutputStream(entry)) {
+			out.writeInt(bytes.length);
+			out.writeInt((int) crc.getValue());
+			out.write(bytes);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		try {
+			if (outputStream == null) outputStream = source
+				.getIndexJournalOutputStream();
+			if (outputStream == null) return;
+			entry.writeTo(outputStream);
+			outputStream.flush();
+			entries++;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			// Reopened for the next entry in case the stream is broken.
+			try {
+				close();
+			}
+			catch (IOException closeException) {
+				closeException.printStackTrace();
+			}
+		}
+	}
+
+	private static void writeNullable(DataOutputStream out, String value)
+		throws IOException
+	{
+		out.writeBoolean(value != null);
+		if (value != null) out.writeUTF(value);
+	}
+
+	private static String readNullable(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeTags(DataOutputStream out, Set<String> tags)
+		throws IOException
+	{
+		if (tags == null) {
+			out.writeInt(0);
+			return;
+		}
+		// Copy first since tags can change while the entry is written.
+		String[] tagArray = tags.toArray(new String[0]);
+		out.writeInt(tagArray.length);
+		for (String tag : tagArray)
+			out.writeUTF(tag);
+	}
+
+	private static Set<String> readTags(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		Set<String> tags = new LinkedHashSet<>();
+		for (int i = 0; i < count; i++)
+			tags.add(in.readUTF());
+		return tags;
+	}
+}
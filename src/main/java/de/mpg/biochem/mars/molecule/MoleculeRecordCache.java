@@ -0,0 +1,253 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.molecule;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.scijava.table.Column;
+import org.scijava.table.DoubleColumn;
+
+import de.mpg.biochem.mars.table.MarsTable;
+
+/**
+ * Bounded least recently used cache of molecule records for virtual archives.
+ * Reading a record from a virtual store requires opening the record stream
+ * and parsing the complete record, so repeated calls to get for the same UID
+ * are expensive. When enabled on an archive, records are kept here after they
+ * are loaded and are returned directly on subsequent reads.
+ * <p>
+ * The cache can be limited by the number of molecules, by the estimated size
+ * of the records in bytes or both. A limit of zero or less means that
+ * dimension is unbounded. The size of a record is estimated from the number of
+ * rows and columns in its table and segment tables. Records larger than the
+ * byte limit are never cached.
+ * <p>
+ * The archive invalidates entries when records are put or removed. Records
+ * returned from the cache are shared instances, so any changes must be put
+ * back into the archive as usual for them to be saved.
+ *
+ * @author Karl Duderstadt
+ * @param <M> Molecule type.
+ */
+public class MoleculeRecordCache<M extends Molecule> {
+
+	private static final long RECORD_OVERHEAD_BYTES = 1024;
+	private static final long PARAMETER_BYTES = 64;
+	private static final long OBJECT_CELL_BYTES = 40;
+
+	private final int maxMolecules;
+	private final long maxBytes;
+
+	private final LinkedHashMap<String, CacheEntry<M>> entries;
+
+	private long bytes;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Creates a cache with the limits provided.
+	 * 
+	 * @param maxMolecules The maximum number of molecules to keep. Zero or less
+	 *          for no limit.
+	 * @param maxBytes The maximum estimated size in bytes of all molecules kept.
+	 *          Zero or less for no limit.
+	 */
+	public MoleculeRecordCache(int maxMolecules, long maxBytes) {
+		this.maxMolecules = maxMolecules;
+		this.maxBytes = maxBytes;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Retrieves the molecule with the UID given and marks it as most recently
+	 * used.
+	 * 
+	 * @param UID The UID of the molecule.
+	 * @return The cached molecule or null if it is not in the cache.
+	 */
+	public synchronized M get(String UID) {
+		CacheEntry<M> entry = entries.get(UID);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.molecule;
+	}
+
+	/**
+	 * Adds a molecule to the cache, evicting the least recently used molecules
+	 * if a limit is exceeded.
+	 * 
+	 * @param UID The UID of the molecule.
+	 * @param molecule The molecule to cache.
+	 */
+	public synchronized void put(String UID, M molecule) {
+		long size = estimateBytes(molecule);
+		if (maxBytes > 0 && size > maxBytes) {
+			invalidate(UID);
+			return;
+		}
+
+		CacheEntry<M> previous = entries.put(UID, new CacheEntry<>(molecule,
+			size));
+		if (previous != null) bytes -= previous.bytes;
+		bytes += size;
+
+		Iterator<CacheEntry<M>> iterator = entries.values().iterator();
+		while (iterator.hasNext() && overLimit()) {
+			bytes -= iterator.next().bytes;
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	private boolean overLimit() {
+		return (maxMolecules > 0 && entries.size() > maxMolecules) ||
+			(maxBytes > 0 && bytes > maxBytes);
+	}
+
+	/**
+	 * Removes the molecule with the UID given from the cache.
+	 * 
+	 * @param UID The UID of the molecule to remove.
+	 */
+	public synchronized void invalidate(String UID) {
+		CacheEntry<M> entry = entries.remove(UID);
+		if (entry != null) bytes -= entry.bytes;
+	}
+
+	/**
+	 * Removes all molecules from the cache. Hit, miss and eviction counts are
+	 * retained.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Resets the hit, miss and eviction counts to zero.
+	 */
+	public synchronized void resetStatistics() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getEstimatedBytes() {
+		return bytes;
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Fraction of calls to get that were answered from the cache.
+	 * 
+	 * @return The hit rate or 0 if get has not been called.
+	 */
+	public synchronized double getHitRate() {
+		long requests = hits + misses;
+		return (requests == 0) ? 0 : (double) hits / requests;
+	}
+
+	public int getMaxMolecules() {
+		return maxMolecules;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Rough estimate of the memory used by a molecule record. Double columns
+	 * are counted as 8 bytes per row and all other columns as a reference plus
+	 * a small object per row.
+	 * 
+	 * @param molecule The molecule to estimate the size of.
+	 * @return The estimated size in bytes.
+	 */
+	public static long estimateBytes(Molecule molecule) {
+		long size = RECORD_OVERHEAD_BYTES;
+		size += PARAMETER_BYTES * (molecule.getParameters().size() + molecule
+			.getTags().size());
+		size += estimateBytes(molecule.getTable());
+		for (List<String> tableColumnNames : molecule.getSegmentsTableNames())
+			size += estimateBytes(molecule.getSegmentsTable(tableColumnNames));
+		return size;
+	}
+
+	private static long estimateBytes(MarsTable table) {
+		if (table == null) return 0;
+		long size = 0;
+		for (int col = 0; col < table.getColumnCount(); col++) {
+			Column<?> column = table.get(col);
+			size += PARAMETER_BYTES;
+			size += (long) column.size() * ((column instanceof DoubleColumn) ? 8
+				: OBJECT_CELL_BYTES);
+		}
+		return size;
+	}
+
+	private static class CacheEntry<M> {
+
+		private final M molecule;
+		private final long bytes;
+
+		CacheEntry(M molecule, long bytes) {
+			this.molecule = molecule;
+			this.bytes = bytes;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "MoleculeRecordCache[size=" + entries.size() + ", bytes=" + bytes +
+			", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions +
+			"]";
+	}
+}
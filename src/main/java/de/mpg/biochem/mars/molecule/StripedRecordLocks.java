@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.molecule;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed size table of locks used to serialize access to records in virtual
+ * stores. Each UID is mapped to one of the locks by its hash code, so the
+ * same UID always gets the same lock and memory use does not grow with the
+ * number of records. Different UIDs can share a lock, which only means they
+ * occasionally wait on each other. Callers must not hold the lock for one
+ * record while acquiring the lock for another.
+ *
+ * @author Karl Duderstadt
+ */
+public class StripedRecordLocks {
+
+	private final ReentrantLock[] locks;
+	private final int mask;
+
+	/**
+	 * Creates a lock table with a number of stripes suited to the number of
+	 * available processors.
+	 */
+	public StripedRecordLocks() {
+		this(Math.max(64, 8 * Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Creates a lock table with at least the number of stripes given. The
+	 * number is rounded up to a power of two.
+	 * 
+	 * @param stripes The minimum number of locks.
+	 */
+	public StripedRecordLocks(int stripes) {
+		if (stripes < 1) throw new IllegalArgumentException(
+			"The number of stripes must be at least 1.");
+		int size = Integer.highestOneBit(stripes);
+		if (size < stripes) size <<= 1;
+
+		locks = new ReentrantLock[size];
+		for (int i = 0; i < size; i++)
+			locks[i] = new ReentrantLock();
+		mask = size - 1;
+	}
+
+	/**
+	 * Get the lock for the record with the UID given.
+	 * 
+	 * @param UID The UID of the record.
+	 * @return The lock guarding the record.
+	 */
+	public ReentrantLock get(String UID) {
+		int h = UID.hashCode();
+		// Spread the high bits since only the low bits select the stripe.
+		h ^= (h >>> 16);
+		return locks[h & mask];
+	}
+
+	public int size() {
+		return locks.length;
+	}
+}
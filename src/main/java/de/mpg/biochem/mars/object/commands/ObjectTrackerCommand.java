@@ -252,6 +252,10 @@ public class ObjectTrackerCommand extends DynamicCommand implements Command,
 	@Parameter(label = "Minimum length", style = "group:Track")
 	private int minTrajectoryLength = 100;
 
+	@Parameter(label = "Linking", choices = { "greedy", "global" },
+		style = "group:Track")
+	private String linking = "greedy";
+
 	/**
 	 * OUTPUT SETTINGS
 	 */
@@ -488,6 +492,7 @@ public class ObjectTrackerCommand extends DynamicCommand implements Command,
 
 		PeakTracker tracker = new PeakTracker(maxDifferenceX, maxDifferenceY, maxDifferenceT,
 				minimumDistance, minTrajectoryLength, verbose, logService, pixelLength);
+		tracker.setGlobalLinking(linking.equals("global"));
 
 		archive = new ObjectArchive("archive.yama");
 
@@ -878,6 +883,7 @@ public class ObjectTrackerCommand extends DynamicCommand implements Command,
 		builder.addParameter("Max difference T", String.valueOf(maxDifferenceT));
 		builder.addParameter("Minimum track length", String.valueOf(
 			minTrajectoryLength));
+		builder.addParameter("Linking", linking);
 		builder.addParameter("Microscope", microscope);
 		builder.addParameter("Pixel Length", String.valueOf(this.pixelLength));
 		builder.addParameter("Pixel Units", this.pixelUnits);
@@ -1005,6 +1011,14 @@ public class ObjectTrackerCommand extends DynamicCommand implements Command,
 		return maxDifferenceY;
 	}
 
+	public void setLinking(String linking) {
+		this.linking = linking;
+	}
+
+	public String getLinking() {
+		return linking;
+	}
+
 	public void setMaxDifferenceT(int maxDifferenceT) {
 		this.maxDifferenceT = maxDifferenceT;
 	}
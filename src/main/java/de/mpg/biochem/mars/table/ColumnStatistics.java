@@ -0,0 +1,387 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.table;
+
+import java.util.BitSet;
+
+/**
+ * Statistics for a column of double values calculated directly on primitive
+ * arrays. Static kernels are provided for the individual statistics used by
+ * {@link MarsTable}, and {@link #describe(double[], int, BitSet)} calculates
+ * all of them together with a single copy of the values. NaN values are
+ * always ignored and an optional {@link BitSet} restricts the calculation to
+ * the selected rows.
+ * <p>
+ * Mean and variance use the same two-pass algorithm with error correction as
+ * org.apache.commons.math3 so results are identical to the StatUtils methods
+ * used previously. Median and median absolute deviation use quickselect
+ * instead of sorting.
+ *
+ * @author Karl Duderstadt
+ */
+public class ColumnStatistics {
+
+	private final int count;
+	private final double sum;
+	private final double mean;
+	private final double variance;
+	private final double populationVariance;
+	private final double min;
+	private final double max;
+	private final double median;
+	private final double mad;
+
+	private ColumnStatistics(int count, double sum, double mean,
+		double variance, double populationVariance, double min, double max,
+		double median, double mad)
+	{
+		this.count = count;
+		this.sum = sum;
+		this.mean = mean;
+		this.variance = variance;
+		this.populationVariance = populationVariance;
+		this.min = min;
+		this.max = max;
+		this.median = median;
+		this.mad = mad;
+	}
+
+	/**
+	 * Calculates all statistics for the values given. NaN values and rows not
+	 * in the selection are ignored. The values are not modified.
+	 * 
+	 * @param values The column values.
+	 * @param length The number of rows to consider.
+	 * @param selection The rows to include or null for all rows.
+	 * @return The statistics.
+	 */
+	public static ColumnStatistics describe(double[] values, int length,
+		BitSet selection)
+	{
+		double[] scratch = new double[length];
+		int n = compact(values, length, selection, scratch);
+
+		double min = Double.NaN;
+		double max = Double.NaN;
+		if (n > 0) {
+			min = scratch[0];
+			max = scratch[0];
+			for (int i = 1; i < n; i++) {
+				if (scratch[i] < min) min = scratch[i];
+				if (scratch[i] > max) max = scratch[i];
+			}
+		}
+
+		double sum = sum(scratch, n);
+		double mean = mean(scratch, n);
+		double variance = variance(scratch, n, mean, true);
+		double populationVariance = variance(scratch, n, mean, false);
+
+		// These reorder and then overwrite the scratch values.
+		double median = median(scratch, n);
+		double mad = mad(scratch, n, median);
+
+		return new ColumnStatistics(n, sum, mean, variance, populationVariance,
+			min, max, median, mad);
+	}
+
+	/**
+	 * Copies the values that are not NaN and are in the selection to the output
+	 * array.
+	 * 
+	 * @param values The column values.
+	 * @param length The number of rows to consider.
+	 * @param selection The rows to include or null for all rows.
+	 * @param output Array with at least length entries to copy values into.
+	 * @return The number of values copied.
+	 */
+	public static int compact(double[] values, int length, BitSet selection,
+		double[] output)
+	{
+		int n = 0;
+		if (selection == null) {
+			for (int row = 0; row < length; row++)
+				if (!Double.isNaN(values[row])) output[n++] = values[row];
+		}
+		else {
+			for (int row = selection.nextSetBit(0); row >= 0 &&
+				row < length; row = selection.nextSetBit(row + 1))
+				if (!Double.isNaN(values[row])) output[n++] = values[row];
+		}
+		return n;
+	}
+
+	/**
+	 * Builds a selection of the rows with values inside the bounds given
+	 * (inclusive). NaN values are never selected.
+	 * 
+	 * @param values The column values.
+	 * @param length The number of rows to consider.
+	 * @param lowerBound smallest value included in the selection.
+	 * @param upperBound largest value included in the selection.
+	 * @return BitSet with the selected rows set.
+	 */
+	public static BitSet select(double[] values, int length, double lowerBound,
+		double upperBound)
+	{
+		BitSet selection = new BitSet(length);
+		for (int row = 0; row < length; row++)
+			if (values[row] >= lowerBound && values[row] <= upperBound) selection
+				.set(row);
+		return selection;
+	}
+
+	/**
+	 * Builds a selection of the rows with values equal to one of the members
+	 * given. Membership is checked with a hash set, so the cost does not depend
+	 * on the number of members. NaN values are never selected.
+	 * 
+	 * @param values The column values.
+	 * @param length The number of rows to consider.
+	 * @param members The values to select.
+	 * @return BitSet with the selected rows set.
+	 */
+	public static BitSet select(double[] values, int length, double[] members) {
+		DoubleHashSet set = new DoubleHashSet(members);
+		BitSet selection = new BitSet(length);
+		for (int row = 0; row < length; row++)
+			if (set.contains(values[row])) selection.set(row);
+		return selection;
+	}
+
+	/**
+	 * Sum of the first n values. Zero if n is zero.
+	 * 
+	 * @param values The values.
+	 * @param n The number of values.
+	 * @return The sum.
+	 */
+	public static double sum(double[] values, int n) {
+		double sum = 0;
+		for (int i = 0; i < n; i++)
+			sum += values[i];
+		return sum;
+	}
+
+	/**
+	 * Mean of the first n values with a second pass to correct the rounding
+	 * error.
+	 * 
+	 * @param values The values.
+	 * @param n The number of values.
+	 * @return The mean or NaN if n is zero.
+	 */
+	public static double mean(double[] values, int n) {
+		if (n == 0) return Double.NaN;
+		double xbar = sum(values, n) / n;
+		double correction = 0;
+		for (int i = 0; i < n; i++)
+			correction += values[i] - xbar;
+		return xbar + (correction / n);
+	}
+
+	/**
+	 * Variance of the first n values about the mean given.
+	 * 
+	 * @param values The values.
+	 * @param n The number of values.
+	 * @param mean The mean of the values.
+	 * @param biasCorrected Whether to divide by n - 1 (sample variance) instead
+	 *          of n (population variance).
+	 * @return The variance, 0 for a single value or NaN if n is zero.
+	 */
+	public static double variance(double[] values, int n, double mean,
+		boolean biasCorrected)
+	{
+		if (n == 0) return Double.NaN;
+		if (n == 1) return 0;
+		double accum = 0;
+		double accum2 = 0;
+		for (int i = 0; i < n; i++) {
+			double dev = values[i] - mean;
+			accum += dev * dev;
+			accum2 += dev;
+		}
+		double len = n;
+		return (accum - (accum2 * accum2 / len)) / (biasCorrected ? len - 1.0
+			: len);
+	}
+
+	/**
+	 * Median of the first n values. The values are reordered.
+	 * 
+	 * @param values The values.
+	 * @param n The number of values.
+	 * @return The median or NaN if n is zero.
+	 */
+	public static double median(double[] values, int n) {
+		if (n == 0) return Double.NaN;
+		int k = n / 2;
+		double upper = select(values, n, k);
+		if (n % 2 == 1) return upper;
+
+		// After selection the lower half holds the values at or below upper.
+		double lower = values[0];
+		for (int i = 1; i < k; i++)
+			if (values[i] > lower) lower = values[i];
+		return (upper + lower) / 2;
+	}
+
+	/**
+	 * Median absolute deviation of the first n values from the median given.
+	 * The values are overwritten with the absolute deviations.
+	 * 
+	 * @param values The values.
+	 * @param n The number of values.
+	 * @param median The median of the values.
+	 * @return The median absolute deviation or NaN if n is zero.
+	 */
+	public static double mad(double[] values, int n, double median) {
+		for (int i = 0; i < n; i++)
+			values[i] = Math.abs(median - values[i]);
+		return median(values, n);
+	}
+
+	/**
+	 * Partially orders the first n values so that the value at index k is the
+	 * one that would be there after sorting, with smaller or equal values
+	 * before it and larger or equal values after it.
+	 * 
+	 * @param values The values.
+	 * @param n The number of values.
+	 * @param k The index to select.
+	 * @return The kth smallest value.
+	 */
+	public static double select(double[] values, int n, int k) {
+		int left = 0;
+		int right = n - 1;
+		while (right > left) {
+			// Median of three pivot to avoid the worst case on sorted traces.
+			int mid = (left + right) >>> 1;
+			if (values[mid] < values[left]) swap(values, left, mid);
+			if (values[right] < values[left]) swap(values, left, right);
+			if (values[right] < values[mid]) swap(values, mid, right);
+			double pivot = values[mid];
+
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (values[i] < pivot)
+					i++;
+				while (values[j] > pivot)
+					j--;
+				if (i <= j) {
+					swap(values, i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) right = j;
+			else if (k >= i) left = i;
+			else break;
+		}
+		return values[k];
+	}
+
+	private static void swap(double[] values, int i, int j) {
+		double tmp = values[i];
+		values[i] = values[j];
+		values[j] = tmp;
+	}
+
+	/**
+	 * @return The number of values that were not NaN and were selected.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public double getSum() {
+		return sum;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * @return The sample variance (divided by n - 1).
+	 */
+	public double getVariance() {
+		return variance;
+	}
+
+	/**
+	 * @return The population variance (divided by n).
+	 */
+	public double getPopulationVariance() {
+		return populationVariance;
+	}
+
+	/**
+	 * @return The sample standard deviation.
+	 */
+	public double getStd() {
+		return Math.sqrt(variance);
+	}
+
+	/**
+	 * @return The standard error of the mean.
+	 */
+	public double getSem() {
+		return Math.sqrt(variance) / Math.sqrt(count);
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public double getMedian() {
+		return median;
+	}
+
+	/**
+	 * @return The median absolute deviation.
+	 */
+	public double getMad() {
+		return mad;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + ", mean=" + mean + ", std=" + getStd() +
+			", sem=" + getSem() + ", min=" + min + ", max=" + max + ", median=" +
+			median + ", mad=" + mad;
+	}
+}
@@ -0,0 +1,450 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.table;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.scijava.app.StatusService;
+import org.scijava.table.Column;
+import org.scijava.table.DoubleColumn;
+import org.scijava.table.GenericColumn;
+
+/**
+ * Reads comma or tab delimited text files into a {@link MarsTable}. The file
+ * is split into byte ranges that end on line breaks and the ranges are parsed
+ * in parallel directly from bytes into primitive column buffers, which are
+ * concatenated once all ranges are done. Numbers with up to 15 significant
+ * digits and small exponents are converted without creating a String. All
+ * other tokens fall back to {@link Double#parseDouble(String)}, so the values
+ * are always identical to parsing each cell as a String.
+ * <p>
+ * As before, the first line holds the column headers and the first data line
+ * decides whether each column holds numbers or strings. Cells that cannot be
+ * parsed in number columns are NaN. Empty lines are skipped and missing
+ * trailing cells are treated as empty.
+ *
+ * @author Karl Duderstadt
+ */
+class DelimitedTextReader {
+
+	static final int DEFAULT_CHUNK_SIZE = 1 << 24;
+
+	private static final int SCAN_SIZE = 1 << 16;
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+		1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17,
+		1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private final byte separator;
+	private final int chunkSize;
+	private final int nThreads;
+
+	private int columns;
+	private int firstColumn;
+	private boolean[] stringColumn;
+
+	/**
+	 * Creates a reader for the separator given.
+	 * 
+	 * @param separator The cell separator, usually a comma or a tab.
+	 */
+	DelimitedTextReader(char separator) {
+		this(separator, DEFAULT_CHUNK_SIZE, Runtime.getRuntime()
+			.availableProcessors());
+	}
+
+	/**
+	 * Creates a reader for the separator given.
+	 * 
+	 * @param separator The cell separator, usually a comma or a tab.
+	 * @param chunkSize Approximate number of bytes parsed by each task.
+	 * @param nThreads Number of threads to use for parsing.
+	 */
+	DelimitedTextReader(char separator, int chunkSize, int nThreads) {
+		this.separator = (byte) separator;
+		this.chunkSize = chunkSize;
+		this.nThreads = nThreads;
+	}
+
+	/**
+	 * Adds the columns and rows in the file given to the table.
+	 * 
+	 * @param file The file to read.
+	 * @param table The table to add the columns to.
+	 * @param statusService StatusService used to report progress. Can be null.
+	 * @throws IOException Thrown if unable to read the file.
+	 */
+	void read(File file, MarsTable table, StatusService statusService)
+		throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+			StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			if (size == 0) return;
+
+			long headerEnd = lineEnd(channel, 0, size);
+			String[] headings = decodeLine(read(channel, 0, headerEnd)).split(String
+				.valueOf((char) separator));
+
+			firstColumn = headings.length > 0 && headings[0].equals(" ") ? 1 : 0;
+			columns = headings.length;
+			for (int i = firstColumn; i < columns; i++)
+				headings[i] = headings[i].trim();
+
+			// The first line with content decides the column types.
+			long dataStart = Math.min(headerEnd + 1, size);
+			long lineStart = dataStart;
+			String[] items = null;
+			while (lineStart < size && items == null) {
+				long end = lineEnd(channel, lineStart, size);
+				String line = decodeLine(read(channel, lineStart, end));
+				if (!line.isEmpty()) items = line.split(String.valueOf(
+					(char) separator));
+				lineStart = end + 1;
+			}
+
+			stringColumn = new boolean[columns];
+			if (items != null) for (int i = firstColumn; i < columns; i++)
+				stringColumn[i] = isStringColumn(i < items.length ? items[i] : "");
+
+			long[] bounds = chunkBounds(channel, dataStart, size);
+			Chunk[] chunks = new Chunk[bounds.length - 1];
+			AtomicInteger chunksDone = new AtomicInteger();
+
+			ForkJoinPool forkJoinPool = new ForkJoinPool(nThreads);
+			try {
+				forkJoinPool.submit(() -> IntStream.range(0, chunks.length).parallel()
+					.forEach(index -> {
+						try {
+							byte[] bytes = read(channel, bounds[index], bounds[index + 1]);
+							chunks[index] = parse(bytes);
+						}
+						catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+						if (statusService != null) statusService.showStatus(chunksDone
+							.incrementAndGet(), chunks.length, "Opening file " + file
+								.getName());
+					})).get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading " + file.getName(),
+					e);
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof UncheckedIOException) throw
+					((UncheckedIOException) e.getCause()).getCause();
+				throw new IOException("Failed to read " + file.getName(), e
+					.getCause());
+			}
+			finally {
+				forkJoinPool.shutdown();
+			}
+
+			int rows = 0;
+			for (Chunk chunk : chunks)
+				rows += chunk.rows;
+
+			for (int i = firstColumn; i < columns; i++)
+				table.add(concatenate(chunks, i, headings[i], rows));
+			table.setRowCount(rows);
+		}
+	}
+
+	private static boolean isStringColumn(String item) {
+		if (item.equals("NaN") || item.equals("-Infinity") || item.equals(
+			"Infinity")) return false;
+		try {
+			return Double.isNaN(Double.parseDouble(item));
+		}
+		catch (NumberFormatException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Splits the data into ranges of about chunkSize bytes that each start at
+	 * the beginning of a line.
+	 */
+	private long[] chunkBounds(FileChannel channel, long dataStart, long size)
+		throws IOException
+	{
+		List<Long> bounds = new ArrayList<>();
+		bounds.add(dataStart);
+		long bound = dataStart;
+		while (bound < size) {
+			long next = bound + chunkSize;
+			bound = (next >= size) ? size : Math.min(lineEnd(channel, next - 1,
+				size) + 1, size);
+			bounds.add(bound);
+		}
+		return bounds.stream().mapToLong(Long::longValue).toArray();
+	}
+
+	/**
+	 * @return The position of the first line feed at or after from or the size
+	 *         of the file if there is none.
+	 */
+	private static long lineEnd(FileChannel channel, long from, long size)
+		throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_SIZE);
+		long position = from;
+		while (position < size) {
+			buffer.clear();
+			int n = channel.read(buffer, position);
+			if (n < 0) break;
+			byte[] bytes = buffer.array();
+			for (int i = 0; i < n; i++)
+				if (bytes[i] == '\n') return position + i;
+			position += n;
+		}
+		return size;
+	}
+
+	private static byte[] read(FileChannel channel, long from, long to)
+		throws IOException
+	{
+		byte[] bytes = new byte[(int) (to - from)];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, from + buffer.position());
+			if (n < 0) throw new IOException("Unexpected end of file.");
+		}
+		return bytes;
+	}
+
+	private static String decodeLine(byte[] bytes) {
+		int start = 0;
+		int end = bytes.length;
+		// Skip the UTF-8 byte order mark
+		if (end >= 3 && bytes[0] == (byte) 0xEF && bytes[1] == (byte) 0xBB &&
+			bytes[2] == (byte) 0xBF) start = 3;
+		if (end > start && bytes[end - 1] == '\r') end--;
+		return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	private Chunk parse(byte[] bytes) {
+		int lines = 1;
+		for (byte b : bytes)
+			if (b == '\n') lines++;
+
+		Chunk chunk = new Chunk(lines);
+		int length = bytes.length;
+		int lineStart = 0;
+		while (lineStart < length) {
+			int lineEnd = lineStart;
+			while (lineEnd < length && bytes[lineEnd] != '\n')
+				lineEnd++;
+			int next = lineEnd + 1;
+			if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') lineEnd--;
+			if (lineEnd == lineStart) {
+				lineStart = next;
+				continue;
+			}
+
+			int row = chunk.rows++;
+			int start = lineStart;
+			for (int i = 0; i < columns; i++) {
+				int end = Math.min(start, lineEnd);
+				while (end < lineEnd && bytes[end] != separator)
+					end++;
+				if (i >= firstColumn) {
+					int from = Math.min(start, lineEnd);
+					if (stringColumn[i]) chunk.strings[i][row] = decodeTrimmed(bytes,
+						from, end);
+					else chunk.doubles[i][row] = parseDouble(bytes, from, end);
+				}
+				start = end + 1;
+			}
+			lineStart = next;
+		}
+		return chunk;
+	}
+
+	private Column<?> concatenate(Chunk[] chunks, int index, String header,
+		int rows)
+	{
+		int position = 0;
+		if (stringColumn[index]) {
+			Object[] values = new Object[rows];
+			for (Chunk chunk : chunks) {
+				System.arraycopy(chunk.strings[index], 0, values, position,
+					chunk.rows);
+				position += chunk.rows;
+				chunk.strings[index] = null;
+			}
+			GenericColumn column = new GenericColumn(header);
+			column.setArray(values);
+			return column;
+		}
+
+		double[] values = new double[rows];
+		for (Chunk chunk : chunks) {
+			System.arraycopy(chunk.doubles[index], 0, values, position, chunk.rows);
+			position += chunk.rows;
+			chunk.doubles[index] = null;
+		}
+		DoubleColumn column = new DoubleColumn(header);
+		column.setArray(values);
+		return column;
+	}
+
+	private static String decodeTrimmed(byte[] bytes, int start, int end) {
+		while (start < end && bytes[start] >= 0 && bytes[start] <= ' ')
+			start++;
+		while (end > start && bytes[end - 1] >= 0 && bytes[end - 1] <= ' ')
+			end--;
+		return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Parses the number between start and end. Gives the same result as
+	 * {@link Double#parseDouble(String)} and returns NaN for anything that is
+	 * not a number.
+	 * <p>
+	 * Plain decimals with at most 15 significant digits and a decimal exponent
+	 * of at most 22 in magnitude are converted with a single multiplication or
+	 * division of two exactly representable doubles, which is correctly
+	 * rounded. Everything else is handed to Double.parseDouble.
+	 * 
+	 * @param bytes The text.
+	 * @param start Index of the first byte.
+	 * @param end Index after the last byte.
+	 * @return The value.
+	 */
+	static double parseDouble(byte[] bytes, int start, int end) {
+		while (start < end && bytes[start] >= 0 && bytes[start] <= ' ')
+			start++;
+		while (end > start && bytes[end - 1] >= 0 && bytes[end - 1] <= ' ')
+			end--;
+
+		int i = start;
+		boolean negative = false;
+		if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+			negative = bytes[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean anyDigits = false;
+
+		while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+			int digit = bytes[i++] - '0';
+			anyDigits = true;
+			if (mantissa != 0 || digit != 0) {
+				if (++digits > 15) return parseSlow(bytes, start, end);
+				mantissa = mantissa * 10 + digit;
+			}
+		}
+		if (i < end && bytes[i] == '.') {
+			i++;
+			while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+				int digit = bytes[i++] - '0';
+				anyDigits = true;
+				if (mantissa != 0 || digit != 0) {
+					if (++digits > 15) return parseSlow(bytes, start, end);
+					mantissa = mantissa * 10 + digit;
+				}
+				exponent--;
+			}
+		}
+		if (!anyDigits) return parseSlow(bytes, start, end);
+
+		if (i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+				negativeExponent = bytes[i] == '-';
+				i++;
+			}
+			if (i == end) return parseSlow(bytes, start, end);
+			int value = 0;
+			while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+				value = value * 10 + bytes[i++] - '0';
+				if (value > 1000) return parseSlow(bytes, start, end);
+			}
+			exponent += negativeExponent ? -value : value;
+		}
+		if (i != end) return parseSlow(bytes, start, end);
+
+		double value;
+		if (mantissa == 0) value = 0;
+		else if (exponent >= 0 && exponent <= 22) value = mantissa *
+			POWERS_OF_TEN[exponent];
+		else if (exponent < 0 && exponent >= -22) value = mantissa /
+			POWERS_OF_TEN[-exponent];
+		else return parseSlow(bytes, start, end);
+
+		return negative ? -value : value;
+	}
+
+	private static double parseSlow(byte[] bytes, int start, int end) {
+		try {
+			return Double.parseDouble(new String(bytes, start, end - start,
+				StandardCharsets.UTF_8));
+		}
+		catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Column buffers for the rows in one byte range.
+	 */
+	private class Chunk {
+
+		final double[][] doubles = new double[columns][];
+		final Object[][] strings = new Object[columns][];
+		int rows;
+
+		Chunk(int capacity) {
+			for (int i = firstColumn; i < columns; i++)
+				if (stringColumn[i]) strings[i] = new Object[capacity];
+				else doubles[i] = new double[capacity];
+		}
+	}
+}
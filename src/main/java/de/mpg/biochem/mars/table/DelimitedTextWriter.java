@@ -0,0 +1,282 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.table;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.scijava.table.Column;
+import org.scijava.table.DoubleColumn;
+
+/**
+ * Writes a {@link MarsTable} as comma or tab delimited text. Blocks of rows
+ * are formatted into byte buffers in parallel and written to the file in
+ * order. The output is identical to joining {@link String#valueOf(Object)} of
+ * every cell: strings that contain the separator are quoted and doubles are
+ * written as {@link Double#toString(double)} would, with values that have at
+ * most six decimal places formatted directly.
+ *
+ * @author Karl Duderstadt
+ */
+class DelimitedTextWriter {
+
+	static final int DEFAULT_BLOCK_ROWS = 1 << 14;
+
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator()
+		.getBytes(StandardCharsets.UTF_8);
+
+	private final char separator;
+	private final int blockRows;
+	private final int nThreads;
+
+	/**
+	 * Creates a writer for the separator given.
+	 * 
+	 * @param separator The cell separator, usually a comma or a tab.
+	 */
+	DelimitedTextWriter(char separator) {
+		this(separator, DEFAULT_BLOCK_ROWS, Runtime.getRuntime()
+			.availableProcessors());
+	}
+
+	/**
+	 * Creates a writer for the separator given.
+	 * 
+	 * @param separator The cell separator, usually a comma or a tab.
+	 * @param blockRows Number of rows formatted by each task.
+	 * @param nThreads Number of threads to use for formatting.
+	 */
+	DelimitedTextWriter(char separator, int blockRows, int nThreads) {
+		this.separator = separator;
+		this.blockRows = blockRows;
+		this.nThreads = nThreads;
+	}
+
+	/**
+	 * Writes the header and all rows of the table to the file given.
+	 * 
+	 * @param table The table to write.
+	 * @param file The file to write to.
+	 * @throws IOException Thrown if unable to write the file.
+	 */
+	void write(MarsTable table, File file) throws IOException {
+		int columnCount = table.getColumnCount();
+		int rowCount = table.getRowCount();
+
+		// Lazy columns are decoded here rather than by the formatting threads.
+		double[][] doubles = new double[columnCount][];
+		Column<?>[] columns = new Column<?>[columnCount];
+		for (int col = 0; col < columnCount; col++) {
+			columns[col] = table.get(col);
+			if (columns[col] instanceof DoubleColumn) doubles[col] =
+				((DoubleColumn) columns[col]).getArray();
+		}
+
+		try (OutputStream out = new FileOutputStream(file)) {
+			ByteBuilder header = new ByteBuilder(256);
+			for (int col = 0; col < columnCount; col++) {
+				if (col > 0) header.append(separator);
+				header.append(table.getColumnHeader(col));
+			}
+			header.append(LINE_SEPARATOR);
+			header.writeTo(out);
+
+			int blocks = (rowCount + blockRows - 1) / blockRows;
+			int wave = Math.max(1, nThreads) * 4;
+			ByteBuilder[] formatted = new ByteBuilder[Math.min(wave, blocks)];
+
+			ForkJoinPool forkJoinPool = new ForkJoinPool(nThreads);
+			try {
+				for (int first = 0; first < blocks; first += wave) {
+					int waveStart = first;
+					int waveEnd = Math.min(first + wave, blocks);
+					forkJoinPool.submit(() -> IntStream.range(waveStart, waveEnd)
+						.parallel().forEach(block -> {
+							int slot = block - waveStart;
+							if (formatted[slot] == null) formatted[slot] = new ByteBuilder(
+								blockRows * columnCount * 12);
+							formatted[slot].clear();
+							int end = Math.min((block + 1) * blockRows, rowCount);
+							for (int row = block * blockRows; row < end; row++)
+								formatRow(formatted[slot], columns, doubles, row);
+						})).get();
+					for (int block = waveStart; block < waveEnd; block++)
+						formatted[block - waveStart].writeTo(out);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while writing " + file.getName(),
+					e);
+			}
+			catch (ExecutionException e) {
+				throw new IOException("Failed to write " + file.getName(), e
+					.getCause());
+			}
+			finally {
+				forkJoinPool.shutdown();
+			}
+		}
+	}
+
+	private void formatRow(ByteBuilder builder, Column<?>[] columns,
+		double[][] doubles, int row)
+	{
+		for (int col = 0; col < columns.length; col++) {
+			if (col > 0) builder.append(separator);
+			if (doubles[col] != null) appendDouble(builder, doubles[col][row]);
+			else {
+				String value = String.valueOf(columns[col].get(row));
+				if (value.indexOf(separator) >= 0) builder.append('"').append(value)
+					.append('"');
+				else builder.append(value);
+			}
+		}
+		builder.append(LINE_SEPARATOR);
+	}
+
+	/**
+	 * Appends the value as {@link Double#toString(double)} would. Values from
+	 * 0.001 up to 10^7 that are exactly the double nearest to a decimal with
+	 * at most six decimal places have that decimal as their shortest
+	 * representation, so those are written from the scaled integer. Everything
+	 * else goes through Double.toString.
+	 */
+	static void appendDouble(ByteBuilder builder, double value) {
+		double magnitude = Math.abs(value);
+		if ((magnitude >= 1e-3 && magnitude < 1e7) || magnitude == 0) {
+			long scaled = Math.round(magnitude * 1e6);
+			if (scaled / 1e6 == magnitude) {
+				if (Double.doubleToRawLongBits(value) < 0) builder.append('-');
+				builder.append(scaled / 1000000);
+				builder.append('.');
+				int fraction = (int) (scaled % 1000000);
+				int places = 6;
+				while (places > 1 && fraction % 10 == 0) {
+					fraction /= 10;
+					places--;
+				}
+				for (int divisor = pow10(places - 1); divisor > 0; divisor /= 10)
+					builder.append((char) ('0' + (fraction / divisor) % 10));
+				return;
+			}
+		}
+		builder.append(Double.toString(value));
+	}
+
+	private static int pow10(int n) {
+		int value = 1;
+		for (int i = 0; i < n; i++)
+			value *= 10;
+		return value;
+	}
+
+	/**
+	 * Growable byte buffer for formatting text.
+	 */
+	static final class ByteBuilder {
+
+		private byte[] bytes;
+		private int length;
+
+		ByteBuilder(int capacity) {
+			bytes = new byte[Math.max(capacity, 16)];
+		}
+
+		void clear() {
+			length = 0;
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(
+				capacity, bytes.length * 2));
+		}
+
+		ByteBuilder append(char c) {
+			if (c < 0x80) {
+				ensureCapacity(length + 1);
+				bytes[length++] = (byte) c;
+				return this;
+			}
+			return append(String.valueOf(c));
+		}
+
+		ByteBuilder append(byte[] b) {
+			ensureCapacity(length + b.length);
+			System.arraycopy(b, 0, bytes, length, b.length);
+			length += b.length;
+			return this;
+		}
+
+		ByteBuilder append(String s) {
+			int n = s.length();
+			ensureCapacity(length + n);
+			for (int i = 0; i < n; i++) {
+				char c = s.charAt(i);
+				if (c >= 0x80) return append(s.substring(i).getBytes(
+					StandardCharsets.UTF_8));
+				bytes[length++] = (byte) c;
+			}
+			return this;
+		}
+
+		ByteBuilder append(long value) {
+			if (value == Long.MIN_VALUE) return append(Long.toString(value));
+			if (value < 0) {
+				append('-');
+				value = -value;
+			}
+			ensureCapacity(length + 19);
+			int start = length;
+			do {
+				bytes[length++] = (byte) ('0' + value % 10);
+				value /= 10;
+			}
+			while (value > 0);
+			for (int i = start, j = length - 1; i < j; i++, j--) {
+				byte b = bytes[i];
+				bytes[i] = bytes[j];
+				bytes[j] = b;
+			}
+			return this;
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			out.write(bytes, 0, length);
+		}
+	}
+}
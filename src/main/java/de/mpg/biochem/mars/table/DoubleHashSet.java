@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.table;
+
+/**
+ * Open addressing hash set of primitive doubles used for membership filters.
+ * Values are compared with == like a linear scan would: 0.0 and -0.0 are the
+ * same value and NaN is never contained.
+ *
+ * @author Karl Duderstadt
+ */
+class DoubleHashSet {
+
+	private final long[] keys;
+	private final boolean[] used;
+	private final int mask;
+
+	/**
+	 * Creates a set containing the values given.
+	 * 
+	 * @param values The values to add.
+	 */
+	DoubleHashSet(double[] values) {
+		int capacity = Integer.highestOneBit(Math.max(values.length, 1) * 2 -
+			1) << 1;
+		keys = new long[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+
+		for (double value : values)
+			if (!Double.isNaN(value)) add(value);
+	}
+
+	private void add(double value) {
+		long key = key(value);
+		int slot = slot(key);
+		while (used[slot]) {
+			if (keys[slot] == key) return;
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		used[slot] = true;
+	}
+
+	boolean contains(double value) {
+		if (Double.isNaN(value)) return false;
+		long key = key(value);
+		int slot = slot(key);
+		while (used[slot]) {
+			if (keys[slot] == key) return true;
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	private static long key(double value) {
+		// Adding 0.0 turns -0.0 into 0.0
+		return Double.doubleToRawLongBits(value + 0.0);
+	}
+
+	private int slot(long key) {
+		// Finalizer of MurmurHash3 to spread the bits of the key
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key & mask;
+	}
+}
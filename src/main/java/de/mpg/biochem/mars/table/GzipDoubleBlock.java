@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.table;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+
+/**
+ * Compressed DoubleBlock read from a smile encoded table. The block holds the
+ * double columns one after another, so columns are inflated in order only as
+ * far as needed for the column requested. Columns passed on the way are kept
+ * until they are requested. Once every column has been inflated the
+ * compressed bytes are released.
+ *
+ * @author Karl Duderstadt
+ */
+class GzipDoubleBlock {
+
+	private final int cols;
+	private final int rows;
+
+	private byte[] compressed;
+	private DataInputStream stream;
+	private byte[] columnBytes;
+
+	private final double[][] inflated;
+	private int inflatedColumns = 0;
+
+	GzipDoubleBlock(byte[] compressed, int cols, int rows) {
+		this.compressed = compressed;
+		this.cols = cols;
+		this.rows = rows;
+		this.inflated = new double[cols][];
+	}
+
+	/**
+	 * Inflates the block up to the column given and returns its values. Each
+	 * column can only be retrieved once since the values are handed over rather
+	 * than copied.
+	 * 
+	 * @param column The index of the column in the block.
+	 * @return The column values.
+	 */
+	synchronized double[] readColumn(int column) {
+		if (column >= inflatedColumns) {
+			try {
+				if (stream == null) {
+					stream = new DataInputStream(new GzipCompressorInputStream(
+						new ByteArrayInputStream(compressed)));
+					columnBytes = new byte[rows * 8];
+				}
+				while (inflatedColumns <= column) {
+					stream.readFully(columnBytes);
+					double[] values = new double[rows];
+					ByteBuffer.wrap(columnBytes).asDoubleBuffer().get(values);
+					inflated[inflatedColumns++] = values;
+				}
+				if (inflatedColumns == cols) {
+					stream.close();
+					stream = null;
+					compressed = null;
+					columnBytes = null;
+				}
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		double[] values = inflated[column];
+		if (values == null) throw new IllegalStateException("Column " + column +
+			" of the DoubleBlock has already been retrieved.");
+		inflated[column] = null;
+		return values;
+	}
+}
@@ -0,0 +1,154 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.table;
+
+import java.util.function.Supplier;
+
+import org.scijava.table.DoubleColumn;
+
+/**
+ * DoubleColumn whose values are only decoded when they are first accessed.
+ * Used when reading tables from records so that columns that are never used
+ * are never decoded. Until then the column reports the final size without
+ * holding any data. Any access to the values, or any structural change, loads
+ * the column first. Loading is synchronized so a column shared between threads
+ * is only decoded once.
+ *
+ * @author Karl Duderstadt
+ */
+class LazyDoubleColumn extends DoubleColumn {
+
+	private final int rows;
+
+	// Assigned after the super constructor, which already calls getArray.
+	private Supplier<double[]> loader;
+	private volatile boolean loaded;
+	private boolean loading;
+
+	/**
+	 * Creates a column that loads its values with the loader given.
+	 * 
+	 * @param header The column header.
+	 * @param rows The number of values the loader provides.
+	 * @param loader Provides the values on first access.
+	 */
+	LazyDoubleColumn(String header, int rows, Supplier<double[]> loader) {
+		super(header);
+		this.rows = rows;
+		this.loader = loader;
+	}
+
+	/**
+	 * @return True if the values have been decoded.
+	 */
+	boolean isLoaded() {
+		return loaded || loader == null;
+	}
+
+	private void load() {
+		if (loaded) return;
+		synchronized (this) {
+			if (loaded || loading || loader == null) return;
+			loading = true;
+			try {
+				double[] values = loader.get();
+				if (values.length != rows) throw new IllegalStateException("Column " +
+					getHeader() + " has " + values.length + " values but " + rows +
+					" were expected.");
+				super.setArray(values);
+				super.setSize(rows);
+				loader = null;
+				loaded = true;
+			}
+			finally {
+				loading = false;
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		return isLoaded() ? super.size() : rows;
+	}
+
+	@Override
+	public void setSize(int size) {
+		if (!isLoaded() && size == rows) return;
+		load();
+		super.setSize(size);
+	}
+
+	@Override
+	public double[] getArray() {
+		load();
+		return super.getArray();
+	}
+
+	@Override
+	public void setArray(double[] array) {
+		if (!isLoaded()) {
+			synchronized (this) {
+				loader = null;
+				loaded = true;
+			}
+		}
+		super.setArray(array);
+	}
+
+	@Override
+	public double getValue(int index) {
+		load();
+		return super.getValue(index);
+	}
+
+	@Override
+	public double setValue(int index, double value) {
+		load();
+		return super.setValue(index, value);
+	}
+
+	@Override
+	public void addValue(int index, double value) {
+		load();
+		super.addValue(index, value);
+	}
+
+	@Override
+	public int indexOf(double value) {
+		load();
+		return super.indexOf(value);
+	}
+
+	@Override
+	public int lastIndexOf(double value) {
+		load();
+		return super.lastIndexOf(value);
+	}
+}
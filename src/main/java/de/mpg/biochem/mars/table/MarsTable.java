@@ -34,6 +34,8 @@ import com.fasterxml.jackson.core.format.DataFormatDetector;
 import com.fasterxml.jackson.core.format.DataFormatMatcher;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import de.mpg.biochem.mars.io.ColumnarRecordInputStream;
+import de.mpg.biochem.mars.io.ColumnarRecordOutputStream;
 import de.mpg.biochem.mars.molecule.JsonConvertibleRecord;
 import de.mpg.biochem.mars.util.MarsMath;
 import de.mpg.biochem.mars.util.MarsUtil;
@@ -41,9 +43,7 @@ import de.mpg.biochem.mars.util.MarsUtil.ThrowingConsumer;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.commons.compress.compressors.gzip.GzipParameters;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.math3.stat.StatUtils;
-import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
 import org.apache.commons.math3.stat.regression.SimpleRegression;
 import org.scijava.app.StatusService;
 import org.scijava.plugin.Parameter;
@@ -52,11 +52,9 @@ import org.scijava.table.*;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.DoubleBuffer;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.*;
+import java.util.function.IntFunction;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -351,22 +349,9 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 * @return Array of double values for the column with NaN values removed.
 	 */
 	public double[] getColumnAsDoublesNoNaNs(String column) {
-		if (hasColumn(column) && get(column) instanceof DoubleColumn) {
-			ArrayList<Double> values = new ArrayList<>();
-			DoubleColumn dCol = (DoubleColumn) get(column);
-			double[] backingArray = dCol.getArray();
-
-			for (int row = 0; row < getRowCount(); row++) {
-				if (Double.isNaN(backingArray[row])) continue;
-
-				values.add(backingArray[row]);
-			}
-
-			return values.stream().mapToDouble(i -> i).toArray();
-		}
-		else {
-			return new double[0];
-		}
+		DoubleColumn col = getDoubleColumn(column);
+		if (col == null) return new double[0];
+		return compact(col, null);
 	}
 
 	/**
@@ -385,28 +370,10 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public double[] getColumnAsDoublesNoNaNs(String column,
 		String rowSelectionColumn, double lowerBound, double upperBound)
 	{
-		if (hasColumn(column) && hasColumn(rowSelectionColumn) && get(
-			column) instanceof DoubleColumn && get(
-				rowSelectionColumn) instanceof DoubleColumn)
-		{
-			ArrayList<Double> values = new ArrayList<>();
-			double[] backingArrayColumn = ((DoubleColumn) get(column)).getArray();
-			double[] backingArrayRowSelectionColumn = ((DoubleColumn) get(
-				rowSelectionColumn)).getArray();
-
-			for (int row = 0; row < getRowCount(); row++) {
-				if (Double.isNaN(backingArrayColumn[row])) continue;
-
-				if (backingArrayRowSelectionColumn[row] >= lowerBound &&
-					backingArrayRowSelectionColumn[row] <= upperBound) values.add(
-						backingArrayColumn[row]);
-			}
-
-			return values.stream().mapToDouble(i -> i).toArray();
-		}
-		else {
-			return new double[0];
-		}
+		DoubleColumn col = getDoubleColumn(column);
+		BitSet selection = selectRows(rowSelectionColumn, lowerBound, upperBound);
+		if (col == null || selection == null) return new double[0];
+		return compact(col, selection);
 	}
 
 	/**
@@ -481,24 +448,7 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 			path += ".csv";
 		}
 
-		PrintWriter pw;
-		FileOutputStream fos = new FileOutputStream(path);
-		BufferedOutputStream bos = new BufferedOutputStream(fos);
-		pw = new PrintWriter(bos);
-
-		// Now let's build the header
-		StringBuilder sb = new StringBuilder(200);
-		String heading;
-		for (int i = 0; i < getColumnCount(); i++) {
-			heading = getColumnHeader(i);
-			sb.append(heading);
-			if (i != getColumnCount() - 1) sb.append(',');
-		}
-		pw.println(new String(sb));
-
-		for (int i = 0; i < getRowCount(); i++)
-			pw.println(getRowAsString(i));
-		pw.close();
+		new DelimitedTextWriter(',').write(this, new File(path));
 	}
 
 	/**
@@ -544,9 +494,24 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 		throws IOException
 	{
 		jGenerator.writeObjectFieldStart("data");
-		String blockName = "DoubleBlock,GZIP,dims=[" + stream().filter(
-			c -> c instanceof DoubleColumn).count() + "," + getRowCount() + "]";
-		jGenerator.writeBinaryField(blockName, buildDataBlock());
+		if (jGenerator.getOutputTarget() instanceof ColumnarRecordOutputStream) {
+			// Columns are stored uncompressed after the record and only the block
+			// index is written here.
+			List<double[]> columns = new ArrayList<>();
+			for (int i = 0; i < getColumnCount(); i++)
+				if (get(i) instanceof DoubleColumn) columns.add(((DoubleColumn) get(i))
+					.getArray());
+			String blockName = "ColumnarBlock,dims=[" + columns.size() + "," +
+				getRowCount() + "]";
+			jGenerator.writeNumberField(blockName,
+				((ColumnarRecordOutputStream) jGenerator.getOutputTarget()).addBlock(
+					columns, getRowCount()));
+		}
+		else {
+			String blockName = "DoubleBlock,GZIP,dims=[" + stream().filter(
+				c -> c instanceof DoubleColumn).count() + "," + getRowCount() + "]";
+			jGenerator.writeBinaryField(blockName, buildDataBlock());
+		}
 
 		// Write GenericColumns as arrays of Strings
 		for (int i = 0; i < getColumnCount(); i++)
@@ -606,13 +571,31 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 * JSON deserialization of table values. Schema is used to determine column
 	 * type of either DoubleColumn or GenericColumn. Record objects are added as
 	 * the stream is parsed. The Double value types of NaN, Infinity, -Infinity
-	 * are serialized and deserialized.
+	 * are serialized and deserialized. Double columns in smile encoded tables
+	 * are decoded only when they are first accessed.
 	 * 
 	 * @param jParser JsonParser stream to read objects and fields from.
 	 * @throws IOException Thrown if unable to read from the JsonParser stream.
 	 */
 	@Override
 	public void fromJSON(JsonParser jParser) throws IOException {
+		fromJSON(jParser, true);
+	}
+
+	/**
+	 * JSON deserialization of table values. When lazyColumnDecoding is enabled,
+	 * the compressed DoubleBlock of smile encoded tables is kept after parsing
+	 * and is inflated as far as needed for the columns that are used. Otherwise,
+	 * all double columns are decoded right away.
+	 * 
+	 * @param jParser JsonParser stream to read objects and fields from.
+	 * @param lazyColumnDecoding Whether to decode double columns on first
+	 *          access.
+	 * @throws IOException Thrown if unable to read from the JsonParser stream.
+	 */
+	public void fromJSON(JsonParser jParser, boolean lazyColumnDecoding)
+		throws IOException
+	{
 		// Then we move through fields
 		while (jParser.nextToken() != JsonToken.END_OBJECT) {
 			String fieldName_L1 = jParser.getCurrentName();
@@ -659,7 +642,7 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 				if (jParser.currentToken() == JsonToken.START_ARRAY)
 					readDataAsRowObjectArray(jParser);
 				else if (jParser.currentToken() == JsonToken.START_OBJECT)
-					readDataBlockAndStringArrays(jParser);
+					readDataBlockAndStringArrays(jParser, lazyColumnDecoding);
 			}
 		}
 	}
@@ -697,8 +680,8 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 		}
 	}
 
-	private void readDataBlockAndStringArrays(JsonParser jParser)
-		throws IOException
+	private void readDataBlockAndStringArrays(JsonParser jParser,
+		boolean lazyColumnDecoding) throws IOException
 	{
 		int rows = -1;
 		while (jParser.nextToken() != JsonToken.END_OBJECT) {
@@ -713,6 +696,14 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 
 				jParser.nextToken();
 				byte[] binaryDataBlock = jParser.getBinaryValue();
+
+				if (lazyColumnDecoding) {
+					GzipDoubleBlock dataBlock = new GzipDoubleBlock(binaryDataBlock,
+						cols, rows);
+					setLazyDoubleColumns(rows, dataBlock::readColumn);
+					continue;
+				}
+
 				ByteArrayInputStream input = new ByteArrayInputStream(binaryDataBlock);
 				GzipCompressorInputStream inflater = new GzipCompressorInputStream(
 					input);
@@ -731,6 +722,36 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 				}
 				dis.close();
 			}
+			else if (fieldName.startsWith("ColumnarBlock,dims=[")) {
+				String dimensions = fieldName.substring(20, fieldName.length() - 1);
+				int cols = Integer.parseInt(dimensions.substring(0, dimensions.indexOf(
+					",")));
+				rows = Integer.parseInt(dimensions.substring(dimensions.indexOf(",") + 1
+				));
+
+				jParser.nextToken();
+				int block = jParser.getIntValue();
+				if (!(jParser.getInputSource() instanceof ColumnarRecordInputStream))
+					throw new IOException(
+						"ColumnarBlock found outside of a columnar record.");
+				ColumnarRecordInputStream record =
+					(ColumnarRecordInputStream) jParser.getInputSource();
+				if (record.getColumnCount(block) != cols || record.getRowCount(
+					block) != rows) throw new IOException("ColumnarBlock " + block +
+						" dimensions do not match the record header.");
+
+				// Columns are decoded from the record buffer on first access unless
+				// the buffer is mapped, since the lazy columns would keep the file
+				// mapped.
+				if (record.isMapped()) {
+					int blockColumn = 0;
+					for (int i = 0; i < getColumnCount(); i++)
+						if (get(i) instanceof DoubleColumn) ((DoubleColumn) get(i)).fill(
+							record.readColumn(block, blockColumn++));
+				}
+				else setLazyDoubleColumns(rows, column -> record.readColumn(block,
+					column));
+			}
 
 			if (hasColumn(fieldName)) {
 				GenericColumn column = (GenericColumn) get(fieldName);
@@ -746,6 +767,20 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 		setRowCount(rows);
 	}
 
+	/**
+	 * Replaces the double columns of the table, in order, with columns that are
+	 * only decoded on first access.
+	 */
+	private void setLazyDoubleColumns(int rows, IntFunction<double[]> loader) {
+		int blockColumn = 0;
+		for (int i = 0; i < getColumnCount(); i++)
+			if (get(i) instanceof DoubleColumn) {
+				final int column = blockColumn++;
+				set(i, new LazyDoubleColumn(getColumnHeader(i), rows, () -> loader
+					.apply(column)));
+			}
+	}
+
 	/**
 	 * Saves the table to the file path specified in json format.
 	 * 
@@ -803,102 +838,12 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 		stream.close();
 	}
 
-	private MarsTable loadCSV(File file) {
+	private MarsTable loadCSV(File file) throws IOException {
 		String absolutePath = file.getAbsolutePath();
-		double size_in_bytes = file.length();
-		double readPosition = 0;
-		final String lineSeparator = "\n";
-		int currentPercentDone = 0;
-		int currentPercent;
-
-		Path path = Paths.get(absolutePath);
 		boolean csv = absolutePath.endsWith(".csv") || absolutePath.endsWith(
 			".CSV");
-		String cellSeparator = csv ? "," : "\t";
-
-		try (BufferedReader br = Files.newBufferedReader(path,
-			StandardCharsets.UTF_8))
-		{
-			String header = br.readLine();
-			readPosition += header.getBytes().length + lineSeparator
-				.getBytes().length;
-			String[] headings = header.split(cellSeparator);
-
-			int firstColumn = headings.length > 0 && headings[0].equals(" ") ? 1 : 0;
-
-			for (int i = firstColumn; i < headings.length; i++) {
-				headings[i] = headings[i].trim();
-			}
-
-			boolean[] stringColumn = new boolean[headings.length];
-
-			int row = 0;
-			for (String line; (line = br.readLine()) != null;) {
-				String[] items = line.split(cellSeparator);
-
-				// During the first cycle we need to build the table with columns that
-				// are either DoubleColumns or GenericColumns for numbers or strings
-				// We need to detect this by what is in the first row.
-				if (row == 0) {
-					for (int i = firstColumn; i < headings.length; i++) {
-						if (items[i].equals("NaN") || items[i].equals("-Infinity") ||
-							items[i].equals("Infinity"))
-						{
-							// This should be a DoubleColumn
-							add(new DoubleColumn(headings[i]));
-							stringColumn[i] = false;
-						}
-						else {
-							double value = Double.NaN;
-							try {
-								value = Double.parseDouble(items[i]);
-							}
-							catch (NumberFormatException ignored) {}
-
-							if (Double.isNaN(value)) {
-								add(new GenericColumn(headings[i]));
-								stringColumn[i] = true;
-							}
-							else {
-								add(new DoubleColumn(headings[i]));
-								stringColumn[i] = false;
-							}
-						}
-					}
-				}
-
-				appendRow();
-				for (int i = firstColumn; i < headings.length; i++) {
-					if (stringColumn[i]) {
-						setValue(i - firstColumn, row, items[i].trim());
-					}
-					else {
-						double value = Double.NaN;
-						try {
-							value = Double.parseDouble(items[i]);
-						}
-						catch (NumberFormatException ignored) {}
 
-						setValue(i - firstColumn, row, value);
-					}
-				}
-				if (statusService != null) {
-					readPosition += line.getBytes().length + lineSeparator
-						.getBytes().length;
-					currentPercent = (int) Math.round(readPosition * 1000 /
-						size_in_bytes);
-					if (currentPercent > currentPercentDone) {
-						currentPercentDone = currentPercent;
-						statusService.showStatus(currentPercent, 1000, "Opening file " +
-							file.getName());
-					}
-				}
-				row++;
-			}
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		new DelimitedTextReader(csv ? ',' : '\t').read(file, this, statusService);
 
 		if (statusService != null) {
 			statusService.showProgress(100, 100);
@@ -1279,22 +1224,8 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 *         are NaN or the column does not exist.
 	 */
 	public double median(String column) {
-		if (!hasColumn(column)) return Double.NaN;
-		List<Double> values = new ArrayList<>();
-		for (int i = 0; i < getRowCount(); i++) {
-			if (Double.isNaN(getValue(column, i))) continue;
-			values.add(getValue(column, i));
-		}
-		Collections.sort(values);
-
-		if (values.size() == 0) return Double.NaN;
-
-		double median;
-		if (values.size() % 2 == 0) median = (values.get(values.size() / 2) + values
-			.get(values.size() / 2 - 1)) / 2;
-		else median = values.get(values.size() / 2);
-
-		return median;
+		double[] values = getColumnAsDoublesNoNaNs(column);
+		return ColumnStatistics.median(values, values.length);
 	}
 
 	/**
@@ -1313,25 +1244,9 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public double median(String medianColumn, String rowSelectionColumn,
 		double lowerBound, double upperBound)
 	{
-		if (!hasColumn(medianColumn) || !hasColumn(rowSelectionColumn))
-			return Double.NaN;
-		List<Double> values = new ArrayList<>();
-		for (int row = 0; row < getRowCount(); row++) {
-			if (Double.isNaN(getValue(medianColumn, row))) continue;
-
-			if (getValue(rowSelectionColumn, row) >= lowerBound && getValue(
-				rowSelectionColumn, row) <= upperBound) values.add(getValue(
-					medianColumn, row));
-		}
-		if (values.size() == 0) return Double.NaN;
-
-		Collections.sort(values);
-		double median;
-		if (values.size() % 2 == 0) median = (values.get(values.size() / 2) + values
-			.get(values.size() / 2 - 1)) / 2;
-		else median = values.get(values.size() / 2);
-
-		return median;
+		double[] values = getColumnAsDoublesNoNaNs(medianColumn,
+			rowSelectionColumn, lowerBound, upperBound);
+		return ColumnStatistics.median(values, values.length);
 	}
 
 	/**
@@ -1342,8 +1257,7 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 *         values are NaN or the column does not exist.
 	 */
 	public double std(String column) {
-		StandardDeviation standardDeviation = new StandardDeviation();
-		return standardDeviation.evaluate(this.getColumnAsDoublesNoNaNs(column));
+		return Math.sqrt(sampleVariance(getColumnAsDoublesNoNaNs(column)));
 	}
 
 	/**
@@ -1364,9 +1278,8 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public double std(String stdColumn, String rowSelectionColumn,
 		double lowerBound, double upperBound)
 	{
-		StandardDeviation standardDeviation = new StandardDeviation();
-		return standardDeviation.evaluate(this.getColumnAsDoublesNoNaNs(stdColumn,
-			rowSelectionColumn, lowerBound, upperBound));
+		return Math.sqrt(sampleVariance(getColumnAsDoublesNoNaNs(stdColumn,
+			rowSelectionColumn, lowerBound, upperBound)));
 	}
 
 	/**
@@ -1377,28 +1290,9 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 *         all values are NaN or the column does not exist.
 	 */
 	public double mad(String column) {
-		if (!hasColumn(column)) return Double.NaN;
-		double median = median(column);
-
-		List<Double> medianDevs = new ArrayList<>();
-
-		for (int row = 0; row < getRowCount(); row++) {
-			if (Double.isNaN(getValue(column, row))) continue;
-
-			medianDevs.add(Math.abs(median - getValue(column, row)));
-		}
-
-		if (medianDevs.size() == 0) return Double.NaN;
-
-		// Now find median of the deviations
-		Collections.sort(medianDevs);
-
-		double medianDev;
-		if (medianDevs.size() % 2 == 0) medianDev = (medianDevs.get(medianDevs
-			.size() / 2) + medianDevs.get(medianDevs.size() / 2 - 1)) / 2;
-		else medianDev = medianDevs.get(medianDevs.size() / 2);
-
-		return medianDev;
+		double[] values = getColumnAsDoublesNoNaNs(column);
+		return ColumnStatistics.mad(values, values.length, ColumnStatistics
+			.median(values, values.length));
 	}
 
 	/**
@@ -1420,33 +1314,10 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public double mad(String madColumn, String rowSelectionColumn,
 		double lowerBound, double upperBound)
 	{
-		if (!hasColumn(madColumn) || !hasColumn(rowSelectionColumn))
-			return Double.NaN;
-		double median = median(madColumn, rowSelectionColumn, lowerBound,
-			upperBound);
-
-		ArrayList<Double> medianDevs = new ArrayList<>();
-		for (int row = 0; row < getRowCount(); row++) {
-			if (Double.isNaN(getValue(madColumn, row))) continue;
-
-			if (getValue(rowSelectionColumn, row) >= lowerBound && getValue(
-				rowSelectionColumn, row) <= upperBound)
-			{
-				medianDevs.add(Math.abs(median - getValue(madColumn, row)));
-			}
-		}
-
-		if (medianDevs.size() == 0) return Double.NaN;
-
-		// Now find median of the deviations
-		Collections.sort(medianDevs);
-
-		double medianDev;
-		if (medianDevs.size() % 2 == 0) medianDev = (medianDevs.get(medianDevs
-			.size() / 2) + medianDevs.get(medianDevs.size() / 2 - 1)) / 2;
-		else medianDev = medianDevs.get(medianDevs.size() / 2);
-
-		return medianDev;
+		double[] values = getColumnAsDoublesNoNaNs(madColumn, rowSelectionColumn,
+			lowerBound, upperBound);
+		return ColumnStatistics.mad(values, values.length, ColumnStatistics
+			.median(values, values.length));
 	}
 
 	/**
@@ -1459,9 +1330,8 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 *         returned if all values are NaN or one the column does not exist.
 	 */
 	public double sem(String column) {
-		StandardDeviation standardDeviation = new StandardDeviation();
-		double[] values = this.getColumnAsDoublesNoNaNs(column);
-		return standardDeviation.evaluate(values) / Math.sqrt(values.length);
+		double[] values = getColumnAsDoublesNoNaNs(column);
+		return Math.sqrt(sampleVariance(values)) / Math.sqrt(values.length);
 	}
 
 	/**
@@ -1481,10 +1351,9 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public double sem(String meanColumn, String rowSelectionColumn,
 		double lowerBound, double upperBound)
 	{
-		StandardDeviation standardDeviation = new StandardDeviation();
-		double[] values = this.getColumnAsDoublesNoNaNs(meanColumn,
+		double[] values = getColumnAsDoublesNoNaNs(meanColumn,
 			rowSelectionColumn, lowerBound, upperBound);
-		return standardDeviation.evaluate(values) / Math.sqrt(values.length);
+		return Math.sqrt(sampleVariance(values)) / Math.sqrt(values.length);
 	}
 
 	/**
@@ -1495,8 +1364,9 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 *         are NaN or the column does not exist.
 	 */
 	public double variance(String varianceColumn) {
-		return StatUtils.populationVariance(this.getColumnAsDoublesNoNaNs(
-			varianceColumn));
+		double[] values = getColumnAsDoublesNoNaNs(varianceColumn);
+		return ColumnStatistics.variance(values, values.length, ColumnStatistics
+			.mean(values, values.length), false);
 	}
 
 	/**
@@ -1515,8 +1385,114 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public double variance(String varianceColumn, String rowSelectionColumn,
 		double lowerBound, double upperBound)
 	{
-		return StatUtils.populationVariance(this.getColumnAsDoublesNoNaNs(
-			varianceColumn, rowSelectionColumn, lowerBound, upperBound));
+		double[] values = getColumnAsDoublesNoNaNs(varianceColumn,
+			rowSelectionColumn, lowerBound, upperBound);
+		return ColumnStatistics.variance(values, values.length, ColumnStatistics
+			.mean(values, values.length), false);
+	}
+
+	/**
+	 * Calculates count, sum, mean, variance, standard deviation, standard error,
+	 * min, max, median and median absolute deviation for the column with a
+	 * single copy of the values. NaN values are ignored.
+	 * 
+	 * @param column Name of the column.
+	 * @return The statistics or null if the column does not exist or is not a
+	 *         DoubleColumn.
+	 */
+	public ColumnStatistics describe(String column) {
+		return describe(column, (BitSet) null);
+	}
+
+	/**
+	 * Calculates all statistics provided by {@link #describe(String)} for the
+	 * column within the range given for a rowSelectionColumn (inclusive of
+	 * bounds). NaN values are ignored.
+	 * 
+	 * @param column Name of the column.
+	 * @param rowSelectionColumn name of the column used for filtering a range of
+	 *          values.
+	 * @param lowerBound smallest value included in the row selection range.
+	 * @param upperBound largest value included in the row selection range.
+	 * @return The statistics or null if one of the columns does not exist.
+	 */
+	public ColumnStatistics describe(String column, String rowSelectionColumn,
+		double lowerBound, double upperBound)
+	{
+		BitSet selection = selectRows(rowSelectionColumn, lowerBound, upperBound);
+		if (selection == null) return null;
+		return describe(column, selection);
+	}
+
+	/**
+	 * Calculates all statistics provided by {@link #describe(String)} for the
+	 * rows selected. NaN values are ignored.
+	 * 
+	 * @param column Name of the column.
+	 * @param selection The rows to include or null for all rows.
+	 * @return The statistics or null if the column does not exist or is not a
+	 *         DoubleColumn.
+	 */
+	public ColumnStatistics describe(String column, BitSet selection) {
+		DoubleColumn col = getDoubleColumn(column);
+		if (col == null) return null;
+		return ColumnStatistics.describe(col.getArray(), getRowCount(), selection);
+	}
+
+	/**
+	 * Selects the rows with values of the column within the range given
+	 * (inclusive of bounds). Rows with NaN values are not selected. Selections
+	 * can be combined with the BitSet and, or and andNot methods and used with
+	 * {@link #describe(String, BitSet)}.
+	 * 
+	 * @param column name of the column used for the selection.
+	 * @param lowerBound smallest value included in the selection.
+	 * @param upperBound largest value included in the selection.
+	 * @return BitSet with the selected rows set or null if the column does not
+	 *         exist or is not a DoubleColumn.
+	 */
+	public BitSet selectRows(String column, double lowerBound,
+		double upperBound)
+	{
+		DoubleColumn col = getDoubleColumn(column);
+		if (col == null) return null;
+		return ColumnStatistics.select(col.getArray(), getRowCount(), lowerBound,
+			upperBound);
+	}
+
+	/**
+	 * Selects the rows with values of the column equal to one of the values
+	 * given. Values are compared with ==, so 0.0 matches -0.0 and rows with NaN
+	 * values are not selected. A hash set of the values is used, so large
+	 * numbers of values can be checked efficiently.
+	 * 
+	 * @param column name of the column used for the selection.
+	 * @param values The values to select.
+	 * @return BitSet with the selected rows set or null if the column does not
+	 *         exist or is not a DoubleColumn.
+	 */
+	public BitSet selectRows(String column, double[] values) {
+		DoubleColumn col = getDoubleColumn(column);
+		if (col == null) return null;
+		return ColumnStatistics.select(col.getArray(), getRowCount(), values);
+	}
+
+	private DoubleColumn getDoubleColumn(String column) {
+		if (!hasColumn(column)) return null;
+		Column<?> col = get(column);
+		return (col instanceof DoubleColumn) ? (DoubleColumn) col : null;
+	}
+
+	private double[] compact(DoubleColumn col, BitSet selection) {
+		double[] values = new double[getRowCount()];
+		int n = ColumnStatistics.compact(col.getArray(), getRowCount(), selection,
+			values);
+		return (n == values.length) ? values : Arrays.copyOf(values, n);
+	}
+
+	private static double sampleVariance(double[] values) {
+		return ColumnStatistics.variance(values, values.length, ColumnStatistics
+			.mean(values, values.length), true);
 	}
 
 	/**
@@ -1603,20 +1579,7 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 		for (int i = 0; i < columns.length; i++)
 			columnIndexes[i] = getColumnIndex(columns[i]);
 
-		new ResultsTableList(this).sort((o1, o2) -> {
-			for (int columnIndex : columnIndexes) {
-				int groupDifference = 0;
-				if (get(columnIndex) instanceof DoubleColumn) groupDifference = Double
-						.compare(o1.getValue(columnIndex), o2.getValue(columnIndex));
-				else if (get(columnIndex) instanceof GenericColumn) groupDifference =
-						StringUtils.compare(o1.getStringValue(columnIndex), o2
-								.getStringValue(columnIndex));
-
-				if (groupDifference != 0) return ascending ? groupDifference
-						: -groupDifference;
-			}
-			return 0;
-		});
+		MarsTableSorter.sort(this, ascending, columnIndexes);
 
 		return this;
 	}
@@ -1679,29 +1642,10 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public MarsTable deleteRows(int[] rows) {
 		if (rows.length == 0) return this;
 
-		int pos = 0;
-		int rowsIndex = 0;
-		for (int i = 0; i < getRowCount(); i++) {
-			if (rowsIndex < rows.length) {
-				if (rows[rowsIndex] == i) {
-					rowsIndex++;
-					continue;
-				}
-			}
-
-			if (pos != i) {
-				// means we need to move row i to position row.
-				for (int j = 0; j < getColumnCount(); j++)
-					set(j, pos, get(j, i));
-			}
-			pos++;
-		}
-
-		// delete last rows
-		for (int row = getRowCount() - 1; row > pos - 1; row--)
-			removeRow(row);
-
-		return this;
+		BitSet selection = new BitSet();
+		for (int row : rows)
+			if (row >= 0) selection.set(row);
+		return deleteRows(selection);
 	}
 
 	/**
@@ -1713,29 +1657,25 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public MarsTable deleteRows(List<Integer> rows) {
 		if (rows.size() == 0) return this;
 
-		int pos = 0;
-		int rowsIndex = 0;
-		for (int i = 0; i < getRowCount(); i++) {
-			if (rowsIndex < rows.size()) {
-				if (rows.get(rowsIndex) == i) {
-					rowsIndex++;
-					continue;
-				}
-			}
-
-			if (pos != i) {
-				// means we need to move row i to position row.
-				for (int j = 0; j < getColumnCount(); j++)
-					set(j, pos, get(j, i));
-			}
-			pos++;
-		}
-
-		// delete last rows
-		for (int row = getRowCount() - 1; row > pos - 1; row--)
-			removeRow(row);
+		BitSet selection = new BitSet();
+		for (int row : rows)
+			if (row >= 0) selection.set(row);
+		return deleteRows(selection);
+	}
 
-		return this;
+	/**
+	 * Remove the rows set in the selection given. Selections can be created with
+	 * {@link #selectRows(String, double, double)} and
+	 * {@link #selectRows(String, double[])}.
+	 * 
+	 * @param rows BitSet with the rows to remove set.
+	 * @return MarsTable for next operation.
+	 */
+	public MarsTable deleteRows(BitSet rows) {
+		BitSet selection = new BitSet(getRowCount());
+		selection.set(0, getRowCount());
+		selection.andNot(rows);
+		return keepRows(selection);
 	}
 
 	/**
@@ -1747,23 +1687,10 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public MarsTable keepRows(int[] rows) {
 		if (rows.length == 0) return this;
 
-		int rowsIndex = 0;
-		for (int row = 0; row < getRowCount(); row++) {
-			if (rowsIndex < rows.length) {
-				if (rows[rowsIndex] == row) {
-					// means we need to move row i to position row.
-					for (int j = 0; j < getColumnCount(); j++)
-						set(j, rowsIndex, get(j, row));
-					rowsIndex++;
-				}
-			}
-		}
-
-		// delete last rows
-		for (int row = getRowCount() - 1; row > rows.length - 1; row--)
-			removeRow(row);
-
-		return this;
+		BitSet selection = new BitSet();
+		for (int row : rows)
+			if (row >= 0) selection.set(row);
+		return keepRows(selection);
 	}
 
 	/**
@@ -1774,34 +1701,54 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 * @return MarsTable for next operation.
 	 */
 	public MarsTable keepRows(List<Integer> rows) {
-		if (rows.size() == 0) {
-			// Then we remove all rows...
-			// Maybe we just need to change size...
-			// This will work for now...
-			for (int row = getRowCount() - 1; row > rows.size() - 1; row--)
-				removeRow(row);
-			return this;
-		}
-
-		int rowsIndex = 0;
-		for (int row = 0; row < getRowCount(); row++) {
-			if (rowsIndex < rows.size()) {
-				if (rows.get(rowsIndex) == row) {
-					// means we need to move row i to position row.
-					for (int j = 0; j < getColumnCount(); j++)
-						set(j, rowsIndex, get(j, row));
-					rowsIndex++;
-				}
-			}
-		}
+		BitSet selection = new BitSet();
+		for (int row : rows)
+			if (row >= 0) selection.set(row);
+		return keepRows(selection);
+	}
 
-		// delete last rows
-		for (int row = getRowCount() - 1; row > rows.size() - 1; row--)
-			removeRow(row);
+	/**
+	 * Keep the rows set in the selection given. Remove all other rows. Each
+	 * column is compacted in place by moving runs of consecutive rows that are
+	 * kept as blocks.
+	 * 
+	 * @param rows BitSet with the rows to keep set.
+	 * @return MarsTable for next operation.
+	 */
+	public MarsTable keepRows(BitSet rows) {
+		int rowCount = getRowCount();
+		int kept = rows.get(0, rowCount).cardinality();
+		if (kept == rowCount) return this;
 
+		for (int col = 0; col < getColumnCount(); col++)
+			compactColumn(get(col), rows, rowCount);
+		setRowCount(kept);
 		return this;
 	}
 
+	@SuppressWarnings("unchecked")
+	private static void compactColumn(Column<?> column, BitSet rows,
+		int rowCount)
+	{
+		double[] values = (column instanceof DoubleColumn) ? ((DoubleColumn) column)
+			.getArray() : null;
+		Column<Object> objects = (Column<Object>) column;
+
+		int pos = 0;
+		int start = rows.nextSetBit(0);
+		while (start >= 0 && start < rowCount) {
+			int end = Math.min(rows.nextClearBit(start), rowCount);
+			if (pos != start) {
+				if (values != null) System.arraycopy(values, start, values, pos, end -
+					start);
+				else for (int row = start; row < end; row++)
+					objects.set(pos + row - start, objects.get(row));
+			}
+			pos += end - start;
+			start = rows.nextSetBit(end);
+		}
+	}
+
 	@Override
 	protected DoubleColumn createColumn(final String header) {
 		return new DoubleColumn(header);
@@ -1852,90 +1799,6 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 		return table;
 	}
 
-	// These classes are used for sorting in place. They
-	// may be replaced with a different sort implementation in future releases.
-	// But the external API will not need to change.
-	private static class ResultsTableList extends AbstractList<Row> {
-
-		private final MarsTable table;
-
-		public ResultsTableList(MarsTable table) {
-			this.table = table;
-		}
-
-		@Override
-		public Row get(int row) {
-			return new Row(row, table);
-		}
-
-		@Override
-		public Row set(int row, Row values) {
-			Row old = get(row);
-
-			for (int colIndex = 0; colIndex < table.getColumnCount(); colIndex++) {
-				Column<?> column = table.get(colIndex);
-
-				if (column instanceof DoubleColumn) {
-					table.setValue(column.getHeader(), row, values.getValue(column
-						.getHeader()));
-				}
-
-				if (column instanceof GenericColumn) {
-					table.setValue(column.getHeader(), row, values.getStringValue(column
-						.getHeader()));
-				}
-			}
-
-			return old;
-		}
-
-		@Override
-		public int size() {
-			return table.getRowCount();
-		}
-	}
-
-	private static class Row {
-
-		private final Map<String, Double> doubleValues = new HashMap<>();
-		private final Map<String, String> stringValues = new HashMap<>();
-
-		private final MarsTable table;
-
-		Row(int row, MarsTable table) {
-			this.table = table;
-
-			for (int colIndex = 0; colIndex < table.getColumnCount(); colIndex++) {
-				Column<?> column = table.get(colIndex);
-
-				if (column instanceof DoubleColumn) {
-					doubleValues.put(column.getHeader(), table.getValue(colIndex, row));
-				}
-
-				if (column instanceof GenericColumn) {
-					stringValues.put(column.getHeader(), table.getStringValue(colIndex,
-						row));
-				}
-			}
-		}
-
-		double getValue(String column) {
-			return doubleValues.get(column);
-		}
-
-		double getValue(int colIndex) {
-			return doubleValues.get(table.getColumnHeader(colIndex));
-		}
-
-		String getStringValue(String column) {
-			return stringValues.get(column);
-		}
-
-		String getStringValue(int colIndex) {
-			return stringValues.get(table.getColumnHeader(colIndex));
-		}
-	}
-
 	@Override
 	public void setShowWarnings(boolean showWarnings) {
 		// TODO Auto-generated method stub
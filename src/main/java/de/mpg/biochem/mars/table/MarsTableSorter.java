@@ -0,0 +1,265 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.table;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.scijava.table.Column;
+import org.scijava.table.DoubleColumn;
+import org.scijava.table.GenericColumn;
+
+/**
+ * Sorts the rows of a {@link MarsTable} using primitive arrays. The sort order
+ * is first calculated as a permutation of row indexes, which is then applied
+ * to each column in turn using a single scratch buffer.
+ * <p>
+ * Each sort column is converted to unsigned long keys that order the same way
+ * as the values. Double values are mapped to keys matching
+ * {@link Double#compare(double, double)}. String values are dictionary
+ * encoded, so each distinct string is compared only once, and the keys are
+ * their ranks. The permutation is then sorted on the keys with a stable least
+ * significant digit radix sort that skips bytes that are identical for all
+ * rows. Sorting on several columns is done by sorting on each column in turn
+ * starting with the last one. Since every pass is stable, the result is the
+ * same as the previous comparison based sort: rows with equal keys keep their
+ * original order for both ascending and descending sorts.
+ *
+ * @author Karl Duderstadt
+ */
+class MarsTableSorter {
+
+	// Below this size a stable insertion sort is faster than a radix sort.
+	private static final int INSERTION_SORT_THRESHOLD = 48;
+
+	private final int rows;
+
+	private long[] keys;
+	private long[] keyBuffer;
+	private int[] permutation;
+	private int[] permutationBuffer;
+
+	private MarsTableSorter(int rows) {
+		this.rows = rows;
+		keys = new long[rows];
+		permutation = new int[rows];
+		for (int i = 0; i < rows; i++)
+			permutation[i] = i;
+	}
+
+	/**
+	 * Sorts the table in place on the columns provided. Columns that are
+	 * neither DoubleColumns nor GenericColumns are not used for sorting.
+	 *
+	 * @param table The table to sort.
+	 * @param ascending Whether to sort in ascending or descending order.
+	 * @param columnIndexes Indexes of the columns to sort on from most to least
+	 *          significant.
+	 */
+	static void sort(MarsTable table, boolean ascending, int[] columnIndexes) {
+		int[] permutation = sortPermutation(table, ascending, columnIndexes);
+		if (!isIdentity(permutation)) apply(table, permutation);
+	}
+
+	/**
+	 * Calculates the permutation that sorts the table on the columns provided.
+	 * The table is not modified.
+	 *
+	 * @param table The table to sort.
+	 * @param ascending Whether to sort in ascending or descending order.
+	 * @param columnIndexes Indexes of the columns to sort on from most to least
+	 *          significant.
+	 * @return Array containing for each row of the sorted table the index of the
+	 *         row in the current table.
+	 */
+	static int[] sortPermutation(MarsTable table, boolean ascending,
+		int[] columnIndexes)
+	{
+		MarsTableSorter sorter = new MarsTableSorter(table.getRowCount());
+		for (int c = columnIndexes.length - 1; c >= 0; c--) {
+			Column<?> column = table.get(columnIndexes[c]);
+			if (column instanceof DoubleColumn) sorter.loadDoubleKeys(
+				((DoubleColumn) column).getArray(), ascending);
+			else if (column instanceof GenericColumn) sorter.loadStringKeys(table,
+				columnIndexes[c], ascending);
+			else continue;
+			sorter.sortOnKeys();
+		}
+		return sorter.permutation;
+	}
+
+	/**
+	 * Reorders all columns of the table so that row i of the result is row
+	 * permutation[i] of the current table.
+	 *
+	 * @param table The table to reorder.
+	 * @param permutation The permutation to apply.
+	 */
+	@SuppressWarnings("unchecked")
+	static void apply(MarsTable table, int[] permutation) {
+		int rows = permutation.length;
+		double[] doubleBuffer = null;
+		Object[] objectBuffer = null;
+
+		for (int col = 0; col < table.getColumnCount(); col++) {
+			Column<?> column = table.get(col);
+			if (column instanceof DoubleColumn) {
+				double[] values = ((DoubleColumn) column).getArray();
+				if (doubleBuffer == null) doubleBuffer = new double[rows];
+				for (int i = 0; i < rows; i++)
+					doubleBuffer[i] = values[permutation[i]];
+				System.arraycopy(doubleBuffer, 0, values, 0, rows);
+			}
+			else {
+				List<Object> values = (List<Object>) column;
+				if (objectBuffer == null) objectBuffer = new Object[rows];
+				for (int i = 0; i < rows; i++)
+					objectBuffer[i] = values.get(permutation[i]);
+				for (int i = 0; i < rows; i++)
+					values.set(i, objectBuffer[i]);
+			}
+		}
+	}
+
+	static boolean isIdentity(int[] permutation) {
+		for (int i = 0; i < permutation.length; i++)
+			if (permutation[i] != i) return false;
+		return true;
+	}
+
+	/**
+	 * Maps a double to a long whose unsigned order matches
+	 * {@link Double#compare(double, double)}, including -0.0 before 0.0 and NaN
+	 * after positive infinity.
+	 *
+	 * @param value The value to map.
+	 * @return The key.
+	 */
+	static long doubleKey(double value) {
+		long bits = Double.doubleToLongBits(value);
+		return bits ^ ((bits >> 63) | Long.MIN_VALUE);
+	}
+
+	private void loadDoubleKeys(double[] values, boolean ascending) {
+		if (ascending) for (int i = 0; i < rows; i++)
+			keys[i] = doubleKey(values[permutation[i]]);
+		else for (int i = 0; i < rows; i++)
+			keys[i] = ~doubleKey(values[permutation[i]]);
+	}
+
+	private void loadStringKeys(MarsTable table, int col, boolean ascending) {
+		Map<String, Integer> dictionary = new HashMap<>();
+		int[] codes = new int[rows];
+		for (int row = 0; row < rows; row++)
+			codes[row] = dictionary.computeIfAbsent(table.getStringValue(col, row),
+				value -> dictionary.size());
+
+		List<String> values = new ArrayList<>(dictionary.keySet());
+		values.sort(StringUtils::compare);
+		int[] ranks = new int[values.size()];
+		for (int rank = 0; rank < values.size(); rank++)
+			ranks[dictionary.get(values.get(rank))] = rank;
+
+		for (int i = 0; i < rows; i++) {
+			long rank = ranks[codes[permutation[i]]];
+			keys[i] = ascending ? rank : ~rank;
+		}
+	}
+
+	/**
+	 * Stable sort of the keys and permutation together on the unsigned value of
+	 * the keys.
+	 */
+	private void sortOnKeys() {
+		if (rows < INSERTION_SORT_THRESHOLD) {
+			insertionSort();
+			return;
+		}
+
+		int[][] counts = new int[8][256];
+		for (int i = 0; i < rows; i++) {
+			long key = keys[i];
+			for (int b = 0; b < 8; b++)
+				counts[b][(int) (key >>> (b << 3)) & 0xFF]++;
+		}
+
+		for (int b = 0; b < 8; b++) {
+			int[] count = counts[b];
+			int shift = b << 3;
+
+			// Skip bytes that are the same for all keys.
+			if (count[(int) (keys[0] >>> shift) & 0xFF] == rows) continue;
+
+			if (keyBuffer == null) {
+				keyBuffer = new long[rows];
+				permutationBuffer = new int[rows];
+			}
+
+			int offset = 0;
+			for (int d = 0; d < 256; d++) {
+				int n = count[d];
+				count[d] = offset;
+				offset += n;
+			}
+
+			for (int i = 0; i < rows; i++) {
+				int index = count[(int) (keys[i] >>> shift) & 0xFF]++;
+				keyBuffer[index] = keys[i];
+				permutationBuffer[index] = permutation[i];
+			}
+
+			long[] swapKeys = keys;
+			keys = keyBuffer;
+			keyBuffer = swapKeys;
+
+			int[] swapPermutation = permutation;
+			permutation = permutationBuffer;
+			permutationBuffer = swapPermutation;
+		}
+	}
+
+	private void insertionSort() {
+		for (int i = 1; i < rows; i++) {
+			long key = keys[i];
+			int index = permutation[i];
+			int j = i - 1;
+			while (j >= 0 && Long.compareUnsigned(keys[j], key) > 0) {
+				keys[j + 1] = keys[j];
+				permutation[j + 1] = permutation[j];
+				j--;
+			}
+			keys[j + 1] = key;
+			permutation[j + 1] = index;
+		}
+	}
+}
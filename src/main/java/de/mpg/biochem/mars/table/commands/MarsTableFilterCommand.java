@@ -30,6 +30,7 @@
 package de.mpg.biochem.mars.table.commands;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 
 import org.scijava.command.Command;
 import org.scijava.command.DynamicCommand;
@@ -155,68 +156,36 @@ public class MarsTableFilterCommand extends DynamicCommand implements
 
 		boolean includeSelection = selectionType.equals("inside");
 
-		double[] filterList = new double[0];
+		// Rows selected by the filter. Rows with NaN values are never selected.
+		BitSet selection;
 		if (tableFilter) {
-			filterList = filterTable.getColumnAsDoubles(columnName);
+			selection = table.selectRows(columnName, filterTable.getColumnAsDoubles(
+				columnName));
 		}
-
-		// If STDFilter was selected we have to calculate mean and STD before
-		// filtering
-		double STD = table.std(columnName);
-		double mean = table.mean(columnName);
-
-		// There is many better ways to do this....
-		// Another option is to take care of includeSelection only at the end.
-		ArrayList<Integer> deleteList = new ArrayList<>();
-		for (int row = 0; row < table.getRowCount(); row++) {
-			double value = table.getValue(columnName, row);
-
-			if (Double.isNaN(value)) {
-				// Let's just remove all null values. They can't be filtered correctly
-				deleteList.add(row);
-			}
-			else if (tableFilter) {
-				if (includeSelection) {
-					deleteList.add(row);
-					for (double v : filterList) {
-						if (value == v) {
-							deleteList.remove(deleteList.size() - 1);
-							break;
-						}
-					}
-				}
-				else {
-					for (double v : filterList) {
-						if (value == v) {
-							deleteList.add(row);
-							break;
-						}
-					}
-				}
-			}
-			else if (STDFilter) {
-				if (value < (mean - N_STD * STD) || value > (mean + N_STD * STD)) {
-					if (includeSelection) deleteList.add(row);
-				}
-				else {
-					if (!includeSelection) deleteList.add(row);
-				}
-			}
-			else if (value < min || value > max) {
-				if (includeSelection) deleteList.add(row);
-			}
-			else if (value >= min && value <= max) {
-				if (!includeSelection) deleteList.add(row);
-			}
-
+		else if (STDFilter) {
+			double STD = table.std(columnName);
+			double mean = table.mean(columnName);
+			double lower = mean - N_STD * STD;
+			double upper = mean + N_STD * STD;
+
+			// Comparisons with undefined bounds never exclude values.
+			if (Double.isNaN(lower)) lower = Double.NEGATIVE_INFINITY;
+			if (Double.isNaN(upper)) upper = Double.POSITIVE_INFINITY;
+			selection = table.selectRows(columnName, lower, upper);
 		}
+		else selection = table.selectRows(columnName, min, max);
+
+		if (selection == null) return;
 
-		int[] delList = new int[deleteList.size()];
-		for (int i = 0; i < deleteList.size(); i++) {
-			delList[i] = deleteList.get(i);
+		if (!includeSelection) {
+			// Let's just remove all null values. They can't be filtered correctly
+			BitSet outside = table.selectRows(columnName, Double.NEGATIVE_INFINITY,
+				Double.POSITIVE_INFINITY);
+			outside.andNot(selection);
+			selection = outside;
 		}
 
-		table.deleteRows(delList);
+		table.keepRows(selection);
 
 		if (table.getWindow() != null) table.getWindow().update();
 	}
@@ -32,14 +32,20 @@ package de.mpg.biochem.mars.image;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 
 import org.junit.jupiter.api.Test;
 
@@ -72,6 +78,36 @@ public class MarsImageUtilsTest {
 		assertEquals(peaks.get(2).getY(), 40);
 	}
 
+	@Test
+	void peakCandidateSuppressorOrder() {
+		PeakCandidateSuppressor candidates = PeakCandidateSuppressor
+			.forCurrentThread();
+
+		// Equal values are processed from the last added to the first.
+		candidates.add(0, 0, 50);
+		candidates.add(2, 0, 50);
+		candidates.add(10, 0, 80);
+		candidates.add(10, 2, 60);
+		candidates.add(13, 0, 20);
+		List<Peak> peaks = candidates.suppress(0, 3, false);
+
+		assertEquals(3, peaks.size());
+		assertEquals(10, peaks.get(0).getX());
+		assertEquals(2, peaks.get(1).getX());
+		// Pixels at exactly the minimum distance are not suppressed.
+		assertEquals(13, peaks.get(2).getX());
+
+		candidates.clear();
+		candidates.add(5, 5, -0.5);
+		candidates.add(6, 5, -0.25);
+		candidates.add(5, 9, -0.75);
+		peaks = candidates.suppress(0, 2, true);
+
+		assertEquals(2, peaks.size());
+		assertEquals(9, peaks.get(0).getY());
+		assertEquals(5, peaks.get(1).getX());
+	}
+
 	@Test
 	void fitPeaks() {
 		Img<UnsignedShortType> img = simulateImage();
@@ -103,6 +139,39 @@ public class MarsImageUtilsTest {
 				peaks.get(2).getY());
 	}
 
+	@Test
+	void batchPeakFitterMatchesPeakFitter() {
+		Img<UnsignedShortType> img = simulateImage();
+		Interval interval = Intervals.createMinMax(0, 0, img.dimension(0) - 1, img
+			.dimension(1) - 1);
+		RandomAccessible<UnsignedShortType> rae = Views.extendMirrorSingle(Views
+			.interval(img, interval));
+
+		List<Peak> peaks = MarsImageUtils.findPeaks(img, interval, 0, 100, 4,
+			false);
+		BatchPeakFitter batchFitter = new BatchPeakFitter();
+		batchFitter.fitPeaks(rae, peaks, 4, 2, false, 0);
+
+		PeakFitter<UnsignedShortType> fitter = new PeakFitter<>();
+		for (int i = 0; i < peaks.size(); i++) {
+			double[] p = { Double.NaN, Double.NaN, 0, 0, 1 };
+			double[] e = new double[5];
+			Peak peak = MarsImageUtils.findPeaks(img, interval, 0, 100, 4, false)
+				.get(i);
+			p[2] = peak.getX();
+			p[3] = peak.getY();
+			fitter.fitPeak(rae, p, e, new Rectangle((int) (peak.getX() - 4),
+				(int) (peak.getY() - 4), 9, 9), false);
+
+			for (int j = 0; j < 5; j++) {
+				assertEquals(p[j], batchFitter.getParameter(i, j));
+				assertEquals(e[j], batchFitter.getError(i, j));
+			}
+			assertEquals(MarsImageUtils.calcR2(rae.randomAccess(), 4, new Gaussian2D(
+				p)), batchFitter.getRSquared(i));
+		}
+	}
+
 	@Test
 	void removeNearestNeighbors() {
 		List<Peak> peaks = new ArrayList<>();
@@ -158,6 +227,86 @@ public class MarsImageUtilsTest {
 		assertEquals(peaks.get(0).getMedianBackground(), 75453.0);
 	}
 
+	@Test
+	void integrateSeveralIntervalsTogether() {
+		Img<UnsignedShortType> img = simulateImage();
+
+		Interval full = Intervals.createMinMax(0, 0, img.dimension(0) - 1, img
+			.dimension(1) - 1);
+		Interval edge = Intervals.createMinMax(6, 6, 14, 14);
+		List<Peak> peaks = MarsImageUtils.findPeaks(img, full, 0, 100, 4, false);
+		MarsImageUtils.fitPeaks(img, full, peaks, 4, 2, false, 0);
+		List<Peak> edgePeaks = MarsImageUtils.findPeaks(img, edge, 0, 100, 4,
+			false);
+		MarsImageUtils.fitPeaks(img, edge, edgePeaks, 4, 2, false, 0);
+
+		List<List<Peak>> peakLists = new ArrayList<>();
+		peakLists.add(peaks);
+		peakLists.add(edgePeaks);
+		PeakIntegrator integrator = new PeakIntegrator(2, 4);
+		integrator.integrate(img, Arrays.asList(full, edge), peakLists, false);
+
+		assertEquals(peaks.get(0).getIntensity(), 24223.5);
+		assertEquals(peaks.get(0).getMedianBackground(), 73972.5);
+		assertEquals(peaks.get(2).getIntensity(), 23849.0);
+		assertEquals(peaks.get(2).getMedianBackground(), 73815.0);
+
+		List<Peak> expected = MarsImageUtils.findPeaks(img, edge, 0, 100, 4,
+			false);
+		MarsImageUtils.fitPeaks(img, edge, expected, 4, 2, false, 0);
+		MarsImageUtils.integratePeaks(img, edge, expected, 2, 4);
+		assertEquals(expected.get(0).getIntensity(), edgePeaks.get(0)
+			.getIntensity());
+		assertEquals(expected.get(0).getMedianBackground(), edgePeaks.get(0)
+			.getMedianBackground());
+	}
+
+	@Test
+	void integratePeakStore() {
+		Img<UnsignedShortType> img = simulateImage();
+
+		Interval interval = Intervals.createMinMax(0, 0, img.dimension(0) - 1, img
+			.dimension(1) - 1);
+		List<Peak> peaks = MarsImageUtils.findPeaks(img, interval, 0, 100, 4,
+			false);
+		MarsImageUtils.fitPeaks(img, interval, peaks, 4, 2, false, 0);
+
+		PeakStore peakStore = new PeakStore(1);
+		for (Peak peak : peaks)
+			peakStore.setTrackIndex(peakStore.add(peak.getX(), peak.getY()),
+				peakStore.size() - 1);
+		peakStore.setTrackIndex(peakStore.add(Double.NaN, Double.NaN), peaks
+			.size());
+
+		PeakIntegrator integrator = new PeakIntegrator(2, 4);
+		integrator.integrateStores(img, Collections.singletonList(interval),
+			Collections.singletonList(peakStore), true);
+
+		assertEquals(peaks.size() + 1, peakStore.size());
+		assertEquals(24223.5, peakStore.getIntensity(0));
+		assertEquals(73972.5, peakStore.getMedianBackground(0));
+		assertEquals(23849.0, peakStore.getIntensity(2));
+		assertTrue(Double.isNaN(peakStore.getIntensity(peaks.size())));
+		assertEquals(2, peakStore.findTrackIndex(2));
+		assertEquals(-1, peakStore.findTrackIndex(peaks.size() + 1));
+
+		Peak peak = peakStore.toPeak(0);
+		assertEquals(24223.5, peak.getIntensity());
+		assertEquals(peakStore.getUncorrectedIntensity(0), peak.getProperties()
+			.get(Peak.UNCORRECTED_INTENSITY));
+	}
+
+	@Test
+	void peakIntegratorMedian() {
+		assertEquals(3.0, PeakIntegrator.median(new double[] { 5, 1, 3, 4, 2 },
+			5));
+		assertEquals(2.5, PeakIntegrator.median(new double[] { 4, 1, 3, 2, 100 },
+			4));
+		assertEquals(1.5, PeakIntegrator.median(new double[] { 2, 2, 1, 1 }, 4));
+		assertTrue(Double.isNaN(PeakIntegrator.median(new double[] { Double.NaN,
+			1 }, 2)));
+	}
+
 	public Img<UnsignedShortType> simulateImage() {
 		long[] dim = { 50, 50 };
 
@@ -56,6 +56,7 @@ import org.scijava.plugin.Parameter;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class MoleculeIntegratorCommandTest {
@@ -164,6 +165,13 @@ public class MoleculeIntegratorCommandTest {
 		MarsTable table1 = archive.get("molecule1").getTable();
 		MarsTable table2 = archive.get("molecule2").getTable();
 		MarsTable table3 = archive.get("molecule3").getTable();
+
+		// The peaks provided are updated with the integration results
+		assertEquals(table1.getValue("FRET Red", 3), longIntegrationMap.get(3).get(
+			"molecule1").getIntensity());
+		assertEquals(table2.getValue("Blue_Median_Background", 7),
+			shortIntegrationMap2.get(7).get("molecule2").getMedianBackground());
+
 		for (int t = 0; t < 50; t++) {
 			// FRET Red
 			double h0 = Math.cos(Math.PI * t / 10) * 2000d +
@@ -29,8 +29,11 @@
 
 package de.mpg.biochem.mars.image;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.File;
+
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
 import net.imagej.axis.Axes;
@@ -40,6 +43,7 @@ import net.imagej.ops.OpService;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.scijava.Context;
 import org.scijava.app.StatusService;
 import org.scijava.log.LogService;
@@ -171,6 +175,50 @@ public class PeakTrackerCommandTest {
 		}
 	}
 
+	@Test
+	void streamFramesCommand(@TempDir File tempDir) {
+		final PeakTrackerCommand peakTracker = new PeakTrackerCommand();
+
+		peakTracker.setContext(context);
+
+		peakTracker.setDataset(simulateDataset());
+		peakTracker.setRegion("whole image");
+		peakTracker.setChannel(0);
+		peakTracker.setUseDogFiler(true);
+		peakTracker.setDogFilterRadius(1.8d);
+		peakTracker.setThreshold(50);
+		peakTracker.setMinimumDistance(5);
+		peakTracker.setFitRadius(4);
+		peakTracker.setMaxDifferenceX(5);
+		peakTracker.setMaxDifferenceY(5);
+		peakTracker.setMaxDifferenceT(5);
+		peakTracker.setMinimumTrackLength(10);
+		peakTracker.setMetadataUIDSource("randomly generated");
+		peakTracker.setStreamFrames(true);
+		peakTracker.setVirtualArchiveDirectory(tempDir.getAbsolutePath());
+		peakTracker.setVirtualArchiveName("stream.yama.store");
+		peakTracker.setThreads(2);
+
+		// Run the Command
+		peakTracker.run();
+
+		// Retrieve output from the command
+		SingleMoleculeArchive archive = peakTracker.getArchive();
+
+		assertTrue(archive.isVirtual());
+		assertEquals(3, archive.getNumberOfMolecules());
+
+		SingleMolecule molecule1 = archive.molecules().filter(m -> m.getTable()
+			.getValue(Peak.X, 0) < 11).findFirst().get();
+		assertEquals(50, molecule1.getTable().getRowCount());
+		for (double t = 0; t < 50; t++) {
+			assertTrue(Math.abs(10d + t / 4 - molecule1.getTable().getValue(Peak.Y,
+				(int) t)) < TOLERANCE,
+				"Peak y position is off by more than the tolerance. Should be " + (10d +
+					t / 4) + " was " + molecule1.getTable().getValue(Peak.Y, (int) t));
+		}
+	}
+
 	public Dataset simulateDataset() {
 		long[] dim = { 50, 50, 50 };
 		AxisType[] axes = { Axes.X, Axes.Y, Axes.TIME };
@@ -0,0 +1,306 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.scijava.log.LogService;
+import org.scijava.log.StderrLogService;
+
+import de.mpg.biochem.mars.molecule.MoleculeArchiveTests;
+import de.mpg.biochem.mars.molecule.SingleMolecule;
+import de.mpg.biochem.mars.molecule.SingleMoleculeArchive;
+import de.mpg.biochem.mars.table.MarsTable;
+
+public class PeakTrackerTest {
+
+	private static final double TOLERANCE = 0.0001;
+
+	private final LogService logService = new StderrLogService();
+
+	@Test
+	void trackSyntheticMovie() {
+		trackSyntheticMovie(false);
+	}
+
+	@Test
+	void trackSyntheticMovieWithGlobalLinking() {
+		trackSyntheticMovie(true);
+	}
+
+	private void trackSyntheticMovie(boolean globalLinking) {
+		final int frames = 100;
+		final int particles = 20;
+
+		ConcurrentMap<Integer, List<Peak>> peakStack = new ConcurrentHashMap<>();
+		List<Integer> trackingTimePoints = new ArrayList<>();
+		for (int t = 0; t < frames; t++) {
+			trackingTimePoints.add(t);
+
+			// Frame 50 has no peaks
+			if (t == 50) continue;
+
+			List<Peak> peaks = new ArrayList<>();
+			for (int p = 0; p < particles; p++)
+				if (!isMissing(p, t)) peaks.add(new Peak(particleX(p, t), particleY(p,
+					t), t));
+			peakStack.put(t, peaks);
+		}
+
+		SingleMoleculeArchive archive = createArchive(frames);
+		PeakTracker tracker = new PeakTracker(1, 1, 3, 4, 10, false, logService, 1);
+		tracker.setGlobalLinking(globalLinking);
+		tracker.track(peakStack, archive, archive.getMetadataUIDs().get(0), 0,
+			trackingTimePoints, 4);
+
+		assertEquals(particles, archive.getNumberOfMolecules());
+		for (SingleMolecule molecule : archive.molecules().collect(Collectors
+			.toList()))
+		{
+			MarsTable table = molecule.getTable();
+			int p = particleAt(table.getValue(Peak.X, 0), table.getValue(Peak.Y, 0),
+				(int) table.getValue(Peak.T, 0));
+			assertTrue(p >= 0, "Track does not start at a particle.");
+
+			int row = 0;
+			for (int t = 0; t < frames; t++) {
+				if (t == 50 || isMissing(p, t)) continue;
+				assertEquals(t, table.getValue(Peak.T, row), TOLERANCE);
+				assertEquals(particleX(p, t), table.getValue(Peak.X, row), TOLERANCE);
+				assertEquals(particleY(p, t), table.getValue(Peak.Y, row), TOLERANCE);
+				row++;
+			}
+			assertEquals(row, table.getRowCount());
+		}
+	}
+
+	@Test
+	void streamMatchesTrack() {
+		final int frames = 200;
+
+		SingleMoleculeArchive trackArchive = createArchive(frames);
+		List<List<Peak>> movie = simulateMovie(frames, new Random(42));
+		ConcurrentMap<Integer, List<Peak>> peakStack = new ConcurrentHashMap<>();
+		List<Integer> trackingTimePoints = new ArrayList<>();
+		for (int t = 0; t < frames; t++) {
+			trackingTimePoints.add(t);
+			if (!movie.get(t).isEmpty()) peakStack.put(t, movie.get(t));
+		}
+		new PeakTracker(1.5, 1.5, 2, 2, 5, false, logService, 1).track(peakStack,
+			trackArchive, trackArchive.getMetadataUIDs().get(0), 0,
+			trackingTimePoints, 4);
+
+		SingleMoleculeArchive streamArchive = createArchive(frames);
+		PeakTrackerStream stream = new PeakTrackerStream(new PeakTracker(1.5, 1.5,
+			2, 2, 5, false, logService, 1), streamArchive, streamArchive
+				.getMetadataUIDs().get(0), 0);
+		for (List<Peak> peaks : simulateMovie(frames, new Random(42)))
+			stream.addFrame(peaks);
+		stream.finish();
+
+		assertTrue(trackArchive.getNumberOfMolecules() > 0);
+		assertEquals(trackArchive.getNumberOfMolecules(), stream
+			.getMoleculeCount());
+		assertEquals(tracks(trackArchive), tracks(streamArchive));
+	}
+
+	@Test
+	void trackPeakStoresMatchesTrack() {
+		final int frames = 200;
+
+		SingleMoleculeArchive trackArchive = createArchive(frames);
+		List<List<Peak>> movie = simulateMovie(frames, new Random(3));
+		ConcurrentMap<Integer, List<Peak>> peakStack = new ConcurrentHashMap<>();
+		Map<Integer, PeakStore> peakStores = new HashMap<>();
+		List<Integer> trackingTimePoints = new ArrayList<>();
+		for (int t = 0; t < frames; t++) {
+			trackingTimePoints.add(t);
+			if (movie.get(t).isEmpty()) continue;
+			peakStack.put(t, movie.get(t));
+			peakStores.put(t, new PeakStore(movie.get(t)));
+		}
+		PeakTracker tracker = new PeakTracker(1.5, 1.5, 2, 2, 5, false,
+			logService, 1);
+		tracker.track(peakStack, trackArchive, trackArchive.getMetadataUIDs().get(
+			0), 0, trackingTimePoints, 4);
+
+		SingleMoleculeArchive storeArchive = createArchive(frames);
+		tracker.trackPeakStores(peakStores, storeArchive, storeArchive
+			.getMetadataUIDs().get(0), 0, trackingTimePoints, 4);
+
+		SingleMoleculeArchive streamArchive = createArchive(frames);
+		PeakTrackerStream stream = new PeakTrackerStream(tracker, streamArchive,
+			streamArchive.getMetadataUIDs().get(0), 0);
+		for (List<Peak> peaks : simulateMovie(frames, new Random(3)))
+			stream.addFrame(new PeakStore(peaks));
+		stream.finish();
+
+		assertTrue(trackArchive.getNumberOfMolecules() > 0);
+		assertEquals(tracks(trackArchive), tracks(storeArchive));
+		assertEquals(tracks(trackArchive), tracks(streamArchive));
+		assertEquals(0, stream.getOpenTrackCount());
+
+		// Links are set in the stores as indices in the store of the linked T.
+		PeakStore peaks = peakStores.get(trackingTimePoints.stream().filter(
+			peakStores::containsKey).findFirst().get());
+		for (int index = 0; index < peaks.size(); index++) {
+			int link = peaks.getForwardLink(index);
+			if (link == -1) continue;
+			PeakStore linkedPeaks = peaks.getForwardLinkTDifference(index) == 1
+				? peakStores.get(peaks.getT(index) + 1) : null;
+			if (linkedPeaks == null) continue;
+			assertEquals(index, linkedPeaks.getBackwardLink(link));
+			assertEquals(peaks.getTrackIndex(index), linkedPeaks.getTrackIndex(
+				link));
+		}
+	}
+
+	@Test
+	void globalLinkingMaximizesLinks() {
+		// Taking the shortest link a -> c first leaves b without a partner.
+		// Global linking links a -> d and b -> c instead.
+		for (boolean globalLinking : new boolean[] { false, true }) {
+			ConcurrentMap<Integer, List<Peak>> peakStack = new ConcurrentHashMap<>();
+			peakStack.put(0, new ArrayList<>(Arrays.asList(new Peak(0, 0, 0),
+				new Peak(1, 0, 0))));
+			peakStack.put(1, new ArrayList<>(Arrays.asList(new Peak(0.1, 0, 1),
+				new Peak(-0.9, 0, 1))));
+
+			SingleMoleculeArchive archive = createArchive(2);
+			PeakTracker tracker = new PeakTracker(1, 1, 1, 0, 2, false, logService,
+				1);
+			tracker.setGlobalLinking(globalLinking);
+			tracker.track(peakStack, archive, 0, 1);
+
+			assertEquals(globalLinking ? 2 : 1, archive.getNumberOfMolecules());
+		}
+	}
+
+	@Test
+	void streamMatchesTrackWithGlobalLinking() {
+		final int frames = 200;
+
+		SingleMoleculeArchive trackArchive = createArchive(frames);
+		ConcurrentMap<Integer, List<Peak>> peakStack = new ConcurrentHashMap<>();
+		List<Integer> trackingTimePoints = new ArrayList<>();
+		List<List<Peak>> movie = simulateMovie(frames, new Random(7));
+		for (int t = 0; t < frames; t++) {
+			trackingTimePoints.add(t);
+			if (!movie.get(t).isEmpty()) peakStack.put(t, movie.get(t));
+		}
+		PeakTracker tracker = new PeakTracker(1.5, 1.5, 3, 2, 5, false,
+			logService, 1);
+		tracker.setGlobalLinking(true);
+		tracker.track(peakStack, trackArchive, trackArchive.getMetadataUIDs().get(
+			0), 0, trackingTimePoints, 4);
+
+		SingleMoleculeArchive streamArchive = createArchive(frames);
+		PeakTrackerStream stream = new PeakTrackerStream(tracker, streamArchive,
+			streamArchive.getMetadataUIDs().get(0), 0);
+		for (List<Peak> peaks : simulateMovie(frames, new Random(7)))
+			stream.addFrame(peaks);
+		stream.finish();
+
+		assertTrue(trackArchive.getNumberOfMolecules() > 0);
+		assertEquals(tracks(trackArchive), tracks(streamArchive));
+	}
+
+	private static List<List<Peak>> simulateMovie(int frames, Random random) {
+		double[][] positions = new double[40][2];
+		for (double[] position : positions) {
+			position[0] = random.nextDouble() * 60;
+			position[1] = random.nextDouble() * 60;
+		}
+
+		List<List<Peak>> movie = new ArrayList<>();
+		for (int t = 0; t < frames; t++) {
+			boolean emptyFrame = random.nextInt(20) == 0;
+			List<Peak> peaks = new ArrayList<>();
+			for (double[] position : positions) {
+				position[0] += random.nextGaussian() * 0.4;
+				position[1] += random.nextGaussian() * 0.4;
+				if (!emptyFrame && random.nextInt(10) > 0) peaks.add(new Peak(
+					position[0], position[1], t));
+			}
+			movie.add(peaks);
+		}
+		return movie;
+	}
+
+	private static List<String> tracks(SingleMoleculeArchive archive) {
+		return archive.molecules().map(molecule -> {
+			MarsTable table = molecule.getTable();
+			StringBuilder track = new StringBuilder();
+			for (int row = 0; row < table.getRowCount(); row++)
+				track.append(table.getValue(Peak.T, row)).append(':').append(table
+					.getValue(Peak.X, row)).append(',').append(table.getValue(Peak.Y,
+						row)).append(' ');
+			return track.toString();
+		}).sorted().collect(Collectors.toList());
+	}
+
+	private static SingleMoleculeArchive createArchive(int frames) {
+		SingleMoleculeArchive archive = new SingleMoleculeArchive("tracks.yama");
+		archive.putMetadata(MoleculeArchiveTests.generateMetadata(1, 1, frames));
+		return archive;
+	}
+
+	private static double particleX(int p, int t) {
+		return 10 + 12 * (p % 5) + 0.05 * t;
+	}
+
+	private static double particleY(int p, int t) {
+		return 10 + 12 * (p / 5) + 0.03 * t;
+	}
+
+	// Each particle is missing in every 13th frame, at a different offset.
+	private static boolean isMissing(int p, int t) {
+		return (t + 7 * p) % 13 == 0;
+	}
+
+	private static int particleAt(double x, double y, int t) {
+		for (int p = 0; p < 20; p++)
+			if (Math.abs(particleX(p, t) - x) < TOLERANCE && Math.abs(particleY(p,
+				t) - y) < TOLERANCE) return p;
+		return -1;
+	}
+}
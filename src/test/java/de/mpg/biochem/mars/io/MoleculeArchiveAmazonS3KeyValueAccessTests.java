@@ -0,0 +1,353 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+public class MoleculeArchiveAmazonS3KeyValueAccessTests {
+
+	private static final String BUCKET = "test-bucket";
+
+	@Test
+	void multipartUploadAndRangedRead() throws IOException {
+		InMemoryAmazonS3 s3 = new InMemoryAmazonS3();
+		MoleculeArchiveAmazonS3KeyValueAccess access =
+			new MoleculeArchiveAmazonS3KeyValueAccess(s3, BUCKET);
+		access.setMultipartUpload(MoleculeArchiveAmazonS3KeyValueAccess.MIN_PART_SIZE, 3);
+		access.setRangedReads(1024 * 1024, 4);
+
+		byte[] data = randomBytes(5 * MoleculeArchiveAmazonS3KeyValueAccess.MIN_PART_SIZE + 1234);
+		write(access, "archive.yama", data);
+
+		assertEquals(0, s3.singlePuts.get());
+		assertEquals(1, s3.completedUploads.get());
+		assertEquals(6, s3.uploadedParts.get());
+		assertTrue(s3.maxConcurrentParts.get() <= 3, "More parts were uploaded at the same time than allowed.");
+		assertArrayEquals(data, s3.objects.get("archive.yama"));
+
+		assertArrayEquals(data, read(access, "archive.yama"));
+		assertEquals((data.length + 1024 * 1024 - 1) / (1024 * 1024), s3.rangedGets.get());
+	}
+
+	@Test
+	void smallObjectsUseSingleRequests() throws IOException {
+		InMemoryAmazonS3 s3 = new InMemoryAmazonS3();
+		MoleculeArchiveAmazonS3KeyValueAccess access =
+			new MoleculeArchiveAmazonS3KeyValueAccess(s3, BUCKET);
+
+		byte[] data = randomBytes(1000);
+		write(access, "molecule.json", data);
+		write(access, "empty.json", new byte[0]);
+
+		assertEquals(2, s3.singlePuts.get());
+		assertEquals(0, s3.uploadedParts.get());
+
+		assertArrayEquals(data, read(access, "molecule.json"));
+		assertEquals(1, s3.rangedGets.get());
+		assertArrayEquals(new byte[0], read(access, "empty.json"));
+	}
+
+	@Test
+	void failedPartAbortsUpload() throws IOException {
+		InMemoryAmazonS3 s3 = new InMemoryAmazonS3();
+		s3.failingPart = 2;
+		MoleculeArchiveAmazonS3KeyValueAccess access =
+			new MoleculeArchiveAmazonS3KeyValueAccess(s3, BUCKET);
+		access.setMultipartUpload(MoleculeArchiveAmazonS3KeyValueAccess.MIN_PART_SIZE, 2);
+
+		byte[] data = randomBytes(4 * MoleculeArchiveAmazonS3KeyValueAccess.MIN_PART_SIZE);
+		assertThrows(IOException.class, () -> write(access, "archive.yama", data));
+
+		assertEquals(1, s3.abortedUploads.get());
+		assertEquals(0, s3.completedUploads.get());
+		assertFalse(s3.objects.containsKey("archive.yama"));
+	}
+
+	@Test
+	void overwriteDuringRangedReadFails() throws IOException {
+		InMemoryAmazonS3 s3 = new InMemoryAmazonS3();
+		MoleculeArchiveAmazonS3KeyValueAccess access =
+			new MoleculeArchiveAmazonS3KeyValueAccess(s3, BUCKET);
+		// Without prefetching the second chunk is only requested once the first
+		// has been consumed.
+		access.setRangedReads(1024, 1);
+
+		byte[] data = randomBytes(3000);
+		write(access, "molecule.json", data);
+
+		try (InputStream in = access.lockForReading("molecule.json")
+			.newInputStream())
+		{
+			assertEquals(data[0] & 0xFF, in.read());
+
+			byte[] newData = data.clone();
+			newData[2000]++;
+			s3.objects.put("molecule.json", newData);
+
+			byte[] buffer = new byte[3000];
+			assertThrows(IOException.class, () -> {
+				while (in.read(buffer) != -1) {}
+			});
+		}
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(42).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static void write(MoleculeArchiveAmazonS3KeyValueAccess access,
+		String path, byte[] data) throws IOException
+	{
+		try (OutputStream out = access.lockForWriting(path).newOutputStream()) {
+			// Mix single bytes and writes of varying size.
+			Random random = new Random(7);
+			int offset = 0;
+			while (offset < data.length) {
+				if (random.nextInt(10) == 0) out.write(data[offset++]);
+				else {
+					int length = Math.min(data.length - offset, random.nextInt(300000));
+					out.write(data, offset, length);
+					offset += length;
+				}
+			}
+		}
+	}
+
+	private static byte[] read(MoleculeArchiveAmazonS3KeyValueAccess access,
+		String path) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = access.lockForReading(path).newInputStream()) {
+			byte[] buffer = new byte[77777];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * In memory stand-in for the parts of the S3 API used by
+	 * MoleculeArchiveAmazonS3KeyValueAccess for reading and writing objects. It
+	 * follows the S3 rules for ranged reads and multipart uploads and records
+	 * the requests made.
+	 */
+	static class InMemoryAmazonS3 extends AbstractAmazonS3 {
+
+		final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+		final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+
+		final AtomicInteger singlePuts = new AtomicInteger();
+		final AtomicInteger uploadedParts = new AtomicInteger();
+		final AtomicInteger completedUploads = new AtomicInteger();
+		final AtomicInteger abortedUploads = new AtomicInteger();
+		final AtomicInteger rangedGets = new AtomicInteger();
+		final AtomicInteger maxConcurrentParts = new AtomicInteger();
+		private final AtomicInteger runningParts = new AtomicInteger();
+		private final AtomicInteger uploadCount = new AtomicInteger();
+
+		volatile int failingPart = -1;
+
+		@Override
+		public boolean doesBucketExistV2(String bucketName) {
+			return BUCKET.equals(bucketName);
+		}
+
+		@Override
+		public PutObjectResult putObject(String bucketName, String key,
+			InputStream input, ObjectMetadata metadata)
+		{
+			singlePuts.incrementAndGet();
+			objects.put(key, readAll(input));
+			return new PutObjectResult();
+		}
+
+		@Override
+		public S3Object getObject(GetObjectRequest request) {
+			byte[] bytes = objects.get(request.getKey());
+			if (bytes == null) throw exception("NoSuchKey", 404);
+
+			// Like the S3 client, return null if an ETag constraint is not met.
+			String eTag = eTag(bytes);
+			if (!request.getMatchingETagConstraints().isEmpty() && !request
+				.getMatchingETagConstraints().contains(eTag)) return null;
+
+			long start = 0;
+			long end = bytes.length - 1;
+			ObjectMetadata metadata = new ObjectMetadata();
+			if (request.getRange() != null) {
+				rangedGets.incrementAndGet();
+				start = request.getRange()[0];
+				end = Math.min(end, request.getRange()[1]);
+				if (start >= bytes.length) throw exception("InvalidRange", 416);
+				metadata.setHeader("Content-Range", "bytes " + start + "-" + end + "/" +
+					bytes.length);
+			}
+			byte[] content = Arrays.copyOfRange(bytes, (int) start, (int) end + 1);
+			metadata.setContentLength(content.length);
+			metadata.setHeader("ETag", eTag);
+
+			S3Object object = new S3Object();
+			object.setKey(request.getKey());
+			object.setObjectMetadata(metadata);
+			object.setObjectContent(new ByteArrayInputStream(content));
+			return object;
+		}
+
+		@Override
+		public InitiateMultipartUploadResult initiateMultipartUpload(
+			InitiateMultipartUploadRequest request)
+		{
+			String uploadId = "upload" + uploadCount.incrementAndGet();
+			uploads.put(uploadId, new ConcurrentHashMap<>());
+			InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+			result.setUploadId(uploadId);
+			return result;
+		}
+
+		@Override
+		public UploadPartResult uploadPart(UploadPartRequest request) {
+			int running = runningParts.incrementAndGet();
+			maxConcurrentParts.accumulateAndGet(running, Math::max);
+			try {
+				// Give other part uploads the chance to overlap.
+				Thread.sleep(20);
+				if (request.getPartNumber() == failingPart) throw exception(
+					"InternalError", 500);
+				byte[] bytes = readAll(request.getInputStream());
+				if (bytes.length != request.getPartSize()) throw exception(
+					"IncompleteBody", 400);
+				uploads.get(request.getUploadId()).put(request.getPartNumber(), bytes);
+				uploadedParts.incrementAndGet();
+
+				UploadPartResult result = new UploadPartResult();
+				result.setPartNumber(request.getPartNumber());
+				result.setETag("etag" + request.getPartNumber());
+				return result;
+			}
+			catch (InterruptedException e) {
+				throw exception("RequestTimeout", 400);
+			}
+			finally {
+				runningParts.decrementAndGet();
+			}
+		}
+
+		@Override
+		public CompleteMultipartUploadResult completeMultipartUpload(
+			CompleteMultipartUploadRequest request)
+		{
+			Map<Integer, byte[]> parts = new TreeMap<>(uploads.remove(request
+				.getUploadId()));
+			ByteArrayOutputStream object = new ByteArrayOutputStream();
+			int partNumber = 0;
+			for (PartETag partETag : request.getPartETags()) {
+				if (partETag.getPartNumber() != ++partNumber) throw exception(
+					"InvalidPartOrder", 400);
+				byte[] part = parts.get(partETag.getPartNumber());
+				if (partNumber < parts.size() &&
+					part.length < MoleculeArchiveAmazonS3KeyValueAccess.MIN_PART_SIZE)
+					throw exception("EntityTooSmall", 400);
+				object.write(part, 0, part.length);
+			}
+			objects.put(request.getKey(), object.toByteArray());
+			completedUploads.incrementAndGet();
+			return new CompleteMultipartUploadResult();
+		}
+
+		@Override
+		public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+			uploads.remove(request.getUploadId());
+			abortedUploads.incrementAndGet();
+		}
+
+		private static String eTag(byte[] bytes) {
+			return Integer.toHexString(Arrays.hashCode(bytes));
+		}
+
+		private static byte[] readAll(InputStream input) {
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = input.read(buffer)) != -1)
+					out.write(buffer, 0, n);
+				return out.toByteArray();
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private static AmazonS3Exception exception(String errorCode,
+			int statusCode)
+		{
+			AmazonS3Exception exception = new AmazonS3Exception(errorCode);
+			exception.setErrorCode(errorCode);
+			exception.setStatusCode(statusCode);
+			return exception;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.kcp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.Test;
+import org.scijava.table.DoubleColumn;
+
+import de.mpg.biochem.mars.molecule.SingleMolecule;
+import de.mpg.biochem.mars.molecule.SingleMoleculeArchive;
+import de.mpg.biochem.mars.table.MarsTable;
+import de.mpg.biochem.mars.util.MarsMath;
+
+public class KCPTests {
+
+	/**
+	 * Relative tolerance for comparisons with fits calculated directly.
+	 */
+	private static final double TOLERANCE = 1e-6;
+
+	@Test
+	void cumulativeSumsResidualSumOfSquares() {
+		double[][] trace = simulateTrace(20000, false);
+		KCPCumulativeSums sums = new KCPCumulativeSums(trace[0], trace[1]);
+
+		Random random = new Random(42);
+		for (int i = 0; i < 200; i++) {
+			int offset = random.nextInt(trace[0].length - 10);
+			int length = 3 + random.nextInt(trace[0].length - offset - 3);
+
+			// Two-pass fit about the mean of the range as reference.
+			double xMean = 0;
+			double yMean = 0;
+			for (int j = offset; j < offset + length; j++) {
+				xMean += trace[0][j];
+				yMean += trace[1][j];
+			}
+			xMean /= length;
+			yMean /= length;
+
+			double xx = 0;
+			double xyMoment = 0;
+			double yy = 0;
+			for (int j = offset; j < offset + length; j++) {
+				xx += (trace[0][j] - xMean) * (trace[0][j] - xMean);
+				xyMoment += (trace[0][j] - xMean) * (trace[1][j] - yMean);
+				yy += (trace[1][j] - yMean) * (trace[1][j] - yMean);
+			}
+
+			assertEquals(yy - xyMoment * xyMoment / xx, sums.residualSumOfSquares(offset,
+				length, false), (yy - xyMoment * xyMoment / xx) * TOLERANCE);
+			assertEquals(yy, sums.residualSumOfSquares(offset, length, true), yy *
+				TOLERANCE);
+		}
+	}
+
+	@Test
+	void stepChangePoints() {
+		double[][] trace = simulateTrace(2000, true);
+		List<KCPSegment> segments = new KCP(1, 0.99, trace[0], trace[1], true)
+			.generate_segments();
+
+		assertEquals(4, segments.size());
+		assertTrue(Math.abs(segments.get(0).x2 - 150) < 1);
+		assertTrue(Math.abs(segments.get(1).x2 - 250) < 1);
+		assertTrue(Math.abs(segments.get(2).x2 - 350) < 1);
+		assertEquals(0, segments.get(0).a, 0.2);
+		assertEquals(10, segments.get(1).a, 0.2);
+		assertEquals(4, segments.get(2).a, 0.2);
+		assertEquals(-6, segments.get(3).a, 0.2);
+	}
+
+	@Test
+	void linearChangePoints() {
+		double[][] trace = simulateTrace(2000, false);
+		List<KCPSegment> segments = new KCP(1, 0.99, trace[0], trace[1], false)
+			.generate_segments();
+
+		assertEquals(4, segments.size());
+		assertTrue(Math.abs(segments.get(0).x2 - 150) < 1);
+		assertTrue(Math.abs(segments.get(1).x2 - 250) < 1);
+		assertTrue(Math.abs(segments.get(2).x2 - 350) < 1);
+		assertEquals(0.1, segments.get(0).b, 0.02);
+		assertEquals(-0.2, segments.get(1).b, 0.02);
+		assertEquals(0, segments.get(2).b, 0.02);
+		assertEquals(0.3, segments.get(3).b, 0.02);
+	}
+
+	@Test
+	void archiveProcessor() throws InterruptedException, ExecutionException {
+		SingleMoleculeArchive archive = new SingleMoleculeArchive(
+			"kcpTestArchive");
+		for (int i = 0; i < 20; i++) {
+			double[][] trace = simulateTrace(500 + 100 * i, i % 2 == 0);
+			MarsTable table = new MarsTable();
+			DoubleColumn tCol = new DoubleColumn("T");
+			DoubleColumn yCol = new DoubleColumn("y");
+			tCol.fill(trace[0]);
+			yCol.fill(trace[1]);
+			table.add(tCol);
+			table.add(yCol);
+
+			SingleMolecule molecule = new SingleMolecule(MarsMath.getUUID58());
+			molecule.setTable(table);
+			archive.put(molecule);
+		}
+
+		KCPArchiveProcessor processor = new KCPArchiveProcessor("T", "y", 0.99, 1,
+			true);
+		processor.setBatchSize(3);
+		assertEquals(20, processor.process(archive, 4));
+
+		archive.molecules().forEach(molecule -> {
+			MarsTable table = molecule.getTable();
+			List<KCPSegment> expected = new KCP(1, 0.99, table.getColumnAsDoubles(
+				"T"), table.getColumnAsDoubles("y"), true).generate_segments();
+
+			MarsTable segments = molecule.getSegmentsTable("T", "y");
+			assertEquals(expected.size(), segments.getRowCount());
+			for (int row = 0; row < expected.size(); row++) {
+				assertEquals(expected.get(row).x1, segments.getValue(KCPSegment.X1,
+					row));
+				assertEquals(expected.get(row).x2, segments.getValue(KCPSegment.X2,
+					row));
+				assertEquals(expected.get(row).a, segments.getValue(KCPSegment.A,
+					row));
+			}
+		});
+	}
+
+	/**
+	 * Trace sampled every 0.2 starting at 50 with change points at 150, 250 and
+	 * 350 and unit gaussian noise.
+	 */
+	private static double[][] simulateTrace(int points, boolean steps) {
+		double[] levels = { 0, 10, 4, -6 };
+		double[] slopes = { 0.1, -0.2, 0, 0.3 };
+		double[] starts = { 50, 150, 250, 350 };
+
+		Random random = new Random(1);
+		double[][] trace = new double[2][points];
+		for (int i = 0; i < points; i++) {
+			double x = 50 + i * 0.2;
+			int segment = (x < 150) ? 0 : (x < 250) ? 1 : (x < 350) ? 2 : 3;
+			trace[0][i] = x;
+			trace[1][i] = levels[segment] + random.nextGaussian();
+			if (!steps) trace[1][i] += slopes[segment] * (x - starts[segment]);
+		}
+		return trace;
+	}
+}
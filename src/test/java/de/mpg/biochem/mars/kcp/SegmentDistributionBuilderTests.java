@@ -0,0 +1,400 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.kcp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.scijava.Context;
+import org.scijava.app.StatusService;
+import org.scijava.log.LogService;
+import org.scijava.table.DoubleColumn;
+
+import de.mpg.biochem.mars.metadata.MarsMetadata;
+import de.mpg.biochem.mars.molecule.Molecule;
+import de.mpg.biochem.mars.molecule.MoleculeArchive;
+import de.mpg.biochem.mars.molecule.MoleculeArchiveIndex;
+import de.mpg.biochem.mars.molecule.MoleculeArchiveProperties;
+import de.mpg.biochem.mars.molecule.SingleMolecule;
+import de.mpg.biochem.mars.molecule.SingleMoleculeArchive;
+import de.mpg.biochem.mars.table.MarsTable;
+
+public class SegmentDistributionBuilderTests {
+
+	private static final double RATE_START = -1;
+	private static final double RATE_END = 3;
+	private static final int RATE_BINS = 40;
+
+	private static final double DURATION_START = 0;
+	private static final double DURATION_END = 400;
+	private static final int DURATION_BINS = 37;
+
+	private static Context context;
+	private static LogService logService;
+	private static StatusService statusService;
+
+	@BeforeAll
+	public static void setup() {
+		context = new Context(LogService.class, StatusService.class);
+		logService = context.getService(LogService.class);
+		statusService = context.getService(StatusService.class);
+	}
+
+	@AfterAll
+	public static synchronized void cleanUp() {
+		if (context != null) {
+			context.dispose();
+			context = null;
+		}
+	}
+
+	@Test
+	void rateHistogramMatchesBinLoop() {
+		SingleMoleculeArchive archive = buildArchive();
+		ArrayList<String> UIDs = getUIDs(archive);
+
+		for (boolean filter : new boolean[] { false, true }) {
+			SegmentDistributionBuilder builder = rateBuilder(archive, UIDs);
+			if (filter) builder.setFilter(0.2, 1.8);
+
+			double[] expected = rateHistogram(collectSegments(archive, UIDs, filter));
+			double normalization = Arrays.stream(expected).sum();
+
+			MarsTable table = builder.buildRateHistogram(2);
+			for (int a = 0; a < RATE_BINS; a++) {
+				assertEquals(expected[a] / normalization, table.getValue("Probability",
+					a), 1e-12);
+				assertEquals(expected[a] / (normalization * (RATE_END - RATE_START) /
+					RATE_BINS), table.getValue("Probability Density", a), 1e-12);
+			}
+		}
+	}
+
+	@Test
+	void durationHistogramsMatchBinLoop() {
+		SingleMoleculeArchive archive = buildArchive();
+		ArrayList<String> UIDs = getUIDs(archive);
+
+		for (boolean filter : new boolean[] { false, true }) {
+			SegmentDistributionBuilder builder = durationBuilder(archive, UIDs);
+			if (filter) builder.setFilter(0.2, 1.8);
+			List<KCPSegment> segments = collectSegments(archive, UIDs, filter);
+
+			assertArrayEquals(durationHistogram(segments, false, false), builder
+				.buildDurationHistogram(2).getColumnAsDoubles("Occurrences"));
+			assertArrayEquals(durationHistogram(segments, false, true), builder
+				.buildProcessivityByMoleculeHistogram(2).getColumnAsDoubles(
+					"Occurrences"));
+			assertArrayEquals(durationHistogram(segments, true, false), builder
+				.buildProcessivityByRegionHistogram(2).getColumnAsDoubles(
+					"Occurrences"));
+		}
+	}
+
+	@Test
+	void rateGaussianMatchesNumericIntegration() {
+		SingleMoleculeArchive archive = buildArchive();
+		ArrayList<String> UIDs = getUIDs(archive);
+
+		double binWidth = (RATE_END - RATE_START) / RATE_BINS;
+		double[] expected = new double[RATE_BINS];
+		for (KCPSegment segment : collectSegments(archive, UIDs, false)) {
+			if (Double.isNaN(segment.sigma_b) || segment.sigma_b == 0) continue;
+			Gaussian gaussian = new Gaussian(segment.b, segment.sigma_b, segment.x2 -
+				segment.x1);
+
+			// Simpson's rule over each bin.
+			int intervals = 1000;
+			double h = binWidth / intervals;
+			for (int a = 0; a < RATE_BINS; a++) {
+				double lower = RATE_START + a * binWidth;
+				double sum = gaussian.getValue(lower) + gaussian.getValue(lower +
+					binWidth);
+				for (int i = 1; i < intervals; i++)
+					sum += ((i % 2 == 0) ? 2 : 4) * gaussian.getValue(lower + i * h);
+				expected[a] += gaussian.getDuration() * sum * h / 3;
+			}
+		}
+		double normalization = Arrays.stream(expected).sum();
+
+		MarsTable table = rateBuilder(archive, UIDs).buildRateGaussian(2);
+		for (int a = 0; a < RATE_BINS; a++)
+			assertEquals(expected[a] / normalization, table.getValue("Probability",
+				a), 1e-9);
+	}
+
+	@Test
+	void bootstrapIsReproducibleForSeed() {
+		SingleMoleculeArchive archive = buildArchive();
+		ArrayList<String> UIDs = getUIDs(archive);
+
+		String[] rateColumns = { "Bootstrap Probability",
+			"Bootstrap Probability STD", "Bootstrap Probability Density",
+			"Bootstrap Probability Density STD" };
+		String[] durationColumns = { "Bootstrap Probability",
+			"Bootstrap Probability STD" };
+
+		MarsTable[] first = buildBootstrapTables(archive, UIDs, 7);
+		MarsTable[] second = buildBootstrapTables(archive, UIDs, 7);
+		MarsTable[] other = buildBootstrapTables(archive, UIDs, 8);
+
+		for (int i = 0; i < first.length; i++) {
+			String[] columns = (i < 3) ? rateColumns : durationColumns;
+			for (String column : columns)
+				assertArrayEquals(first[i].getColumnAsDoubles(column), second[i]
+					.getColumnAsDoubles(column));
+			assertFalse(Arrays.equals(first[i].getColumnAsDoubles(
+				"Bootstrap Probability STD"), other[i].getColumnAsDoubles(
+					"Bootstrap Probability STD")));
+		}
+	}
+
+	@Test
+	void buildsIncludeArchiveChanges() {
+		SingleMoleculeArchive archive = buildArchive();
+		ArrayList<String> UIDs = getUIDs(archive);
+		SegmentDistributionBuilder builder = rateBuilder(archive, UIDs);
+
+		double[] before = builder.buildRateHistogram(2).getColumnAsDoubles(
+			"Probability");
+
+		// Replace the segments of one molecule with a single segment in the last
+		// bin.
+		SingleMolecule molecule = archive.get(UIDs.get(0));
+		molecule.putSegmentsTable("T", "y", segmentsTable(new double[] { 2.95 },
+			new double[] { 0.1 }, new double[] { 1 }, new double[] { 1001 }));
+		archive.put(molecule);
+
+		double[] after = builder.buildRateHistogram(2).getColumnAsDoubles(
+			"Probability");
+
+		double[] expected = rateHistogram(collectSegments(archive, UIDs, false));
+		double normalization = Arrays.stream(expected).sum();
+		assertFalse(Arrays.equals(before, after));
+		for (int a = 0; a < RATE_BINS; a++)
+			assertEquals(expected[a] / normalization, after[a], 1e-12);
+	}
+
+	/**
+	 * Rate histogram and rate gaussian with molecule bootstrapping, rate
+	 * histogram with segment bootstrapping and duration histogram with molecule
+	 * bootstrapping. Durations are not checked with segment bootstrapping since
+	 * resampled segments rarely follow each other within a molecule.
+	 */
+	private static MarsTable[] buildBootstrapTables(SingleMoleculeArchive archive,
+		ArrayList<String> UIDs, long seed)
+	{
+		SegmentDistributionBuilder rates = rateBuilder(archive, UIDs);
+		rates.bootstrapMolecules(50);
+		SegmentDistributionBuilder durations = durationBuilder(archive, UIDs);
+
+		MarsTable[] tables = new MarsTable[4];
+		rates.setSeed(seed);
+		tables[0] = rates.buildRateHistogram(2);
+		rates.setSeed(seed);
+		tables[1] = rates.buildRateGaussian(2);
+		rates.bootstrapSegments(50);
+		rates.setSeed(seed);
+		tables[2] = rates.buildRateHistogram(2);
+		durations.bootstrapMolecules(50);
+		durations.setSeed(seed);
+		tables[3] = durations.buildDurationHistogram(2);
+		return tables;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static SegmentDistributionBuilder rateBuilder(
+		SingleMoleculeArchive archive, ArrayList<String> UIDs)
+	{
+		return new SegmentDistributionBuilder(
+			(MoleculeArchive<Molecule, MarsMetadata, MoleculeArchiveProperties<Molecule, MarsMetadata>, MoleculeArchiveIndex<Molecule, MarsMetadata>>) (MoleculeArchive) archive,
+			UIDs, "y", "T", RATE_START, RATE_END, RATE_BINS, logService,
+			statusService);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static SegmentDistributionBuilder durationBuilder(
+		SingleMoleculeArchive archive, ArrayList<String> UIDs)
+	{
+		return new SegmentDistributionBuilder(
+			(MoleculeArchive<Molecule, MarsMetadata, MoleculeArchiveProperties<Molecule, MarsMetadata>, MoleculeArchiveIndex<Molecule, MarsMetadata>>) (MoleculeArchive) archive,
+			UIDs, "y", "T", DURATION_START, DURATION_END, DURATION_BINS,
+			logService, statusService);
+	}
+
+	/**
+	 * UIDs of all molecules with the second UID repeated at the end.
+	 */
+	private static ArrayList<String> getUIDs(SingleMoleculeArchive archive) {
+		ArrayList<String> UIDs = new ArrayList<>(archive.getMoleculeUIDs());
+		UIDs.add(UIDs.get(1));
+		return UIDs;
+	}
+
+	/**
+	 * Segments with a rate that passes the filter in the order of the UIDs as
+	 * they were collected before.
+	 */
+	private static List<KCPSegment> collectSegments(
+		SingleMoleculeArchive archive, List<String> UIDs, boolean filter)
+	{
+		List<KCPSegment> segments = new ArrayList<>();
+		for (String UID : UIDs) {
+			MarsTable table = archive.get(UID).getSegmentsTable("T", "y");
+			if (table == null) continue;
+			for (int row = 0; row < table.getRowCount(); row++) {
+				KCPSegment segment = new KCPSegment(table, row, UID);
+				if (Double.isNaN(segment.b)) continue;
+				if (!filter || (segment.b > 0.2 && segment.b < 1.8)) segments.add(
+					segment);
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * Rate histogram built bin by bin.
+	 */
+	private static double[] rateHistogram(List<KCPSegment> segments) {
+		double binWidth = (RATE_END - RATE_START) / RATE_BINS;
+		double[] distribution = new double[RATE_BINS];
+		for (int a = 0; a < RATE_BINS; a++)
+			for (KCPSegment segment : segments) {
+				if (Double.isNaN(segment.x1) || Double.isNaN(segment.x2)) continue;
+				if ((RATE_START + a * binWidth) < segment.b && segment.b <= (RATE_START +
+					(a + 1) * binWidth)) distribution[a] += segment.x2 - segment.x1;
+			}
+		return distribution;
+	}
+
+	/**
+	 * Duration histogram built bin by bin.
+	 */
+	private static double[] durationHistogram(List<KCPSegment> segments,
+		boolean processivityPerRegion, boolean processivityPerMolecule)
+	{
+		List<Double> durations = new ArrayList<>();
+		boolean wasInsideRegion = false;
+		double duration = 0;
+		String curUID = segments.get(0).getUID();
+
+		for (KCPSegment segment : segments) {
+			if (processivityPerMolecule) {
+				if (segment.getUID().equals(curUID)) {
+					durations.add(duration);
+					duration = 0;
+				}
+				duration += segment.b * (segment.x2 - segment.x1);
+			}
+			else {
+				if (segment.getUID().equals(curUID) && wasInsideRegion) {
+					durations.add(duration);
+					duration = 0;
+				}
+				if (processivityPerRegion) duration += segment.b * (segment.x2 -
+					segment.x1);
+				else duration += segment.x2 - segment.x1;
+				wasInsideRegion = true;
+			}
+			curUID = segment.getUID();
+		}
+		if (duration != 0) durations.add(duration);
+
+		double binWidth = (DURATION_END - DURATION_START) / DURATION_BINS;
+		double[] distribution = new double[DURATION_BINS];
+		for (int a = 0; a < DURATION_BINS; a++)
+			for (double value : durations)
+				if ((DURATION_START + a * binWidth) <= value && value < (DURATION_START +
+					(a + 1) * binWidth)) distribution[a]++;
+		return distribution;
+	}
+
+	/**
+	 * Archive with 20 molecules with 1 to 8 segments each. Some rates and end
+	 * positions are NaN, some sigmas are 0 and every seventh molecule has no
+	 * segments table.
+	 */
+	private static SingleMoleculeArchive buildArchive() {
+		SingleMoleculeArchive archive = new SingleMoleculeArchive(
+			"segmentDistributionTestArchive");
+		Random random = new Random(42);
+		for (int m = 0; m < 20; m++) {
+			SingleMolecule molecule = new SingleMolecule("molecule" + m);
+			molecule.setTable(new MarsTable());
+			if (m % 7 != 2) {
+				int n = 1 + random.nextInt(8);
+				double[] b = new double[n];
+				double[] sigmaB = new double[n];
+				double[] x1 = new double[n];
+				double[] x2 = new double[n];
+				double x = 1 + random.nextInt(3);
+				for (int i = 0; i < n; i++) {
+					b[i] = 1 + 0.6 * random.nextGaussian();
+					sigmaB[i] = (random.nextInt(20) == 0) ? 0 : 0.02 + 0.2 * random
+						.nextDouble();
+					x1[i] = x;
+					x += 1 + random.nextInt(50);
+					x2[i] = x;
+					if (random.nextInt(15) == 0) b[i] = Double.NaN;
+					if (random.nextInt(20) == 0) x2[i] = Double.NaN;
+				}
+				molecule.putSegmentsTable("T", "y", segmentsTable(b, sigmaB, x1, x2));
+			}
+			archive.put(molecule);
+		}
+		return archive;
+	}
+
+	private static MarsTable segmentsTable(double[] b, double[] sigmaB,
+		double[] x1, double[] x2)
+	{
+		MarsTable table = new MarsTable();
+		String[] headers = { KCPSegment.X1, KCPSegment.Y1, KCPSegment.X2,
+			KCPSegment.Y2, KCPSegment.A, KCPSegment.SIGMA_A, KCPSegment.B,
+			KCPSegment.SIGMA_B };
+		double[][] values = { x1, new double[b.length], x2, new double[b.length],
+			new double[b.length], new double[b.length], b, sigmaB };
+		for (int i = 0; i < headers.length; i++) {
+			DoubleColumn column = new DoubleColumn(headers[i]);
+			column.fill(values[i]);
+			table.add(column);
+		}
+		return table;
+	}
+}
@@ -0,0 +1,263 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.metadata;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import ome.units.UNITS;
+import ome.units.quantity.Time;
+import ome.xml.model.enums.DimensionOrder;
+import ome.xml.model.primitives.NonNegativeInteger;
+import ome.xml.model.primitives.PositiveInteger;
+
+public class MarsOMEImageTests {
+
+	private static final int SIZE_Z = 2;
+	private static final int SIZE_C = 2;
+	private static final int SIZE_T = 3;
+
+	/*
+	 * TEST JSON round trip of planes
+	 */
+
+	@Test
+	void planesJsonRoundTrip() throws IOException {
+		MarsOMEImage image = buildTestImage();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonGenerator jGenerator = new JsonFactory().createGenerator(out);
+		image.toJSON(jGenerator);
+		jGenerator.close();
+
+		JsonParser jParser = new JsonFactory().createParser(out.toByteArray());
+		jParser.nextToken();
+		MarsOMEImage loaded = new MarsOMEImage(jParser);
+		jParser.close();
+
+		assertEquals(SIZE_Z * SIZE_C * SIZE_T, loaded.getPlaneCount());
+		assertEquals(SIZE_Z, loaded.getSizeZ());
+		assertEquals(SIZE_C, loaded.getSizeC());
+		assertEquals(SIZE_T, loaded.getSizeT());
+
+		for (int z = 0; z < SIZE_Z; z++)
+			for (int c = 0; c < SIZE_C; c++)
+				for (int t = 0; t < SIZE_T; t++) {
+					MarsOMEPlane expected = image.getPlane(z, c, t);
+					MarsOMEPlane plane = loaded.getPlane(z, c, t);
+					assertNotNull(plane);
+					assertEquals(expected.getPlaneIndex(), plane.getPlaneIndex());
+					assertEquals(z, plane.getZ());
+					assertEquals(c, plane.getC());
+					assertEquals(t, plane.getT());
+					assertEquals(expected.getDeltaTinSeconds(), plane
+						.getDeltaTinSeconds());
+					assertEquals(expected.getXDrift(), plane.getXDrift());
+					assertEquals(expected.getYDrift(), plane.getYDrift());
+					assertEquals(expected.getField("Power"), plane.getField("Power"));
+					assertEquals(expected.getStringField("DateTime"), plane
+						.getStringField("DateTime"));
+				}
+
+		assertArrayEquals(image.getPlanes().keySet().toArray(), loaded.getPlanes()
+			.keySet().toArray());
+	}
+
+	/*
+	 * TEST getPlane(z, c, t)
+	 */
+
+	@Test
+	void getPlaneByZCT() {
+		MarsOMEImage image = buildTestImage();
+
+		// XYZCT order
+		for (int z = 0; z < SIZE_Z; z++)
+			for (int c = 0; c < SIZE_C; c++)
+				for (int t = 0; t < SIZE_T; t++) {
+					int planeIndex = z + SIZE_Z * c + SIZE_Z * SIZE_C * t;
+					assertEquals(planeIndex, image.getPlaneIndex(z, c, t));
+					assertTrue(image.hasPlane(z, c, t));
+
+					MarsOMEPlane plane = image.getPlane(z, c, t);
+					assertEquals(planeIndex, plane.getPlaneIndex());
+					assertEquals(z, plane.getZ());
+					assertEquals(c, plane.getC());
+					assertEquals(t, plane.getT());
+					assertEquals(dt(z, c, t), plane.getDeltaTinSeconds());
+				}
+
+		assertNull(image.getPlane(SIZE_Z * SIZE_C * SIZE_T));
+	}
+
+	/*
+	 * TEST buildChannelToTtoDtMap
+	 */
+
+	@Test
+	void channelToTtoDtMap() {
+		MarsOMEImage image = buildTestImage();
+		MarsOMEMetadata metadata = new MarsOMEMetadata("testMetadata");
+		metadata.setImage(image, 0);
+
+		Map<Integer, Map<Integer, Double>> channelToTtoDtMap = MarsOMEUtils
+			.buildChannelToTtoDtMap(metadata);
+
+		// One pass over the planes per channel as it was done before.
+		Map<Integer, Map<Integer, Double>> expected = new HashMap<>();
+		for (int channelIndex = 0; channelIndex < image
+			.getSizeC(); channelIndex++)
+		{
+			Map<Integer, Double> tToDtMap = new HashMap<>();
+			final int finalChannelIndex = channelIndex;
+			image.planes().filter(plane -> plane.getC() == finalChannelIndex)
+				.forEach(plane -> tToDtMap.put(plane.getT(), plane
+					.getDeltaTinSeconds()));
+			expected.put(channelIndex, tToDtMap);
+		}
+
+		assertEquals(expected, channelToTtoDtMap);
+
+		// Planes are visited in plane index order, so the last z wins for each T.
+		for (int c = 0; c < SIZE_C; c++)
+			for (int t = 0; t < SIZE_T; t++)
+				assertEquals(dt(SIZE_Z - 1, c, t), channelToTtoDtMap.get(c).get(t));
+	}
+
+	/*
+	 * TEST setPlane
+	 */
+
+	@Test
+	void setPlane() {
+		MarsOMEImage image = buildTestImage();
+		int planeCount = image.getPlaneCount();
+
+		MarsOMEPlane plane = new MarsOMEPlane(image, 0, 0, new NonNegativeInteger(
+			0), new NonNegativeInteger(0), new NonNegativeInteger(0));
+		plane.setXDrift(42);
+		image.setPlane(plane, 0, 0, 0);
+
+		// Replaces the values of the existing plane.
+		assertEquals(planeCount, image.getPlaneCount());
+		assertEquals(42, image.getPlane(0, 0, 0).getXDrift());
+		assertEquals(-1, image.getPlane(0, 0, 0).getDeltaTinSeconds());
+
+		// Afterwards the plane refers to the values stored in the image.
+		plane.setYDrift(7);
+		assertEquals(7, image.getPlane(0, 0, 0).getYDrift());
+		assertSame(image, plane.getImage());
+
+		// As do planes returned by getPlane.
+		image.getPlane(1, 1, 2).setXDrift(-3);
+		assertEquals(-3, image.getPlane(1, 1, 2).getXDrift());
+
+		// A plane index that was not present is added.
+		image.setSizeT(new PositiveInteger(SIZE_T + 1));
+		MarsOMEPlane newPlane = new MarsOMEPlane(image, 0, (int) image
+			.getPlaneIndex(0, 1, SIZE_T), new NonNegativeInteger(0),
+			new NonNegativeInteger(1), new NonNegativeInteger(SIZE_T));
+		image.setPlane(newPlane, 0, 1, SIZE_T);
+		assertEquals(planeCount + 1, image.getPlaneCount());
+		assertEquals(SIZE_T, image.getPlane(0, 1, SIZE_T).getT());
+		assertEquals(1, image.getPlane(0, 1, SIZE_T).getC());
+	}
+
+	/*
+	 * TEST getPlanes returns a snapshot map
+	 */
+
+	@Test
+	void getPlanesSnapshot() {
+		MarsOMEImage image = buildTestImage();
+		int planeCount = image.getPlaneCount();
+
+		Map<Integer, MarsOMEPlane> planes = image.getPlanes();
+		assertEquals(planeCount, planes.size());
+
+		// Changing the map does not change the image.
+		planes.remove(0);
+		planes.put(1000, new MarsOMEPlane());
+		assertEquals(planeCount, image.getPlaneCount());
+		assertTrue(image.hasPlane(0));
+		assertFalse(image.hasPlane(1000));
+		assertEquals(planeCount, image.getPlanes().size());
+
+		// Changing the planes in the map does.
+		planes.get(5).setXDrift(11);
+		assertEquals(11, image.getPlane(5).getXDrift());
+	}
+
+	private static double dt(int z, int c, int t) {
+		return t * 0.5 + c * 0.1 + z * 0.01;
+	}
+
+	private static MarsOMEImage buildTestImage() {
+		MarsOMEImage image = new MarsOMEImage();
+		image.setImageID(0);
+		image.setID("Image:0");
+		image.setPixelID("Pixels:0");
+		image.setName("test");
+		image.setDescription("test image");
+		image.setDimensionOrder(DimensionOrder.XYZCT);
+		image.setSizeX(new PositiveInteger(64));
+		image.setSizeY(new PositiveInteger(64));
+		image.setSizeZ(new PositiveInteger(SIZE_Z));
+		image.setSizeC(new PositiveInteger(SIZE_C));
+		image.setSizeT(new PositiveInteger(SIZE_T));
+
+		// Added in T, C, Z order so plane indices are not added in sequence.
+		for (int t = 0; t < SIZE_T; t++)
+			for (int c = 0; c < SIZE_C; c++)
+				for (int z = 0; z < SIZE_Z; z++) {
+					int planeIndex = (int) image.getPlaneIndex(z, c, t);
+					MarsOMEPlane plane = new MarsOMEPlane(image, 0, planeIndex,
+						new NonNegativeInteger(z), new NonNegativeInteger(c),
+						new NonNegativeInteger(t));
+					plane.setDeltaT(new Time(dt(z, c, t), UNITS.SECOND));
+					plane.setXDrift(planeIndex * 0.25);
+					plane.setYDrift(-planeIndex * 0.5);
+					plane.setField("Power", planeIndex * 10);
+					if (c == 1) plane.setStringField("DateTime", "2026-10-17T00:00:0" +
+						t);
+					image.setPlane(plane, z, c, t);
+				}
+		return image;
+	}
+}
@@ -30,13 +30,22 @@
 package de.mpg.biochem.mars.molecule;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Random;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import de.mpg.biochem.mars.util.MarsDocument;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
@@ -48,6 +57,7 @@ import org.scijava.io.location.LocationService;
 import org.scijava.options.OptionsService;
 import org.scijava.table.DoubleColumn;
 
+import de.mpg.biochem.mars.io.MoleculeArchiveSource;
 import de.mpg.biochem.mars.metadata.MarsBdvSource;
 import de.mpg.biochem.mars.metadata.MarsMetadata;
 import de.mpg.biochem.mars.metadata.MarsOMEChannel;
@@ -163,6 +173,252 @@ public class MoleculeArchiveTests {
 		isEqual(archive, reloadedArchive);
 	}
 
+	@Test
+	@Order(10)
+	void saveAndLoadColumnarVirtualMoleculeArchive() throws IOException {
+		archive.saveAsColumnarVirtualStore(new File(sharedTempDir
+			.getAbsoluteFile() + "/columnarSingleMoleculeTestArchive.yama.store/"),
+			2);
+
+		MoleculeArchiveIOPlugin ioPlugin = new MoleculeArchiveIOPlugin();
+		context.inject(ioPlugin);
+
+		MoleculeArchive<?, ?, ?, ?> reloadedArchive = ioPlugin.open(sharedTempDir
+			.getAbsoluteFile() + "/columnarSingleMoleculeTestArchive.yama.store/");
+		isEqual(archive, reloadedArchive);
+	}
+
+	@Test
+	@Order(10)
+	void putAndRemoveColumnarVirtualMoleculeArchive() throws IOException {
+		File store = new File(sharedTempDir.getAbsoluteFile() +
+			"/columnarPutTestArchive.yama.store/");
+		archive.saveAsColumnarVirtualStore(store, 2);
+
+		MoleculeArchiveIOPlugin ioPlugin = new MoleculeArchiveIOPlugin();
+		context.inject(ioPlugin);
+
+		SingleMoleculeArchive virtualArchive = (SingleMoleculeArchive) ioPlugin
+			.open(store.getAbsolutePath());
+		String UID = virtualArchive.getMoleculeUIDs().get(0);
+
+		// Columns are decoded from the record read, which is then replaced and
+		// removed while the molecule read is still in use.
+		SingleMolecule molecule = virtualArchive.get(UID);
+		double x = molecule.getTable().getValue("x", 0);
+		molecule.setNotes("updated");
+		virtualArchive.put(molecule);
+
+		SingleMolecule updated = virtualArchive.get(UID);
+		assertEquals("updated", updated.getNotes());
+		assertEquals(x, updated.getTable().getValue("x", 0));
+		assertEquals(x, molecule.getTable().getValue("x", 0));
+
+		virtualArchive.remove(UID);
+		assertFalse(virtualArchive.contains(UID));
+		assertFalse(new File(store, MoleculeArchiveSource.MOLECULES_SUBDIRECTORY_NAME +
+			"/" + UID + ".sml").exists());
+		assertEquals(archive.getNumberOfMolecules() - 1, virtualArchive
+			.getNumberOfMolecules());
+	}
+
+	@Test
+	@Order(11)
+	void virtualMoleculeArchiveRecordCache() throws IOException {
+		archive.saveAsVirtualStore(new File(sharedTempDir.getAbsoluteFile() +
+			"/recordCacheTestArchive.yama.store/"));
+
+		MoleculeArchiveIOPlugin ioPlugin = new MoleculeArchiveIOPlugin();
+		context.inject(ioPlugin);
+
+		SingleMoleculeArchive virtualArchive = (SingleMoleculeArchive) ioPlugin
+			.open(sharedTempDir.getAbsoluteFile() +
+				"/recordCacheTestArchive.yama.store/");
+		virtualArchive.enableRecordCache(5, 0);
+		MoleculeRecordCache<SingleMolecule> cache = virtualArchive
+			.getRecordCache();
+
+		String UID = virtualArchive.getMoleculeUIDs().get(0);
+		SingleMolecule molecule = virtualArchive.get(UID);
+		assertTrue(molecule == virtualArchive.get(UID));
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+
+		for (String otherUID : virtualArchive.getMoleculeUIDs())
+			virtualArchive.get(otherUID);
+		assertEquals(5, cache.size());
+
+		molecule = virtualArchive.get(UID);
+		molecule.setNotes("updated");
+		virtualArchive.put(molecule);
+		assertTrue(molecule != virtualArchive.get(UID));
+		assertEquals("updated", virtualArchive.get(UID).getNotes());
+
+		virtualArchive.remove(UID);
+		assertNull(cache.get(UID));
+	}
+
+	@Test
+	@Order(12)
+	void virtualMoleculeArchiveIndexJournal() throws IOException {
+		File store = new File(sharedTempDir.getAbsoluteFile() +
+			"/indexJournalTestArchive.yama.store/");
+		archive.saveAsVirtualStore(store);
+
+		MoleculeArchiveIOPlugin ioPlugin = new MoleculeArchiveIOPlugin();
+		context.inject(ioPlugin);
+
+		SingleMoleculeArchive virtualArchive = (SingleMoleculeArchive) ioPlugin
+			.open(store.getAbsolutePath());
+		String taggedUID = virtualArchive.getMoleculeUIDs().get(0);
+		String removedUID = virtualArchive.getMoleculeUIDs().get(1);
+		SingleMolecule molecule = virtualArchive.get(taggedUID);
+		molecule.addTag("journaled");
+		virtualArchive.put(molecule);
+		virtualArchive.remove(removedUID);
+
+		// The journal is opened again for entries added after closing.
+		virtualArchive.close();
+		String reopenedUID = virtualArchive.getMoleculeUIDs().get(2);
+		molecule = virtualArchive.get(reopenedUID);
+		molecule.addTag("reopened");
+		virtualArchive.put(molecule);
+		virtualArchive.close();
+
+		// Reopen without saving, as after a crash.
+		File journal = new File(store, MoleculeArchiveSource.INDEX_JOURNAL_FILE_NAME);
+		assertTrue(journal.exists());
+		SingleMoleculeArchive recovered = (SingleMoleculeArchive) ioPlugin.open(
+			store.getAbsolutePath());
+		assertTrue(recovered.moleculeHasTag(taggedUID, "journaled"));
+		assertTrue(recovered.moleculeHasTag(reopenedUID, "reopened"));
+		assertFalse(recovered.contains(removedUID));
+		assertEquals(archive.getNumberOfMolecules() - 1, recovered
+			.getNumberOfMolecules());
+
+		recovered.save();
+		assertFalse(journal.exists());
+	}
+
+	@Test
+	@Order(13)
+	void virtualMoleculeArchiveIncrementalRebuild() throws IOException {
+		File store = new File(sharedTempDir.getAbsoluteFile() +
+			"/incrementalRebuildTestArchive.yama.store/");
+		archive.saveAsVirtualStore(store);
+
+		MoleculeArchiveIOPlugin ioPlugin = new MoleculeArchiveIOPlugin();
+		context.inject(ioPlugin);
+
+		SingleMoleculeArchive virtualArchive = (SingleMoleculeArchive) ioPlugin
+			.open(store.getAbsolutePath());
+		virtualArchive.rebuildIndexes();
+		File[] indexes = store.listFiles((dir, name) -> name.startsWith(
+			MoleculeArchiveSource.INDEXES_FILE_NAME) && !name.equals(
+				MoleculeArchiveSource.INDEX_JOURNAL_FILE_NAME));
+		assertEquals(1, indexes.length);
+		assertTrue(new String(Files.readAllBytes(indexes[0].toPath()),
+			StandardCharsets.ISO_8859_1).contains("fingerprint"));
+
+		// Change the store behind the back of the open archive, as a sync would.
+		String changedUID = virtualArchive.getMoleculeUIDs().get(0);
+		String removedUID = virtualArchive.getMoleculeUIDs().get(1);
+		String unchangedUID = virtualArchive.getMoleculeUIDs().get(2);
+		String unchangedFingerprint = virtualArchive.archiveIndex
+			.getMoleculeUIDtoFingerprintMap().get(unchangedUID);
+		assertNotNull(unchangedFingerprint);
+		SingleMoleculeArchive otherArchive = (SingleMoleculeArchive) ioPlugin.open(
+			store.getAbsolutePath());
+		SingleMolecule molecule = otherArchive.get(changedUID);
+		molecule.addTag("synced");
+		otherArchive.put(molecule);
+		otherArchive.remove(removedUID);
+
+		// Every record read by the rebuild goes through the cache and counts as a
+		// miss, so only the changed record should be counted.
+		virtualArchive.enableRecordCache(0, 0);
+		virtualArchive.rebuildIndexes();
+		assertEquals(1, virtualArchive.getRecordCache().getMissCount());
+		assertEquals(unchangedFingerprint, virtualArchive.archiveIndex
+			.getMoleculeUIDtoFingerprintMap().get(unchangedUID));
+		assertTrue(virtualArchive.moleculeHasTag(changedUID, "synced"));
+		assertTrue(virtualArchive.properties().getTagSet().contains("synced"));
+		assertFalse(virtualArchive.contains(removedUID));
+		assertEquals(archive.getNumberOfMolecules() - 1, virtualArchive
+			.getNumberOfMolecules());
+	}
+
+	@Test
+	void stripedRecordLocks() {
+		StripedRecordLocks locks = new StripedRecordLocks(100);
+		assertEquals(128, locks.size());
+
+		String UID = MarsMath.getUUID58();
+		assertTrue(locks.get(UID) == locks.get(new String(UID)));
+	}
+
+	@Test
+	void loadMoleculeArchiveWithDuplicateUIDs() throws IOException {
+		// Enough records to fill the read buffer of all workers several times.
+		SingleMoleculeArchive bigArchive = generateSingleMoleculeArchive();
+		int numberOfRecords = Runtime.getRuntime().availableProcessors() * 4 * 3 +
+			1;
+		while (bigArchive.getNumberOfMolecules() < numberOfRecords) {
+			SingleMolecule molecule = new SingleMolecule(MarsMath.getUUID58());
+			molecule.setTable(generateRandomTable(30));
+			molecule.setMetadataUID(bigArchive.getMetadataUIDs().get(0));
+			bigArchive.put(molecule);
+		}
+		File file = new File(sharedTempDir.getAbsoluteFile() +
+			"/duplicateTestArchive.yama.json");
+		File duplicateFile = new File(sharedTempDir.getAbsoluteFile() +
+			"/duplicateUIDsTestArchive.yama.json");
+		bigArchive.saveAsJson(file);
+
+		// Append two more records for every tenth UID. Put in order, as the
+		// sequential reader did, the last record of each UID wins.
+		JsonFactory jsonFactory = new JsonFactory();
+		try (JsonParser jParser = jsonFactory.createParser(file);
+				JsonGenerator jGenerator = jsonFactory.createGenerator(duplicateFile,
+					JsonEncoding.UTF8))
+		{
+			while (jParser.nextToken() != null) {
+				jGenerator.copyCurrentEvent(jParser);
+				if (jParser.currentToken() != JsonToken.FIELD_NAME || !jParser
+					.getCurrentName().equals("molecules") || !jParser
+						.getParsingContext().getParent().inRoot()) continue;
+
+				jParser.nextToken();
+				jGenerator.writeStartArray();
+				while (jParser.nextToken() != JsonToken.END_ARRAY)
+					jGenerator.copyCurrentStructure(jParser);
+				for (int i = 0; i < bigArchive.getNumberOfMolecules(); i += 10) {
+					SingleMolecule molecule = bigArchive.get(bigArchive
+						.getMoleculeUIDs().get(i));
+					molecule.addTag("first");
+					molecule.toJSON(jGenerator);
+					molecule.removeTag("first");
+					molecule.addTag("second");
+					molecule.toJSON(jGenerator);
+					bigArchive.put(molecule);
+				}
+				jGenerator.writeEndArray();
+			}
+		}
+
+		MoleculeArchiveIOPlugin ioPlugin = new MoleculeArchiveIOPlugin();
+		context.inject(ioPlugin);
+
+		MoleculeArchive<?, ?, ?, ?> reloadedArchive = ioPlugin.open(duplicateFile
+			.getAbsolutePath());
+		assertEquals(bigArchive.getNumberOfMolecules(), reloadedArchive
+			.getNumberOfMolecules());
+		assertEquals(bigArchive.getMoleculeUIDs(), reloadedArchive
+			.getMoleculeUIDs());
+		for (String UID : bigArchive.getMoleculeUIDs())
+			isEqual(bigArchive.get(UID), reloadedArchive.get(UID));
+	}
+
 	void isEqual(MoleculeArchive<?, ?, ?, ?> archive1,
 		MoleculeArchive<?, ?, ?, ?> archive2)
 	{
@@ -31,9 +31,18 @@ package de.mpg.biochem.mars.table;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.List;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import org.junit.jupiter.api.Test;
 import org.scijava.table.DoubleColumn;
 import org.scijava.table.GenericColumn;
@@ -1083,6 +1092,39 @@ public class MarsTableTests {
 		assertArrayEquals(XYZKeepRows, result);
 	}
 
+	@Test
+	void sortLargeTableDescendingIsStable() {
+		MarsTable table = new MarsTable();
+		DoubleColumn key = new DoubleColumn("key");
+		GenericColumn group = new GenericColumn("group");
+		DoubleColumn index = new DoubleColumn("index");
+		double[] keys = { 2.5, -0.0, 0.0, Double.NaN, -3, 2.5,
+			Double.NEGATIVE_INFINITY };
+		for (int row = 0; row < 1000; row++) {
+			key.add(keys[row % keys.length]);
+			group.add("group" + (row * 7) % 5);
+			index.add((double) row);
+		}
+		table.add(key);
+		table.add(group);
+		table.add(index);
+
+		List<Integer> expected = new ArrayList<>();
+		for (int row = 0; row < 1000; row++)
+			expected.add(row);
+		expected.sort((o1, o2) -> {
+			int difference = ((String) group.get(o2)).compareTo((String) group.get(
+				o1));
+			if (difference != 0) return difference;
+			return Double.compare(key.getValue(o2), key.getValue(o1));
+		});
+
+		table.sort(false, "group", "key");
+		for (int row = 0; row < 1000; row++)
+			assertEquals((int) expected.get(row), (int) table.getValue("index",
+				row));
+	}
+
 	/*
 	 * TEST clone()
 	 */
@@ -1095,6 +1137,157 @@ public class MarsTableTests {
 		assert (table.equals(copy));
 	}
 
+	/*
+	 * TEST describe()
+	 */
+
+	@Test
+	void describe() {
+		MarsTable table = buildTestArrayNaNsTable();
+		ColumnStatistics statistics = table.describe("col0");
+		assertEquals(table.getColumnAsDoublesNoNaNs("col0").length, statistics
+			.getCount());
+		assertEquals(table.mean("col0"), statistics.getMean());
+		assertEquals(table.std("col0"), statistics.getStd());
+		assertEquals(table.sem("col0"), statistics.getSem());
+		assertEquals(table.variance("col0"), statistics.getPopulationVariance());
+		assertEquals(table.median("col0"), statistics.getMedian());
+		assertEquals(table.mad("col0"), statistics.getMad());
+		assertEquals(-4882.151576, statistics.getMin());
+		assertEquals(4995.646673, statistics.getMax());
+	}
+
+	@Test
+	void describeSelectedRows() {
+		MarsTable table = buildTestXYNaNsTable();
+		ColumnStatistics statistics = table.describe("col1", "col0", 2, 4);
+		assertEquals(2617.7803706062314, statistics.getStd());
+		assertEquals(571.2465095748861, statistics.getSem());
+		assertEquals(-401.6722113, statistics.getMedian());
+		assertEquals(table.mad("col1", "col0", 2, 4), statistics.getMad());
+
+		assertNull(table.describe("Not a column", "col0", 2, 4));
+	}
+
+	@Test
+	void selectRows() {
+		MarsTable table = buildTestXYTable();
+		BitSet selection = table.selectRows("col0", 2, 4);
+		for (int row = 0; row < table.getRowCount(); row++) {
+			double value = table.getValue("col0", row);
+			assertEquals(value >= 2 && value <= 4, selection.get(row));
+		}
+	}
+
+	@Test
+	void selectRowsMembers() {
+		MarsTable table = buildTestXYTable();
+		double[] members = new double[] { table.getValue("col0", 3), table
+			.getValue("col0", 7), Double.NaN, 1e300 };
+		BitSet selection = table.selectRows("col0", members);
+		for (int row = 0; row < table.getRowCount(); row++) {
+			double value = table.getValue("col0", row);
+			assertEquals(value == members[0] || value == members[1], selection.get(
+				row));
+		}
+		assertNull(table.selectRows("Not a column", members));
+	}
+
+	@Test
+	void keepRowsSelection() {
+		MarsTable table = buildTestXYZTable();
+		GenericColumn names = new GenericColumn("names");
+		for (int row = 0; row < table.getRowCount(); row++)
+			names.add("row" + row);
+		table.add(names);
+
+		BitSet selection = new BitSet();
+		selection.set(9, 13);
+		selection.set(24);
+		table.keepRows(selection);
+
+		double[][] result = new double[table.getRowCount()][3];
+		for (int row = 0; row < table.getRowCount(); row++) {
+			result[row][0] = table.getValue("col0", row);
+			result[row][1] = table.getValue("col1", row);
+			result[row][2] = table.getValue("col2", row);
+		}
+		assertArrayEquals(XYZKeepRows, result);
+		assertEquals("row10", table.getStringValue("names", 1));
+		assertEquals("row24", table.getStringValue("names", 4));
+	}
+
+	@Test
+	void delimitedTextRoundTrip() throws IOException {
+		MarsTable table = buildTestXYStringTable();
+		for (char separator : new char[] { ',', '\t' }) {
+			File file = Files.createTempFile("table", separator == ',' ? ".csv"
+				: ".txt").toFile();
+			file.deleteOnExit();
+			new DelimitedTextWriter(separator, 5, 2).write(table, file);
+
+			// Small chunks so most rows are parsed by different tasks.
+			MarsTable loaded = new MarsTable();
+			new DelimitedTextReader(separator, 16, 2).read(file, loaded, null);
+
+			assertEquals(table.getColumnCount(), loaded.getColumnCount());
+			assertEquals(table.getRowCount(), loaded.getRowCount());
+			assertTrue(loaded.get("col2") instanceof GenericColumn);
+			for (int row = 0; row < table.getRowCount(); row++) {
+				assertEquals(table.getValue("col0", row), loaded.getValue("col0",
+					row));
+				assertEquals(table.getValue("col1", row), loaded.getValue("col1",
+					row));
+				assertEquals(table.getStringValue("col2", row), loaded
+					.getStringValue("col2", row));
+			}
+		}
+	}
+
+	/*
+	 * TEST fromJSON() lazy column decoding
+	 */
+
+	@Test
+	void lazyColumnDecoding() throws IOException {
+		MarsTable table = buildTestXYZTable();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonGenerator jGenerator = new SmileFactory().createGenerator(out);
+		table.toJSON(jGenerator);
+		jGenerator.close();
+
+		MarsTable lazyTable = new MarsTable();
+		JsonParser jParser = new SmileFactory().createParser(out.toByteArray());
+		lazyTable.fromJSON(jParser);
+		jParser.close();
+
+		assertEquals(table.getRowCount(), lazyTable.getRowCount());
+		assertFalse(((LazyDoubleColumn) lazyTable.get("col0")).isLoaded());
+		assertFalse(((LazyDoubleColumn) lazyTable.get("col2")).isLoaded());
+
+		assertEquals(table.mean("col1"), lazyTable.mean("col1"));
+		assertTrue(((LazyDoubleColumn) lazyTable.get("col1")).isLoaded());
+		assertFalse(((LazyDoubleColumn) lazyTable.get("col2")).isLoaded());
+
+		for (int row = 0; row < table.getRowCount(); row++) {
+			assertEquals(table.getValue("col0", row), lazyTable.getValue("col0",
+				row));
+			assertEquals(table.getValue("col2", row), lazyTable.getValue("col2",
+				row));
+		}
+
+		MarsTable eagerTable = new MarsTable();
+		jParser = new SmileFactory().createParser(out.toByteArray());
+		eagerTable.fromJSON(jParser, false);
+		jParser.close();
+
+		assertFalse(eagerTable.get("col0") instanceof LazyDoubleColumn);
+		for (int row = 0; row < table.getRowCount(); row++)
+			assertEquals(table.getValue("col1", row), eagerTable.getValue("col1",
+				row));
+	}
+
 	/*
 	 * UTILITY METHODS
 	 */